@@ -0,0 +1,559 @@
+package android.content.res;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.TypedValue;
+
+/**
+ * Resource table (resources.arsc) which resolves resource IDs to their values on demand.
+ *
+ * The table is read in place from the provided buffer, typically the resources.arsc entry of an
+ * APK mapped into memory. Opening the table only walks its top-level chunks. The type chunks of a
+ * package are indexed the first time one of its resources is resolved, and strings are decoded
+ * when they are returned. Nothing else is decoded, so resolving a few resources, e.g. the app's
+ * label and icon, costs the same for a 50 MB table as for a small one.
+ *
+ * Instances are safe for use by multiple threads once opened.
+ */
+public class ResourceTable {
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int PACKAGE_NAME_LENGTH = 128;
+
+    private static final int TYPE_FLAG_SPARSE = 0x01;
+    private static final int TYPE_FLAG_OFFSET16 = 0x02;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+    private static final int NO_ENTRY16 = 0xFFFF;
+
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+
+    private static final int DENSITY_ANY = 0xFFFE;
+    private static final int DENSITY_NONE = 0xFFFF;
+    private static final int DENSITY_MEDIUM = 160;
+
+    /** Most references followed when resolving a resource, to stop on reference cycles. */
+    private static final int MAX_REFERENCE_DEPTH = 20;
+
+    private final ByteBuffer m_table;
+    private final StringPool m_strings;
+    private final Map<Integer, Package> m_packages = new HashMap<Integer, Package>();
+
+    /**
+     * Device configuration for which to resolve resources. Only the language, country, screen
+     * density and platform version are taken into account: resources qualified with anything else
+     * (locale script or variant, night mode, orientation, screen size, etc.) are never selected.
+     */
+    public static class Config {
+        /** Default locale, highest concrete density, any platform version. */
+        public static final Config DEFAULT = new Config("", "", 0, 0);
+
+        private final String m_language;
+        private final String m_country;
+        private final int m_density;
+        private final int m_sdkVersion;
+
+        /**
+         * @param language two-letter language code, e.g. "zh", or "" for the default locale
+         * @param country two-letter country code, e.g. "CN", or "" for any
+         * @param density screen density in dpi, e.g. 480, or 0 for the highest available one other
+         *        than anydpi, which is then only used for resources without any other density
+         * @param sdkVersion platform API level, or 0 for any
+         */
+        public Config(String language, String country, int density, int sdkVersion) {
+            m_language = language;
+            m_country = country;
+            m_density = density;
+            m_sdkVersion = sdkVersion;
+        }
+    }
+
+    /**
+     * Raw value of a resource, as found in the resource table.
+     */
+    public static class Value {
+        private final int m_type;
+        private final int m_data;
+
+        private Value(int type, int data) {
+            m_type = type;
+            m_data = data;
+        }
+
+        /**
+         * Returns the type of the value, one of the TypedValue.TYPE_* constants.
+         */
+        public int getType() {
+            return m_type;
+        }
+
+        public int getData() {
+            return m_data;
+        }
+    }
+
+    /**
+     * Opens the resource table held in the buffer, from its position to its limit. The buffer must
+     * not be modified while the table is in use.
+     */
+    public static ResourceTable open(ByteBuffer table) throws IOException {
+        return new ResourceTable(table.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private ResourceTable(ByteBuffer table) throws IOException {
+        m_table = table;
+        if (table.remaining() < CHUNK_HEADER_SIZE || getShort(0) != RES_TABLE_TYPE) {
+            throw new IOException("Not a resource table.");
+        }
+        int end = checkChunk(0, table.limit());
+        StringPool strings = null;
+        for (int offset = getShort(2); offset < end; ) {
+            int chunkEnd = checkChunk(offset, end);
+            int type = getShort(offset);
+            if (type == RES_STRING_POOL_TYPE && strings == null) {
+                strings = new StringPool(offset);
+            } else if (type == RES_TABLE_PACKAGE_TYPE) {
+                Package p = new Package(offset);
+                m_packages.put(p.m_id, p);
+            }
+            offset = chunkEnd;
+        }
+        if (strings == null) {
+            throw new IOException("Resource table has no string pool.");
+        }
+        m_strings = strings;
+    }
+
+    /**
+     * Returns the name of the package with the ID, e.g. 0x7F, or null if the table has no such
+     * package.
+     */
+    public String getPackageName(int packageId) {
+        Package p = m_packages.get(packageId);
+        return (p != null) ? p.m_name : null;
+    }
+
+    /**
+     * Returns the name of the resource as "type/entry", e.g. "mipmap/ic_launcher", or null if the
+     * table has no such resource.
+     */
+    public String getResourceName(int resourceId) throws IOException {
+        Package p = m_packages.get(resourceId >>> 24);
+        if (p == null) {
+            return null;
+        }
+        int typeId = (resourceId >>> 16) & 0xFF;
+        List<Integer> typeChunks = p.getTypeChunks().get(typeId);
+        if (typeChunks == null) {
+            return null;
+        }
+        for (int typeChunk : typeChunks) {
+            int entry = findEntry(typeChunk, resourceId & 0xFFFF);
+            if (entry != -1) {
+                int flags = getShort(entry + 2);
+                int key = ((flags & ENTRY_FLAG_COMPACT) != 0) ? getShort(entry) : getInt(entry + 4);
+                return p.getTypeStrings().getString(typeId - 1 - p.m_typeIdOffset)
+                        + "/" + p.getKeyStrings().getString(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the resource best matching the configuration, or null if the table has
+     * no such resource for the configuration or its value is a bag (style, array, plural, etc.).
+     */
+    public Value getValue(int resourceId, Config config) throws IOException {
+        Package p = m_packages.get(resourceId >>> 24);
+        if (p == null) {
+            return null;
+        }
+        List<Integer> typeChunks = p.getTypeChunks().get((resourceId >>> 16) & 0xFF);
+        if (typeChunks == null) {
+            return null;
+        }
+        int bestEntry = -1;
+        int bestConfig = -1;
+        for (int typeChunk : typeChunks) {
+            int configOffset = typeChunk + 20;
+            if (!isCompatible(configOffset, config)) {
+                continue;
+            }
+            int entry = findEntry(typeChunk, resourceId & 0xFFFF);
+            if (entry == -1) {
+                continue;
+            }
+            if (bestEntry == -1 || isBetter(configOffset, bestConfig, config)) {
+                bestEntry = entry;
+                bestConfig = configOffset;
+            }
+        }
+        if (bestEntry == -1) {
+            return null;
+        }
+        int flags = getShort(bestEntry + 2);
+        if ((flags & ENTRY_FLAG_COMPACT) != 0) {
+            return new Value(flags >>> 8, getInt(bestEntry + 4));
+        }
+        if ((flags & ENTRY_FLAG_COMPLEX) != 0) {
+            return null;
+        }
+        int value = bestEntry + getShort(bestEntry);
+        return new Value(getByte(value + 3) & 0xFF, getInt(value + 4));
+    }
+
+    /**
+     * Returns the string the resource resolves to for the configuration, following references, or
+     * null if it does not resolve to a string. File resources, such as drawables and layouts,
+     * resolve to their path in the APK.
+     */
+    public String getString(int resourceId, Config config) throws IOException {
+        for (int i = 0; i < MAX_REFERENCE_DEPTH; i++) {
+            Value value = getValue(resourceId, config);
+            if (value == null) {
+                return null;
+            }
+            if (value.getType() == TypedValue.TYPE_STRING) {
+                return m_strings.getString(value.getData());
+            }
+            if (value.getType() != TypedValue.TYPE_REFERENCE) {
+                return null;
+            }
+            resourceId = value.getData();
+        }
+        return null;
+    }
+
+    ///////////////////////////////////////////// implementation
+
+    /**
+     * Returns the offset of the entry with the index in the type chunk, or -1 if the chunk has no
+     * such entry.
+     */
+    private int findEntry(int typeChunk, int index) throws IOException {
+        int flags = getByte(typeChunk + 9) & 0xFF;
+        int entryCount = getInt(typeChunk + 12);
+        int entriesStart = typeChunk + getInt(typeChunk + 16);
+        int offsets = typeChunk + getShort(typeChunk + 2);
+        int offset;
+        if ((flags & TYPE_FLAG_SPARSE) != 0) {
+            // Sorted (index, offset / 4) pairs of uint16
+            int low = 0;
+            int high = entryCount - 1;
+            offset = NO_ENTRY;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int middleIndex = getShort(offsets + middle * 4);
+                if (middleIndex < index) {
+                    low = middle + 1;
+                } else if (middleIndex > index) {
+                    high = middle - 1;
+                } else {
+                    offset = getShort(offsets + middle * 4 + 2) * 4;
+                    break;
+                }
+            }
+        } else if (index >= entryCount) {
+            return -1;
+        } else if ((flags & TYPE_FLAG_OFFSET16) != 0) {
+            offset = getShort(offsets + index * 2);
+            offset = (offset == NO_ENTRY16) ? NO_ENTRY : offset * 4;
+        } else {
+            offset = getInt(offsets + index * 4);
+        }
+        if (offset == NO_ENTRY) {
+            return -1;
+        }
+        int entry = entriesStart + offset;
+        if (offset < 0 || entry < 0 || entry > m_table.limit() - 8) {
+            throw new IOException("Resource entry out of bounds.");
+        }
+        return entry;
+    }
+
+    /**
+     * Returns whether the resources of the configuration at the offset may be used for the
+     * requested configuration.
+     */
+    private boolean isCompatible(int configOffset, Config config) throws IOException {
+        int size = getInt(configOffset);
+        String language = getLocalePart(configOffset + 8);
+        if (language.length() != 0 && !language.equals(config.m_language)) {
+            return false;
+        }
+        String country = getLocalePart(configOffset + 10);
+        if (country.length() != 0 && !country.equals(config.m_country)) {
+            return false;
+        }
+        if (size >= 26) {
+            int sdkVersion = getShort(configOffset + 24);
+            if (config.m_sdkVersion != 0 && sdkVersion > config.m_sdkVersion) {
+                return false;
+            }
+        }
+        // Everything but the language, country, density and platform version must be unset. This
+        // includes the locale script and variant, which cannot be requested.
+        for (int i = 4; i < size; i++) {
+            if ((i >= 8 && i < 12) || i == 14 || i == 15 || (i >= 24 && i < 28)) {
+                continue;
+            }
+            if (getByte(configOffset + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the compatible configuration at the offset matches the requested one better
+     * than the other compatible configuration. Like on Android, the locale matters most, then the
+     * density, then the platform version.
+     */
+    private boolean isBetter(int configOffset, int otherConfigOffset, Config config)
+            throws IOException {
+        int localeScore = getLocaleScore(configOffset);
+        int otherLocaleScore = getLocaleScore(otherConfigOffset);
+        if (localeScore != otherLocaleScore) {
+            return localeScore > otherLocaleScore;
+        }
+        int density = getShort(configOffset + 14);
+        int otherDensity = getShort(otherConfigOffset + 14);
+        if (density != otherDensity) {
+            if (density == DENSITY_ANY || otherDensity == DENSITY_ANY) {
+                // Unlike on Android, anydpi (e.g. adaptive icons) only wins if a density is
+                // requested, so that by default the highest density bitmap is returned
+                if (config.m_density == 0) {
+                    return otherDensity == DENSITY_ANY;
+                }
+                return density == DENSITY_ANY;
+            }
+            density = (density == 0 || density == DENSITY_NONE) ? DENSITY_MEDIUM : density;
+            otherDensity = (otherDensity == 0 || otherDensity == DENSITY_NONE)
+                    ? DENSITY_MEDIUM : otherDensity;
+            if (density != otherDensity) {
+                if (config.m_density == 0) {
+                    return density > otherDensity;
+                }
+                // The smallest density at least the requested one, else the largest below it
+                if ((density >= config.m_density) != (otherDensity >= config.m_density)) {
+                    return density >= config.m_density;
+                }
+                return (density >= config.m_density)
+                        ? density < otherDensity : density > otherDensity;
+            }
+        }
+        int size = getInt(configOffset);
+        int otherSize = getInt(otherConfigOffset);
+        int sdkVersion = (size >= 26) ? getShort(configOffset + 24) : 0;
+        int otherSdkVersion = (otherSize >= 26) ? getShort(otherConfigOffset + 24) : 0;
+        return sdkVersion > otherSdkVersion;
+    }
+
+    private int getLocaleScore(int configOffset) throws IOException {
+        if (getLocalePart(configOffset + 8).length() == 0) {
+            return 0;
+        }
+        return (getLocalePart(configOffset + 10).length() == 0) ? 1 : 2;
+    }
+
+    /**
+     * Returns the two-letter language or country code at the offset, or "" if unset. Packed
+     * three-letter codes are returned as "?", which matches no requested code.
+     */
+    private String getLocalePart(int offset) throws IOException {
+        int first = getByte(offset) & 0xFF;
+        int second = getByte(offset + 1) & 0xFF;
+        if (first == 0) {
+            return "";
+        }
+        if ((first & 0x80) != 0) {
+            return "?";
+        }
+        return new String(new char[]{(char) first, (char) second});
+    }
+
+    /**
+     * Checks that the chunk at the offset fits before the end and returns its end.
+     */
+    private int checkChunk(int offset, int end) throws IOException {
+        if (offset + CHUNK_HEADER_SIZE > end) {
+            throw new IOException("Truncated resource table chunk at " + offset + ".");
+        }
+        int headerSize = getShort(offset + 2);
+        int size = getInt(offset + 4);
+        if (headerSize < CHUNK_HEADER_SIZE || size < headerSize || size > end - offset) {
+            throw new IOException("Malformed resource table chunk at " + offset + ".");
+        }
+        return offset + size;
+    }
+
+    /**
+     * Checks that the size bytes at the offset are within the table, so that malformed tables fail
+     * with an IOException rather than an unchecked exception.
+     */
+    private void checkRange(int offset, int size) throws IOException {
+        if (offset < 0 || size < 0 || offset > m_table.limit() - size) {
+            throw new IOException("Resource table read out of bounds at " + offset + ".");
+        }
+    }
+
+    private byte getByte(int offset) throws IOException {
+        checkRange(offset, 1);
+        return m_table.get(offset);
+    }
+
+    private int getShort(int offset) throws IOException {
+        checkRange(offset, 2);
+        return m_table.getShort(offset) & 0xFFFF;
+    }
+
+    private char getChar(int offset) throws IOException {
+        checkRange(offset, 2);
+        return m_table.getChar(offset);
+    }
+
+    private int getInt(int offset) throws IOException {
+        checkRange(offset, 4);
+        return m_table.getInt(offset);
+    }
+
+    /**
+     * Package chunk, whose type chunks are indexed on first use.
+     */
+    private class Package {
+        private final int m_offset;
+        private final int m_id;
+        private final String m_name;
+        private final int m_typeIdOffset;
+        private Map<Integer, List<Integer>> m_typeChunks;
+        private StringPool m_typeStrings;
+        private StringPool m_keyStrings;
+
+        Package(int offset) throws IOException {
+            m_offset = offset;
+            m_id = getInt(offset + 8);
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < PACKAGE_NAME_LENGTH; i++) {
+                char c = getChar(offset + 12 + i * 2);
+                if (c == 0) {
+                    break;
+                }
+                name.append(c);
+            }
+            m_name = name.toString();
+            int headerSize = getShort(offset + 2);
+            m_typeIdOffset = (headerSize >= 288) ? getInt(offset + 284) : 0;
+        }
+
+        /**
+         * Returns the offsets of the type chunks of the package by type ID.
+         */
+        synchronized Map<Integer, List<Integer>> getTypeChunks() throws IOException {
+            if (m_typeChunks == null) {
+                Map<Integer, List<Integer>> typeChunks = new HashMap<Integer, List<Integer>>();
+                int end = checkChunk(m_offset, m_table.limit());
+                for (int offset = m_offset + getShort(m_offset + 2); offset < end; ) {
+                    int chunkEnd = checkChunk(offset, end);
+                    if (getShort(offset) == RES_TABLE_TYPE_TYPE) {
+                        int typeId = getByte(offset + 8) & 0xFF;
+                        List<Integer> chunks = typeChunks.get(typeId);
+                        if (chunks == null) {
+                            chunks = new ArrayList<Integer>();
+                            typeChunks.put(typeId, chunks);
+                        }
+                        chunks.add(offset);
+                    }
+                    offset = chunkEnd;
+                }
+                m_typeChunks = typeChunks;
+            }
+            return m_typeChunks;
+        }
+
+        synchronized StringPool getTypeStrings() throws IOException {
+            if (m_typeStrings == null) {
+                m_typeStrings = new StringPool(m_offset + getInt(m_offset + 268));
+            }
+            return m_typeStrings;
+        }
+
+        synchronized StringPool getKeyStrings() throws IOException {
+            if (m_keyStrings == null) {
+                m_keyStrings = new StringPool(m_offset + getInt(m_offset + 276));
+            }
+            return m_keyStrings;
+        }
+    }
+
+    /**
+     * String pool chunk, whose strings are decoded when returned. Unlike StringBlock, nothing is
+     * copied out of the table.
+     */
+    private class StringPool {
+        private static final int UTF8_FLAG = 0x00000100;
+
+        private final int m_count;
+        private final int m_offsets;
+        private final int m_strings;
+        private final boolean m_isUTF8;
+
+        StringPool(int offset) throws IOException {
+            if (getShort(offset) != RES_STRING_POOL_TYPE) {
+                throw new IOException("Expected string pool at " + offset + ".");
+            }
+            checkChunk(offset, m_table.limit());
+            m_count = getInt(offset + 8);
+            m_isUTF8 = (getInt(offset + 16) & UTF8_FLAG) != 0;
+            m_strings = offset + getInt(offset + 20);
+            m_offsets = offset + getShort(offset + 2);
+        }
+
+        String getString(int index) throws IOException {
+            if (index < 0 || index >= m_count) {
+                return null;
+            }
+            int offset = m_strings + getInt(m_offsets + index * 4);
+            if (m_isUTF8) {
+                // UTF-16 length, then UTF-8 length, each on one or two bytes
+                offset += ((getByte(offset) & 0x80) != 0) ? 2 : 1;
+                int length = getByte(offset) & 0xFF;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7F) << 8) | (getByte(offset + 1) & 0xFF);
+                    offset += 2;
+                } else {
+                    offset += 1;
+                }
+                return decode(offset, length, true);
+            }
+            int length = getShort(offset);
+            if ((length & 0x8000) != 0) {
+                length = ((length & 0x7FFF) << 16) | getShort(offset + 2);
+                offset += 4;
+            } else {
+                offset += 2;
+            }
+            return decode(offset, length * 2, false);
+        }
+
+        private String decode(int offset, int length, boolean utf8) throws IOException {
+            checkRange(offset, length);
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = m_table.duplicate();
+            buffer.position(offset);
+            buffer.get(bytes);
+            return new String(bytes, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16LE);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package android.content.res;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import android.util.TypedValue;
+
+@RunWith(JUnit4.class)
+public class ResourceTableTest {
+
+    /** APK of the apksig tests whose label is the string resource 0x7f020000. */
+    private static final String FIXTURE_APK = "/com/android/apksig/debuggable-boolean.apk";
+
+    private static final int LABEL = 0x7f010000;
+    private static final int ICON = 0x7f020000;
+
+    private static final String ICON_MDPI = "res/mipmap-mdpi-v4/ic_launcher.png";
+    private static final String ICON_XXXHDPI = "res/mipmap-xxxhdpi-v4/ic_launcher.png";
+    private static final String ICON_ANYDPI = "res/mipmap-anydpi-v26/ic_launcher.xml";
+
+    @Test
+    public void testFixtureLabel() throws Exception {
+        ResourceTable table = ResourceTable.open(ByteBuffer.wrap(readResourceTable(FIXTURE_APK)));
+
+        assertEquals("android.appsecurity.cts.tinyapp", table.getPackageName(0x7f));
+        assertEquals("string/app_name", table.getResourceName(0x7f020000));
+        assertEquals("Tiny App for CTS", table.getString(0x7f020000, ResourceTable.Config.DEFAULT));
+        assertNull(table.getString(0x7f02ffff, ResourceTable.Config.DEFAULT));
+        assertNull(table.getString(0x7e020000, ResourceTable.Config.DEFAULT));
+    }
+
+    @Test
+    public void testLabelAndIcon() throws Exception {
+        ResourceTable table = ResourceTable.open(ByteBuffer.wrap(newTable()));
+
+        assertEquals("com.example.app", table.getPackageName(0x7f));
+        assertEquals("string/app_name", table.getResourceName(LABEL));
+        assertEquals("mipmap/ic_launcher", table.getResourceName(ICON));
+        assertEquals("Example", table.getString(LABEL, ResourceTable.Config.DEFAULT));
+        assertEquals("例子", table.getString(LABEL, new ResourceTable.Config("zh", "CN", 0, 0)));
+        ResourceTable.Value icon = table.getValue(ICON, ResourceTable.Config.DEFAULT);
+        assertEquals(TypedValue.TYPE_STRING, icon.getType());
+    }
+
+    @Test
+    public void testIconDensity() throws Exception {
+        ResourceTable table = ResourceTable.open(ByteBuffer.wrap(newTable()));
+
+        // By default the highest concrete density, not the adaptive icon
+        assertEquals(ICON_XXXHDPI, table.getString(ICON, ResourceTable.Config.DEFAULT));
+        // Like on Android, anydpi wins once a density is requested
+        assertEquals(ICON_ANYDPI, table.getString(ICON, new ResourceTable.Config("", "", 160, 0)));
+        assertEquals(
+                ICON_XXXHDPI, table.getString(ICON, new ResourceTable.Config("", "", 480, 25)));
+        assertEquals(ICON_MDPI, table.getString(ICON, new ResourceTable.Config("", "", 120, 25)));
+    }
+
+    @Test
+    public void testLocaleScriptAndVariantNotSelected() throws Exception {
+        byte[] script = config("zh", "CN", 0, 0, 48);
+        script[36] = 'H';
+        script[37] = 'a';
+        script[38] = 'n';
+        script[39] = 't';
+        byte[] variant = config("zh", "CN", 0, 0, 48);
+        variant[40] = 'p';
+        variant[41] = 'i';
+        variant[42] = 'n';
+        variant[43] = 'y';
+        variant[44] = 'i';
+        variant[45] = 'n';
+        for (byte[] zhConfig : new byte[][] {script, variant}) {
+            ResourceTable table = ResourceTable.open(ByteBuffer.wrap(newTable(zhConfig)));
+
+            assertEquals(
+                    "Example", table.getString(LABEL, new ResourceTable.Config("zh", "CN", 0, 0)));
+        }
+        // Without a script or variant the longer configuration is selected as before
+        ResourceTable table =
+                ResourceTable.open(ByteBuffer.wrap(newTable(config("zh", "CN", 0, 0, 48))));
+        assertEquals("例子", table.getString(LABEL, new ResourceTable.Config("zh", "CN", 0, 0)));
+    }
+
+    @Test
+    public void testNotResourceTable() throws Exception {
+        assertOpenFails(new byte[0]);
+        assertOpenFails(new byte[] {1, 0, 8, 0, 8, 0, 0, 0});
+        // Table without a string pool
+        assertOpenFails(new byte[] {2, 0, 12, 0, 12, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    @Test
+    public void testTruncatedTable() throws Exception {
+        byte[] table = newTable();
+        for (int size = 0; size < table.length; size++) {
+            byte[] truncated = Arrays.copyOf(table, size);
+            // The table chunk claims more bytes than are left
+            assertOpenFails(truncated);
+            if (size >= 8) {
+                // Shrink the table chunk so that only the chunks inside it are truncated
+                ByteBuffer.wrap(truncated).order(ByteOrder.LITTLE_ENDIAN).putInt(4, size);
+                resolveAllOrFail(truncated);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptedTable() throws Exception {
+        byte[] table = newTable();
+        for (int offset = 0; offset < table.length; offset++) {
+            for (byte value : new byte[] {0, 0x7f, (byte) 0x80, (byte) 0xff}) {
+                byte[] corrupted = table.clone();
+                corrupted[offset] = value;
+                resolveAllOrFail(corrupted);
+            }
+        }
+    }
+
+    /**
+     * Opens the table and resolves its resources, which must either succeed or fail with an
+     * IOException.
+     */
+    private static void resolveAllOrFail(byte[] bytes) {
+        try {
+            ResourceTable table = ResourceTable.open(ByteBuffer.wrap(bytes));
+            table.getPackageName(0x7f);
+            for (int resourceId : new int[] {LABEL, ICON}) {
+                table.getResourceName(resourceId);
+                table.getString(resourceId, ResourceTable.Config.DEFAULT);
+                table.getString(resourceId, new ResourceTable.Config("zh", "CN", 480, 25));
+            }
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertOpenFails(byte[] bytes) {
+        try {
+            ResourceTable.open(ByteBuffer.wrap(bytes));
+            fail("Opened malformed table of " + bytes.length + " bytes");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] readResourceTable(String apk) throws IOException {
+        try (InputStream in = ResourceTableTest.class.getResourceAsStream(apk)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Resource not found: " + apk);
+            }
+            ZipInputStream zip = new ZipInputStream(in);
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                if (entry.getName().equals("resources.arsc")) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    for (int n; (n = zip.read(buf)) != -1; ) {
+                        out.write(buf, 0, n);
+                    }
+                    return out.toByteArray();
+                }
+            }
+        }
+        throw new IllegalArgumentException("No resources.arsc in " + apk);
+    }
+
+    ///////////////////////////////////////////// table builder
+
+    /**
+     * Returns a resource table with package 0x7F, whose label has a default and a zh-rCN value,
+     * and whose icon has mdpi, xxxhdpi and anydpi-v26 values.
+     */
+    private static byte[] newTable() {
+        return newTable(config("zh", "CN", 0, 0));
+    }
+
+    /**
+     * Returns the table of {@link #newTable()} with the configuration of the label's second value.
+     */
+    private static byte[] newTable(byte[] zhConfig) {
+        List<String> strings =
+                Arrays.asList("Example", "例子", ICON_MDPI, ICON_XXXHDPI, ICON_ANYDPI);
+        byte[] packageChunk = chunk(0x0200, concat(
+                packageHeader(0x7f, "com.example.app"),
+                stringPool(Arrays.asList("string", "mipmap")),
+                stringPool(Arrays.asList("app_name", "ic_launcher")),
+                typeChunk(1, config("", "", 0, 0), 0, 0),
+                typeChunk(1, zhConfig, 0, 1),
+                typeChunk(2, config("", "", 160, 4), 1, 2),
+                typeChunk(2, config("", "", 640, 4), 1, 3),
+                typeChunk(2, config("", "", 0xfffe, 26), 1, 4)), 288);
+        return chunk(0x0002, concat(le(4, 1), stringPool(strings), packageChunk), 12);
+    }
+
+    /**
+     * Returns ResTable_package after the chunk header, with the type and key string pools right
+     * after it.
+     */
+    private static byte[] packageHeader(int id, String name) {
+        ByteBuffer header = ByteBuffer.allocate(280).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(id);
+        for (char c : name.toCharArray()) {
+            header.putChar(c);
+        }
+        int typeStrings = 288;
+        int keyStrings = typeStrings + stringPool(Arrays.asList("string", "mipmap")).length;
+        header.putInt(260, typeStrings).putInt(268, keyStrings);
+        return header.array();
+    }
+
+    /** Returns a type chunk with a single entry whose key and string value are given. */
+    private static byte[] typeChunk(int typeId, byte[] config, int key, int string) {
+        ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) 8).putShort((short) 0).putInt(key);
+        entry.putShort((short) 8).put((byte) 0).put((byte) TypedValue.TYPE_STRING).putInt(string);
+        int headerSize = 20 + config.length;
+        byte[] header = concat(
+                new byte[] {(byte) typeId, 0, 0, 0}, le(4, 1), le(4, headerSize + 4), config);
+        return chunk(0x0201, concat(header, le(4, 0), entry.array()), headerSize);
+    }
+
+    /** Returns a 28 byte ResTable_config with the locale, density and platform version. */
+    private static byte[] config(String language, String country, int density, int sdkVersion) {
+        return config(language, country, density, sdkVersion, 28);
+    }
+
+    /**
+     * Returns a ResTable_config of the size with the locale, density and platform version, and
+     * everything else unset.
+     */
+    private static byte[] config(
+            String language, String country, int density, int sdkVersion, int size) {
+        ByteBuffer config = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        config.putInt(size);
+        if (!language.isEmpty()) {
+            config.put(8, (byte) language.charAt(0)).put(9, (byte) language.charAt(1));
+        }
+        if (!country.isEmpty()) {
+            config.put(10, (byte) country.charAt(0)).put(11, (byte) country.charAt(1));
+        }
+        config.putShort(14, (short) density).putShort(24, (short) sdkVersion);
+        return config.array();
+    }
+
+    /** Returns a UTF-16 string pool chunk. */
+    private static byte[] stringPool(List<String> strings) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer offsets = ByteBuffer.allocate(strings.size() * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (String s : strings) {
+            offsets.putInt(data.size());
+            write(data, le(2, s.length()));
+            for (char c : s.toCharArray()) {
+                write(data, le(2, c));
+            }
+            write(data, le(2, 0));
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+        byte[] header = concat(
+                le(4, strings.size()),
+                le(4, 0),
+                le(4, 0),
+                le(4, 28 + offsets.capacity()),
+                le(4, 0));
+        return chunk(0x0001, concat(header, offsets.array(), data.toByteArray()), 28);
+    }
+
+    /** Returns the chunk of the type whose header and body follow the 8 byte chunk header. */
+    private static byte[] chunk(int type, byte[] content, int headerSize) {
+        return concat(le(2, type), le(2, headerSize), le(4, 8 + content.length), content);
+    }
+
+    private static byte[] le(int size, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value);
+        return Arrays.copyOf(buffer.array(), size);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
+import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.apk.SignatureInfo;
+import com.android.apksig.internal.apk.v2.V2SchemeSigner;
+import com.android.apksig.internal.apk.v3.V3SchemeSigner;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Fingerprint of the contents of an APK, excluding its APK Signing Block, for finding APKs with
+ * identical contents without reading them in full.
+ *
+ * <p>The fingerprint is made of a content digest of the APK, as defined by APK Signature Scheme v2,
+ * and the SHA-256 digest of the APK's ZIP Central Directory. The content digest is taken from the
+ * APK Signature Scheme v3 or v2 block when the APK has one, so only a few kilobytes of the APK are
+ * read. Otherwise, e.g. for APKs which are only JAR-signed, the content digest is computed over
+ * the whole APK except its APK Signing Block. Digests taken from the APK Signing Block are those
+ * claimed by the APK's signer: they are not verified against the APK's contents.
+ *
+ * <p>Two fingerprints are equal iff they use the same content digest algorithm and have the same
+ * digests. {@code CHUNKED_SHA256} is preferred, so that fingerprints of most APKs, including
+ * computed ones, can be compared with each other.
+ */
+public class ApkFingerprint {
+
+    /**
+     * Where the content digest of a fingerprint comes from.
+     */
+    public enum Source {
+        /** Taken from the APK Signature Scheme v3 block. */
+        V3_SIGNING_BLOCK,
+
+        /** Taken from the APK Signature Scheme v2 block. */
+        V2_SIGNING_BLOCK,
+
+        /** Computed over the contents of the APK. */
+        COMPUTED,
+    }
+
+    /** Content digest algorithms in order of preference. */
+    private static final ContentDigestAlgorithm[] PREFERRED_CONTENT_DIGEST_ALGORITHMS = {
+            ContentDigestAlgorithm.CHUNKED_SHA256,
+            ContentDigestAlgorithm.CHUNKED_SHA512,
+            ContentDigestAlgorithm.VERITY_CHUNKED_SHA256,
+    };
+
+    private final ContentDigestAlgorithm mContentDigestAlgorithm;
+    private final byte[] mContentDigest;
+    private final byte[] mCentralDirectoryDigest;
+    private final Source mSource;
+
+    private ApkFingerprint(
+            ContentDigestAlgorithm contentDigestAlgorithm,
+            byte[] contentDigest,
+            byte[] centralDirectoryDigest,
+            Source source) {
+        mContentDigestAlgorithm = contentDigestAlgorithm;
+        mContentDigest = contentDigest;
+        mCentralDirectoryDigest = centralDirectoryDigest;
+        mSource = source;
+    }
+
+    /**
+     * Returns the fingerprint of the provided APK file.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if a required cryptographic algorithm implementation is
+     *         missing
+     */
+    public static ApkFingerprint of(File apkFile)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        try (RandomAccessFile f = new RandomAccessFile(apkFile, "r")) {
+            return of(DataSources.asDataSource(f, 0, f.length()));
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the provided APK.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if a required cryptographic algorithm implementation is
+     *         missing
+     */
+    public static ApkFingerprint of(DataSource apk)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        DataSource centralDir =
+                apk.slice(
+                        zipSections.getZipCentralDirectoryOffset(),
+                        zipSections.getZipCentralDirectorySizeBytes());
+        MessageDigest centralDirMd = MessageDigest.getInstance("SHA-256");
+        centralDir.feed(0, centralDir.size(), DataSinks.asDataSink(centralDirMd));
+        byte[] centralDirDigest = centralDirMd.digest();
+
+        ApkFingerprint fingerprint =
+                fromSigningBlock(
+                        apk,
+                        zipSections,
+                        V3SchemeSigner.APK_SIGNATURE_SCHEME_V3_BLOCK_ID,
+                        ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V3,
+                        Source.V3_SIGNING_BLOCK,
+                        centralDirDigest);
+        if (fingerprint == null) {
+            fingerprint =
+                    fromSigningBlock(
+                            apk,
+                            zipSections,
+                            V2SchemeSigner.APK_SIGNATURE_SCHEME_V2_BLOCK_ID,
+                            ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2,
+                            Source.V2_SIGNING_BLOCK,
+                            centralDirDigest);
+        }
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+
+        // No digest to take from the APK Signing Block. Compute it over what an APK Signature
+        // Scheme v2 signature would cover: the APK without its APK Signing Block, if any, with the
+        // ZIP End of Central Directory record pointing to where the block starts.
+        long contentsEndOffset = zipSections.getZipCentralDirectoryOffset();
+        try {
+            contentsEndOffset = ApkUtils.findApkSigningBlock(apk, zipSections).getStartOffset();
+        } catch (ApkSigningBlockNotFoundException e) {
+            // No APK Signing Block: the contents end at the ZIP Central Directory
+        }
+        ByteBuffer eocd = zipSections.getZipEndOfCentralDirectory();
+        ByteBuffer modifiedEocd = ByteBuffer.allocate(eocd.remaining());
+        modifiedEocd.order(ByteOrder.LITTLE_ENDIAN);
+        modifiedEocd.put(eocd.slice());
+        modifiedEocd.flip();
+        ZipUtils.setZipEocdCentralDirectoryOffset(modifiedEocd, contentsEndOffset);
+        Map<ContentDigestAlgorithm, byte[]> contentDigests;
+        try {
+            contentDigests =
+                    ApkSigningBlockUtils.computeContentDigests(
+                            RunnablesExecutor.SINGLE_THREADED,
+                            Collections.singleton(ContentDigestAlgorithm.CHUNKED_SHA256),
+                            apk.slice(0, contentsEndOffset),
+                            centralDir,
+                            DataSources.asDataSource(modifiedEocd));
+        } catch (DigestException e) {
+            throw new RuntimeException("Failed to compute content digest", e);
+        }
+        return new ApkFingerprint(
+                ContentDigestAlgorithm.CHUNKED_SHA256,
+                contentDigests.get(ContentDigestAlgorithm.CHUNKED_SHA256),
+                centralDirDigest,
+                Source.COMPUTED);
+    }
+
+    /**
+     * Returns the fingerprint made of the preferred content digest of the first signer in the
+     * provided APK Signature Scheme block, or {@code null} if the APK does not contain the block
+     * or no usable content digest was found in it.
+     */
+    private static ApkFingerprint fromSigningBlock(
+            DataSource apk,
+            ApkUtils.ZipSections zipSections,
+            int blockId,
+            int signatureSchemeVersion,
+            Source source,
+            byte[] centralDirDigest) throws IOException {
+        SignatureInfo signatureInfo;
+        try {
+            signatureInfo =
+                    ApkSigningBlockUtils.findSignature(
+                            apk,
+                            zipSections,
+                            blockId,
+                            new ApkSigningBlockUtils.Result(signatureSchemeVersion));
+        } catch (ApkSigningBlockUtils.SignatureNotFoundException e) {
+            return null;
+        }
+
+        Map<ContentDigestAlgorithm, byte[]> contentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        try {
+            // FORMAT (same for v2 and v3):
+            // * length-prefixed sequence of length-prefixed signers
+            //   * length-prefixed signed data
+            //     * length-prefixed sequence of length-prefixed digests:
+            //       * uint32: signature algorithm ID
+            //       * length-prefixed bytes: digest of contents
+            ByteBuffer signers =
+                    ApkSigningBlockUtils.getLengthPrefixedSlice(signatureInfo.signatureBlock);
+            ByteBuffer signer = ApkSigningBlockUtils.getLengthPrefixedSlice(signers);
+            ByteBuffer signedData = ApkSigningBlockUtils.getLengthPrefixedSlice(signer);
+            ByteBuffer digests = ApkSigningBlockUtils.getLengthPrefixedSlice(signedData);
+            while (digests.hasRemaining()) {
+                ByteBuffer digest = ApkSigningBlockUtils.getLengthPrefixedSlice(digests);
+                SignatureAlgorithm signatureAlgorithm =
+                        SignatureAlgorithm.findById(digest.getInt());
+                byte[] digestBytes = ApkSigningBlockUtils.readLengthPrefixedByteArray(digest);
+                if (signatureAlgorithm != null) {
+                    contentDigests.put(signatureAlgorithm.getContentDigestAlgorithm(), digestBytes);
+                }
+            }
+        } catch (ApkFormatException | BufferUnderflowException e) {
+            return null;
+        }
+
+        for (ContentDigestAlgorithm algorithm : PREFERRED_CONTENT_DIGEST_ALGORITHMS) {
+            byte[] contentDigest = contentDigests.get(algorithm);
+            if (contentDigest != null) {
+                return new ApkFingerprint(algorithm, contentDigest, centralDirDigest, source);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the content digest algorithm of this fingerprint, e.g.,
+     * {@code CHUNKED_SHA256}.
+     */
+    public String getContentDigestAlgorithm() {
+        return mContentDigestAlgorithm.name();
+    }
+
+    public byte[] getContentDigest() {
+        return mContentDigest.clone();
+    }
+
+    /**
+     * Returns the SHA-256 digest of the APK's ZIP Central Directory.
+     */
+    public byte[] getCentralDirectoryDigest() {
+        return mCentralDirectoryDigest.clone();
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mContentDigest);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ApkFingerprint)) {
+            return false;
+        }
+        ApkFingerprint other = (ApkFingerprint) obj;
+        return mContentDigestAlgorithm == other.mContentDigestAlgorithm
+                && Arrays.equals(mContentDigest, other.mContentDigest)
+                && Arrays.equals(mCentralDirectoryDigest, other.mCentralDirectoryDigest);
+    }
+
+    /**
+     * Returns this fingerprint as
+     * {@code <content digest algorithm>:<content digest>:<central directory digest>}, with
+     * digests hex-encoded. Fingerprints are equal iff their string forms are.
+     */
+    @Override
+    public String toString() {
+        return mContentDigestAlgorithm.name()
+                + ":" + ApkSigningBlockUtils.toHex(mContentDigest)
+                + ":" + ApkSigningBlockUtils.toHex(mCentralDirectoryDigest);
+    }
+}
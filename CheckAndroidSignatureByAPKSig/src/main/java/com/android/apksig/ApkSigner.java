@@ -20,6 +20,9 @@ import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkSigningBlockNotFoundException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.apk.MinSdkVersionException;
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.ApkOperationEvent;
+import com.android.apksig.internal.jfr.JfrEvents;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.EocdRecord;
@@ -31,14 +34,21 @@ import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 import com.android.apksig.util.ReadableDataSink;
 import com.android.apksig.zip.ZipFormatException;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -82,9 +92,11 @@ public class ApkSigner {
     private static final short ANDROID_COMMON_PAGE_ALIGNMENT_BYTES = 4096;
 
     /**
-     * Name of the Android manifest ZIP entry in APKs.
+     * Suffix of the file, next to the APK being signed in place, which holds the original tail
+     * (APK Signing Block, ZIP Central Directory and End of Central Directory) of the APK while the
+     * tail is being rewritten.
      */
-    private static final String ANDROID_MANIFEST_ZIP_ENTRY_NAME = "AndroidManifest.xml";
+    private static final String IN_PLACE_SIGNING_JOURNAL_FILE_SUFFIX = ".signing-journal";
 
     private final List<SignerConfig> mSignerConfigs;
     private final Integer mMinSdkVersion;
@@ -103,6 +115,7 @@ public class ApkSigner {
     private final File mOutputApkFile;
     private final DataSink mOutputApkDataSink;
     private final DataSource mOutputApkDataSource;
+    private final boolean mInPlaceSigningEnabled;
 
     private final SigningCertificateLineage mSigningCertificateLineage;
 
@@ -121,6 +134,7 @@ public class ApkSigner {
             File outputApkFile,
             DataSink outputApkDataSink,
             DataSource outputApkDataSource,
+            boolean inPlaceSigningEnabled,
             SigningCertificateLineage signingCertificateLineage) {
 
         mSignerConfigs = signerConfigs;
@@ -140,12 +154,15 @@ public class ApkSigner {
         mOutputApkFile = outputApkFile;
         mOutputApkDataSink = outputApkDataSink;
         mOutputApkDataSource = outputApkDataSource;
+        mInPlaceSigningEnabled = inPlaceSigningEnabled;
 
         mSigningCertificateLineage = signingCertificateLineage;
     }
 
     /**
-     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified.
+     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified,
+     * unless this signer was configured to sign in place (see
+     * {@link Builder#setInPlaceSigningEnabled(boolean)}).
      *
      * @throws IOException if an I/O error is encountered while reading or writing the APKs
      * @throws ApkFormatException if the input APK is malformed
@@ -160,6 +177,45 @@ public class ApkSigner {
     public void sign()
             throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
                     SignatureException, IllegalStateException {
+        ApkOperationEvent event = (JfrEvents.isEnabled()) ? new ApkOperationEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        String inputApkPath = (mInputApkFile != null) ? mInputApkFile.getPath() : null;
+        String previousApkPath = ApkEventContext.enter(inputApkPath);
+        boolean succeeded = false;
+        try {
+            signApk();
+            succeeded = true;
+        } finally {
+            ApkEventContext.restore(previousApkPath);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = ApkOperationEvent.OPERATION_SIGN;
+                    event.apkPath = inputApkPath;
+                    event.apkSize =
+                            (mInputApkDataSource != null)
+                                    ? mInputApkDataSource.size()
+                                    : (mInputApkFile != null) ? mInputApkFile.length() : 0;
+                    event.signatureSchemes =
+                            ApkOperationEvent.formatSignatureSchemes(
+                                    mV1SigningEnabled, mV2SigningEnabled, mV3SigningEnabled);
+                    event.succeeded = succeeded;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private void signApk()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException, IllegalStateException {
+        if (mInPlaceSigningEnabled) {
+            signInPlace();
+            return;
+        }
+
         Closeable in = null;
         DataSource inputApk;
         try {
@@ -245,43 +301,7 @@ public class ApkSigner {
         List<Hints.ByteRange> pinByteRanges = pinPatterns == null ? null : new ArrayList<>();
 
         // Step 3. Obtain a signer engine instance
-        ApkSignerEngine signerEngine;
-        if (mSignerEngine != null) {
-            // Use the provided signer engine
-            signerEngine = mSignerEngine;
-        } else {
-            // Construct a signer engine from the provided parameters
-            int minSdkVersion;
-            if (mMinSdkVersion != null) {
-                // No need to extract minSdkVersion from the APK's AndroidManifest.xml
-                minSdkVersion = mMinSdkVersion;
-            } else {
-                // Need to extract minSdkVersion from the APK's AndroidManifest.xml
-                minSdkVersion = getMinSdkVersionFromApk(inputCdRecords, inputApkLfhSection);
-            }
-            List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
-                    new ArrayList<>(mSignerConfigs.size());
-            for (SignerConfig signerConfig : mSignerConfigs) {
-                engineSignerConfigs.add(
-                        new DefaultApkSignerEngine.SignerConfig.Builder(
-                                signerConfig.getName(),
-                                signerConfig.getPrivateKey(),
-                                signerConfig.getCertificates())
-                                .build());
-            }
-            DefaultApkSignerEngine.Builder signerEngineBuilder =
-                    new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
-                            .setV1SigningEnabled(mV1SigningEnabled)
-                            .setV2SigningEnabled(mV2SigningEnabled)
-                            .setV3SigningEnabled(mV3SigningEnabled)
-                            .setDebuggableApkPermitted(mDebuggableApkPermitted)
-                            .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
-                            .setSigningCertificateLineage(mSigningCertificateLineage);
-            if (mCreatedBy != null) {
-                signerEngineBuilder.setCreatedBy(mCreatedBy);
-            }
-            signerEngine = signerEngineBuilder.build();
-        }
+        ApkSignerEngine signerEngine = getSignerEngine(inputCdRecords, inputApkLfhSection);
 
         // Step 4. Provide the signer engine with the input APK's APK Signing Block (if any)
         if (inputApkSigningBlock != null) {
@@ -545,6 +565,7 @@ public class ApkSigner {
 
         // Step 10. Generate and output APK Signature Scheme v2 and/or v3 signatures, if necessary.
         // This may insert an APK Signing Block just before the output's ZIP Central Directory
+        flushOutput(outputApkOut);  // outputApkIn must reflect all output so far
         ApkSignerEngine.OutputApkSigningBlockRequest2 outputApkSigningBlockRequest =
                 signerEngine.outputZipSections2(
                         outputApkIn,
@@ -564,9 +585,273 @@ public class ApkSigner {
         // Step 11. Output ZIP Central Directory and ZIP End of Central Directory
         outputCentralDirDataSource.feed(0, outputCentralDirDataSource.size(), outputApkOut);
         outputApkOut.consume(outputEocd);
+        flushOutput(outputApkOut);
+        signerEngine.outputDone();
+    }
+
+    /**
+     * Flushes the provided output sink if it buffers data, such as the sinks returned by
+     * {@link DataSinks#asWriteBehindDataSink(DataSink)}.
+     */
+    private static void flushOutput(DataSink output) throws IOException {
+        if (output instanceof Flushable) {
+            ((Flushable) output).flush();
+        }
+    }
+
+    /**
+     * Signs the input APK file in place. The ZIP entries section of the file is left untouched and
+     * only the APK Signing Block, ZIP Central Directory and ZIP End of Central Directory at the end
+     * of the file are rewritten. This is only possible when the signer does not need to add, remove
+     * or modify any ZIP entries, i.e., when JAR signing is disabled and the input APK does not
+     * contain JAR signature files the signer would drop.
+     *
+     * <p>The original tail of the file is saved into a journal file next to the APK before it is
+     * overwritten, and the journal is deleted once the new tail has been flushed to storage. If an
+     * interrupted in-place signing operation left a journal behind, the original tail is restored
+     * from it before signing.
+     */
+    private void signInPlace()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException, IllegalStateException {
+        if (mInputApkFile == null) {
+            throw new IllegalStateException("In-place signing requires input APK File");
+        }
+        if ((mOutputApkFile != null) || (mOutputApkDataSink != null)) {
+            throw new IllegalStateException(
+                    "Output APK must not be specified for in-place signing");
+        }
+        if ((mSignerEngine == null) && (mV1SigningEnabled)) {
+            throw new IllegalStateException("In-place signing requires JAR signing to be disabled");
+        }
+
+        File journalFile =
+                new File(mInputApkFile.getPath() + IN_PLACE_SIGNING_JOURNAL_FILE_SUFFIX);
+        try (RandomAccessFile apkFile = new RandomAccessFile(mInputApkFile, "rw")) {
+            restoreApkTailFromJournal(apkFile, journalFile);
+            signInPlace(apkFile, journalFile);
+        }
+    }
+
+    private void signInPlace(RandomAccessFile apkFile, File journalFile)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        DataSource apk = DataSources.asDataSource(apkFile);
+
+        // Step 1. Find the APK's main ZIP sections
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        long apkSigningBlockOffset = -1;
+        DataSource apkSigningBlock = null;
+        try {
+            ApkUtils.ApkSigningBlock apkSigningBlockInfo =
+                    ApkUtils.findApkSigningBlock(apk, zipSections);
+            apkSigningBlockOffset = apkSigningBlockInfo.getStartOffset();
+            apkSigningBlock = apkSigningBlockInfo.getContents();
+        } catch (ApkSigningBlockNotFoundException e) {
+            // The APK does not contain an APK Signing Block yet. That's OK.
+        }
+        long lfhSectionSize =
+                (apkSigningBlockOffset != -1)
+                        ? apkSigningBlockOffset
+                        : zipSections.getZipCentralDirectoryOffset();
+        DataSource lfhSection = apk.slice(0, lfhSectionSize);
+
+        // Step 2. Parse the APK's ZIP Central Directory. Because entries stay where they are, the
+        // Central Directory is output unchanged.
+        ByteBuffer cd = getZipCentralDirectory(apk, zipSections);
+        List<CentralDirectoryRecord> cdRecords = parseZipCentralDirectory(cd, zipSections);
+        cd.rewind();
+
+        // Step 3. Obtain a signer engine instance and provide it with the existing APK Signing
+        // Block, if any
+        ApkSignerEngine signerEngine = getSignerEngine(cdRecords, lfhSection);
+        if (apkSigningBlock != null) {
+            signerEngine.inputApkSigningBlock(apkSigningBlock);
+        }
+
+        // Step 4. Present every entry to the signer engine as both input and output. In-place
+        // signing is not possible if the engine wants to drop or replace any of them.
+        List<CentralDirectoryRecord> cdRecordsSortedByLfhOffset = new ArrayList<>(cdRecords);
+        Collections.sort(
+                cdRecordsSortedByLfhOffset,
+                CentralDirectoryRecord.BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR);
+        for (CentralDirectoryRecord cdRecord : cdRecordsSortedByLfhOffset) {
+            String entryName = cdRecord.getName();
+            ApkSignerEngine.InputJarEntryInstructions entryInstructions =
+                    signerEngine.inputJarEntry(entryName);
+            if (entryInstructions.getOutputPolicy()
+                    != ApkSignerEngine.InputJarEntryInstructions.OutputPolicy.OUTPUT) {
+                throw new IllegalStateException(
+                        "Cannot sign in place: signer would not preserve entry " + entryName);
+            }
+            LocalFileRecord localFileRecord;
+            try {
+                localFileRecord =
+                        LocalFileRecord.getRecord(lfhSection, cdRecord, lfhSectionSize);
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
+            }
+            ApkSignerEngine.InspectJarEntryRequest inspectEntryRequest =
+                    entryInstructions.getInspectJarEntryRequest();
+            if (inspectEntryRequest != null) {
+                fulfillInspectInputJarEntryRequest(
+                        lfhSection, localFileRecord, inspectEntryRequest);
+            }
+            inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+            if (inspectEntryRequest != null) {
+                fulfillInspectInputJarEntryRequest(
+                        lfhSection, localFileRecord, inspectEntryRequest);
+            }
+        }
+        if (signerEngine.outputJarEntries() != null) {
+            throw new IllegalStateException(
+                    "Cannot sign in place: signer would add JAR signature entries");
+        }
+
+        // Step 5. Generate the new APK Signing Block and ZIP End of Central Directory record
+        DataSource cdDataSource = new ByteBufferDataSource(cd);
+        ByteBuffer eocd =
+                EocdRecord.createWithModifiedCentralDirectoryInfo(
+                        zipSections.getZipEndOfCentralDirectory(),
+                        cdRecords.size(),
+                        cdDataSource.size(),
+                        lfhSectionSize);
+        ApkSignerEngine.OutputApkSigningBlockRequest2 outputApkSigningBlockRequest =
+                signerEngine.outputZipSections2(
+                        lfhSection, cdDataSource, DataSources.asDataSource(eocd));
+        ByteArrayOutputStream newTail = new ByteArrayOutputStream();
+        if (outputApkSigningBlockRequest != null) {
+            int padding = outputApkSigningBlockRequest.getPaddingSizeBeforeApkSigningBlock();
+            newTail.write(new byte[padding]);
+            byte[] outputApkSigningBlock = outputApkSigningBlockRequest.getApkSigningBlock();
+            newTail.write(outputApkSigningBlock);
+            ZipUtils.setZipEocdCentralDirectoryOffset(eocd,
+                    lfhSectionSize + padding + outputApkSigningBlock.length);
+            outputApkSigningBlockRequest.done();
+        }
+        newTail.write(cd.array(), cd.arrayOffset(), cd.remaining());
+        newTail.write(eocd.array(), eocd.arrayOffset() + eocd.position(), eocd.remaining());
+
+        // Step 6. Replace the tail of the file
+        writeApkTailInPlace(apkFile, journalFile, lfhSectionSize, newTail.toByteArray());
         signerEngine.outputDone();
     }
 
+    /**
+     * Replaces everything in the provided file starting at {@code tailOffset} with
+     * {@code newTail}. The original tail is first saved to {@code journalFile} so that it can be
+     * restored using {@link #restoreApkTailFromJournal(RandomAccessFile, File)} should this
+     * operation be interrupted.
+     */
+    private static void writeApkTailInPlace(
+            RandomAccessFile file, File journalFile, long tailOffset, byte[] newTail)
+                    throws IOException {
+        long oldTailSize = file.length() - tailOffset;
+        if (oldTailSize > Integer.MAX_VALUE) {
+            throw new IOException("APK tail too large: " + oldTailSize + " bytes");
+        }
+        byte[] oldTail = new byte[(int) oldTailSize];
+        file.seek(tailOffset);
+        file.readFully(oldTail);
+
+        // The journal is written under a temporary name and then renamed, so that a journal with
+        // the expected name is always complete.
+        File tmpJournalFile = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream journalOut = new FileOutputStream(tmpJournalFile)) {
+            DataOutputStream out = new DataOutputStream(journalOut);
+            out.writeLong(tailOffset);
+            out.writeInt(oldTail.length);
+            out.write(oldTail);
+            out.flush();
+            journalOut.getFD().sync();
+        }
+        Files.move(
+                tmpJournalFile.toPath(),
+                journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        file.seek(tailOffset);
+        file.write(newTail);
+        file.setLength(tailOffset + newTail.length);
+        file.getChannel().force(true);
+        Files.delete(journalFile.toPath());
+    }
+
+    /**
+     * Restores the original tail of the provided file from {@code journalFile}, if such a journal
+     * was left behind by an interrupted in-place signing operation. Only the tail of the file is
+     * ever modified by in-place signing, thus restoring it yields the APK as it was before that
+     * operation.
+     */
+    private static void restoreApkTailFromJournal(RandomAccessFile file, File journalFile)
+            throws IOException {
+        Files.deleteIfExists(new File(journalFile.getPath() + ".tmp").toPath());
+        if (!journalFile.exists()) {
+            return;
+        }
+        long tailOffset;
+        byte[] tail;
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            tailOffset = in.readLong();
+            tail = new byte[in.readInt()];
+            in.readFully(tail);
+        }
+        file.seek(tailOffset);
+        file.write(tail);
+        file.setLength(tailOffset + tail.length);
+        file.getChannel().force(true);
+        Files.delete(journalFile.toPath());
+    }
+
+    private ApkSignerEngine getSignerEngine(
+            List<CentralDirectoryRecord> cdRecords,
+            DataSource lfhSection)
+                    throws IOException, ApkFormatException, InvalidKeyException {
+        if (mSignerEngine != null) {
+            // Use the provided signer engine
+            return mSignerEngine;
+        }
+
+        // Construct a signer engine from the provided parameters
+        int minSdkVersion;
+        if (mMinSdkVersion != null) {
+            // No need to extract minSdkVersion from the APK's AndroidManifest.xml
+            minSdkVersion = mMinSdkVersion;
+        } else {
+            // Need to extract minSdkVersion from the APK's AndroidManifest.xml
+            minSdkVersion = getMinSdkVersionFromApk(cdRecords, lfhSection);
+        }
+        List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
+                new ArrayList<>(mSignerConfigs.size());
+        for (SignerConfig signerConfig : mSignerConfigs) {
+            engineSignerConfigs.add(
+                    new DefaultApkSignerEngine.SignerConfig.Builder(
+                            signerConfig.getName(),
+                            signerConfig.getPrivateKey(),
+                            signerConfig.getCertificates())
+                            .build());
+        }
+        DefaultApkSignerEngine.Builder signerEngineBuilder =
+                new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
+                        .setV1SigningEnabled(mV1SigningEnabled)
+                        .setV2SigningEnabled(mV2SigningEnabled)
+                        .setV3SigningEnabled(mV3SigningEnabled)
+                        .setDebuggableApkPermitted(mDebuggableApkPermitted)
+                        .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
+                        .setSigningCertificateLineage(mSigningCertificateLineage);
+        if (mCreatedBy != null) {
+            signerEngineBuilder.setCreatedBy(mCreatedBy);
+        }
+        return signerEngineBuilder.build();
+    }
+
     private static void fulfillInspectInputJarEntryRequest(
             DataSource lfhSection,
             LocalFileRecord localFileRecord,
@@ -797,24 +1082,6 @@ public class ApkSigner {
         return null;
     }
 
-    /**
-     * Returns the contents of the APK's {@code AndroidManifest.xml} or {@code null} if this entry
-     * is not present in the APK.
-     */
-    static ByteBuffer getAndroidManifestFromApk(
-            List<CentralDirectoryRecord> cdRecords, DataSource lhfSection)
-                    throws IOException, ApkFormatException, ZipFormatException {
-        CentralDirectoryRecord androidManifestCdRecord =
-                findCdRecord(cdRecords, ANDROID_MANIFEST_ZIP_ENTRY_NAME);
-        if (androidManifestCdRecord == null) {
-            throw new ApkFormatException("Missing " + ANDROID_MANIFEST_ZIP_ENTRY_NAME);
-        }
-
-        return ByteBuffer.wrap(
-                LocalFileRecord.getUncompressedData(
-                        lhfSection, androidManifestCdRecord, lhfSection.size()));
-    }
-
     /**
      * Return list of pin patterns embedded in the pin pattern asset
      * file.  If no such file, return {@code null}.
@@ -848,8 +1115,8 @@ public class ApkSigner {
                     throws IOException, MinSdkVersionException {
         ByteBuffer androidManifest;
         try {
-            androidManifest = getAndroidManifestFromApk(cdRecords, lhfSection);
-        } catch (ZipFormatException | ApkFormatException e) {
+            androidManifest = ApkUtils.getAndroidManifest(cdRecords, lhfSection);
+        } catch (ApkFormatException e) {
             throw new MinSdkVersionException(
                     "Failed to determine APK's minimum supported Android platform version",
                     e);
@@ -970,6 +1237,7 @@ public class ApkSigner {
         private File mOutputApkFile;
         private DataSink mOutputApkDataSink;
         private DataSource mOutputApkDataSource;
+        private boolean mInPlaceSigningEnabled;
 
         private SigningCertificateLineage mSigningCertificateLineage;
 
@@ -1107,6 +1375,27 @@ public class ApkSigner {
             return this;
         }
 
+        /**
+         * Sets whether the input APK file should be signed in place instead of being copied to a
+         * separate output. By default, in-place signing is disabled.
+         *
+         * <p>In-place signing leaves the ZIP entries of the APK untouched and only rewrites the
+         * APK Signing Block, ZIP Central Directory and ZIP End of Central Directory at the end of
+         * the file. It thus costs time proportional to the size of the Central Directory rather
+         * than to the size of the APK. It requires the APK to be specified using
+         * {@link #setInputApk(File)}, no output APK to be specified, and the signer to not add,
+         * remove or modify any entries -- JAR signing must be disabled and the APK must not contain
+         * JAR signatures which the signer would drop.
+         *
+         * <p>While the end of the file is being rewritten, its original contents are kept in a
+         * {@code .signing-journal} file next to the APK. If signing is interrupted, the next
+         * in-place signing of the same APK restores the original contents from the journal first.
+         */
+        public Builder setInPlaceSigningEnabled(boolean enabled) {
+            mInPlaceSigningEnabled = enabled;
+            return this;
+        }
+
         /**
          * Sets the minimum Android platform version (API Level) on which APK signatures produced
          * by the signer being built must verify. This method is useful for overriding the default
@@ -1321,6 +1610,7 @@ public class ApkSigner {
                     mOutputApkFile,
                     mOutputApkDataSink,
                     mOutputApkDataSource,
+                    mInPlaceSigningEnabled,
                     mSigningCertificateLineage);
         }
     }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
+import com.android.apksig.internal.apk.StreamingContentDigester;
+import com.android.apksig.internal.apk.VerificationDigestCache;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.StreamingEntryDigester;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.ReadableDataSink;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * APK signature verifier which does most of its work while the APK is being received, such as
+ * while it is being uploaded, rather than once it has been received in full.
+ *
+ * <p>The APK is fed to this verifier, in order and starting with its first byte, through the
+ * {@link DataSink} methods. The verifier stores it, digests it in 1 MB chunks and into an APK
+ * verity tree as used by APK Signature Scheme v2 and v3, and inflates and digests the ZIP entries
+ * as their local file records stream past, as used by JAR signing. These digests are speculative,
+ * because the APK Signing Block and ZIP Central Directory arrive last. Once the last byte has been
+ * fed, {@link #verify()} checks the speculative digests against the ZIP Central Directory and
+ * verifies the APK as {@link ApkVerifier} would, except that only the contents which could not be
+ * digested while streaming, typically about 1 MB, are read back. The JAR signature files and
+ * {@code AndroidManifest.xml}, which verification parses, are read back as well.
+ *
+ * <p>Content digests are computed speculatively for {@code CHUNKED_SHA256} and
+ * {@code VERITY_CHUNKED_SHA256}, and JAR entry digests for {@code SHA-256} and {@code SHA-1}. APKs
+ * signed using other digest algorithms verify all the same, but those digests are computed after
+ * the APK has been received.
+ *
+ * <p>Use {@link Builder} to obtain instances of this verifier.
+ */
+public class StreamingApkVerifier implements DataSink, Closeable {
+
+    private static final String[] SPECULATIVE_JAR_ENTRY_DIGEST_ALGORITHMS = {"SHA-256", "SHA-1"};
+
+    private final RandomAccessFile mFile;
+    private final ReadableDataSink mStorage;
+    private final DataSink mSink;
+    private final Integer mMinSdkVersion;
+    private final int mMaxSdkVersion;
+
+    private final StreamingContentDigester mContentDigester;
+    private final StreamingEntryDigester mEntryDigester;
+    private long mConsumedSize;
+
+    private StreamingApkVerifier(
+            RandomAccessFile file,
+            ReadableDataSink storage,
+            Integer minSdkVersion,
+            int maxSdkVersion) throws NoSuchAlgorithmException {
+        mFile = file;
+        mStorage = storage;
+        mSink = (file != null) ? DataSinks.asDataSink(file) : storage;
+        mMinSdkVersion = minSdkVersion;
+        mMaxSdkVersion = maxSdkVersion;
+        mContentDigester =
+                new StreamingContentDigester(
+                        ContentDigestAlgorithm.CHUNKED_SHA256,
+                        ContentDigestAlgorithm.VERITY_CHUNKED_SHA256);
+        mEntryDigester = new StreamingEntryDigester(SPECULATIVE_JAR_ENTRY_DIGEST_ALGORITHMS);
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        mSink.consume(buf, offset, length);
+        mContentDigester.consume(buf, offset, length);
+        mEntryDigester.consume(buf, offset, length);
+        mConsumedSize += length;
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        int position = buf.position();
+        mSink.consume(buf);
+        buf.position(position);
+        mContentDigester.consume(buf);
+        buf.position(position);
+        mEntryDigester.consume(buf);
+        mConsumedSize += buf.position() - position;
+    }
+
+    /**
+     * Returns the number of bytes of the APK received so far.
+     */
+    public long getConsumedSize() {
+        return mConsumedSize;
+    }
+
+    /**
+     * Verifies the APK's signatures once the APK has been fed to this verifier in full and returns
+     * the result of verification, as {@link ApkVerifier#verify()} would.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws IllegalStateException if the stored APK is not what has been fed to this verifier
+     */
+    public ApkVerifier.Result verify()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        DataSource apk =
+                (mFile != null) ? DataSources.asDataSource(mFile, 0, mFile.length()) : mStorage;
+        if (apk.size() != mConsumedSize) {
+            throw new IllegalStateException(
+                    "Stored APK size (" + apk.size() + ") differs from consumed size ("
+                            + mConsumedSize + ")");
+        }
+
+        VerificationDigestCache previousDigestCache =
+                VerificationDigestCache.setCurrent(new VerificationDigestCache());
+        try {
+            putStreamedDigests(apk);
+            ApkVerifier.Builder builder =
+                    new ApkVerifier.Builder(apk).setMaxCheckedPlatformVersion(mMaxSdkVersion);
+            if (mMinSdkVersion != null) {
+                builder.setMinCheckedPlatformVersion(mMinSdkVersion);
+            }
+            return builder.build().verify();
+        } finally {
+            VerificationDigestCache.setCurrent(previousDigestCache);
+        }
+    }
+
+    /**
+     * Puts the digests computed while the APK streamed through this verifier, which the ZIP
+     * Central Directory confirms, into the current {@link VerificationDigestCache}. Does nothing if
+     * the APK is malformed, leaving it to {@link ApkVerifier} to report.
+     */
+    private void putStreamedDigests(DataSource apk) throws IOException {
+        ApkUtils.ZipSections zipSections;
+        List<CentralDirectoryRecord> cdRecords;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+            cdRecords = V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        } catch (ZipFormatException | ApkFormatException e) {
+            return;
+        }
+
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+        Set<String> entryNames = new HashSet<>(cdRecords.size());
+        Set<String> duplicateEntryNames = new HashSet<>();
+        for (CentralDirectoryRecord cdRecord : cdRecords) {
+            if (!entryNames.add(cdRecord.getName())) {
+                duplicateEntryNames.add(cdRecord.getName());
+            }
+        }
+        for (CentralDirectoryRecord cdRecord : cdRecords) {
+            if (duplicateEntryNames.contains(cdRecord.getName())) {
+                continue;
+            }
+            Map<String, byte[]> digests = mEntryDigester.getDigests(cdRecord, cdStartOffset);
+            if (digests == null) {
+                continue;
+            }
+            for (Map.Entry<String, byte[]> digest : digests.entrySet()) {
+                VerificationDigestCache.putJarEntryDigest(
+                        cdRecord.getName(), digest.getKey(), digest.getValue());
+            }
+        }
+
+        ApkUtils.ApkSigningBlock apkSigningBlock;
+        try {
+            apkSigningBlock = ApkUtils.findApkSigningBlock(apk, zipSections);
+        } catch (ApkSigningBlockNotFoundException e) {
+            // JAR signed only
+            return;
+        }
+        VerificationDigestCache.putContentDigests(
+                mContentDigester.getContentDigests(
+                        apk.slice(0, apkSigningBlock.getStartOffset()),
+                        apk.slice(cdStartOffset, zipSections.getZipCentralDirectorySizeBytes()),
+                        zipSections.getZipEndOfCentralDirectory()));
+    }
+
+    /**
+     * Closes the file to which the APK was written, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mFile != null) {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Builder of {@link StreamingApkVerifier} instances.
+     *
+     * <p>Like {@link ApkVerifier.Builder}, the resulting verifier by default checks whether the
+     * APK will verify on all platform versions it supports.
+     */
+    public static class Builder {
+        private final File mOutputFile;
+        private final ReadableDataSink mStorage;
+
+        private Integer mMinSdkVersion;
+        private int mMaxSdkVersion = Integer.MAX_VALUE;
+
+        /**
+         * Constructs a new {@code Builder} for a verifier which writes the received APK to the
+         * provided file, replacing its contents. The file remains open until the verifier is
+         * closed.
+         */
+        public Builder(File outputFile) {
+            if (outputFile == null) {
+                throw new NullPointerException("outputFile == null");
+            }
+            mOutputFile = outputFile;
+            mStorage = null;
+        }
+
+        /**
+         * Constructs a new {@code Builder} for a verifier which stores the received APK in the
+         * provided sink, which must be empty.
+         */
+        public Builder(ReadableDataSink storage) {
+            if (storage == null) {
+                throw new NullPointerException("storage == null");
+            }
+            mStorage = storage;
+            mOutputFile = null;
+        }
+
+        /**
+         * Sets the oldest Android platform version for which the APK is verified.
+         *
+         * @see ApkVerifier.Builder#setMinCheckedPlatformVersion(int)
+         */
+        public Builder setMinCheckedPlatformVersion(int minSdkVersion) {
+            mMinSdkVersion = minSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the newest Android platform version for which the APK is verified.
+         *
+         * @see ApkVerifier.Builder#setMaxCheckedPlatformVersion(int)
+         */
+        public Builder setMaxCheckedPlatformVersion(int maxSdkVersion) {
+            mMaxSdkVersion = maxSdkVersion;
+            return this;
+        }
+
+        /**
+         * Returns a {@link StreamingApkVerifier} initialized according to the configuration of
+         * this builder.
+         *
+         * @throws IOException if the output file cannot be opened
+         * @throws NoSuchAlgorithmException if a digest algorithm implementation is missing
+         */
+        public StreamingApkVerifier build() throws IOException, NoSuchAlgorithmException {
+            if (mOutputFile == null) {
+                return new StreamingApkVerifier(null, mStorage, mMinSdkVersion, mMaxSdkVersion);
+            }
+            RandomAccessFile file = new RandomAccessFile(mOutputFile, "rw");
+            try {
+                file.setLength(0);
+                return new StreamingApkVerifier(file, null, mMinSdkVersion, mMaxSdkVersion);
+            } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.apk;
+
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Summary of the DEX files and resource table of an APK, read from their headers alone.
+ *
+ * <p>Only the first bytes of each {@code classes*.dex} entry and of {@code resources.arsc} are
+ * inflated, so the cost does not depend on the size of these entries. The resource table's
+ * package header follows its global string pool, which is thus read too, but nothing past it.
+ */
+public class ApkHeaderSummary {
+
+    /** Root-level DEX files: {@code classes.dex}, {@code classes2.dex}, etc. */
+    private static final Pattern DEX_ENTRY_NAME = Pattern.compile("classes[0-9]*\\.dex");
+
+    private static final String RESOURCE_TABLE_ENTRY_NAME = "resources.arsc";
+
+    private static final int DEX_HEADER_SIZE_BYTES = 0x70;
+    private static final byte[] DEX_MAGIC_PREFIX = {'d', 'e', 'x', '\n'};
+    private static final int DEX_VERSION_OFFSET = 4;
+    private static final int DEX_VERSION_SIZE_BYTES = 3;
+    private static final int DEX_FILE_SIZE_OFFSET = 32;
+    private static final int DEX_STRING_IDS_SIZE_OFFSET = 56;
+    private static final int DEX_TYPE_IDS_SIZE_OFFSET = 64;
+    private static final int DEX_PROTO_IDS_SIZE_OFFSET = 72;
+    private static final int DEX_FIELD_IDS_SIZE_OFFSET = 80;
+    private static final int DEX_METHOD_IDS_SIZE_OFFSET = 88;
+    private static final int DEX_CLASS_DEFS_SIZE_OFFSET = 96;
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    /** ResTable_header: chunk header (type, header size, size) and package count. */
+    private static final int RES_TABLE_HEADER_SIZE_BYTES = 12;
+    /** ResStringPool_header: chunk header, string and style counts, flags and offsets. */
+    private static final int RES_STRING_POOL_HEADER_SIZE_BYTES = 28;
+    /** ResTable_package up to and including its name: chunk header, ID and UTF-16 name. */
+    private static final int RES_TABLE_PACKAGE_HEADER_SIZE_BYTES = 8 + 4 + 256;
+    private static final int RES_TABLE_PACKAGE_NAME_LENGTH_CHARS = 128;
+    /**
+     * Maximum number of bytes of the resource table inflated to reach the first package. Global
+     * string pools of real apps are well below this; larger ones are not read.
+     */
+    private static final int MAX_RES_TABLE_PREFIX_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private final List<Dex> mDexFiles;
+    private final ResourceTable mResourceTable;
+
+    private ApkHeaderSummary(List<Dex> dexFiles, ResourceTable resourceTable) {
+        mDexFiles = dexFiles;
+        mResourceTable = resourceTable;
+    }
+
+    /**
+     * Returns the summary of the provided APK.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     */
+    public static ApkHeaderSummary of(DataSource apk) throws IOException, ApkFormatException {
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        List<CentralDirectoryRecord> cdRecords =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+
+        List<Dex> dexFiles = new ArrayList<>();
+        ResourceTable resourceTable = null;
+        for (CentralDirectoryRecord cdRecord : cdRecords) {
+            String entryName = cdRecord.getName();
+            try {
+                if (DEX_ENTRY_NAME.matcher(entryName).matches()) {
+                    dexFiles.add(readDex(apk, cdRecord, cdStartOffset));
+                } else if (entryName.equals(RESOURCE_TABLE_ENTRY_NAME)) {
+                    resourceTable = readResourceTable(apk, cdRecord, cdStartOffset);
+                }
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Failed to read " + entryName, e);
+            }
+        }
+        return new ApkHeaderSummary(dexFiles, resourceTable);
+    }
+
+    private static Dex readDex(
+            DataSource apk, CentralDirectoryRecord cdRecord, long cdStartOffset)
+            throws IOException, ApkFormatException, ZipFormatException {
+        String entryName = cdRecord.getName();
+        ByteBuffer header =
+                ByteBuffer.wrap(
+                        LocalFileRecord.getUncompressedDataPrefix(
+                                apk, cdRecord, cdStartOffset, DEX_HEADER_SIZE_BYTES));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < DEX_HEADER_SIZE_BYTES) {
+            throw new ApkFormatException(
+                    "Malformed DEX file " + entryName + ": shorter than DEX header");
+        }
+        for (int i = 0; i < DEX_MAGIC_PREFIX.length; i++) {
+            if (header.get(i) != DEX_MAGIC_PREFIX[i]) {
+                throw new ApkFormatException("Malformed DEX file " + entryName + ": bad magic");
+            }
+        }
+        byte[] version = new byte[DEX_VERSION_SIZE_BYTES];
+        header.position(DEX_VERSION_OFFSET);
+        header.get(version);
+        return new Dex(
+                entryName,
+                new String(version, StandardCharsets.US_ASCII),
+                getUnsignedInt32(header, DEX_FILE_SIZE_OFFSET),
+                header.getInt(DEX_STRING_IDS_SIZE_OFFSET),
+                header.getInt(DEX_TYPE_IDS_SIZE_OFFSET),
+                header.getInt(DEX_PROTO_IDS_SIZE_OFFSET),
+                header.getInt(DEX_FIELD_IDS_SIZE_OFFSET),
+                header.getInt(DEX_METHOD_IDS_SIZE_OFFSET),
+                header.getInt(DEX_CLASS_DEFS_SIZE_OFFSET));
+    }
+
+    private static ResourceTable readResourceTable(
+            DataSource apk, CentralDirectoryRecord cdRecord, long cdStartOffset)
+            throws IOException, ApkFormatException, ZipFormatException {
+        // FORMAT:
+        // * ResTable_header: chunk header and package count
+        // * ResStringPool: global string pool
+        // * ResTable_package chunks
+        ByteBuffer header =
+                ByteBuffer.wrap(
+                        LocalFileRecord.getUncompressedDataPrefix(
+                                apk,
+                                cdRecord,
+                                cdStartOffset,
+                                RES_TABLE_HEADER_SIZE_BYTES + RES_STRING_POOL_HEADER_SIZE_BYTES));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < RES_TABLE_HEADER_SIZE_BYTES) {
+            throw new ApkFormatException("Malformed resource table: shorter than its header");
+        }
+        if (ZipUtils.getUnsignedInt16(header, 0) != RES_TABLE_TYPE) {
+            throw new ApkFormatException("Malformed resource table: not a resource table chunk");
+        }
+        int tableHeaderSize = ZipUtils.getUnsignedInt16(header, 2);
+        long packageCount = getUnsignedInt32(header, 8);
+        if ((tableHeaderSize != RES_TABLE_HEADER_SIZE_BYTES)
+                || (header.remaining() < RES_TABLE_HEADER_SIZE_BYTES
+                        + RES_STRING_POOL_HEADER_SIZE_BYTES)
+                || (ZipUtils.getUnsignedInt16(header, tableHeaderSize) != RES_STRING_POOL_TYPE)) {
+            // No global string pool to skip to reach the first package
+            return new ResourceTable(packageCount, 0, null);
+        }
+        long stringCount = getUnsignedInt32(header, tableHeaderSize + 8);
+        long stringPoolSize = getUnsignedInt32(header, tableHeaderSize + 4);
+        // Both sizes are uint32, so the sum cannot overflow a long
+        long prefixSize = tableHeaderSize + stringPoolSize + RES_TABLE_PACKAGE_HEADER_SIZE_BYTES;
+        if ((packageCount == 0)
+                || (prefixSize > MAX_RES_TABLE_PREFIX_SIZE_BYTES)
+                || (prefixSize > cdRecord.getUncompressedSize())) {
+            return new ResourceTable(packageCount, stringCount, null);
+        }
+
+        ByteBuffer prefix =
+                ByteBuffer.wrap(
+                        LocalFileRecord.getUncompressedDataPrefix(
+                                apk, cdRecord, cdStartOffset, Math.toIntExact(prefixSize)));
+        prefix.order(ByteOrder.LITTLE_ENDIAN);
+        if (prefix.remaining() < prefixSize) {
+            return new ResourceTable(packageCount, stringCount, null);
+        }
+        int packageStart = Math.toIntExact(tableHeaderSize + stringPoolSize);
+        if (ZipUtils.getUnsignedInt16(prefix, packageStart) != RES_TABLE_PACKAGE_TYPE) {
+            return new ResourceTable(packageCount, stringCount, null);
+        }
+        int packageId = prefix.getInt(packageStart + 8);
+        StringBuilder packageName = new StringBuilder();
+        for (int i = 0; i < RES_TABLE_PACKAGE_NAME_LENGTH_CHARS; i++) {
+            char c = prefix.getChar(packageStart + 12 + i * 2);
+            if (c == 0) {
+                break;
+            }
+            packageName.append(c);
+        }
+        return new ResourceTable(
+                packageCount, stringCount, new ResourcePackage(packageId, packageName.toString()));
+    }
+
+    private static long getUnsignedInt32(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset) & 0xffffffffL;
+    }
+
+    /**
+     * Returns the root-level DEX files of the APK, in the order of the ZIP Central Directory.
+     */
+    public List<Dex> getDexFiles() {
+        return Collections.unmodifiableList(mDexFiles);
+    }
+
+    /**
+     * Returns the resource table of the APK or {@code null} if the APK has none.
+     */
+    public ResourceTable getResourceTable() {
+        return mResourceTable;
+    }
+
+    /**
+     * Header of a DEX file.
+     */
+    public static class Dex {
+        private final String mEntryName;
+        private final String mVersion;
+        private final long mFileSizeBytes;
+        private final int mStringIdCount;
+        private final int mTypeIdCount;
+        private final int mProtoIdCount;
+        private final int mFieldIdCount;
+        private final int mMethodIdCount;
+        private final int mClassDefCount;
+
+        private Dex(
+                String entryName,
+                String version,
+                long fileSizeBytes,
+                int stringIdCount,
+                int typeIdCount,
+                int protoIdCount,
+                int fieldIdCount,
+                int methodIdCount,
+                int classDefCount) {
+            mEntryName = entryName;
+            mVersion = version;
+            mFileSizeBytes = fileSizeBytes;
+            mStringIdCount = stringIdCount;
+            mTypeIdCount = typeIdCount;
+            mProtoIdCount = protoIdCount;
+            mFieldIdCount = fieldIdCount;
+            mMethodIdCount = methodIdCount;
+            mClassDefCount = classDefCount;
+        }
+
+        public String getEntryName() {
+            return mEntryName;
+        }
+
+        /**
+         * Returns the DEX format version, e.g., {@code 035}.
+         */
+        public String getVersion() {
+            return mVersion;
+        }
+
+        public long getFileSizeBytes() {
+            return mFileSizeBytes;
+        }
+
+        public int getStringIdCount() {
+            return mStringIdCount;
+        }
+
+        public int getTypeIdCount() {
+            return mTypeIdCount;
+        }
+
+        public int getProtoIdCount() {
+            return mProtoIdCount;
+        }
+
+        public int getFieldIdCount() {
+            return mFieldIdCount;
+        }
+
+        /**
+         * Returns the number of method references of the DEX file, which is limited to 65536.
+         */
+        public int getMethodIdCount() {
+            return mMethodIdCount;
+        }
+
+        public int getClassDefCount() {
+            return mClassDefCount;
+        }
+    }
+
+    /**
+     * Header of a resource table ({@code resources.arsc}).
+     */
+    public static class ResourceTable {
+        private final long mPackageCount;
+        private final long mGlobalStringCount;
+        private final ResourcePackage mFirstPackage;
+
+        private ResourceTable(
+                long packageCount, long globalStringCount, ResourcePackage firstPackage) {
+            mPackageCount = packageCount;
+            mGlobalStringCount = globalStringCount;
+            mFirstPackage = firstPackage;
+        }
+
+        public long getPackageCount() {
+            return mPackageCount;
+        }
+
+        /**
+         * Returns the number of strings in the global string pool, which holds the values of
+         * string resources and the paths of file resources.
+         */
+        public long getGlobalStringCount() {
+            return mGlobalStringCount;
+        }
+
+        /**
+         * Returns the first package of the table or {@code null} if its header could not be read.
+         */
+        public ResourcePackage getFirstPackage() {
+            return mFirstPackage;
+        }
+    }
+
+    /**
+     * Header of a package of a resource table.
+     */
+    public static class ResourcePackage {
+        private final int mId;
+        private final String mName;
+
+        private ResourcePackage(int id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        /**
+         * Returns the package ID, e.g., {@code 0x7f} for applications.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+}
@@ -287,6 +287,21 @@ public abstract class ApkUtils {
         }
         List<CentralDirectoryRecord> cdRecords =
                 V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        return getAndroidManifest(
+                cdRecords, apk.slice(0, zipSections.getZipCentralDirectoryOffset()));
+    }
+
+    /**
+     * Returns the contents of the APK's {@code AndroidManifest.xml}, given the APK's ZIP Central
+     * Directory records and the section of the APK which contains its ZIP Local File Header
+     * records.
+     *
+     * @throws IOException if an I/O error occurs while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     */
+    public static ByteBuffer getAndroidManifest(
+            List<CentralDirectoryRecord> cdRecords, DataSource lfhSection)
+            throws IOException, ApkFormatException {
         CentralDirectoryRecord androidManifestCdRecord = null;
         for (CentralDirectoryRecord cdRecord : cdRecords) {
             if (ANDROID_MANIFEST_ZIP_ENTRY_NAME.equals(cdRecord.getName())) {
@@ -297,7 +312,6 @@ public abstract class ApkUtils {
         if (androidManifestCdRecord == null) {
             throw new ApkFormatException("Missing " + ANDROID_MANIFEST_ZIP_ENTRY_NAME);
         }
-        DataSource lfhSection = apk.slice(0, zipSections.getZipCentralDirectoryOffset());
 
         try {
             return ByteBuffer.wrap(
@@ -16,10 +16,13 @@
 
 package com.android.apksig.internal.apk.v1;
 
+import com.android.apksig.ApkVerifier;
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.ApkVerifier.IssueWithParams;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.SignerCertificateAllowlist;
+import com.android.apksig.internal.apk.VerificationDigestCache;
 import com.android.apksig.internal.asn1.Asn1BerParser;
 import com.android.apksig.internal.asn1.Asn1Class;
 import com.android.apksig.internal.asn1.Asn1DecodingException;
@@ -37,10 +40,11 @@ import com.android.apksig.internal.pkcs7.SignerIdentifier;
 import com.android.apksig.internal.pkcs7.SignerInfo;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferUtils;
-import com.android.apksig.internal.util.X509CertificateUtils;
-import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.internal.util.InclusiveIntRange;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.SignerCryptoCache;
+import com.android.apksig.internal.util.VerificationBudget;
+import com.android.apksig.internal.util.VerificationStatistics;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
 import com.android.apksig.util.DataSinks;
@@ -48,6 +52,7 @@ import com.android.apksig.util.DataSource;
 import com.android.apksig.zip.ZipFormatException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -55,6 +60,7 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
@@ -109,7 +115,9 @@ public abstract class V1SchemeVerifier {
             Map<Integer, String> supportedApkSigSchemeNames,
             Set<Integer> foundApkSigSchemeIds,
             int minSdkVersion,
-            int maxSdkVersion) throws IOException, ApkFormatException, NoSuchAlgorithmException {
+            int maxSdkVersion,
+            SignerCertificateAllowlist signerCertificateAllowlist)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
         if (minSdkVersion > maxSdkVersion) {
             throw new IllegalArgumentException(
                     "minSdkVersion (" + minSdkVersion + ") > maxSdkVersion (" + maxSdkVersion
@@ -135,6 +143,7 @@ public abstract class V1SchemeVerifier {
                 foundApkSigSchemeIds,
                 minSdkVersion,
                 maxSdkVersion,
+                signerCertificateAllowlist,
                 result);
 
         return result;
@@ -220,6 +229,7 @@ public abstract class V1SchemeVerifier {
                 Set<Integer> foundApkSigSchemeIds,
                 int minSdkVersion,
                 int maxSdkVersion,
+                SignerCertificateAllowlist signerCertificateAllowlist,
                 Result result) throws ApkFormatException, IOException, NoSuchAlgorithmException {
 
             // Find JAR manifest and signature block files.
@@ -317,6 +327,21 @@ public abstract class V1SchemeVerifier {
             if (result.containsErrors()) {
                 return;
             }
+            // Reject signers outside of the allowlist before digesting any JAR entries
+            if (signerCertificateAllowlist != null) {
+                for (Signer signer : signers) {
+                    List<X509Certificate> certChain = signer.getResult().certChain;
+                    String disallowedCertDigest = certChain.isEmpty()
+                            ? null
+                            : signerCertificateAllowlist.findDisallowedCertificate(
+                                    Collections.singletonList(certChain.get(0)));
+                    if (disallowedCertDigest != null) {
+                        result.addError(
+                                Issue.SIGNER_CERTIFICATE_NOT_ALLOWED, disallowedCertDigest);
+                        return;
+                    }
+                }
+            }
             // STATE OF AFFAIRS:
             // * All JAR entries listed in JAR manifest are present in the APK.
             // * All signature files (.SF) verify against corresponding block files (.RSA|.DSA|.EC).
@@ -678,8 +703,9 @@ public abstract class V1SchemeVerifier {
             // public key
             String jcaSignatureAlgorithm =
                     getJcaSignatureAlgorithm(digestAlgorithmOid, signatureAlgorithmOid);
-            Signature s = Signature.getInstance(jcaSignatureAlgorithm);
-            s.initVerify(signingCertificate.getPublicKey());
+            PublicKey publicKey = signingCertificate.getPublicKey();
+            SignerCryptoCache cryptoCache = SignerCryptoCache.getDefault();
+            Signature s = cryptoCache.acquireVerifier(jcaSignatureAlgorithm, publicKey);
             if (signerInfo.signedAttrs != null) {
                 // Signed attributes present -- verify signature against the ASN.1 DER encoded form
                 // of signed attributes. This verifies integrity of the signature file because
@@ -758,7 +784,9 @@ public abstract class V1SchemeVerifier {
                 s.update(signatureFile);
             }
             byte[] sigBytes = ByteBufferUtils.toByteArray(signerInfo.signature.slice());
-            if (!s.verify(sigBytes)) {
+            boolean verified = s.verify(sigBytes);
+            cryptoCache.releaseVerifier(s, jcaSignatureAlgorithm, null, publicKey);
+            if (!verified) {
                 // Cryptographic signature did not verify. This fails verification of this
                 // SignerInfo but should not prevent verification of other SignerInfos. Hence, no
                 // exception is thrown.
@@ -780,16 +808,15 @@ public abstract class V1SchemeVerifier {
                 X509Certificate certificate;
                 byte[] encodedForm = ByteBufferUtils.toByteArray(encodedCertificate.getEncoded());
                 try {
-                    certificate = X509CertificateUtils.generateCertificate(encodedForm);
+                    // The cache wraps the cert so that the result's getEncoded returns exactly the
+                    // original encoded form. Without this, getEncoded may return a different form
+                    // from what was stored in the signature. This is because some
+                    // X509Certificate(Factory) implementations re-encode certificates and/or some
+                    // implementations of X509Certificate.getEncoded() re-encode certificates.
+                    certificate = SignerCryptoCache.getDefault().getCertificate(encodedForm);
                 } catch (CertificateException e) {
                     throw new CertificateException("Failed to parse certificate #" + (i + 1), e);
                 }
-                // Wrap the cert so that the result's getEncoded returns exactly the original
-                // encoded form. Without this, getEncoded may return a different form from what was
-                // stored in the signature. This is because some X509Certificate(Factory)
-                // implementations re-encode certificates and/or some implementations of
-                // X509Certificate.getEncoded() re-encode certificates.
-                certificate = new GuaranteedEncodedFormX509Certificate(certificate, encodedForm);
                 result.add(certificate);
             }
             return result;
@@ -1761,8 +1788,16 @@ public abstract class V1SchemeVerifier {
             DataSource apk,
             ApkUtils.ZipSections apkSections)
                     throws IOException, ApkFormatException {
-        // Read the ZIP Central Directory
-        long cdSizeBytes = apkSections.getZipCentralDirectorySizeBytes();
+        long startNanos = VerificationStatistics.startPhase();
+        int expectedCdRecordCount = apkSections.getZipCentralDirectoryRecordCount();
+        VerificationBudget.checkCentralDirectoryEntries(expectedCdRecordCount);
+
+        // Read the ZIP Central Directory. Data past the expected records is ignored, so no more
+        // than they can occupy is read, however large the Central Directory claims to be.
+        long cdSizeBytes =
+                Math.min(
+                        apkSections.getZipCentralDirectorySizeBytes(),
+                        expectedCdRecordCount * CentralDirectoryRecord.MAX_RECORD_SIZE_BYTES);
         if (cdSizeBytes > Integer.MAX_VALUE) {
             throw new ApkFormatException("ZIP Central Directory too large: " + cdSizeBytes);
         }
@@ -1771,7 +1806,6 @@ public abstract class V1SchemeVerifier {
         cd.order(ByteOrder.LITTLE_ENDIAN);
 
         // Parse the ZIP Central Directory
-        int expectedCdRecordCount = apkSections.getZipCentralDirectoryRecordCount();
         List<CentralDirectoryRecord> cdRecords = new ArrayList<>(expectedCdRecordCount);
         for (int i = 0; i < expectedCdRecordCount; i++) {
             CentralDirectoryRecord cdRecord;
@@ -1794,6 +1828,7 @@ public abstract class V1SchemeVerifier {
         // There may be more data in Central Directory, but we don't warn or throw because Android
         // ignores unused CD data.
 
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.CENTRAL_DIRECTORY, startNanos);
         return cdRecords;
     }
 
@@ -1821,6 +1856,9 @@ public abstract class V1SchemeVerifier {
             int minSdkVersion,
             int maxSdkVersion,
             Result result) throws ApkFormatException, IOException, NoSuchAlgorithmException {
+        long startNanos = VerificationStatistics.startPhase();
+        int entriesDigested = 0;
+        long bytesInflated = 0;
         // Iterate over APK contents as sequentially as possible to improve performance.
         List<CentralDirectoryRecord> cdRecordsSortedByLocalFileHeaderOffset =
                 new ArrayList<>(cdRecords);
@@ -1832,6 +1870,10 @@ public abstract class V1SchemeVerifier {
         List<Signer> firstSignedEntrySigners = null;
         String firstSignedEntryName = null;
         for (CentralDirectoryRecord cdRecord : cdRecordsSortedByLocalFileHeaderOffset) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while verifying JAR entries");
+            }
+            VerificationBudget.checkTime();
             String entryName = cdRecord.getName();
             manifestEntryNamesMissingFromApk.remove(entryName);
             if (!isJarEntryDigestNeededInManifest(entryName)) {
@@ -1876,26 +1918,46 @@ public abstract class V1SchemeVerifier {
                 continue;
             }
 
-            MessageDigest[] mds = new MessageDigest[expectedDigests.size()];
-            for (int i = 0; i < expectedDigests.size(); i++) {
-                mds[i] = getMessageDigest(expectedDigests.get(i).jcaDigestAlgorithm);
+            List<String> jcaDigestAlgorithms = new ArrayList<>(expectedDigests.size());
+            for (NamedDigest expectedDigest : expectedDigests) {
+                jcaDigestAlgorithms.add(expectedDigest.jcaDigestAlgorithm);
             }
+            Map<String, byte[]> actualDigests = new HashMap<>();
+            List<String> jcaDigestAlgorithmsToCompute =
+                    new ArrayList<>(
+                            VerificationDigestCache.getJarEntryDigests(
+                                    entryName, jcaDigestAlgorithms, actualDigests));
+            if (!jcaDigestAlgorithmsToCompute.isEmpty()) {
+                MessageDigest[] mds = new MessageDigest[jcaDigestAlgorithmsToCompute.size()];
+                for (int i = 0; i < mds.length; i++) {
+                    mds[i] = getMessageDigest(jcaDigestAlgorithmsToCompute.get(i));
+                }
 
-            try {
-                LocalFileRecord.outputUncompressedData(
-                        apk,
-                        cdRecord,
-                        cdOffsetInApk,
-                        DataSinks.asDataSink(mds));
-            } catch (ZipFormatException e) {
-                throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
-            } catch (IOException e) {
-                throw new IOException("Failed to read entry: " + entryName, e);
+                try {
+                    LocalFileRecord.outputUncompressedData(
+                            apk,
+                            cdRecord,
+                            cdOffsetInApk,
+                            DataSinks.asDataSink(mds));
+                } catch (ZipFormatException e) {
+                    throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
+                } catch (IOException e) {
+                    throw new IOException("Failed to read entry: " + entryName, e);
+                }
+                entriesDigested++;
+                bytesInflated += cdRecord.getUncompressedSize();
+
+                for (int i = 0; i < mds.length; i++) {
+                    String jcaDigestAlgorithm = jcaDigestAlgorithmsToCompute.get(i);
+                    byte[] digest = mds[i].digest();
+                    VerificationDigestCache.putJarEntryDigest(
+                            entryName, jcaDigestAlgorithm, digest);
+                    actualDigests.put(jcaDigestAlgorithm, digest);
+                }
             }
 
-            for (int i = 0; i < expectedDigests.size(); i++) {
-                NamedDigest expectedDigest = expectedDigests.get(i);
-                byte[] actualDigest = mds[i].digest();
+            for (NamedDigest expectedDigest : expectedDigests) {
+                byte[] actualDigest = actualDigests.get(expectedDigest.jcaDigestAlgorithm);
                 if (!Arrays.equals(expectedDigest.digest, actualDigest)) {
                     result.addError(
                             Issue.JAR_SIG_ZIP_ENTRY_DIGEST_DID_NOT_VERIFY,
@@ -1908,6 +1970,9 @@ public abstract class V1SchemeVerifier {
             }
         }
 
+        VerificationStatistics.recordJarEntryDigests(entriesDigested, bytesInflated);
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.V1_ENTRY_DIGESTS, startNanos);
+
         if (firstSignedEntrySigners == null) {
             result.addError(Issue.JAR_SIG_NO_SIGNED_ZIP_ENTRIES);
             return Collections.emptySet();
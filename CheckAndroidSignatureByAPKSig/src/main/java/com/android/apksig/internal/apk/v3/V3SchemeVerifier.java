@@ -19,6 +19,7 @@ package com.android.apksig.internal.apk.v3;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.getLengthPrefixedSlice;
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.readLengthPrefixedByteArray;
 
+import com.android.apksig.ApkVerifier;
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.SigningCertificateLineage;
 import com.android.apksig.apk.ApkFormatException;
@@ -28,10 +29,11 @@ import com.android.apksig.internal.apk.ApkSigningBlockUtils.SignatureNotFoundExc
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.SignatureInfo;
+import com.android.apksig.internal.apk.SignerCertificateAllowlist;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferUtils;
-import com.android.apksig.internal.util.X509CertificateUtils;
-import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
+import com.android.apksig.internal.util.SignerCryptoCache;
+import com.android.apksig.internal.util.VerificationStatistics;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
@@ -39,7 +41,6 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -48,7 +49,6 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.AlgorithmParameterSpec;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -98,14 +98,18 @@ public abstract class V3SchemeVerifier {
             DataSource apk,
             ApkUtils.ZipSections zipSections,
             int minSdkVersion,
-            int maxSdkVersion)
+            int maxSdkVersion,
+            SignerCertificateAllowlist signerCertificateAllowlist)
             throws IOException, NoSuchAlgorithmException, SignatureNotFoundException {
         ApkSigningBlockUtils.Result result = new ApkSigningBlockUtils.Result(
                 ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V3);
+        long startNanos = VerificationStatistics.startPhase();
         SignatureInfo signatureInfo =
                 ApkSigningBlockUtils.findSignature(apk, zipSections,
                         APK_SIGNATURE_SCHEME_V3_BLOCK_ID, result);
 
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.V3_SIGNING_BLOCK, startNanos);
+
         DataSource beforeApkSigningBlock = apk.slice(0, signatureInfo.apkSigningBlockOffset);
         DataSource centralDir =
                 apk.slice(
@@ -126,6 +130,7 @@ public abstract class V3SchemeVerifier {
                 eocd,
                 minSdkVersion,
                 maxSdkVersion,
+                signerCertificateAllowlist,
                 result);
         return result;
     }
@@ -134,7 +139,7 @@ public abstract class V3SchemeVerifier {
      * Verifies the provided APK's v3 signatures and outputs the results into the provided
      * {@code result}. APK is considered verified only if there are no errors reported in the
      * {@code result}. See {@link #verify(RunnablesExecutor, DataSource, ApkUtils.ZipSections, int,
-     * int)} for more information about the contract of this method.
+     * int, SignerCertificateAllowlist)} for more information about the contract of this method.
      *
      * @param result result populated by this method with interesting information about the APK,
      *        such as information about signers, and verification errors and warnings.
@@ -147,11 +152,18 @@ public abstract class V3SchemeVerifier {
             ByteBuffer eocd,
             int minSdkVersion,
             int maxSdkVersion,
+            SignerCertificateAllowlist signerCertificateAllowlist,
             ApkSigningBlockUtils.Result result)
             throws IOException, NoSuchAlgorithmException {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
+        long startNanos = VerificationStatistics.startPhase();
         parseSigners(apkSignatureSchemeV3Block, contentDigestsToVerify, result);
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.V3_SIGNING_BLOCK, startNanos);
 
+        if (result.containsErrors()) {
+            return;
+        }
+        ApkSigningBlockUtils.checkSignersAllowed(signerCertificateAllowlist, result);
         if (result.containsErrors()) {
             return;
         }
@@ -286,6 +298,7 @@ public abstract class V3SchemeVerifier {
             ApkSigningBlockUtils.Result.SignerInfo result,
             Set<ContentDigestAlgorithm> contentDigestsToVerify)
                     throws ApkFormatException, NoSuchAlgorithmException {
+        SignerCryptoCache cryptoCache = SignerCryptoCache.getDefault();
         ByteBuffer signedData = getLengthPrefixedSlice(signerBlock);
         byte[] signedDataBytes = new byte[signedData.remaining()];
         signedData.get(signedDataBytes);
@@ -353,23 +366,21 @@ public abstract class V3SchemeVerifier {
             String keyAlgorithm = signatureAlgorithm.getJcaKeyAlgorithm();
             PublicKey publicKey;
             try {
-                publicKey =
-                        KeyFactory.getInstance(keyAlgorithm).generatePublic(
-                                new X509EncodedKeySpec(publicKeyBytes));
+                publicKey = cryptoCache.getPublicKey(keyAlgorithm, publicKeyBytes);
             } catch (Exception e) {
                 result.addError(Issue.V3_SIG_MALFORMED_PUBLIC_KEY, e);
                 return;
             }
             try {
-                Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                sig.initVerify(publicKey);
-                if (jcaSignatureAlgorithmParams != null) {
-                    sig.setParameter(jcaSignatureAlgorithmParams);
-                }
+                Signature sig = cryptoCache.acquireVerifier(
+                        jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
                 signedData.position(0);
                 sig.update(signedData);
                 byte[] sigBytes = signature.signature;
-                if (!sig.verify(sigBytes)) {
+                boolean verified = sig.verify(sigBytes);
+                cryptoCache.releaseVerifier(
+                        sig, jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
+                if (!verified) {
                     result.addError(Issue.V3_SIG_DID_NOT_VERIFY, signatureAlgorithm);
                     return;
                 }
@@ -410,7 +421,9 @@ public abstract class V3SchemeVerifier {
             byte[] encodedCert = readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
-                certificate = X509CertificateUtils.generateCertificate(encodedCert, certFactory);
+                // The cache wraps the cert so that the result's getEncoded returns exactly the
+                // original encoded form.
+                certificate = cryptoCache.getCertificate(encodedCert, certFactory);
             } catch (CertificateException e) {
                 result.addError(
                         Issue.V3_SIG_MALFORMED_CERTIFICATE,
@@ -419,11 +432,6 @@ public abstract class V3SchemeVerifier {
                         e);
                 return;
             }
-            // Wrap the cert so that the result's getEncoded returns exactly the original encoded
-            // form. Without this, getEncoded may return a different form from what was stored in
-            // the signature. This is because some X509Certificate(Factory) implementations
-            // re-encode certificates.
-            certificate = new GuaranteedEncodedFormX509Certificate(certificate, encodedCert);
             result.certs.add(certificate);
         }
 
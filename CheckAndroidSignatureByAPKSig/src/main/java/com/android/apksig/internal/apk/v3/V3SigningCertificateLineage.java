@@ -24,8 +24,7 @@ import static com.android.apksig.internal.apk.ApkSigningBlockUtils.readLengthPre
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
-import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
-import com.android.apksig.internal.util.X509CertificateUtils;
+import com.android.apksig.internal.util.SignerCryptoCache;
 
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
@@ -94,6 +93,7 @@ public class V3SigningCertificateLineage {
 
         X509Certificate lastCert = null;
         int lastSigAlgorithmId = 0;
+        SignerCryptoCache cryptoCache = SignerCryptoCache.getDefault();
 
         try {
             int version = inputBytes.getInt();
@@ -119,13 +119,13 @@ public class V3SigningCertificateLineage {
                     AlgorithmParameterSpec jcaSignatureAlgorithmParams =
                             sigAlgorithm.getJcaSignatureAlgorithmAndParams().getSecond();
                     PublicKey publicKey = lastCert.getPublicKey();
-                    Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                    sig.initVerify(publicKey);
-                    if (jcaSignatureAlgorithmParams != null) {
-                        sig.setParameter(jcaSignatureAlgorithmParams);
-                    }
+                    Signature sig = cryptoCache.acquireVerifier(
+                            jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
                     sig.update(signedData);
-                    if (!sig.verify(signature)) {
+                    boolean verified = sig.verify(signature);
+                    cryptoCache.releaseVerifier(
+                            sig, jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
+                    if (!verified) {
                         throw new SecurityException("Unable to verify signature of certificate #"
                                 + nodeCount + " using " + jcaSignatureAlgorithm + " when verifying"
                                 + " V3SigningCertificateLineage object");
@@ -139,8 +139,7 @@ public class V3SigningCertificateLineage {
                     throw new SecurityException("Signing algorithm ID mismatch for certificate #"
                             + nodeBytes + " when verifying V3SigningCertificateLineage object");
                 }
-                lastCert = X509CertificateUtils.generateCertificate(encodedCert);
-                lastCert = new GuaranteedEncodedFormX509Certificate(lastCert, encodedCert);
+                lastCert = cryptoCache.getCertificate(encodedCert);
                 if (certHistorySet.contains(lastCert)) {
                     throw new SecurityException("Encountered duplicate entries in "
                             + "SigningCertificateLineage at certificate #" + nodeCount + ".  All "
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event spanning the verification or signing of a whole APK.
+ */
+@Name("com.android.apksig.ApkOperation")
+@Label("APK Operation")
+@Description("Verification or signing of an APK")
+@Category({"Android", "apksig"})
+public class ApkOperationEvent extends Event {
+    public static final String OPERATION_VERIFY = "verify";
+    public static final String OPERATION_SIGN = "sign";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("APK Path")
+    public String apkPath;
+
+    @Label("APK Size")
+    @DataAmount
+    public long apkSize;
+
+    @Label("Signature Schemes")
+    @Description("Signature schemes verified or produced, e.g. \"v1 v2 v3\"")
+    public String signatureSchemes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+    /**
+     * Returns the provided signature schemes in the form used by {@link #signatureSchemes}.
+     */
+    public static String formatSignatureSchemes(boolean v1, boolean v2, boolean v3) {
+        StringBuilder result = new StringBuilder();
+        if (v1) {
+            result.append("v1");
+        }
+        if (v2) {
+            result.append((result.length() > 0) ? " v2" : "v2");
+        }
+        if (v3) {
+            result.append((result.length() > 0) ? " v3" : "v3");
+        }
+        return result.toString();
+    }
+}
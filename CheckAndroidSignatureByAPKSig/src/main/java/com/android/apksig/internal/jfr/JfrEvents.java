@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Guard for creating the JFR events of this package. Loading the first {@link jdk.jfr.Event}
+ * subclass initializes much of the JFR implementation, which is a large part of the start-up time
+ * of a one-off verification, so events are only created once JFR is in use.
+ */
+public abstract class JfrEvents {
+    private static volatile boolean sUnavailable;
+
+    private JfrEvents() {}
+
+    /**
+     * Returns {@code true} if JFR has been initialized in this JVM, e.g., because a recording has
+     * been started, so events should be created. Returns {@code false} if JFR is not in use or not
+     * available at all.
+     */
+    public static boolean isEnabled() {
+        if (sUnavailable) {
+            return false;
+        }
+        try {
+            return FlightRecorder.isInitialized();
+        } catch (LinkageError e) {
+            // The jdk.jfr module is not part of this runtime
+            sUnavailable = true;
+            return false;
+        }
+    }
+}
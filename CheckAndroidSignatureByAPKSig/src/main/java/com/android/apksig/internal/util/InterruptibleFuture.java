@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link CompletableFuture} which computes its value by running a task on an {@link Executor} and
+ * interrupts the thread running the task once the future is completed by other means, for
+ * example, by {@link #cancel(boolean)} or by {@link #completeExceptionally(Throwable)} when a
+ * deadline expires.
+ *
+ * <p>The interrupt is only a request to stop. Tasks are expected to check
+ * {@link Thread#isInterrupted()} at convenient points and give up by throwing an exception. Any
+ * outcome of an abandoned task is ignored. The interrupt status of the thread is cleared once the
+ * task returns, so that it does not leak into subsequent work run by the same executor thread.
+ */
+public class InterruptibleFuture<T> extends CompletableFuture<T> {
+
+    private final Callable<? extends T> mTask;
+
+    private Thread mRunningThread;
+    private boolean mRunningThreadInterrupted;
+
+    private InterruptibleFuture(Callable<? extends T> task) {
+        mTask = task;
+    }
+
+    /**
+     * Returns a new future completed with the value returned by the provided task once the task
+     * has been run by the provided executor. If the executor rejects the task, the future is
+     * completed exceptionally.
+     */
+    public static <T> InterruptibleFuture<T> callAsync(
+            Callable<? extends T> task, Executor executor) {
+        if (task == null) {
+            throw new NullPointerException("task == null");
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        InterruptibleFuture<T> future = new InterruptibleFuture<>(task);
+        future.whenComplete((value, failure) -> future.interruptRunningThread());
+        try {
+            executor.execute(future::run);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void run() {
+        synchronized (this) {
+            if (isDone()) {
+                // Cancelled before the task got a chance to run
+                return;
+            }
+            mRunningThread = Thread.currentThread();
+        }
+        try {
+            complete(mTask.call());
+        } catch (Throwable e) {
+            completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                mRunningThread = null;
+                if (mRunningThreadInterrupted) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private synchronized void interruptRunningThread() {
+        Thread runningThread = mRunningThread;
+        if ((runningThread == null) || (runningThread == Thread.currentThread())) {
+            // Not running, or completed by the task itself
+            return;
+        }
+        mRunningThreadInterrupted = true;
+        runningThread.interrupt();
+    }
+}
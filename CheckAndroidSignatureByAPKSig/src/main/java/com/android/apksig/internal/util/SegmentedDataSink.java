@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.ReadableDataSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory {@link ReadableDataSink} which stores consumed data in a list of fixed-size segments.
+ *
+ * <p>Unlike {@link ByteArrayDataSink}, appending never copies previously consumed data and the
+ * total amount of data is not limited by the maximum size of a single array. Segments can be
+ * allocated on the Java heap or as direct (off-heap) buffers.
+ */
+public class SegmentedDataSink implements ReadableDataSink {
+
+    /** Default size (in bytes) of each segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final int mSegmentSize;
+    private final boolean mDirect;
+    private final List<ByteBuffer> mSegments = new ArrayList<>();
+    private long mSize;
+
+    public SegmentedDataSink() {
+        this(DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Constructs a new {@code SegmentedDataSink}.
+     *
+     * @param segmentSize size (in bytes) of each segment
+     * @param direct {@code true} to allocate segments using {@link ByteBuffer#allocateDirect(int)},
+     *        {@code false} to allocate them on the Java heap
+     */
+    public SegmentedDataSink(int segmentSize, boolean direct) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size: " + segmentSize);
+        }
+        mSegmentSize = segmentSize;
+        mDirect = direct;
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (offset > buf.length) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", buf.length: " + buf.length);
+        }
+        consume(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ByteBuffer segment = getWritableSegment();
+            int chunkSize = Math.min(buf.remaining(), segment.remaining());
+            int originalLimit = buf.limit();
+            buf.limit(buf.position() + chunkSize);
+            segment.put(buf);
+            buf.limit(originalLimit);
+            mSize += chunkSize;
+        }
+    }
+
+    /**
+     * Returns the segment into which the next consumed byte is to be stored, allocating a new
+     * segment if the last one is full.
+     */
+    private ByteBuffer getWritableSegment() {
+        if (!mSegments.isEmpty()) {
+            ByteBuffer last = mSegments.get(mSegments.size() - 1);
+            if (last.hasRemaining()) {
+                return last;
+            }
+        }
+        ByteBuffer segment =
+                (mDirect)
+                        ? ByteBuffer.allocateDirect(mSegmentSize)
+                        : ByteBuffer.allocate(mSegmentSize);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int segmentIndex = (int) (offset / mSegmentSize);
+        int offsetInSegment = (int) (offset % mSegmentSize);
+        if (offsetInSegment + size <= mSegmentSize) {
+            // The chunk is contained in a single segment -- no need to copy
+            return segmentRange(segmentIndex, offsetInSegment, size).slice();
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        int segmentIndex = (int) (offset / mSegmentSize);
+        int offsetInSegment = (int) (offset % mSegmentSize);
+        while (size > 0) {
+            int chunkSize = (int) Math.min(size, mSegmentSize - offsetInSegment);
+            sink.consume(segmentRange(segmentIndex, offsetInSegment, chunkSize));
+            size -= chunkSize;
+            segmentIndex++;
+            offsetInSegment = 0;
+        }
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) {
+        checkChunkValid(offset, size, mSize);
+        int segmentIndex = (int) (offset / mSegmentSize);
+        int offsetInSegment = (int) (offset % mSegmentSize);
+        while (size > 0) {
+            int chunkSize = Math.min(size, mSegmentSize - offsetInSegment);
+            dest.put(segmentRange(segmentIndex, offsetInSegment, chunkSize));
+            size -= chunkSize;
+            segmentIndex++;
+            offsetInSegment = 0;
+        }
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        return new SliceDataSource(offset, size);
+    }
+
+    /**
+     * Returns a view of the specified range of the specified segment. The view's position is the
+     * start of the range and its limit is the end of the range.
+     */
+    private ByteBuffer segmentRange(int segmentIndex, int offsetInSegment, int size) {
+        ByteBuffer view = mSegments.get(segmentIndex).duplicate();
+        view.limit(offsetInSegment + size);
+        view.position(offsetInSegment);
+        return view;
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") > source size (" + sourceSize
+                            + ")");
+        }
+    }
+
+    /**
+     * Slice of the segmented data. The slice's offset and size in the data are fixed.
+     */
+    private class SliceDataSource implements DataSource {
+        private final long mSliceOffset;
+        private final long mSliceSize;
+
+        private SliceDataSource(long offset, long size) {
+            mSliceOffset = offset;
+            mSliceSize = size;
+        }
+
+        @Override
+        public long size() {
+            return mSliceSize;
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            checkChunkValid(offset, size, mSliceSize);
+            SegmentedDataSink.this.feed(mSliceOffset + offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) {
+            checkChunkValid(offset, size, mSliceSize);
+            return SegmentedDataSink.this.getByteBuffer(mSliceOffset + offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) {
+            checkChunkValid(offset, size, mSliceSize);
+            SegmentedDataSink.this.copyTo(mSliceOffset + offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            checkChunkValid(offset, size, mSliceSize);
+            return new SliceDataSource(mSliceOffset + offset, size);
+        }
+    }
+}
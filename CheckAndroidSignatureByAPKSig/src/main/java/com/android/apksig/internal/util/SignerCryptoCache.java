@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe cache of parsed signer certificates, public keys and initialized
+ * {@link Signature} verifiers.
+ *
+ * <p>Batches of APKs tend to be signed by a small number of publishers, so the same certificates
+ * and public keys are parsed over and over again. Entries are keyed by the SHA-256 digest of their
+ * encoded form and evicted in least-recently-used order once the configured number of entries is
+ * exceeded.
+ *
+ * <p>Certificates returned by this cache are {@link GuaranteedEncodedFormX509Certificate}
+ * instances whose {@code getEncoded()} returns exactly the encoded form they were parsed from.
+ * {@code Signature} instances are not thread-safe; they are handed out exclusively by
+ * {@link #acquireVerifier(String, AlgorithmParameterSpec, PublicKey)} and must only be handed back
+ * via {@link #releaseVerifier(Signature, String, AlgorithmParameterSpec, PublicKey)} once
+ * {@link Signature#verify(byte[])} has been invoked on them.
+ */
+public class SignerCryptoCache {
+
+    /** Default maximum number of entries retained per kind of cached object. */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /** Maximum number of idle verifiers retained for each algorithm and public key. */
+    private static final int MAX_IDLE_VERIFIERS_PER_KEY = 4;
+
+    private static final SignerCryptoCache sDefault = new SignerCryptoCache(DEFAULT_MAX_ENTRIES);
+
+    private final Map<Key, X509Certificate> mCertificates;
+    private final Map<Key, PublicKey> mPublicKeys;
+    private final Map<Key, byte[]> mEncodedPublicKeys;
+    private final Map<VerifierKey, ArrayDeque<Signature>> mVerifiers;
+
+    /**
+     * Constructs a new cache which retains at most {@code maxEntries} objects of each kind.
+     */
+    public SignerCryptoCache(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative: " + maxEntries);
+        }
+        mCertificates = new LruMap<>(maxEntries);
+        mPublicKeys = new LruMap<>(maxEntries);
+        mEncodedPublicKeys = new LruMap<>(maxEntries);
+        mVerifiers = new LruMap<>(maxEntries);
+    }
+
+    /**
+     * Returns the process-wide cache used by the APK signature verifiers.
+     */
+    public static SignerCryptoCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the {@code X509Certificate} encoded as {@code encodedForm}, parsing it using the
+     * provided {@code CertificateFactory} if it is not yet cached.
+     *
+     * @throws CertificateException if the encoded form cannot be decoded to a valid certificate.
+     */
+    public X509Certificate getCertificate(byte[] encodedForm, CertificateFactory certFactory)
+            throws CertificateException {
+        Key key = new Key(null, encodedForm);
+        X509Certificate certificate;
+        synchronized (mCertificates) {
+            certificate = mCertificates.get(key);
+        }
+        if (certificate != null) {
+            return certificate;
+        }
+        long startNanos = VerificationStatistics.startPhase();
+        certificate = (certFactory != null)
+                ? X509CertificateUtils.generateCertificate(encodedForm, certFactory)
+                : X509CertificateUtils.generateCertificate(encodedForm);
+        // Wrap the cert so that the result's getEncoded returns exactly the original encoded
+        // form. Without this, getEncoded may return a different form from what was stored in
+        // the signature. This is because some X509Certificate(Factory) implementations
+        // re-encode certificates.
+        certificate = new GuaranteedEncodedFormX509Certificate(certificate, encodedForm);
+        VerificationStatistics.recordCertificateParsed(startNanos);
+        synchronized (mCertificates) {
+            mCertificates.put(key, certificate);
+        }
+        return certificate;
+    }
+
+    /**
+     * Returns the {@code X509Certificate} encoded as {@code encodedForm}, parsing it using the
+     * default X.509 {@code CertificateFactory} if it is not yet cached.
+     *
+     * @throws CertificateException if the encoded form cannot be decoded to a valid certificate.
+     */
+    public X509Certificate getCertificate(byte[] encodedForm) throws CertificateException {
+        return getCertificate(encodedForm, null);
+    }
+
+    /**
+     * Returns the {@code PublicKey} of the provided JCA key algorithm whose X.509
+     * {@code SubjectPublicKeyInfo} encoding is {@code encodedKey}.
+     *
+     * @throws NoSuchAlgorithmException if the key algorithm is not supported
+     * @throws InvalidKeySpecException if the encoded form cannot be decoded to a valid key
+     */
+    public PublicKey getPublicKey(String keyAlgorithm, byte[] encodedKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        Key key = new Key(keyAlgorithm, encodedKey);
+        PublicKey publicKey;
+        synchronized (mPublicKeys) {
+            publicKey = mPublicKeys.get(key);
+        }
+        if (publicKey != null) {
+            return publicKey;
+        }
+        publicKey =
+                KeyFactory.getInstance(keyAlgorithm).generatePublic(
+                        new X509EncodedKeySpec(encodedKey));
+        synchronized (mPublicKeys) {
+            mPublicKeys.put(key, publicKey);
+        }
+        return publicKey;
+    }
+
+    /**
+     * Returns the previously stored re-encoded form of the public key encoded as
+     * {@code encodedKey}, or {@code null} if there is no such form in this cache.
+     *
+     * @see #putEncodedPublicKey(byte[], byte[])
+     */
+    public byte[] getEncodedPublicKey(byte[] encodedKey) {
+        byte[] result;
+        synchronized (mEncodedPublicKeys) {
+            result = mEncodedPublicKeys.get(new Key(null, encodedKey));
+        }
+        return (result != null) ? result.clone() : null;
+    }
+
+    /**
+     * Stores the re-encoded form of the public key encoded as {@code encodedKey}.
+     */
+    public void putEncodedPublicKey(byte[] encodedKey, byte[] reencodedKey) {
+        Key key = new Key(null, encodedKey);
+        synchronized (mEncodedPublicKeys) {
+            mEncodedPublicKeys.put(key, reencodedKey.clone());
+        }
+    }
+
+    /**
+     * Returns a {@code Signature} initialized for verification with the provided JCA signature
+     * algorithm, algorithm parameters and public key. The returned instance is owned exclusively
+     * by the caller.
+     *
+     * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+     * @throws InvalidKeyException if the public key is not suitable for the algorithm
+     * @throws InvalidAlgorithmParameterException if the parameters are not suitable for the
+     *         algorithm
+     */
+    public Signature acquireVerifier(
+            String jcaSignatureAlgorithm,
+            AlgorithmParameterSpec jcaSignatureAlgorithmParams,
+            PublicKey publicKey)
+                    throws NoSuchAlgorithmException, InvalidKeyException,
+                            InvalidAlgorithmParameterException {
+        VerifierKey key =
+                VerifierKey.of(jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
+        if (key != null) {
+            synchronized (mVerifiers) {
+                ArrayDeque<Signature> idle = mVerifiers.get(key);
+                if ((idle != null) && (!idle.isEmpty())) {
+                    return idle.pop();
+                }
+            }
+        }
+        Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
+        sig.initVerify(publicKey);
+        if (jcaSignatureAlgorithmParams != null) {
+            sig.setParameter(jcaSignatureAlgorithmParams);
+        }
+        return sig;
+    }
+
+    /**
+     * Returns a {@code Signature} initialized for verification with the provided JCA signature
+     * algorithm, which takes no algorithm parameters, and public key. The returned instance is
+     * owned exclusively by the caller.
+     *
+     * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+     * @throws InvalidKeyException if the public key is not suitable for the algorithm
+     */
+    public Signature acquireVerifier(String jcaSignatureAlgorithm, PublicKey publicKey)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        try {
+            return acquireVerifier(jcaSignatureAlgorithm, null, publicKey);
+        } catch (InvalidAlgorithmParameterException e) {
+            // Not thrown because no parameters are set
+            throw new RuntimeException("Failed to initialize " + jcaSignatureAlgorithm, e);
+        }
+    }
+
+    /**
+     * Hands back a {@code Signature} obtained from
+     * {@link #acquireVerifier(String, AlgorithmParameterSpec, PublicKey)} so that it can be reused.
+     * This must only be invoked after {@link Signature#verify(byte[])} returned, because that
+     * resets the {@code Signature} to the state it was in right after initialization. Instances
+     * whose use failed with an exception must not be handed back.
+     */
+    public void releaseVerifier(
+            Signature sig,
+            String jcaSignatureAlgorithm,
+            AlgorithmParameterSpec jcaSignatureAlgorithmParams,
+            PublicKey publicKey) {
+        VerifierKey key =
+                VerifierKey.of(jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
+        if (key == null) {
+            return;
+        }
+        synchronized (mVerifiers) {
+            ArrayDeque<Signature> idle = mVerifiers.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<>(MAX_IDLE_VERIFIERS_PER_KEY);
+                mVerifiers.put(key, idle);
+            }
+            if (idle.size() < MAX_IDLE_VERIFIERS_PER_KEY) {
+                idle.push(sig);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from this cache.
+     */
+    public void clear() {
+        synchronized (mCertificates) {
+            mCertificates.clear();
+        }
+        synchronized (mPublicKeys) {
+            mPublicKeys.clear();
+        }
+        synchronized (mEncodedPublicKeys) {
+            mEncodedPublicKeys.clear();
+        }
+        synchronized (mVerifiers) {
+            mVerifiers.clear();
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 MessageDigest not available", e);
+        }
+    }
+
+    /**
+     * {@link LinkedHashMap} in access order which evicts its eldest entry once the maximum number
+     * of entries is exceeded. Not thread-safe.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mMaxEntries;
+
+        private LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    /**
+     * Cache key consisting of an optional algorithm name and the SHA-256 digest of an encoded
+     * object.
+     */
+    private static class Key {
+        private final String mAlgorithm;
+        private final byte[] mDigest;
+        private final int mHashCode;
+
+        private Key(String algorithm, byte[] encoded) {
+            mAlgorithm = algorithm;
+            mDigest = sha256(encoded);
+            mHashCode =
+                    31 * Arrays.hashCode(mDigest)
+                            + ((algorithm != null) ? algorithm.hashCode() : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (mAlgorithm == null) {
+                if (other.mAlgorithm != null) {
+                    return false;
+                }
+            } else if (!mAlgorithm.equals(other.mAlgorithm)) {
+                return false;
+            }
+            return Arrays.equals(mDigest, other.mDigest);
+        }
+    }
+
+    /**
+     * Cache key of an initialized {@code Signature}. Algorithm parameters are compared by
+     * reference because {@code AlgorithmParameterSpec} implementations do not implement
+     * {@code equals}; the parameters used by this library are constants.
+     */
+    private static class VerifierKey {
+        private final Key mKey;
+        private final AlgorithmParameterSpec mParams;
+
+        private VerifierKey(Key key, AlgorithmParameterSpec params) {
+            mKey = key;
+            mParams = params;
+        }
+
+        /**
+         * Returns the key for the provided verifier configuration or {@code null} if verifiers
+         * for the provided public key cannot be pooled because the key has no encoded form.
+         */
+        private static VerifierKey of(
+                String jcaSignatureAlgorithm,
+                AlgorithmParameterSpec params,
+                PublicKey publicKey) {
+            byte[] encodedKey = publicKey.getEncoded();
+            if (encodedKey == null) {
+                return null;
+            }
+            return new VerifierKey(
+                    new Key(jcaSignatureAlgorithm + "/" + publicKey.getAlgorithm(), encodedKey),
+                    params);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof VerifierKey)) {
+                return false;
+            }
+            VerifierKey other = (VerifierKey) obj;
+            return (mParams == other.mParams) && (mKey.equals(other.mKey));
+        }
+    }
+}
@@ -16,8 +16,10 @@
 
 package com.android.apksig.internal.util;
 
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.JfrEvents;
+import com.android.apksig.internal.jfr.VerityTreeLevelEvent;
 import com.android.apksig.internal.zip.ZipUtils;
-import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 
@@ -25,6 +27,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -36,7 +39,10 @@ import java.security.NoSuchAlgorithmException;
 public class VerityTreeBuilder {
 
     /** Maximum size (in bytes) of each node of the tree. */
-    private final static int CHUNK_SIZE = 4096;
+    public final static int CHUNK_SIZE = 4096;
+
+    /** Size (in bytes) of the reads from the input. Must be a multiple of {@link #CHUNK_SIZE}. */
+    private final static int INPUT_BUFFER_SIZE = 1024 * 1024;
 
     /** Digest algorithm (JCA Digest algorithm name) used in the tree. */
     private final static String JCA_ALGORITHM = "SHA-256";
@@ -60,6 +66,21 @@ public class VerityTreeBuilder {
      */
     public byte[] generateVerityTreeRootHash(DataSource beforeApkSigningBlock,
             DataSource centralDir, DataSource eocd) throws IOException {
+        return generateVerityTreeRootHash(null, 0, beforeApkSigningBlock, centralDir, eocd);
+    }
+
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks, as
+     * {@link #generateVerityTreeRootHash(DataSource, DataSource, DataSource)} does, for an APK
+     * whose first {@code chunkCount} chunks have already been digested using
+     * {@link #digestChunk(ByteBuffer, byte[], int)}. Only the rest of the APK is read.
+     *
+     * @param chunkDigests concatenated digests of the first {@code chunkCount} chunks of
+     *        {@code beforeApkSigningBlock}
+     */
+    public byte[] generateVerityTreeRootHash(byte[] chunkDigests, int chunkCount,
+            DataSource beforeApkSigningBlock, DataSource centralDir, DataSource eocd)
+            throws IOException {
         if (beforeApkSigningBlock.size() % CHUNK_SIZE != 0) {
             throw new IllegalStateException("APK Signing Block size not a multiple of " + CHUNK_SIZE
                     + ": " + beforeApkSigningBlock.size());
@@ -75,10 +96,26 @@ public class VerityTreeBuilder {
         eocdBuf.flip();
         ZipUtils.setZipEocdCentralDirectoryOffset(eocdBuf, centralDirOffsetForDigesting);
 
-        return generateVerityTreeRootHash(new ChainedDataSource(beforeApkSigningBlock, centralDir,
+        long digestedSize = (long) chunkCount * CHUNK_SIZE;
+        return generateVerityTreeRootHash(chunkDigests, chunkCount, new ChainedDataSource(
+                    beforeApkSigningBlock.slice(
+                            digestedSize, beforeApkSigningBlock.size() - digestedSize),
+                    centralDir,
                     DataSources.asDataSource(eocdBuf)));
     }
 
+    /**
+     * Outputs the digest of the provided chunk of input, as held by the bottom level of the tree,
+     * into {@code output} at {@code outputOffset}. Consumes the chunk, whose size must be
+     * {@link #CHUNK_SIZE}.
+     */
+    public void digestChunk(ByteBuffer chunk, byte[] output, int outputOffset) {
+        if (chunk.remaining() != CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size: " + chunk.remaining());
+        }
+        System.arraycopy(saltedDigest(chunk), 0, output, outputOffset, mMd.getDigestLength());
+    }
+
     /**
      * Returns the root hash of the verity tree built from the data source.
      *
@@ -89,56 +126,115 @@ public class VerityTreeBuilder {
      *
      * The returned root hash is calculated from the last level of 4 KB chunk, similarly with salt.
      *
-     * The tree is currently stored only in memory and is never written out.  Nevertheless, it is
-     * the actual verity tree format on disk, and is supposed to be re-generated on device.
+     * The tree is never stored.  All levels are built in a single pass over the input, keeping only
+     * the 4 KB chunk of each level which is being filled, so that memory use does not depend on the
+     * size of the input.  A chunk is digested into the level above as soon as it is full.
      *
      * This is package-private for testing purpose.
      */
     byte[] generateVerityTreeRootHash(DataSource fileSource) throws IOException {
+        return generateVerityTreeRootHash(null, 0, fileSource);
+    }
+
+    /**
+     * Returns the root hash of the verity tree built from the input whose first {@code chunkCount}
+     * chunks have been digested into {@code chunkDigests}, followed by {@code fileSource}.
+     */
+    private byte[] generateVerityTreeRootHash(byte[] chunkDigests, int chunkCount,
+            DataSource fileSource) throws IOException {
         int digestSize = mMd.getDigestLength();
+        long size = (long) chunkCount * CHUNK_SIZE + fileSource.size();
+        long[] levelSize = calculateLevelSize(size, digestSize);
+        int levelCount = levelSize.length;
+
+        // Levels are computed together in one pass over the input, so their events span the same
+        // period.
+        VerityTreeLevelEvent[] events =
+                (JfrEvents.isEnabled()) ? new VerityTreeLevelEvent[levelCount] : null;
+        if (events != null) {
+            for (int i = 0; i < levelCount; i++) {
+                events[i] = new VerityTreeLevelEvent();
+                events[i].begin();
+            }
+        }
+
+        // The chunk of each level which is being filled, bottom level first.
+        byte[][] chunks = new byte[levelCount][CHUNK_SIZE];
+        int[] chunkFill = new int[levelCount];
+
+        // Add the digests of the chunks digested beforehand to the bottom level.
+        for (int i = 0; i < chunkCount; i++) {
+            addDigest(chunks, chunkFill, 0,
+                    Arrays.copyOfRange(chunkDigests, i * digestSize, (i + 1) * digestSize));
+        }
 
-        // Calculate the summed area table of level size. In other word, this is the offset
-        // table of each level, plus the next non-existing level.
-        int[] levelOffset = calculateLevelOffset(fileSource.size(), digestSize);
-
-        ByteBuffer verityBuffer = ByteBuffer.allocate(levelOffset[levelOffset.length - 1]);
-
-        // Generate the hash tree bottom-up.
-        for (int i = levelOffset.length - 2; i >= 0; i--) {
-            DataSink middleBufferSink = new ByteBufferSink(
-                    slice(verityBuffer, levelOffset[i], levelOffset[i + 1]));
-            DataSource src;
-            if (i == levelOffset.length - 2) {
-                src = fileSource;
-                digestDataByChunks(src, middleBufferSink);
-            } else {
-                src = DataSources.asDataSource(slice(verityBuffer.asReadOnlyBuffer(),
-                            levelOffset[i + 1], levelOffset[i + 2]));
-                digestDataByChunks(src, middleBufferSink);
+        // Stream the rest of the input into the bottom level, padding the last incomplete chunk
+        // with 0s.
+        long remainingSize = fileSource.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(
+                INPUT_BUFFER_SIZE, divideRoundup(remainingSize, CHUNK_SIZE) * CHUNK_SIZE));
+        for (long offset = 0; offset < remainingSize; ) {
+            VerificationBudget.checkTime();
+            int readSize = (int) Math.min(buffer.capacity(), remainingSize - offset);
+            buffer.clear();
+            fileSource.copyTo(offset, readSize, buffer);
+            int paddedSize = (int) (divideRoundup(readSize, CHUNK_SIZE) * CHUNK_SIZE);
+            Arrays.fill(buffer.array(), readSize, paddedSize, (byte) 0);
+            for (int chunkOffset = 0; chunkOffset < paddedSize; chunkOffset += CHUNK_SIZE) {
+                buffer.limit(chunkOffset + CHUNK_SIZE);
+                buffer.position(chunkOffset);
+                addDigest(chunks, chunkFill, 0, saltedDigest(buffer));
             }
+            offset += readSize;
+        }
+
+        // If the output is not full chunk, pad with 0s.
+        for (int i = 0; i < levelCount - 1; i++) {
+            if (chunkFill[i] > 0) {
+                Arrays.fill(chunks[i], chunkFill[i], CHUNK_SIZE, (byte) 0);
+                chunkFill[i] = 0;
+                addDigest(chunks, chunkFill, i + 1, saltedDigest(ByteBuffer.wrap(chunks[i])));
+            }
+        }
+        int topLevel = levelCount - 1;
+        Arrays.fill(chunks[topLevel], chunkFill[topLevel], CHUNK_SIZE, (byte) 0);
 
-            // If the output is not full chunk, pad with 0s.
-            long totalOutput = divideRoundup(src.size(), CHUNK_SIZE) * digestSize;
-            int incomplete = (int) (totalOutput % CHUNK_SIZE);
-            if (incomplete > 0) {
-                byte[] padding = new byte[CHUNK_SIZE - incomplete];
-                middleBufferSink.consume(padding, 0, padding.length);
+        if (events != null) {
+            for (int i = 0; i < levelCount; i++) {
+                events[i].end();
+                if (events[i].shouldCommit()) {
+                    events[i].apkPath = ApkEventContext.getApkPath();
+                    events[i].algorithm = JCA_ALGORITHM;
+                    events[i].level = i;
+                    events[i].inputSize = (i == 0) ? size : levelSize[i - 1];
+                    events[i].outputSize = levelSize[i];
+                    events[i].commit();
+                }
             }
         }
 
         // Finally, calculate the root hash from the top level (only page).
-        ByteBuffer firstPage = slice(verityBuffer.asReadOnlyBuffer(), 0, CHUNK_SIZE);
-        return saltedDigest(firstPage);
+        return saltedDigest(ByteBuffer.wrap(chunks[topLevel]));
+    }
+
+    /**
+     * Appends the digest to the chunk being filled at the level.  If this fills the chunk and the
+     * level is not the top level, the chunk is digested into the level above and emptied.
+     */
+    private void addDigest(byte[][] chunks, int[] chunkFill, int level, byte[] digest) {
+        System.arraycopy(digest, 0, chunks[level], chunkFill[level], digest.length);
+        chunkFill[level] += digest.length;
+        if ((chunkFill[level] == CHUNK_SIZE) && (level < chunks.length - 1)) {
+            chunkFill[level] = 0;
+            addDigest(chunks, chunkFill, level + 1, saltedDigest(ByteBuffer.wrap(chunks[level])));
+        }
     }
 
     /**
-     * Returns an array of summed area table of level size in the verity tree.  In other words, the
-     * returned array is offset of each level in the verity tree file format, plus an additional
-     * offset of the next non-existing level (i.e. end of the last level + 1).  Thus the array size
-     * is level + 1.
+     * Returns the size of each level in the verity tree, bottom to top.  Each level is padded to a
+     * multiple of the chunk size, and the top level is a single chunk.
      */
-    private static int[] calculateLevelOffset(long dataSize, int digestSize) {
-        // Compute total size of each level, bottom to top.
+    private static long[] calculateLevelSize(long dataSize, int digestSize) {
         ArrayList<Long> levelSize = new ArrayList<>();
         while (true) {
             long chunkCount = divideRoundup(dataSize, CHUNK_SIZE);
@@ -150,44 +246,11 @@ public class VerityTreeBuilder {
             dataSize = chunkCount * digestSize;
         }
 
-        // Reverse and convert to summed area table.
-        int[] levelOffset = new int[levelSize.size() + 1];
-        levelOffset[0] = 0;
-        for (int i = 0; i < levelSize.size(); i++) {
-            // We don't support verity tree if it is larger then Integer.MAX_VALUE.
-            levelOffset[i + 1] = levelOffset[i] + Math.toIntExact(
-                    levelSize.get(levelSize.size() - i - 1));
-        }
-        return levelOffset;
-    }
-
-    /**
-     * Digest data source by chunks then feeds them to the sink one by one.  If the last unit is
-     * less than the chunk size and padding is desired, feed with extra padding 0 to fill up the
-     * chunk before digesting.
-     */
-    private void digestDataByChunks(DataSource dataSource, DataSink dataSink) throws IOException {
-        long size = dataSource.size();
-        long offset = 0;
-        for (; offset + CHUNK_SIZE <= size; offset += CHUNK_SIZE) {
-            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
-            dataSource.copyTo(offset, CHUNK_SIZE, buffer);
-            buffer.rewind();
-            byte[] hash = saltedDigest(buffer);
-            dataSink.consume(hash, 0, hash.length);
-        }
-
-        // Send the last incomplete chunk with 0 padding to the sink at once.
-        int remaining = (int) (size % CHUNK_SIZE);
-        if (remaining > 0) {
-            ByteBuffer buffer;
-            buffer = ByteBuffer.allocate(CHUNK_SIZE);  // initialized to 0.
-            dataSource.copyTo(offset, remaining, buffer);
-            buffer.rewind();
-
-            byte[] hash = saltedDigest(buffer);
-            dataSink.consume(hash, 0, hash.length);
+        long[] result = new long[levelSize.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = levelSize.get(i);
         }
+        return result;
     }
 
     /** Returns the digest of data with salt prepanded. */
@@ -204,13 +267,4 @@ public class VerityTreeBuilder {
     private static long divideRoundup(long dividend, long divisor) {
         return (dividend + divisor - 1) / divisor;
     }
-
-    /** Returns a slice of the buffer with shared the content. */
-    private static ByteBuffer slice(ByteBuffer buffer, int begin, int end) {
-        ByteBuffer b = buffer.duplicate();
-        b.position(0);  // to ensure position <= limit invariant.
-        b.limit(end);
-        b.position(begin);
-        return b.slice();
-    }
 }
@@ -38,6 +38,9 @@ public class CentralDirectoryRecord {
     private static final int RECORD_SIGNATURE = 0x02014b50;
     private static final int HEADER_SIZE_BYTES = 46;
 
+    /** Maximum size of a record: header, name, extra field and comment, each at most 64 KB. */
+    public static final long MAX_RECORD_SIZE_BYTES = HEADER_SIZE_BYTES + 3 * 0xffffL;
+
     private static final int GP_FLAGS_OFFSET = 8;
     private static final int LOCAL_FILE_HEADER_OFFSET_OFFSET = 42;
     private static final int NAME_OFFSET = HEADER_SIZE_BYTES;
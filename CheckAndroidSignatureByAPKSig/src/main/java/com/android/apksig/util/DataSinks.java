@@ -20,6 +20,8 @@ import com.android.apksig.internal.util.ByteArrayDataSink;
 import com.android.apksig.internal.util.MessageDigestSink;
 import com.android.apksig.internal.util.OutputStreamDataSink;
 import com.android.apksig.internal.util.RandomAccessFileDataSink;
+import com.android.apksig.internal.util.SegmentedDataSink;
+import com.android.apksig.internal.util.WriteBehindDataSink;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.security.MessageDigest;
@@ -72,4 +74,41 @@ public abstract class DataSinks {
     public static ReadableDataSink newInMemoryDataSink(int initialCapacity) {
         return new ByteArrayDataSink(initialCapacity);
     }
+
+    /**
+     * Returns a new in-memory {@link DataSink} which exposes all data consumed so far via the
+     * {@link DataSource} interface. Unlike {@link #newInMemoryDataSink()}, the data is stored in
+     * a list of fixed-size segments rather than in a single growable array. Appending thus never
+     * copies previously consumed data and the sink may hold more than 2 GB of data.
+     */
+    public static ReadableDataSink newSegmentedInMemoryDataSink() {
+        return new SegmentedDataSink();
+    }
+
+    /**
+     * Returns a new in-memory {@link DataSink} which exposes all data consumed so far via the
+     * {@link DataSource} interface and stores the data in a list of fixed-size segments.
+     *
+     * @param segmentSize size (in bytes) of each segment
+     * @param direct {@code true} to store the data in direct (off-heap) buffers, {@code false} to
+     *        store it on the Java heap
+     */
+    public static ReadableDataSink newSegmentedInMemoryDataSink(int segmentSize, boolean direct) {
+        return new SegmentedDataSink(segmentSize, direct);
+    }
+
+    /**
+     * Returns a {@link DataSink} which outputs received data into the provided sink on a separate
+     * writer thread, buffering up to a few megabytes of not yet output data. This overlaps slow
+     * writes, such as writes to network storage, with the producer's work.
+     *
+     * <p>{@code flush} waits until all data received so far has been output into {@code delegate}
+     * and rethrows any error encountered while doing so, and {@code close} additionally stops the
+     * writer thread. The returned sink must be closed once it is no longer needed.
+     * {@link com.android.apksig.ApkSigner} flushes {@code Flushable} output sinks before reading
+     * back the output APK and once signing is done.
+     */
+    public static FlushableDataSink asWriteBehindDataSink(DataSink delegate) {
+        return new WriteBehindDataSink(delegate);
+    }
 }
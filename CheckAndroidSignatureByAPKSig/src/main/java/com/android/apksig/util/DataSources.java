@@ -16,9 +16,13 @@
 
 package com.android.apksig.util;
 
+import com.android.apksig.internal.util.BlockCachingDataSource;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.FileChannelDataSource;
+import com.android.apksig.internal.util.HttpRangeDataSource;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -26,6 +30,8 @@ import java.nio.channels.FileChannel;
  * Utility methods for working with {@link DataSource} abstraction.
  */
 public abstract class DataSources {
+    private static final int HTTP_CACHE_BLOCK_SIZE = 64 * 1024;
+
     private DataSources() {}
 
     /**
@@ -77,4 +83,51 @@ public abstract class DataSources {
         }
         return new FileChannelDataSource(channel, offset, size);
     }
+
+    /**
+     * Returns a {@link DataSource} which serves small reads of the provided data source from a
+     * cache of 16 KB blocks, reading ahead when blocks are missed in sequence. Reads larger than a
+     * block are passed through. This saves round trips when verifying APKs on slow or remote
+     * storage, where parsing the APK's structure issues many small reads.
+     *
+     * <p>The contents and size of {@code source} must not change while the returned data source
+     * is in use.
+     */
+    public static DataSource asBlockCachingDataSource(DataSource source) {
+        return new BlockCachingDataSource(source);
+    }
+
+    /**
+     * Returns a {@link DataSource} which serves small reads of the provided data source from a
+     * cache of blocks, as {@link #asBlockCachingDataSource(DataSource)} does.
+     *
+     * @param blockSize size (in bytes) of each block, which is also the size of the largest read
+     *        served from the cache
+     * @param maxCachedBlocks maximum number of blocks cached at once
+     * @param readAheadBlocks number of blocks read ahead when blocks are missed in sequence
+     */
+    public static DataSource asBlockCachingDataSource(
+            DataSource source, int blockSize, int maxCachedBlocks, int readAheadBlocks) {
+        return new BlockCachingDataSource(source, blockSize, maxCachedBlocks, readAheadBlocks);
+    }
+
+    /**
+     * Returns a {@link DataSource} backed by the HTTP or HTTPS resource at the provided URL, such
+     * as an APK in an artifact store. The contents are read using HTTP Range requests, so only the
+     * parts of the resource which are read are transferred. Small reads are coalesced into
+     * requests for 64 KB blocks, which are cached, and large reads are split into segments which
+     * are requested in parallel.
+     *
+     * <p>The server must support range requests, and the resource must not change while the
+     * returned data source is in use.
+     *
+     * @throws IOException if the size of the resource could not be obtained from the server
+     */
+    public static DataSource asDataSource(URL url) throws IOException {
+        return new BlockCachingDataSource(
+                new HttpRangeDataSource(url),
+                HTTP_CACHE_BLOCK_SIZE,
+                BlockCachingDataSource.DEFAULT_MAX_CACHED_BLOCKS,
+                BlockCachingDataSource.DEFAULT_READ_AHEAD_BLOCKS);
+    }
 }
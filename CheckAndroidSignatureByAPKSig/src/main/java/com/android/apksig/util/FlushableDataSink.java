@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+
+/**
+ * {@link DataSink} which may hold on to received data before outputting it. {@code flush} waits
+ * until all data received so far has been output, and {@code close} additionally releases the
+ * resources of the sink.
+ */
+public interface FlushableDataSink extends DataSink, Flushable, Closeable {
+}
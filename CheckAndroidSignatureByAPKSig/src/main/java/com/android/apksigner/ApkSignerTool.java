@@ -26,6 +26,7 @@ import java.security.cert.X509Certificate;
 import java.util.List;
 
 import com.android.apksig.ApkVerifier;
+import com.android.apksig.util.RunnablesExecutor;
 
 /**
  * Command-line tool for signing APKs and for checking whether an APK's signature are expected to
@@ -47,6 +48,7 @@ public class ApkSignerTool {
     public static final String KEY_RESULT_IS_V2_OK = "isV2OK";
     public static final String KEY_RESULT_IS_V1_OK = "isV1OK";
     public static final String KEY_RESULT_KEYSTORE_MD5 = "keystoreMd5";
+    public static final String KEY_RESULT_STATS = "stats";
     //成功
     private static final int RET_OK = 0;
     //文件类型错误
@@ -83,6 +85,10 @@ public class ApkSignerTool {
     }
 
     private static String getBothSuccssedCheckResult(int ret, String Msg, ApkVerifier.Result result, String keystoreMD5) {
+        String stats = "";
+        if (result.getStatistics() != null) {
+            stats = ",\"" + KEY_RESULT_STATS + "\":" + getStatisticsResult(result.getStatistics());
+        }
         return "{" +
                 "\"" + KEY_RESULT_RET + "\":" + ret +
                 ",\"" + KEY_RESULT_MSG + "\":\"" + Msg +
@@ -92,7 +98,31 @@ public class ApkSignerTool {
 				",\"" + KEY_RESULT_IS_V3 + "\":" + (result.getV3SchemeSigners().size() > 0 ? true : false) +
 				",\"" + KEY_RESULT_IS_V3_OK + "\":" + result.isVerifiedUsingV3Scheme() +
                 ",\"" + KEY_RESULT_KEYSTORE_MD5 + "\":\"" + keystoreMD5 +
-                "\"" +
+                "\"" + stats +
+                "}";
+    }
+
+    /**
+     * Returns the verification statistics as JSON: durations in microseconds, byte counts in bytes.
+     */
+    private static String getStatisticsResult(ApkVerifier.Result.Statistics statistics) {
+        StringBuilder phases = new StringBuilder();
+        for (ApkVerifier.Phase phase : ApkVerifier.Phase.values()) {
+            if (phases.length() > 0) {
+                phases.append(",");
+            }
+            phases.append("\"").append(phase.name()).append("\":")
+                    .append(statistics.getDurationNanos(phase) / 1000);
+        }
+        return "{" +
+                "\"totalUs\":" + statistics.getTotalDurationNanos() / 1000 +
+                ",\"phasesUs\":{" + phases + "}" +
+                ",\"contentBytesDigested\":" + statistics.getContentBytesDigested() +
+                ",\"contentChunksDigested\":" + statistics.getContentChunksDigested() +
+                ",\"contentDigestThreads\":" + statistics.getContentDigestThreads() +
+                ",\"jarEntriesDigested\":" + statistics.getJarEntriesDigested() +
+                ",\"jarEntryBytesInflated\":" + statistics.getJarEntryBytesInflated() +
+                ",\"certificatesParsed\":" + statistics.getCertificatesParsed() +
                 "}";
     }
 
@@ -101,9 +131,28 @@ public class ApkSignerTool {
     }
 
     public static String verify(String apkPath, boolean showException) {
+        return verify(apkPath, showException, false);
+    }
+
+    /**
+     * Verifies the APK and returns the result as JSON. If {@code showStatistics} is set, the
+     * result also includes the per-phase timings and byte counters of the verification.
+     */
+    public static String verify(String apkPath, boolean showException, boolean showStatistics) {
+        return verify(apkPath, showException, showStatistics, RunnablesExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Verifies the APK like {@link #verify(String, boolean, boolean)}, digesting its contents on
+     * the provided executor.
+     */
+    public static String verify(String apkPath, boolean showException, boolean showStatistics,
+            RunnablesExecutor executor) {
         File inputApk = new File(apkPath);
 
         ApkVerifier.Builder apkVerifierBuilder = new ApkVerifier.Builder(inputApk);
+        apkVerifierBuilder.setStatisticsEnabled(showStatistics);
+        apkVerifierBuilder.setRunnablesExecutor(executor);
         ApkVerifier apkVerifier = apkVerifierBuilder.build();
         ApkVerifier.Result result = null;
         String msg = "";
@@ -1,16 +1,42 @@
 package com.bihe0832.packageinfo;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.android.apksig.ApkFingerprint;
+import com.android.apksig.ApkSetVerifier;
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.StreamingApkVerifier;
+import com.android.apksig.internal.util.InterruptibleFuture;
+import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksigner.ApkSignerTool;
+import com.bihe0832.packageinfo.batch.ApkBatchScheduler;
 import com.bihe0832.packageinfo.bean.ApkInfo;
+import com.bihe0832.packageinfo.benchmark.ApkBenchmark;
+import com.bihe0832.packageinfo.benchmark.ApkCorpusGenerator;
+import com.bihe0832.packageinfo.benchmark.StartupBenchmark;
+import com.bihe0832.packageinfo.composition.ApkCompositionReport;
+import com.bihe0832.packageinfo.fingerprint.ApkFingerprintIndex;
 import com.bihe0832.packageinfo.getSignature.GetSignature;
+import com.bihe0832.packageinfo.server.ApkInfoClient;
+import com.bihe0832.packageinfo.server.ApkInfoServer;
 import com.bihe0832.packageinfo.utils.ApkUtil;
+import com.bihe0832.packageinfo.watch.ApkWatcher;
 
 
 public class Main {
@@ -20,8 +46,15 @@ public class Main {
 	private static final String HELP_PAGE_GENERAL = "help.txt";
 	private static final String VERSION_PAGE_GENERAL = "help_version.txt";
 	private static boolean sShowDebug = true;
-	private static final int RET_FILE_NOT_GOOD = -2;
-	private static final int RET_GET_INFO_BAD = -3;
+	public static final String KEY_RESULT_RET = "ret";
+	public static final String KEY_RESULT_MSG = "msg";
+	public static final String KEY_RESULT_INFO = "info";
+	public static final String KEY_RESULT_STATS = "stats";
+	/** Environment variable holding the port of a running server to forward inspections to. */
+	private static final String ENV_SERVER_PORT = "GETAPKINFO_SERVER_PORT";
+	private static final int RET_OK = 0;
+	public static final int RET_FILE_NOT_GOOD = -2;
+	public static final int RET_GET_INFO_BAD = -3;
 	public static void main(String[] params) throws Exception {
         if ((params.length == 0)) {
             printUsage(HELP_PAGE_GENERAL);
@@ -31,6 +64,12 @@ public class Main {
 		if (params[params.length - 1].toLowerCase().startsWith("--debug")) {
 			sShowDebug = true;
 		}
+		boolean showStatistics = false;
+		for (String param : params) {
+			if (param.equalsIgnoreCase("--stats")) {
+				showStatistics = true;
+			}
+		}
 
 		if (params[0].toLowerCase().startsWith("--help")) {
             printUsage(HELP_PAGE_GENERAL);
@@ -39,8 +78,97 @@ public class Main {
     		System.out.println(Main.class.getName() + " version " + VERSION_NAME + " (GetApkInfo - " + VERSION_CODE + ")\n");
     		printUsage(VERSION_PAGE_GENERAL);
             return;
+        } else if (params[0].toLowerCase().startsWith("--server")) {
+			int port = ApkInfoServer.DEFAULT_PORT;
+			if (params.length > 1 && params[1].matches("\\d+")) {
+				port = Integer.parseInt(params[1]);
+			}
+			long memoryBudgetBytes = ApkBatchScheduler.getDefaultMemoryBudgetBytes();
+			for (String param : params) {
+				if (param.toLowerCase().matches("--memory-budget=\\d+")) {
+					memoryBudgetBytes = Long.parseLong(param.substring(param.indexOf('=') + 1)) * 1024 * 1024;
+				}
+			}
+			new ApkInfoServer(port, Runtime.getRuntime().availableProcessors(), memoryBudgetBytes).serve();
+			return;
+        } else if (params[0].toLowerCase().startsWith("--watch")) {
+			List<Path> dirs = new ArrayList<Path>();
+			for (int i = 2; i < params.length; i++) {
+				if (!params[i].toLowerCase().startsWith("--debug") && !params[i].equalsIgnoreCase("--stats")) {
+					dirs.add(new File(params[i]).getAbsoluteFile().toPath().normalize());
+				}
+			}
+			if (dirs.isEmpty()) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			new ApkWatcher(dirs, new File(params[1])).watch();
+			return;
+        } else if (params[0].toLowerCase().startsWith("--compare")) {
+			if (params.length < 3) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			compareApks(params[1], params[2]);
+			return;
+        } else if (params[0].toLowerCase().startsWith("--fingerprint")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			new ApkFingerprintIndex().index(new File(params[1]), System.out);
+			return;
+        } else if (params[0].toLowerCase().startsWith("--apks")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			System.out.println(verifyApkSet(params[1]).toString(2));
+			return;
+        } else if (params[0].toLowerCase().startsWith("--receive")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			System.out.println(receiveApk(System.in, params[1]).toString(2));
+			return;
+        } else if (params[0].toLowerCase().startsWith("--composition")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			try {
+				System.out.println(ApkCompositionReport.getReport(params[1]).toString(2));
+			} catch (Exception e) {
+				if (sShowDebug) {
+					e.printStackTrace();
+				}
+				showFailedCheckResult(RET_FILE_NOT_GOOD, "get apk composition failed: " + e.getMessage());
+			}
+			return;
+        } else if (params[0].toLowerCase().startsWith("--generate-corpus")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			generateCorpus(params);
+			return;
+        } else if (params[0].toLowerCase().startsWith("--benchmark-startup")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			benchmarkStartup(params);
+			return;
+        } else if (params[0].toLowerCase().startsWith("--benchmark")) {
+			if (params.length < 2) {
+				printUsage(HELP_PAGE_GENERAL);
+				return;
+			}
+			benchmark(params);
+			return;
         } else if(params[0].toLowerCase().endsWith(".apk")){
-        	getApkInfo(params[0]);
+        	getApkInfo(params[0], showStatistics);
             return;
         }else{
 			showFailedCheckResult(RET_FILE_NOT_GOOD, params[0] +"is not an android apk file");
@@ -49,17 +177,272 @@ public class Main {
         
     } 
 	
-	private static void getApkInfo(String filePath){
+	private static void getApkInfo(String filePath, boolean showStatistics){
+		String serverPort = System.getenv(ENV_SERVER_PORT);
+		if (serverPort != null) {
+			// Hand the APK over to a running server; inspect it in this process if that fails
+			try {
+				List<JSONObject> results = ApkInfoClient.inspect(Integer.parseInt(serverPort.trim()),
+						Collections.singletonList(filePath), showStatistics);
+				showCheckResult(results.get(0));
+				return;
+			} catch (Exception e) {
+				if (sShowDebug) {
+					e.printStackTrace();
+				}
+			}
+		}
+		showCheckResult(inspect(filePath, showStatistics));
+	}
+
+	/**
+	 * Generates a corpus of synthetic signed APKs into the directory params[1], configured by the
+	 * other --name=value params, and prints the path of each APK.
+	 */
+	private static void generateCorpus(String[] params) throws Exception {
+		List<ApkCorpusGenerator.Signing> signings = new ArrayList<ApkCorpusGenerator.Signing>();
+		for (String signing : getOption(params, "--signing", "v1,v1v2,v1v2v3,v2v3+lineage").split(",")) {
+			signings.add(ApkCorpusGenerator.Signing.parse(signing.trim()));
+		}
+		ApkCorpusGenerator generator = new ApkCorpusGenerator.Builder()
+				.setEntryCount(Integer.parseInt(getOption(params, "--entries", "200")))
+				.setEntrySizeDistribution(
+						(int) (Double.parseDouble(getOption(params, "--entry-size", "16")) * 1024),
+						Double.parseDouble(getOption(params, "--entry-size-sigma", "1.0")))
+				.setDeflatedPercent(Integer.parseInt(getOption(params, "--deflated", "70")))
+				.setNativeLibraryCount(Integer.parseInt(getOption(params, "--native-libs", "4")))
+				.setSignings(signings)
+				.setSeed(Long.parseLong(getOption(params, "--seed", "0")))
+				.build();
+		int count = Integer.parseInt(getOption(params, "--count", "100"));
+		for (File apk : generator.generate(new File(params[1]), count)) {
+			System.out.println(apk.getPath());
+		}
+	}
+
+	/**
+	 * Benchmarks the inspection of the APKs in the directory params[1], configured by the other
+	 * --name=value params, and prints one line of JSON per pipeline and thread count.
+	 */
+	private static void benchmark(String[] params) throws Exception {
+		List<File> apks = new ArrayList<File>();
+		File[] files = new File(params[1]).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().toLowerCase().endsWith(".apk")) {
+					apks.add(file);
+				}
+			}
+		}
+		if (apks.isEmpty()) {
+			showFailedCheckResult(RET_FILE_NOT_GOOD, params[1] + " has no apk files");
+			return;
+		}
+		Collections.sort(apks);
+		String[] threads = getOption(params, "--threads", "1,2,4,8").split(",");
+		int[] threadCounts = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threadCounts[i] = Integer.parseInt(threads[i].trim());
+		}
+		int iterations = Integer.parseInt(getOption(params, "--iterations", "3"));
+		if (iterations < 1) {
+			printUsage(HELP_PAGE_GENERAL);
+			return;
+		}
+		// Inspection failures are counted, not printed
+		sShowDebug = false;
+		new ApkBenchmark(apks).runAll(threadCounts, iterations, System.out);
+	}
+
+	/**
+	 * Benchmarks the cold start of the command line tools on the APK params[1], configured by the
+	 * other --name=value params, and prints one line of JSON per tool and archive. The jars of the
+	 * tools are by default the ones next to the running GetAPKInfo.jar.
+	 */
+	private static void benchmarkStartup(String[] params) throws Exception {
+		File apk = new File(params[1]);
+		if (!apk.isFile()) {
+			showFailedCheckResult(RET_FILE_NOT_GOOD, params[1] + " is not a file");
+			return;
+		}
+		File jarDir = new File(getOption(params, "--jar-dir", getRunningJarDir()));
+		StartupBenchmark benchmark = new StartupBenchmark(apk, jarDir);
+		for (StartupBenchmark.Tool tool : StartupBenchmark.Tool.values()) {
+			if (!benchmark.getJar(tool).isFile()) {
+				showFailedCheckResult(RET_FILE_NOT_GOOD, benchmark.getJar(tool) + " is not a file");
+				return;
+			}
+		}
+		int iterations = Integer.parseInt(getOption(params, "--iterations", "10"));
+		if (iterations < 1) {
+			printUsage(HELP_PAGE_GENERAL);
+			return;
+		}
+		benchmark.runAll(iterations, System.out);
+	}
+
+	/**
+	 * Returns the directory of the jar this class is loaded from, or "." if it is not loaded from
+	 * a jar.
+	 */
+	private static String getRunningJarDir() throws Exception {
+		File codeSource = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		return (codeSource.isFile()) ? codeSource.getAbsoluteFile().getParent() : ".";
+	}
+
+	/**
+	 * Returns the value of the --name=value param, or defaultValue if there is none.
+	 */
+	private static String getOption(String[] params, String name, String defaultValue) {
+		for (String param : params) {
+			if (param.toLowerCase().startsWith(name + "=")) {
+				return param.substring(name.length() + 1);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Compares the contents of two APKs by their fingerprints, which are read from their APK
+	 * Signing Blocks where possible.
+	 */
+	private static void compareApks(String firstPath, String secondPath){
+		ApkFingerprint first;
+		ApkFingerprint second;
+		try {
+			first = ApkFingerprint.of(new File(firstPath));
+			second = ApkFingerprint.of(new File(secondPath));
+		} catch (Exception e) {
+			if (sShowDebug) {
+				e.printStackTrace();
+			}
+			showFailedCheckResult(RET_FILE_NOT_GOOD, "get apk fingerprint failed: " + e.getMessage());
+			return;
+		}
+		System.out.println("执行结果: 成功");
+		System.out.println("  " + firstPath + ": " + first + " (" + first.getSource() + ")");
+		System.out.println("  " + secondPath + ": " + second + " (" + second.getSource() + ")");
+		System.out.println("  内容相同: " + first.equals(second));
+	}
+
+	/**
+	 * Verifies the APKs inside an APK set (.apks) in place, without extracting them, and returns
+	 * the result as JSON: the "ret" code, the "msg" error message and, when the APK set could be
+	 * read, "isVerified", the APK set level "errors" and the per-APK results in "apks".
+	 */
+	public static JSONObject verifyApkSet(String filePath){
+		ApkSetVerifier.Result apkSetResult;
+		try {
+			apkSetResult = new ApkSetVerifier.Builder(new File(filePath)).build().verify();
+		} catch (Exception e) {
+			if (sShowDebug) {
+				e.printStackTrace();
+			}
+			return getFailedCheckResult(RET_FILE_NOT_GOOD, "verify apk set failed: " + e.getMessage());
+		}
+		JSONObject result = new JSONObject();
+		result.put(KEY_RESULT_RET, RET_OK);
+		result.put(KEY_RESULT_MSG, "");
+		result.put("isVerified", apkSetResult.isVerified());
+		JSONArray errors = new JSONArray();
+		for (ApkVerifier.IssueWithParams error : apkSetResult.getErrors()) {
+			errors.put(error.toString());
+		}
+		result.put("errors", errors);
+		JSONObject apks = new JSONObject();
+		for (Map.Entry<String, ApkVerifier.Result> apk : apkSetResult.getApkResults().entrySet()) {
+			apks.put(apk.getKey(), toJson(apk.getValue()));
+		}
+		result.put("apks", apks);
+		return result;
+	}
+
+	/**
+	 * Receives an APK from the stream, such as an upload piped to stdin, writes it to outputPath
+	 * and verifies it while it is being received, so that the result is ready right after the
+	 * last byte. Returns the result as JSON: the "ret" code, the "msg" error message and, once
+	 * the APK has been received, its "size" and verification result.
+	 */
+	public static JSONObject receiveApk(InputStream in, String outputPath){
+		ApkVerifier.Result apkResult;
+		long size;
+		try (StreamingApkVerifier verifier =
+				new StreamingApkVerifier.Builder(new File(outputPath)).build()) {
+			byte[] buf = new byte[64 * 1024];
+			int chunkSize;
+			while ((chunkSize = in.read(buf)) != -1) {
+				verifier.consume(buf, 0, chunkSize);
+			}
+			size = verifier.getConsumedSize();
+			apkResult = verifier.verify();
+		} catch (Exception e) {
+			if (sShowDebug) {
+				e.printStackTrace();
+			}
+			return getFailedCheckResult(RET_FILE_NOT_GOOD, "receive apk failed: " + e.getMessage());
+		}
+		JSONObject result = toJson(apkResult);
+		result.put(KEY_RESULT_RET, RET_OK);
+		result.put(KEY_RESULT_MSG, "");
+		result.put("size", size);
+		return result;
+	}
+
+	private static JSONObject toJson(ApkVerifier.Result apkResult){
+		JSONObject result = new JSONObject();
+		result.put("isVerified", apkResult.isVerified());
+		result.put("isV1OK", apkResult.isVerifiedUsingV1Scheme());
+		result.put("isV2OK", apkResult.isVerifiedUsingV2Scheme());
+		result.put("isV3OK", apkResult.isVerifiedUsingV3Scheme());
+		JSONArray errors = new JSONArray();
+		for (ApkVerifier.IssueWithParams error : apkResult.getErrors()) {
+			errors.put(error.toString());
+		}
+		result.put("errors", errors);
+		return result;
+	}
+
+	/**
+	 * Inspects the APK and returns the result as JSON: the "ret" code, the "msg" error message and,
+	 * on success, the "info" ApkInfo.
+	 */
+	public static JSONObject inspect(String filePath){
+		return inspect(filePath, false);
+	}
+
+	/**
+	 * Inspects the APK like {@link #inspect(String)}. With showStatistics, a successful result also
+	 * has the "stats" timings (in microseconds) of each step of the inspection, including those
+	 * reported by the verifier.
+	 */
+	public static JSONObject inspect(String filePath, boolean showStatistics){
+		return inspect(filePath, showStatistics, RunnablesExecutor.SINGLE_THREADED);
+	}
+
+	/**
+	 * Inspects the APK like {@link #inspect(String, boolean)}, digesting its contents for signature
+	 * verification on the provided executor.
+	 */
+	public static JSONObject inspect(String filePath, boolean showStatistics, RunnablesExecutor executor){
 		ApkInfo info = new ApkInfo();
+		JSONObject stats = new JSONObject();
+		long startNanos = System.nanoTime();
 		try {
 			ApkUtil.updateAPKInfo(filePath, info, sShowDebug);
 		} catch(Exception e){
-			showFailedCheckResult(RET_GET_INFO_BAD,"get apkinfo failed, throw an Exception ;please use --debug get more info");
-			return;
+			return getFailedCheckResult(RET_GET_INFO_BAD,"get apkinfo failed, throw an Exception ;please use --debug get more info");
 		}
-		String v2Signature = ApkSignerTool.verify(filePath, sShowDebug);
+		startNanos = recordStep(stats, "apkInfoUs", startNanos);
+		ApkUtil.updateHeaderInfo(filePath, info, sShowDebug);
+		startNanos = recordStep(stats, "headerInfoUs", startNanos);
+		String v2Signature = ApkSignerTool.verify(filePath, sShowDebug, showStatistics, executor);
+		startNanos = recordStep(stats, "verifyUs", startNanos);
 		try{
 			JSONObject jsonobject = new JSONObject(v2Signature);
+			if (jsonobject.has(ApkSignerTool.KEY_RESULT_STATS)) {
+				stats.put("verifier", jsonobject.remove(ApkSignerTool.KEY_RESULT_STATS));
+				v2Signature = jsonobject.toString();
+			}
 			info.isV1SignatureOK = jsonobject.getBoolean(ApkSignerTool.KEY_RESULT_IS_V1_OK);
 			info.isV2Signature = jsonobject.getBoolean(ApkSignerTool.KEY_RESULT_IS_V2);
 			info.isV2SignatureOK = jsonobject.getBoolean(ApkSignerTool.KEY_RESULT_IS_V2_OK);
@@ -67,13 +450,61 @@ public class Main {
 			info.isV3SignatureOK = jsonobject.getBoolean(ApkSignerTool.KEY_RESULT_IS_V3_OK);
 			info.getSignatureErrorInfo = v2Signature;
 			info.signature = GetSignature.getApkSignInfo(filePath, sShowDebug);
+			recordStep(stats, "signatureUs", startNanos);
 		}catch(Exception e){
-			showFailedCheckResult(RET_GET_INFO_BAD,"get apk info failed, throw an Exception;please use --debug get more info");
-			return;
+			return getFailedCheckResult(RET_GET_INFO_BAD,"get apk info failed, throw an Exception;please use --debug get more info");
+		}
+		JSONObject result = new JSONObject();
+		result.put(KEY_RESULT_RET, RET_OK);
+		result.put(KEY_RESULT_MSG, "");
+		result.put(KEY_RESULT_INFO, info.toJSON());
+		if (showStatistics) {
+			result.put(KEY_RESULT_STATS, stats);
 		}
-		showSuccssedCheckResult(info);
+		return result;
 	}
-	
+
+	/**
+	 * Records the duration of the step started at startNanos and returns the start of the next step.
+	 */
+	private static long recordStep(JSONObject stats, String key, long startNanos){
+		long endNanos = System.nanoTime();
+		stats.put(key, (endNanos - startNanos) / 1000);
+		return endNanos;
+	}
+
+	/**
+	 * Inspects the APK on the provided executor. The returned future is completed with the result
+	 * of {@link #inspect(String)}. Cancelling the future interrupts the inspection, which stops
+	 * signature verification early.
+	 */
+	public static CompletableFuture<JSONObject> inspectAsync(final String filePath, Executor executor){
+		return InterruptibleFuture.callAsync(new Callable<JSONObject>() {
+			@Override
+			public JSONObject call() {
+				return inspect(filePath);
+			}
+		}, executor);
+	}
+
+	public static JSONObject getFailedCheckResult(int ret,String Msg){
+		JSONObject result = new JSONObject();
+		result.put(KEY_RESULT_RET, ret);
+		result.put(KEY_RESULT_MSG, Msg);
+		return result;
+	}
+
+	private static void showCheckResult(JSONObject result){
+		if (result.getInt(KEY_RESULT_RET) == RET_OK) {
+			showSuccssedCheckResult(ApkInfo.fromJSON(result.getJSONObject(KEY_RESULT_INFO)));
+			if (result.has(KEY_RESULT_STATS)) {
+				System.out.println("耗时统计: \n" + result.getJSONObject(KEY_RESULT_STATS).toString(2));
+			}
+		} else {
+			showFailedCheckResult(result.getInt(KEY_RESULT_RET), result.getString(KEY_RESULT_MSG));
+		}
+	}
+
 	private static void showSuccssedCheckResult(ApkInfo info){
 		System.out.println("执行结果: 成功"); 
 		System.out.println("应用信息: \n" + info.toString());
@@ -0,0 +1,191 @@
+package com.bihe0832.packageinfo.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+import com.bihe0832.packageinfo.Main;
+
+/**
+ * Schedules the inspection of batches of APKs of very different sizes.
+ *
+ * <p>Queued APKs are inspected largest first, so that a big APK does not start last and hold up
+ * the end of the batch on its own. Before an inspection starts, an estimate of the memory it keeps
+ * in flight (see {@link #estimateBytesInFlight(long, int)}) is taken from a shared budget, and
+ * returned once it ends: big APKs wait for each other instead of running out of (direct) memory
+ * together. APKs of at least {@code largeApkBytes} additionally have their contents digested on
+ * several threads, while smaller ones are digested on the worker inspecting them and only gain
+ * from being inspected next to each other.
+ */
+public class ApkBatchScheduler {
+
+    public static final long DEFAULT_LARGE_APK_BYTES = 64L * 1024 * 1024;
+
+    /** Size of the direct buffer each digesting thread reads the APK into. */
+    private static final long READ_BUFFER_BYTES = 1024 * 1024;
+    /** Central directory, manifest, signing block and the like, whatever the size of the APK. */
+    private static final long FIXED_OVERHEAD_BYTES = 4 * 1024 * 1024;
+
+    private final ThreadPoolExecutor mWorkers;
+    private final ExecutorService mDigesters;
+    private final int mDigestParallelism;
+    private final ByteBudget mBudget;
+    private final long mLargeApkBytes;
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * Runs the digesters of one APK on the shared digesting threads and on the calling worker.
+     */
+    private final RunnablesExecutor mParallelExecutor = new RunnablesExecutor() {
+        @Override
+        public void execute(RunnablesProvider provider) {
+            List<Future<?>> jobs = new ArrayList<Future<?>>(mDigestParallelism - 1);
+            for (int i = 1; i < mDigestParallelism; i++) {
+                jobs.add(mDigesters.submit(provider.createRunnable()));
+            }
+            try {
+                provider.createRunnable().run();
+                for (Future<?> job : jobs) {
+                    job.get();
+                }
+            } catch (InterruptedException e) {
+                // The digesters stop handing out chunks; the caller reports the interruption
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                for (Future<?> job : jobs) {
+                    job.cancel(true);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param workerCount number of APKs inspected at the same time
+     * @param memoryBudgetBytes estimated bytes in flight allowed across all inspections
+     * @param largeApkBytes size from which the contents of an APK are digested on several threads
+     */
+    public ApkBatchScheduler(int workerCount, long memoryBudgetBytes, long largeApkBytes) {
+        workerCount = Math.max(1, workerCount);
+        // Tasks only reach the priority queue once all workers exist; start them up front so that
+        // the very first tasks are ordered as well
+        mWorkers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mWorkers.prestartAllCoreThreads();
+        mDigestParallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mDigesters = Executors.newFixedThreadPool(mDigestParallelism);
+        mBudget = new ByteBudget(memoryBudgetBytes);
+        mLargeApkBytes = largeApkBytes;
+    }
+
+    /**
+     * Returns the default budget: half of the memory the JVM may use, which is also the default
+     * limit of its direct memory.
+     */
+    public static long getDefaultMemoryBudgetBytes() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * Queues the inspection of the APKs and returns their future {@link Main#inspect(String)}
+     * results, in the same order as the paths. Cancelling a future interrupts its inspection.
+     */
+    public List<Future<JSONObject>> submit(List<String> paths) {
+        List<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>(paths.size());
+        for (String path : paths) {
+            results.add(submit(path, false));
+        }
+        return results;
+    }
+
+    /**
+     * Queues the inspection of the APK and returns its future
+     * {@link Main#inspect(String, boolean)} result. Cancelling the future interrupts the
+     * inspection.
+     */
+    public Future<JSONObject> submit(String path, boolean showStatistics) {
+        Job job = new Job(
+                path, new File(path).length(), showStatistics, mNextSequence.getAndIncrement());
+        mWorkers.execute(job);
+        return job;
+    }
+
+    /**
+     * Stops all inspections, running or queued.
+     */
+    public void shutdownNow() {
+        // Queued jobs never run: cancel them so that their futures complete
+        for (Runnable job : mWorkers.shutdownNow()) {
+            ((Job) job).cancel(false);
+        }
+        mDigesters.shutdownNow();
+    }
+
+    /**
+     * Estimates the bytes an inspection keeps in flight: a read buffer per digesting thread, the
+     * digests of its 1 MB chunks, its verity tree (about 1/128 of the APK) and a fixed overhead.
+     */
+    static long estimateBytesInFlight(long apkSize, int digestThreads) {
+        long chunkCount = (apkSize + READ_BUFFER_BYTES - 1) / READ_BUFFER_BYTES;
+        // Inspections digest chunks with SHA-256 and SHA-512 at most
+        long chunkDigestsBytes = chunkCount * (32 + 64);
+        return digestThreads * READ_BUFFER_BYTES + chunkDigestsBytes + apkSize / 128
+                + FIXED_OVERHEAD_BYTES;
+    }
+
+    private JSONObject inspect(String path, long size, boolean showStatistics)
+            throws InterruptedException {
+        boolean large = size >= mLargeApkBytes;
+        int digestThreads = large ? mDigestParallelism : 1;
+        long granted = mBudget.acquire(estimateBytesInFlight(size, digestThreads));
+        try {
+            return Main.inspect(path, showStatistics,
+                    large ? mParallelExecutor : RunnablesExecutor.SINGLE_THREADED);
+        } finally {
+            mBudget.release(granted);
+        }
+    }
+
+    /**
+     * Inspection ordered largest APK first, then first come, first served.
+     */
+    private class Job extends FutureTask<JSONObject> implements Comparable<Job> {
+
+        private final long mSize;
+        private final long mSequence;
+
+        Job(final String path, final long size, final boolean showStatistics, long sequence) {
+            super(new Callable<JSONObject>() {
+                @Override
+                public JSONObject call() throws InterruptedException {
+                    return inspect(path, size, showStatistics);
+                }
+            });
+            mSize = size;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mSize != other.mSize) {
+                return mSize > other.mSize ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.bihe0832.packageinfo.batch;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits the number of bytes in flight across concurrent jobs. Bytes are handed out in the order
+ * in which they were asked for, so that a job waiting for a large share of the budget is not
+ * starved by a stream of smaller jobs slipping in ahead of it.
+ */
+class ByteBudget {
+
+    private final long mCapacity;
+    private final Deque<Object> mWaiters = new ArrayDeque<Object>();
+    private long mInUse;
+
+    ByteBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Blocks until the bytes are available and returns the number of bytes acquired, which must be
+     * passed to {@link #release(long)} afterwards. Requests larger than the whole budget are
+     * capped to it: they run once nothing else is in flight.
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+        long granted = Math.min(Math.max(bytes, 0), mCapacity);
+        Object ticket = new Object();
+        mWaiters.addLast(ticket);
+        try {
+            while (mWaiters.peekFirst() != ticket || mInUse + granted > mCapacity) {
+                wait();
+            }
+        } finally {
+            mWaiters.remove(ticket);
+            // Either the next waiter is now at the head, or this one gave up its place
+            notifyAll();
+        }
+        mInUse += granted;
+        return granted;
+    }
+
+    synchronized void release(long bytes) {
+        mInUse -= bytes;
+        notifyAll();
+    }
+
+    long getCapacity() {
+        return mCapacity;
+    }
+}
@@ -2,11 +2,16 @@ package com.bihe0832.packageinfo.bean;
 
 import java.util.ArrayList;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 public class ApkInfo {
 
 	public String versionCode = "";
 	public String versionName = "";
 	public String packageName = "";
+	public String label = "";
+	public String icon = "";
 	public String signature = "";
 	public String minSdkVersion = "";
 	public String targetSdkVersion = "";
@@ -17,11 +22,73 @@ public class ApkInfo {
 	public boolean isV3SignatureOK = false;
 	public String getSignatureErrorInfo = "";
 	public ArrayList<String> permissions = new ArrayList<String>();
+	public int dexCount = 0;
+	public String dexVersion = "";
+	public long dexMethodCount = 0;
+	public long dexClassCount = 0;
+	public String resourcePackageName = "";
 	
+	public JSONObject toJSON(){
+		JSONObject json = new JSONObject();
+		json.put("versionCode", versionCode);
+		json.put("versionName", versionName);
+		json.put("packageName", packageName);
+		json.put("label", label);
+		json.put("icon", icon);
+		json.put("signature", signature);
+		json.put("minSdkVersion", minSdkVersion);
+		json.put("targetSdkVersion", targetSdkVersion);
+		json.put("isV1SignatureOK", isV1SignatureOK);
+		json.put("isV2Signature", isV2Signature);
+		json.put("isV2SignatureOK", isV2SignatureOK);
+		json.put("isV3Signature", isV3Signature);
+		json.put("isV3SignatureOK", isV3SignatureOK);
+		json.put("getSignatureErrorInfo", getSignatureErrorInfo);
+		json.put("permissions", new JSONArray(permissions));
+		json.put("dexCount", dexCount);
+		json.put("dexVersion", dexVersion);
+		json.put("dexMethodCount", dexMethodCount);
+		json.put("dexClassCount", dexClassCount);
+		json.put("resourcePackageName", resourcePackageName);
+		return json;
+	}
+
+	public static ApkInfo fromJSON(JSONObject json){
+		ApkInfo info = new ApkInfo();
+		info.versionCode = json.optString("versionCode", null);
+		info.versionName = json.optString("versionName", null);
+		info.packageName = json.optString("packageName");
+		info.label = json.optString("label");
+		info.icon = json.optString("icon");
+		info.signature = json.optString("signature", null);
+		info.minSdkVersion = json.optString("minSdkVersion", null);
+		info.targetSdkVersion = json.optString("targetSdkVersion", null);
+		info.isV1SignatureOK = json.optBoolean("isV1SignatureOK");
+		info.isV2Signature = json.optBoolean("isV2Signature");
+		info.isV2SignatureOK = json.optBoolean("isV2SignatureOK");
+		info.isV3Signature = json.optBoolean("isV3Signature");
+		info.isV3SignatureOK = json.optBoolean("isV3SignatureOK");
+		info.getSignatureErrorInfo = json.optString("getSignatureErrorInfo");
+		info.dexCount = json.optInt("dexCount");
+		info.dexVersion = json.optString("dexVersion");
+		info.dexMethodCount = json.optLong("dexMethodCount");
+		info.dexClassCount = json.optLong("dexClassCount");
+		info.resourcePackageName = json.optString("resourcePackageName");
+		JSONArray permissions = json.optJSONArray("permissions");
+		if (permissions != null) {
+			for (int i = 0; i < permissions.length(); i++) {
+				info.permissions.add(permissions.optString(i, null));
+			}
+		}
+		return info;
+	}
+
 	@Override
 	public String toString(){
 		StringBuilder sb = new StringBuilder();
 		sb.append("  包名: " + packageName + "\n");
+		sb.append("  应用名称: " + label + "\n");
+		sb.append("  应用图标: " + icon + "\n");
 		sb.append("  版本名: " + versionName + "\n");
 		sb.append("  版本号: " + versionCode + "\n");
 		sb.append("  签名文件MD5: " + signature + "\n");
@@ -34,6 +101,12 @@ public class ApkInfo {
 		sb.append("  使用V3签名: " + isV3Signature + "\n");
 		sb.append("  V3签名验证通过: " + isV3SignatureOK + "\n");
 		sb.append("  签名验证详细信息: " + getSignatureErrorInfo + "\n");
+		sb.append("  DEX文件:\n");
+		sb.append("      数量:" + dexCount + "\n");
+		sb.append("      版本:" + dexVersion + "\n");
+		sb.append("      方法引用数:" + dexMethodCount + "\n");
+		sb.append("      类数:" + dexClassCount + "\n");
+		sb.append("  资源包名: " + resourcePackageName + "\n");
 //		sb.append("  使用权限列表:\n");
 //		for (String string : permissions) {
 //			sb.append("      "+ string +"\n");
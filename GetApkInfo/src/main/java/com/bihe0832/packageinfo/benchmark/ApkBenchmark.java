@@ -0,0 +1,214 @@
+package com.bihe0832.packageinfo.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.android.apksig.ApkVerifier;
+import com.bihe0832.packageinfo.Main;
+
+/**
+ * Measures the end-to-end throughput of APK inspection over a corpus of APKs, such as one made by
+ * {@link ApkCorpusGenerator}, for each {@link Pipeline} and number of threads: APKs and megabytes
+ * per second, the median and 99th percentile latency of one APK, and the peak resident set size
+ * and heap usage.
+ *
+ * <p>Each pipeline first inspects the whole corpus once on a single thread to warm up the JVM.
+ * Then, for each thread count, the corpus is inspected the given number of iterations, with that
+ * many APKs inspected at the same time.
+ */
+public class ApkBenchmark {
+
+    public static final String KEY_RESULT_PIPELINE = "pipeline";
+    public static final String KEY_RESULT_THREADS = "threads";
+    public static final String KEY_RESULT_APKS = "apks";
+    public static final String KEY_RESULT_FAILURES = "failures";
+    public static final String KEY_RESULT_APKS_PER_SECOND = "apksPerSecond";
+    public static final String KEY_RESULT_MB_PER_SECOND = "mbPerSecond";
+    public static final String KEY_RESULT_P50_MS = "p50Ms";
+    public static final String KEY_RESULT_P99_MS = "p99Ms";
+    public static final String KEY_RESULT_PEAK_RSS_MB = "peakRssMb";
+    public static final String KEY_RESULT_PEAK_HEAP_MB = "peakHeapMb";
+
+    /** Linux file whose "VmHWM" line is the peak resident set size of this process. */
+    private static final File PROC_STATUS = new File("/proc/self/status");
+    /** Writing "5" to this Linux file resets the peak resident set size of this process. */
+    private static final File PROC_CLEAR_REFS = new File("/proc/self/clear_refs");
+
+    /** What is done with each APK. */
+    public enum Pipeline {
+        /** Verify the APK's signatures with {@link ApkVerifier}. */
+        VERIFIER,
+        /** Inspect the APK like GetApkInfo does for one APK, see {@link Main#inspect(String)}. */
+        GET_APK_INFO,
+    }
+
+    private final List<File> mApks;
+    private final long mCorpusBytes;
+
+    public ApkBenchmark(List<File> apks) {
+        if (apks.isEmpty()) {
+            throw new IllegalArgumentException("No APKs");
+        }
+        mApks = new ArrayList<File>(apks);
+        long corpusBytes = 0;
+        for (File apk : mApks) {
+            corpusBytes += apk.length();
+        }
+        mCorpusBytes = corpusBytes;
+    }
+
+    /**
+     * Runs every pipeline with every thread count and prints one line of JSON per run to out, as
+     * returned by {@link #run(Pipeline, int, int)}.
+     */
+    public void runAll(int[] threadCounts, int iterations, PrintStream out) throws Exception {
+        for (Pipeline pipeline : Pipeline.values()) {
+            run(pipeline, 1, 1);
+            for (int threads : threadCounts) {
+                out.println(run(pipeline, threads, iterations).toString());
+            }
+        }
+    }
+
+    /**
+     * Inspects every APK of the corpus iterations times with the pipeline, on the number of
+     * threads, and returns the measurements as JSON. The peak resident set size is only reported
+     * on Linux; where it cannot be reset, it is the peak of the process so far.
+     */
+    public JSONObject run(final Pipeline pipeline, int threads, int iterations) throws Exception {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations: " + iterations);
+        }
+        int count = mApks.size() * iterations;
+        final long[] latencyNanos = new long[count];
+        final AtomicInteger failures = new AtomicInteger();
+        System.gc();
+        resetPeakRss();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long startNanos = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final File apk = mApks.get(i % mApks.size());
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long apkStartNanos = System.nanoTime();
+                        if (!inspect(pipeline, apk)) {
+                            failures.incrementAndGet();
+                        }
+                        latencyNanos[index] = System.nanoTime() - apkStartNanos;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+
+        Arrays.sort(latencyNanos);
+        double seconds = durationNanos / 1e9;
+        JSONObject result = new JSONObject();
+        result.put(KEY_RESULT_PIPELINE, pipeline.name());
+        result.put(KEY_RESULT_THREADS, threads);
+        result.put(KEY_RESULT_APKS, count);
+        result.put(KEY_RESULT_FAILURES, failures.get());
+        result.put(KEY_RESULT_APKS_PER_SECOND, round(count / seconds));
+        result.put(KEY_RESULT_MB_PER_SECOND,
+                round(mCorpusBytes * (double) iterations / (1024 * 1024) / seconds));
+        result.put(KEY_RESULT_P50_MS, round(getPercentile(latencyNanos, 50) / 1e6));
+        result.put(KEY_RESULT_P99_MS, round(getPercentile(latencyNanos, 99) / 1e6));
+        long peakRssKb = readPeakRssKb();
+        if (peakRssKb >= 0) {
+            result.put(KEY_RESULT_PEAK_RSS_MB, round(peakRssKb / 1024.0));
+        }
+        long peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        result.put(KEY_RESULT_PEAK_HEAP_MB, round(peakHeapBytes / (1024.0 * 1024)));
+        return result;
+    }
+
+    /**
+     * Inspects the APK with the pipeline and returns whether the APK passed.
+     */
+    private static boolean inspect(Pipeline pipeline, File apk) {
+        try {
+            switch (pipeline) {
+                case VERIFIER:
+                    return new ApkVerifier.Builder(apk).build().verify().isVerified();
+                case GET_APK_INFO:
+                    return Main.inspect(apk.getPath()).getInt(Main.KEY_RESULT_RET) == 0;
+                default:
+                    throw new IllegalArgumentException("Unsupported pipeline: " + pipeline);
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value below which the percentage of the sorted values lie, using the
+     * nearest-rank method.
+     */
+    private static long getPercentile(long[] sortedValues, int percentage) {
+        int rank = (int) Math.ceil(percentage / 100.0 * sortedValues.length);
+        return sortedValues[Math.max(0, rank - 1)];
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static void resetPeakRss() {
+        try (FileWriter out = new FileWriter(PROC_CLEAR_REFS)) {
+            out.write("5");
+        } catch (IOException e) {
+            // Not Linux, or not permitted
+        }
+    }
+
+    /**
+     * Returns the peak resident set size of this process in KB, or -1 if it is not known.
+     */
+    private static long readPeakRssKb() {
+        try (BufferedReader in = new BufferedReader(new FileReader(PROC_STATUS))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,532 @@
+package com.bihe0832.packageinfo.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.SigningCertificateLineage;
+import com.android.apksig.internal.asn1.Asn1BerParser;
+import com.android.apksig.internal.asn1.Asn1DerEncoder;
+import com.android.apksig.internal.asn1.Asn1OpaqueObject;
+import com.android.apksig.internal.pkcs7.AlgorithmIdentifier;
+import com.android.apksig.internal.x509.AttributeTypeAndValue;
+import com.android.apksig.internal.x509.Certificate;
+import com.android.apksig.internal.x509.Name;
+import com.android.apksig.internal.x509.RelativeDistinguishedName;
+import com.android.apksig.internal.x509.SubjectPublicKeyInfo;
+import com.android.apksig.internal.x509.TBSCertificate;
+import com.android.apksig.internal.x509.Time;
+import com.android.apksig.internal.x509.Validity;
+
+/**
+ * Generates a corpus of synthetic signed APKs of realistic shape for benchmarking: a binary
+ * AndroidManifest.xml, a DEX file with a valid header, resources and assets whose sizes follow a
+ * log-normal distribution and which are a configurable mix of STORED and DEFLATED entries, and
+ * STORED native libraries. The APKs are signed by {@link ApkSigner}, which aligns the native
+ * libraries on 4 KB pages, with the APK Signature Schemes of one of the configured
+ * {@link Signing}s, cycling through them across the corpus.
+ *
+ * <p>The contents of the APKs only depend on the configuration and the seed. The signing keys are
+ * generated anew by every generator.
+ */
+public class ApkCorpusGenerator {
+
+    private static final String SHA256_WITH_RSA_OID = "1.2.840.113549.1.1.11";
+    private static final String COMMON_NAME_OID = "2.5.4.3";
+    /** Fixed modification time of all entries, so that the same seed gives the same APKs. */
+    private static final long ENTRY_TIME_MILLIS = 1262304000000L;
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+    /** Native libraries are this many times larger than other entries, as in most apps. */
+    private static final int NATIVE_LIBRARY_SIZE_FACTOR = 16;
+    private static final String[] ABIS = {"arm64-v8a", "armeabi-v7a", "x86_64", "x86"};
+
+    private final int mEntryCount;
+    private final int mMedianEntrySize;
+    private final double mEntrySizeSigma;
+    private final int mDeflatedPercent;
+    private final int mNativeLibraryCount;
+    private final List<Signing> mSignings;
+    private final long mSeed;
+    private final ApkSigner.SignerConfig mOriginalSigner;
+    private final ApkSigner.SignerConfig mRotatedSigner;
+    private final SigningCertificateLineage mLineage;
+
+    private ApkCorpusGenerator(Builder builder) throws Exception {
+        mEntryCount = builder.mEntryCount;
+        mMedianEntrySize = builder.mMedianEntrySize;
+        mEntrySizeSigma = builder.mEntrySizeSigma;
+        mDeflatedPercent = builder.mDeflatedPercent;
+        mNativeLibraryCount = builder.mNativeLibraryCount;
+        mSignings = builder.mSignings;
+        mSeed = builder.mSeed;
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair originalKeyPair = keyPairGenerator.generateKeyPair();
+        KeyPair rotatedKeyPair = keyPairGenerator.generateKeyPair();
+        X509Certificate originalCertificate =
+                createSelfSignedCertificate(originalKeyPair, "Corpus Original");
+        X509Certificate rotatedCertificate =
+                createSelfSignedCertificate(rotatedKeyPair, "Corpus Rotated");
+        mOriginalSigner = new ApkSigner.SignerConfig.Builder(
+                "original", originalKeyPair.getPrivate(),
+                Collections.singletonList(originalCertificate)).build();
+        mRotatedSigner = new ApkSigner.SignerConfig.Builder(
+                "rotated", rotatedKeyPair.getPrivate(),
+                Collections.singletonList(rotatedCertificate)).build();
+        mLineage = new SigningCertificateLineage.Builder(
+                new SigningCertificateLineage.SignerConfig.Builder(
+                        originalKeyPair.getPrivate(), originalCertificate).build(),
+                new SigningCertificateLineage.SignerConfig.Builder(
+                        rotatedKeyPair.getPrivate(), rotatedCertificate).build()).build();
+    }
+
+    /**
+     * Generates count APKs into the directory, which is created if needed, and returns them. APK
+     * number i is named after it and its signing, e.g. apk-00007-v1v2v3.apk.
+     */
+    public List<File> generate(File dir, int count) throws Exception {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+        List<File> apks = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            Signing signing = mSignings.get(i % mSignings.size());
+            File apk = new File(dir, String.format("apk-%05d-%s.apk", i, signing));
+            generate(i, signing, apk);
+            apks.add(apk);
+        }
+        return apks;
+    }
+
+    private void generate(int index, Signing signing, File apk) throws Exception {
+        File unsigned = new File(apk.getPath() + ".unsigned");
+        try {
+            writeUnsignedApk(index, signing, unsigned);
+            List<ApkSigner.SignerConfig> signers = signing.mLineage
+                    ? Arrays.asList(mOriginalSigner, mRotatedSigner)
+                    : Collections.singletonList(mOriginalSigner);
+            ApkSigner.Builder signer = new ApkSigner.Builder(signers)
+                    .setInputApk(unsigned)
+                    .setOutputApk(apk)
+                    .setV1SigningEnabled(signing.mV1)
+                    .setV2SigningEnabled(signing.mV2)
+                    .setV3SigningEnabled(signing.mV3);
+            if (signing.mLineage) {
+                signer.setSigningCertificateLineage(mLineage);
+            }
+            signer.build().sign();
+        } finally {
+            unsigned.delete();
+        }
+    }
+
+    private void writeUnsignedApk(int index, Signing signing, File file) throws IOException {
+        Random random = new Random(mSeed * 31 + index);
+        try (ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            writeEntry(out, "AndroidManifest.xml", true,
+                    createAndroidManifest(
+                            "com.example.corpus.app" + index,
+                            index + 1,
+                            "1.0." + index,
+                            signing.getMinSdkVersion(),
+                            29));
+            writeEntry(out, "classes.dex", true, createDex(random, nextEntrySize(random) * 4));
+            for (int i = 0; i < mEntryCount; i++) {
+                String name = ((i % 3) == 0) ? "assets/a" + i + ".bin" : "res/raw/r" + i + ".bin";
+                byte[] data = new byte[nextEntrySize(random)];
+                fillCompressible(random, data, 0);
+                writeEntry(out, name, random.nextInt(100) < mDeflatedPercent, data);
+            }
+            for (int i = 0; i < mNativeLibraryCount; i++) {
+                String abi = ABIS[i % ABIS.length];
+                byte[] data = new byte[nextEntrySize(random) * NATIVE_LIBRARY_SIZE_FACTOR];
+                fillCompressible(random, data, 0);
+                // Stored, so that the libraries can be loaded from the APK without extraction
+                writeEntry(out, "lib/" + abi + "/lib" + (i / ABIS.length) + ".so", false, data);
+            }
+        }
+    }
+
+    private int nextEntrySize(Random random) {
+        double size = mMedianEntrySize * Math.exp(mEntrySizeSigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(size, MAX_ENTRY_SIZE));
+    }
+
+    private static void writeEntry(ZipOutputStream out, String name, boolean deflated, byte[] data)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME_MILLIS);
+        if (deflated) {
+            entry.setMethod(ZipEntry.DEFLATED);
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Fills the data from the offset with bytes of 4 bits of entropy each, which deflate to a
+     * little over half their size, like typical resources and code.
+     */
+    private static void fillCompressible(Random random, byte[] data, int offset) {
+        for (int i = offset; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(16));
+        }
+    }
+
+    /**
+     * Returns a DEX file of the size with a valid header, as far as
+     * {@link com.android.apksig.apk.ApkHeaderSummary} reads it, followed by filler.
+     */
+    private static byte[] createDex(Random random, int size) {
+        ByteBuffer dex = ByteBuffer.allocate(Math.max(size, 0x70)).order(ByteOrder.LITTLE_ENDIAN);
+        dex.put("dex\n035\0".getBytes(StandardCharsets.US_ASCII));
+        dex.putInt(32, dex.capacity());
+        dex.putInt(36, 0x70);
+        dex.putInt(40, 0x12345678);
+        int idCount = dex.capacity() / 64;
+        for (int offset = 56; offset <= 96; offset += 8) {
+            dex.putInt(offset, idCount);
+        }
+        byte[] result = dex.array();
+        fillCompressible(random, result, 0x70);
+        return result;
+    }
+
+    /**
+     * Returns a binary XML AndroidManifest.xml with the package, version and uses-sdk attributes,
+     * which is all that signing, verification and GetApkInfo read from it.
+     */
+    private static byte[] createAndroidManifest(String packageName, int versionCode,
+            String versionName, int minSdkVersion, int targetSdkVersion) {
+        // Attribute names with resource IDs come first, in the order of the resource map
+        String[] strings = {
+                "versionCode", "versionName", "minSdkVersion", "targetSdkVersion",
+                "android", "http://schemas.android.com/apk/res/android", "manifest", "package",
+                "uses-sdk", packageName, versionName};
+        int[] resourceIds = {0x0101021b, 0x0101021c, 0x0101020c, 0x01010270};
+        final int androidPrefix = 4;
+        final int androidUri = 5;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeStringPool(body, strings);
+        ByteBuffer resourceMap = newChunk(0x0180, 8, 8 + resourceIds.length * 4);
+        for (int resourceId : resourceIds) {
+            resourceMap.putInt(resourceId);
+        }
+        write(body, resourceMap);
+        write(body, newNamespaceChunk(0x0100, androidPrefix, androidUri));
+        write(body, newStartElementChunk(6, new int[][] {
+                {androidUri, 0, -1, 0x10, versionCode},
+                {androidUri, 1, 10, 0x03, 10},
+                {-1, 7, 9, 0x03, 9}}));
+        write(body, newStartElementChunk(8, new int[][] {
+                {androidUri, 2, -1, 0x10, minSdkVersion},
+                {androidUri, 3, -1, 0x10, targetSdkVersion}}));
+        write(body, newEndElementChunk(8));
+        write(body, newEndElementChunk(6));
+        write(body, newNamespaceChunk(0x0101, androidPrefix, androidUri));
+
+        ByteBuffer document = newChunk(0x0003, 8, 8 + body.size());
+        document.put(body.toByteArray());
+        return document.array();
+    }
+
+    private static void writeStringPool(ByteArrayOutputStream out, String[] strings) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            offsets[i] = data.size();
+            byte[] utf16 = strings[i].getBytes(StandardCharsets.UTF_16LE);
+            ByteBuffer string =
+                    ByteBuffer.allocate(4 + utf16.length).order(ByteOrder.LITTLE_ENDIAN);
+            string.putShort((short) strings[i].length());
+            string.put(utf16);
+            string.putShort((short) 0);
+            data.write(string.array(), 0, string.capacity());
+        }
+        while ((data.size() % 4) != 0) {
+            data.write(0);
+        }
+        int stringsStart = 28 + strings.length * 4;
+        ByteBuffer pool = newChunk(0x0001, 28, stringsStart + data.size());
+        pool.putInt(strings.length);
+        pool.putInt(0);
+        pool.putInt(0);
+        pool.putInt(stringsStart);
+        pool.putInt(0);
+        for (int offset : offsets) {
+            pool.putInt(offset);
+        }
+        pool.put(data.toByteArray());
+        write(out, pool);
+    }
+
+    private static ByteBuffer newNamespaceChunk(int type, int prefix, int uri) {
+        ByteBuffer chunk = newChunk(type, 16, 24);
+        chunk.putInt(1);
+        chunk.putInt(-1);
+        chunk.putInt(prefix);
+        chunk.putInt(uri);
+        return chunk;
+    }
+
+    /**
+     * Returns a start element chunk with attributes given as {namespace, name, raw value, value
+     * type, value data} string pool indices and values.
+     */
+    private static ByteBuffer newStartElementChunk(int name, int[][] attributes) {
+        ByteBuffer chunk = newChunk(0x0102, 16, 36 + attributes.length * 20);
+        chunk.putInt(1);
+        chunk.putInt(-1);
+        chunk.putInt(-1);
+        chunk.putInt(name);
+        chunk.putShort((short) 20);
+        chunk.putShort((short) 20);
+        chunk.putShort((short) attributes.length);
+        chunk.putShort((short) 0);
+        chunk.putShort((short) 0);
+        chunk.putShort((short) 0);
+        for (int[] attribute : attributes) {
+            chunk.putInt(attribute[0]);
+            chunk.putInt(attribute[1]);
+            chunk.putInt(attribute[2]);
+            chunk.putShort((short) 8);
+            chunk.put((byte) 0);
+            chunk.put((byte) attribute[3]);
+            chunk.putInt(attribute[4]);
+        }
+        return chunk;
+    }
+
+    private static ByteBuffer newEndElementChunk(int name) {
+        ByteBuffer chunk = newChunk(0x0103, 16, 24);
+        chunk.putInt(1);
+        chunk.putInt(-1);
+        chunk.putInt(-1);
+        chunk.putInt(name);
+        return chunk;
+    }
+
+    private static ByteBuffer newChunk(int type, int headerSize, int size) {
+        ByteBuffer chunk = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putShort((short) type);
+        chunk.putShort((short) headerSize);
+        chunk.putInt(size);
+        return chunk;
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer chunk) {
+        out.write(chunk.array(), 0, chunk.capacity());
+    }
+
+    private static X509Certificate createSelfSignedCertificate(KeyPair keyPair, String commonName)
+            throws Exception {
+        AlgorithmIdentifier signatureAlgorithm = new AlgorithmIdentifier(
+                SHA256_WITH_RSA_OID, new Asn1OpaqueObject(new byte[] {0x05, 0x00}));
+        byte[] commonNameUtf8 = commonName.getBytes(StandardCharsets.UTF_8);
+        byte[] encodedCommonName = new byte[2 + commonNameUtf8.length];
+        encodedCommonName[0] = 0x0c;
+        encodedCommonName[1] = (byte) commonNameUtf8.length;
+        System.arraycopy(commonNameUtf8, 0, encodedCommonName, 2, commonNameUtf8.length);
+        AttributeTypeAndValue attribute = new AttributeTypeAndValue();
+        attribute.attrType = COMMON_NAME_OID;
+        attribute.attrValue = new Asn1OpaqueObject(encodedCommonName);
+        RelativeDistinguishedName rdn = new RelativeDistinguishedName();
+        rdn.attributes = Collections.singletonList(attribute);
+        Name name = new Name();
+        name.relativeDistinguishedNames = Collections.singletonList(rdn);
+
+        TBSCertificate tbsCertificate = new TBSCertificate();
+        tbsCertificate.version = 2;
+        tbsCertificate.serialNumber = BigInteger.valueOf(System.nanoTime() & Long.MAX_VALUE);
+        tbsCertificate.signatureAlgorithm = signatureAlgorithm;
+        tbsCertificate.issuer = name;
+        tbsCertificate.subject = name;
+        tbsCertificate.validity = new Validity();
+        tbsCertificate.validity.notBefore = new Time();
+        tbsCertificate.validity.notBefore.utcTime = "100101000000Z";
+        tbsCertificate.validity.notAfter = new Time();
+        tbsCertificate.validity.notAfter.utcTime = "491231235959Z";
+        tbsCertificate.subjectPublicKeyInfo = Asn1BerParser.parse(
+                ByteBuffer.wrap(keyPair.getPublic().getEncoded()), SubjectPublicKeyInfo.class);
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(Asn1DerEncoder.encode(tbsCertificate));
+        byte[] signatureBytes = signature.sign();
+        // BIT STRING contents start with the number of unused bits
+        ByteBuffer signatureBits = ByteBuffer.allocate(1 + signatureBytes.length);
+        signatureBits.put((byte) 0);
+        signatureBits.put(signatureBytes);
+        signatureBits.flip();
+
+        Certificate certificate = new Certificate();
+        certificate.certificate = tbsCertificate;
+        certificate.signatureAlgorithm = signatureAlgorithm;
+        certificate.signature = signatureBits;
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(Asn1DerEncoder.encode(certificate)));
+    }
+
+    /**
+     * Combination of APK Signature Schemes an APK is signed with, optionally with a signing
+     * certificate lineage, in which case the APK Signature Scheme v3 signer is a rotated key.
+     */
+    public static class Signing {
+        final boolean mV1;
+        final boolean mV2;
+        final boolean mV3;
+        final boolean mLineage;
+
+        public Signing(boolean v1, boolean v2, boolean v3, boolean lineage) {
+            if (!v1 && !v2 && !v3) {
+                throw new IllegalArgumentException("No signature scheme");
+            }
+            if (lineage && !v3) {
+                throw new IllegalArgumentException("Lineage requires APK Signature Scheme v3");
+            }
+            mV1 = v1;
+            mV2 = v2;
+            mV3 = v3;
+            mLineage = lineage;
+        }
+
+        /**
+         * Parses a signing as output by {@link #toString()}, e.g. "v1v2", "v3" or "v2v3+lineage".
+         */
+        public static Signing parse(String signing) {
+            String schemes = signing.toLowerCase();
+            boolean lineage = schemes.endsWith("+lineage");
+            if (lineage) {
+                schemes = schemes.substring(0, schemes.length() - "+lineage".length());
+            }
+            if (!schemes.matches("(v1)?(v2)?(v3)?")) {
+                throw new IllegalArgumentException("Unsupported signing: " + signing);
+            }
+            return new Signing(schemes.contains("v1"), schemes.contains("v2"),
+                    schemes.contains("v3"), lineage);
+        }
+
+        /**
+         * Returns the lowest minSdkVersion on which an APK with only these signatures verifies.
+         */
+        int getMinSdkVersion() {
+            return mV1 ? 21 : mV2 ? 24 : 28;
+        }
+
+        @Override
+        public String toString() {
+            return (mV1 ? "v1" : "") + (mV2 ? "v2" : "") + (mV3 ? "v3" : "")
+                    + (mLineage ? "+lineage" : "");
+        }
+    }
+
+    /**
+     * Builder of {@link ApkCorpusGenerator} instances.
+     */
+    public static class Builder {
+        private int mEntryCount = 200;
+        private int mMedianEntrySize = 16 * 1024;
+        private double mEntrySizeSigma = 1.0;
+        private int mDeflatedPercent = 70;
+        private int mNativeLibraryCount = 4;
+        private List<Signing> mSignings = Arrays.asList(
+                Signing.parse("v1"), Signing.parse("v1v2"), Signing.parse("v1v2v3"),
+                Signing.parse("v2v3+lineage"));
+        private long mSeed;
+
+        /** Sets the number of resource and asset entries of each APK, besides manifest and DEX. */
+        public Builder setEntryCount(int entryCount) {
+            if (entryCount < 0) {
+                throw new IllegalArgumentException("entryCount: " + entryCount);
+            }
+            mEntryCount = entryCount;
+            return this;
+        }
+
+        /**
+         * Sets the log-normal distribution of entry sizes: its median in bytes and the standard
+         * deviation of the logarithm of the size. The DEX file is 4 and native libraries are 16
+         * times larger.
+         */
+        public Builder setEntrySizeDistribution(int medianEntrySize, double sigma) {
+            if (medianEntrySize <= 0 || sigma < 0) {
+                throw new IllegalArgumentException(
+                        "median: " + medianEntrySize + ", sigma: " + sigma);
+            }
+            mMedianEntrySize = medianEntrySize;
+            mEntrySizeSigma = sigma;
+            return this;
+        }
+
+        /** Sets the percentage of resource and asset entries which are DEFLATED, not STORED. */
+        public Builder setDeflatedPercent(int deflatedPercent) {
+            if (deflatedPercent < 0 || deflatedPercent > 100) {
+                throw new IllegalArgumentException("deflatedPercent: " + deflatedPercent);
+            }
+            mDeflatedPercent = deflatedPercent;
+            return this;
+        }
+
+        /** Sets the number of (STORED, page aligned) native libraries of each APK. */
+        public Builder setNativeLibraryCount(int nativeLibraryCount) {
+            if (nativeLibraryCount < 0) {
+                throw new IllegalArgumentException("nativeLibraryCount: " + nativeLibraryCount);
+            }
+            mNativeLibraryCount = nativeLibraryCount;
+            return this;
+        }
+
+        /** Sets the signings which the APKs of the corpus cycle through. */
+        public Builder setSignings(List<Signing> signings) {
+            if (signings.isEmpty()) {
+                throw new IllegalArgumentException("No signings");
+            }
+            mSignings = new ArrayList<Signing>(signings);
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * Returns a new generator, generating its signing keys and certificates.
+         */
+        public ApkCorpusGenerator build() throws Exception {
+            return new ApkCorpusGenerator(this);
+        }
+    }
+}
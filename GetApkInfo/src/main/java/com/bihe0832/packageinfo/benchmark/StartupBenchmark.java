@@ -0,0 +1,185 @@
+package com.bihe0832.packageinfo.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Measures the cold start of the command line tools: the wall-clock time of a new JVM which
+ * inspects one APK, from launch to exit, as done by {@code java -jar GetAPKInfo.jar test.apk} and
+ * {@code java -jar CheckAndroidSignature.jar test.apk}. For one APK, starting the JVM and loading
+ * and initializing classes take longer than the inspection itself, so this tracks how many classes
+ * a single inspection loads and how much an AppCDS archive saves.
+ *
+ * <p>The child JVMs run the same java as this one on the jars of the tools in a given directory.
+ * Each tool is first run once to warm up the file system cache, then the given number of times
+ * without and, if the directory has one, with the AppCDS archive of its jar, e.g.
+ * GetAPKInfo.jsa for GetAPKInfo.jar as written by the appCdsArchive Gradle task.
+ */
+public class StartupBenchmark {
+
+    public static final String KEY_RESULT_TOOL = "tool";
+    public static final String KEY_RESULT_ARCHIVE = "archive";
+    public static final String KEY_RESULT_RUNS = "runs";
+    public static final String KEY_RESULT_FAILURES = "failures";
+    public static final String KEY_RESULT_P50_MS = "p50Ms";
+    public static final String KEY_RESULT_MIN_MS = "minMs";
+    public static final String KEY_RESULT_MAX_MS = "maxMs";
+    public static final String KEY_RESULT_CLASSES_LOADED = "classesLoaded";
+    public static final String KEY_RESULT_CLASSES_FROM_ARCHIVE = "classesFromArchive";
+
+    /** What -Xlog:class+load prints for classes loaded from a CDS archive. */
+    private static final String SHARED_CLASS_SOURCE = "source: shared objects file";
+
+    /** The command line tool started by each run. */
+    public enum Tool {
+        /** GetAPKInfo.jar. */
+        GET_APK_INFO("GetAPKInfo"),
+        /** CheckAndroidSignature.jar. */
+        CHECK_SIGNATURE("CheckAndroidSignature");
+
+        private final String mJarBaseName;
+
+        Tool(String jarBaseName) {
+            mJarBaseName = jarBaseName;
+        }
+    }
+
+    private final File mApk;
+    private final File mJarDir;
+
+    /**
+     * @param apk APK which each run inspects
+     * @param jarDir directory which holds the jars of the tools and, optionally, their archives
+     */
+    public StartupBenchmark(File apk, File jarDir) {
+        mApk = apk;
+        mJarDir = jarDir;
+    }
+
+    /**
+     * Returns the jar of the tool, which may not exist.
+     */
+    public File getJar(Tool tool) {
+        return new File(mJarDir, tool.mJarBaseName + ".jar");
+    }
+
+    /**
+     * Returns the AppCDS archive of the tool's jar, which may not exist.
+     */
+    public File getArchive(Tool tool) {
+        return new File(mJarDir, tool.mJarBaseName + ".jsa");
+    }
+
+    /**
+     * Runs every tool without and, if it exists, with its archive and prints one line of JSON per
+     * tool and archive to out, as returned by {@link #run(Tool, boolean, int)}.
+     */
+    public void runAll(int iterations, PrintStream out) throws Exception {
+        for (Tool tool : Tool.values()) {
+            run(tool, false, 1);
+            out.println(run(tool, false, iterations).toString());
+            if (getArchive(tool).isFile()) {
+                out.println(run(tool, true, iterations).toString());
+            }
+        }
+    }
+
+    /**
+     * Starts the tool iterations times, optionally with its archive, and returns the wall-clock
+     * time of the runs in milliseconds as JSON, together with the number of classes loaded by one
+     * more run, split into those loaded from a CDS archive (the JDK's default one or the given
+     * one) and all others.
+     */
+    public JSONObject run(Tool tool, boolean useArchive, int iterations) throws Exception {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations: " + iterations);
+        }
+        long[] durationNanos = new long[iterations];
+        int failures = 0;
+        for (int i = 0; i < iterations; i++) {
+            long startNanos = System.nanoTime();
+            if (start(tool, useArchive, null) != 0) {
+                failures++;
+            }
+            durationNanos[i] = System.nanoTime() - startNanos;
+        }
+        Arrays.sort(durationNanos);
+
+        JSONObject result = new JSONObject();
+        result.put(KEY_RESULT_TOOL, tool.name());
+        result.put(KEY_RESULT_ARCHIVE, useArchive);
+        result.put(KEY_RESULT_RUNS, iterations);
+        result.put(KEY_RESULT_FAILURES, failures);
+        result.put(KEY_RESULT_P50_MS, toMillis(durationNanos[(iterations - 1) / 2]));
+        result.put(KEY_RESULT_MIN_MS, toMillis(durationNanos[0]));
+        result.put(KEY_RESULT_MAX_MS, toMillis(durationNanos[iterations - 1]));
+
+        File classLog = File.createTempFile("startup-classes", ".log");
+        try {
+            start(tool, useArchive, classLog);
+            int classesLoaded = 0;
+            int classesFromArchive = 0;
+            try (BufferedReader in = new BufferedReader(new FileReader(classLog))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.contains(SHARED_CLASS_SOURCE)) {
+                        classesFromArchive++;
+                    } else if (line.contains("source:")) {
+                        classesLoaded++;
+                    }
+                }
+            }
+            result.put(KEY_RESULT_CLASSES_LOADED, classesLoaded);
+            result.put(KEY_RESULT_CLASSES_FROM_ARCHIVE, classesFromArchive);
+        } finally {
+            classLog.delete();
+        }
+        return result;
+    }
+
+    /**
+     * Starts a JVM running the tool's jar on the APK, waits for it to exit and returns its exit
+     * code.
+     * Its output is discarded.
+     *
+     * @param classLog file to log the loaded classes to, or null to not log them
+     */
+    private int start(Tool tool, boolean useArchive, File classLog)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (useArchive) {
+            command.add("-XX:SharedArchiveFile=" + getArchive(tool).getAbsolutePath());
+        }
+        if (classLog != null) {
+            command.add("-Xlog:class+load=info:file=" + classLog.getAbsolutePath());
+        }
+        command.add("-jar");
+        command.add(getJar(tool).getAbsolutePath());
+        command.add(mApk.getAbsolutePath());
+
+        File output = File.createTempFile("startup-output", ".txt");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(Redirect.to(output))
+                    .start();
+            return process.waitFor();
+        } finally {
+            output.delete();
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.bihe0832.packageinfo.composition;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.android.apksig.apk.ApkComposition;
+import com.android.apksig.util.DataSources;
+
+/**
+ * Report of the composition of an APK as JSON: entry counts and sizes of its DEX files, native
+ * libraries per ABI, assets, resources and other entries. The report is built from the ZIP
+ * Central Directory only, so it takes milliseconds whatever the size of the APK.
+ */
+public class ApkCompositionReport {
+
+    public static final String KEY_RESULT_TOTAL = "total";
+    public static final String KEY_RESULT_DEX = "dex";
+    public static final String KEY_RESULT_NATIVE_LIBRARIES = "nativeLibraries";
+    public static final String KEY_RESULT_ASSETS = "assets";
+    public static final String KEY_RESULT_RESOURCES = "resources";
+    public static final String KEY_RESULT_OTHER = "other";
+    public static final String KEY_RESULT_NATIVE_LIBRARIES_REQUIRING_EXTRACTION =
+            "nativeLibrariesRequiringExtraction";
+
+    public static JSONObject getReport(String apkPath) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(new File(apkPath), "r")) {
+            return toJSON(ApkComposition.of(DataSources.asDataSource(f, 0, f.length())));
+        }
+    }
+
+    public static JSONObject toJSON(ApkComposition composition) {
+        JSONObject result = new JSONObject();
+        result.put(KEY_RESULT_TOTAL, toJSON(composition.getTotal()));
+        result.put(KEY_RESULT_DEX, toJSON(composition.getDex()));
+        JSONObject nativeLibraries = new JSONObject();
+        for (Map.Entry<String, ApkComposition.Section> abi
+                : composition.getNativeLibraries().entrySet()) {
+            nativeLibraries.put(abi.getKey(), toJSON(abi.getValue()));
+        }
+        result.put(KEY_RESULT_NATIVE_LIBRARIES, nativeLibraries);
+        result.put(KEY_RESULT_ASSETS, toJSON(composition.getAssets()));
+        result.put(KEY_RESULT_RESOURCES, toJSON(composition.getResources()));
+        result.put(KEY_RESULT_OTHER, toJSON(composition.getOther()));
+        result.put(KEY_RESULT_NATIVE_LIBRARIES_REQUIRING_EXTRACTION,
+                new JSONArray(composition.getNativeLibrariesRequiringExtraction()));
+        return result;
+    }
+
+    private static JSONObject toJSON(ApkComposition.Section section) {
+        JSONObject result = new JSONObject();
+        result.put("entries", section.getEntryCount());
+        result.put("storedEntries", section.getStoredEntryCount());
+        result.put("compressedBytes", section.getCompressedSizeBytes());
+        result.put("uncompressedBytes", section.getUncompressedSizeBytes());
+        result.put("compressionRatio",
+                Math.round(section.getCompressionRatio() * 1000) / 1000.0);
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+package com.bihe0832.packageinfo.fingerprint;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.android.apksig.ApkFingerprint;
+
+/**
+ * Index of the APKs in a directory tree by {@link ApkFingerprint}, for finding APKs with identical
+ * contents. Fingerprints are taken from the APK Signing Block, so only a few kilobytes of each
+ * signed APK are read; only APKs without an APK Signature Scheme v2 or v3 signature are digested
+ * in full.
+ */
+public class ApkFingerprintIndex {
+
+    public static final String KEY_RESULT_PATH = "path";
+    public static final String KEY_RESULT_FINGERPRINT = "fingerprint";
+    public static final String KEY_RESULT_SOURCE = "source";
+    public static final String KEY_RESULT_DUPLICATE_OF = "duplicateOf";
+    public static final String KEY_RESULT_ERROR = "error";
+
+    /** First path indexed with each fingerprint. */
+    private final Map<ApkFingerprint, String> mFirstPaths = new HashMap<ApkFingerprint, String>();
+
+    /**
+     * Fingerprints every APK under the directory, in path order, and prints one line of JSON per
+     * APK to out: its path, fingerprint and fingerprint source, plus the path of the first APK
+     * with the same fingerprint, if any, as "duplicateOf". APKs which could not be fingerprinted
+     * have an "error" instead.
+     */
+    public void index(File dir, PrintStream out) {
+        List<File> apks = new ArrayList<File>();
+        collectApks(dir, apks);
+        for (File apk : apks) {
+            out.println(add(apk).toString());
+        }
+    }
+
+    /**
+     * Fingerprints the APK and returns the result as JSON, as printed by {@link #index}.
+     */
+    public JSONObject add(File apk) {
+        JSONObject result = new JSONObject();
+        String path = apk.getPath();
+        result.put(KEY_RESULT_PATH, path);
+        ApkFingerprint fingerprint;
+        try {
+            fingerprint = ApkFingerprint.of(apk);
+        } catch (Exception e) {
+            result.put(KEY_RESULT_ERROR, String.valueOf(e.getMessage()));
+            return result;
+        }
+        result.put(KEY_RESULT_FINGERPRINT, fingerprint.toString());
+        result.put(KEY_RESULT_SOURCE, fingerprint.getSource().name());
+        String firstPath = mFirstPaths.get(fingerprint);
+        if (firstPath == null) {
+            mFirstPaths.put(fingerprint, path);
+        } else {
+            result.put(KEY_RESULT_DUPLICATE_OF, firstPath);
+        }
+        return result;
+    }
+
+    private static void collectApks(File dir, List<File> apks) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectApks(file, apks);
+            } else if (file.getName().toLowerCase().endsWith(".apk")) {
+                apks.add(file);
+            }
+        }
+    }
+}
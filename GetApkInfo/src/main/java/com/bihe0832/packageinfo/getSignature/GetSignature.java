@@ -1,5 +1,6 @@
 package com.bihe0832.packageinfo.getSignature;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -18,8 +19,9 @@ public class GetSignature {
         byte[] readBuffer = new byte[8192];
         Certificate[] certs = null;
 
+        JarFile e = null;
         try {
-            JarFile e = new JarFile(apkFilePath);
+            e = new JarFile(apkFilePath);
             Enumeration entries = e.entries();
 
             while(entries.hasMoreElements()) {
@@ -39,7 +41,6 @@ public class GetSignature {
                             }
 
                             if(certs.length != localCerts.length) {
-                                e.close();
                                 return null;
                             }
                         }
@@ -51,13 +52,20 @@ public class GetSignature {
                 }
             }
 
-            e.close();
             return getSignValidString(certs[0].getEncoded());
         } catch (Exception var10) {
             if (showException){
                 var10.printStackTrace();
             }
             return "get signInfo failed, please use --debug get more info";
+        } finally {
+            if (e != null) {
+                try {
+                    e.close();
+                } catch (IOException var11) {
+                    var11.printStackTrace();
+                }
+            }
         }
     }
 
@@ -0,0 +1,64 @@
+package com.bihe0832.packageinfo.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Thin client of {@link ApkInfoServer}.
+ */
+public class ApkInfoClient {
+
+    /**
+     * Sends the paths to the server listening on the loopback port as one batch and returns the
+     * results, in the same order as the paths.
+     *
+     * @throws IOException if the server could not be reached or closed the connection early
+     */
+    public static List<JSONObject> inspect(int port, List<String> paths) throws IOException {
+        return inspect(port, paths, false);
+    }
+
+    /**
+     * Sends the paths to the server like {@link #inspect(int, List)}, asking for the statistics of
+     * each inspection if showStatistics is set.
+     */
+    public static List<JSONObject> inspect(int port, List<String> paths, boolean showStatistics)
+            throws IOException {
+        List<JSONObject> results = new ArrayList<JSONObject>(paths.size());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String path : paths) {
+                // The server does not share this process's working directory
+                out.write(new File(path).getAbsolutePath());
+                if (showStatistics) {
+                    out.write(ApkInfoServer.REQUEST_SUFFIX_STATS);
+                }
+                out.write('\n');
+            }
+            out.flush();
+            socket.shutdownOutput();
+            String line;
+            while (results.size() < paths.size() && (line = in.readLine()) != null) {
+                results.add(new JSONObject(line));
+            }
+        }
+        if (results.size() < paths.size()) {
+            throw new IOException("Server returned " + results.size() + " of " + paths.size()
+                    + " results");
+        }
+        return results;
+    }
+}
@@ -0,0 +1,149 @@
+package com.bihe0832.packageinfo.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+
+import com.bihe0832.packageinfo.Main;
+import com.bihe0832.packageinfo.batch.ApkBatchScheduler;
+
+/**
+ * Long-running inspection server listening on a loopback socket, so that inspections don't pay
+ * JVM startup, class loading and JIT warm-up each time.
+ *
+ * <p>Protocol: the client sends one APK path per line, optionally followed by " --stats"; a batch
+ * ends with an empty line or when the client shuts down its side of the connection. For every path
+ * the server writes back one line of JSON, in request order, as soon as the result is ready:
+ * {@link Main#inspect(String, boolean)}'s result, with statistics if the line asked for them,
+ * plus the "path" it was requested for. The connection can then be used for the next batch.
+ *
+ * <p>The APKs of all connections are inspected by one {@link ApkBatchScheduler}.
+ */
+public class ApkInfoServer {
+
+    public static final int DEFAULT_PORT = 18532;
+    public static final String KEY_RESULT_PATH = "path";
+    /** Suffix of a request line asking for the statistics of the inspection. */
+    public static final String REQUEST_SUFFIX_STATS = " --stats";
+
+    private final int mPort;
+    private final ApkBatchScheduler mScheduler;
+    private final ExecutorService mConnections = Executors.newCachedThreadPool();
+
+    public ApkInfoServer(int port, int workerCount) {
+        this(port, workerCount, ApkBatchScheduler.getDefaultMemoryBudgetBytes());
+    }
+
+    public ApkInfoServer(int port, int workerCount, long memoryBudgetBytes) {
+        mPort = port;
+        mScheduler = new ApkBatchScheduler(
+                workerCount, memoryBudgetBytes, ApkBatchScheduler.DEFAULT_LARGE_APK_BYTES);
+    }
+
+    /**
+     * Accepts connections until the process is killed.
+     */
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket =
+                new ServerSocket(mPort, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("GetApkInfo server listening on "
+                    + serverSocket.getInetAddress().getHostAddress() + ":" + mPort);
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                mConnections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            }
+        } finally {
+            mConnections.shutdownNow();
+            mScheduler.shutdownNow();
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            List<String> batch = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    batch.add(line);
+                } else if (!batch.isEmpty()) {
+                    inspectBatch(batch, out);
+                    batch.clear();
+                }
+            }
+            inspectBatch(batch, out);
+        } catch (IOException e) {
+            // The client went away; nothing to report it to
+        }
+    }
+
+    private void inspectBatch(List<String> requests, Writer out) throws IOException {
+        List<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>(requests.size());
+        List<String> paths = new ArrayList<String>(requests.size());
+        for (String request : requests) {
+            boolean showStatistics = request.endsWith(REQUEST_SUFFIX_STATS);
+            String path = showStatistics
+                    ? request.substring(0, request.length() - REQUEST_SUFFIX_STATS.length()).trim()
+                    : request;
+            paths.add(path);
+            if (isApk(path)) {
+                results.add(mScheduler.submit(path, showStatistics));
+            } else {
+                results.add(CompletableFuture.completedFuture(Main.getFailedCheckResult(
+                        Main.RET_FILE_NOT_GOOD, path + " is not an android apk file")));
+            }
+        }
+        try {
+            for (int i = 0; i < paths.size(); i++) {
+                JSONObject result;
+                try {
+                    result = results.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                } catch (ExecutionException e) {
+                    result = Main.getFailedCheckResult(Main.RET_GET_INFO_BAD,
+                            "get apk info failed, throw an Exception: " + e.getCause());
+                }
+                result.put(KEY_RESULT_PATH, paths.get(i));
+                out.write(result.toString());
+                out.write('\n');
+                out.flush();
+            }
+        } finally {
+            // If the client went away, free the workers and memory budget its remaining APKs
+            // hold or wait for. Cancelling a consumed result does nothing.
+            for (Future<JSONObject> result : results) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    private static boolean isApk(String path) {
+        return path.toLowerCase().endsWith(".apk") && new File(path).isFile();
+    }
+}
@@ -21,6 +21,7 @@ import android.util.TypedValue;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -95,6 +96,14 @@ public class AXMLPrinter {
             parser.close();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 //		System.out.println(xmlSb.toString());
         return xmlSb.toString();
@@ -107,7 +116,7 @@ public class AXMLPrinter {
         return prefix + ":";
     }
 
-    private static String getAttributeValue(AXmlResourceParser parser, int index) {
+    static String getAttributeValue(AXmlResourceParser parser, int index) {
         int type = parser.getAttributeValueType(index);
         int data = parser.getAttributeValueData(index);
         if (type == TypedValue.TYPE_STRING) {
@@ -1,63 +1,199 @@
 package com.bihe0832.packageinfo.utils;
 
+import android.content.res.AXmlResourceParser;
+import android.content.res.ResourceTable;
+import com.android.apksig.apk.ApkHeaderSummary;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
 import com.bihe0832.packageinfo.bean.ApkInfo;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.List;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.Namespace;
-import org.jdom.input.SAXBuilder;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.xmlpull.v1.XmlPullParser;
 
 
 public class ApkUtil {
 
-    private static final Namespace NS = Namespace.getNamespace("http://schemas.android.com/apk/res/android");
+    private static final String NS = "http://schemas.android.com/apk/res/android";
+    private static final String MANIFEST_ENTRY_NAME = "AndroidManifest.xml";
+    private static final String RESOURCE_TABLE_ENTRY_NAME = "resources.arsc";
 
+    /**
+     * Fills in the manifest fields of the info by pulling the attributes it needs from the APK's
+     * binary AndroidManifest.xml. The manifest is not converted to XML text and parsed again, so
+     * that no XML library has to be loaded.
+     */
     public static void updateAPKInfo(String apkPath, ApkInfo info, boolean showException) {
-        SAXBuilder builder = new SAXBuilder();
-        Document document = null;
-        InputStream stream = null;
-        try {
-            stream = new ByteArrayInputStream(
-                    AXMLPrinter.getManifestXMLFromAPK(apkPath).getBytes(StandardCharsets.UTF_8));
-            document = builder.build(stream);
-            Element root = document.getRootElement();
-            info.versionCode = root.getAttributeValue("versionCode", NS);
-            info.versionName = root.getAttributeValue("versionName", NS);
-            String s = root.getAttributes().toString();
-            String c[] = s.split(",");
-            for (String a : c) {
-                if (a.contains("package")) {
-                    info.packageName = a.substring(a.indexOf("package=\"") + 9, a.lastIndexOf("\""));
+        try (ZipFile file = new ZipFile(new File(apkPath), ZipFile.OPEN_READ)) {
+            ZipEntry entry = file.getEntry(MANIFEST_ENTRY_NAME);
+            if (entry == null) {
+                throw new IOException(MANIFEST_ENTRY_NAME + " not found in " + apkPath);
+            }
+            AXmlResourceParser parser = new AXmlResourceParser();
+            parser.open(file.getInputStream(entry));
+            try {
+                boolean usesSdkSeen = false;
+                boolean applicationSeen = false;
+                int type;
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (type != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    String name = parser.getName();
+                    if (parser.getDepth() == 1) {
+                        info.versionCode = getAttributeValue(parser, NS, "versionCode", null);
+                        info.versionName = getAttributeValue(parser, NS, "versionName", null);
+                        String packageName = getAttributeValue(parser, "", "package", null);
+                        if (packageName != null) {
+                            info.packageName = packageName;
+                        }
+                    } else if (parser.getDepth() != 2) {
+                        continue;
+                    } else if ("uses-sdk".equals(name) && !usesSdkSeen) {
+                        usesSdkSeen = true;
+                        info.minSdkVersion = getAttributeValue(parser, NS, "minSdkVersion", null);
+                        info.targetSdkVersion =
+                                getAttributeValue(parser, NS, "targetSdkVersion", null);
+                    } else if ("application".equals(name) && !applicationSeen) {
+                        applicationSeen = true;
+                        info.label = getAttributeValue(parser, NS, "label", "");
+                        info.icon = getAttributeValue(parser, NS, "icon", "");
+                    } else if ("uses-permission".equals(name)) {
+                        info.permissions.add(getAttributeValue(parser, NS, "name", null));
+                    }
                 }
+            } finally {
+                parser.close();
+            }
+            if (isReference(info.label) || isReference(info.icon)) {
+                resolveLabelAndIcon(apkPath, info, showException);
             }
+        } catch (Exception e) {
+            if (showException) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            List booklist = root.getChildren("uses-sdk");
-            Element book = (Element) booklist.get(0);
-            info.minSdkVersion = book.getAttributeValue("minSdkVersion", NS);
-            info.targetSdkVersion = book.getAttributeValue("targetSdkVersion", NS);
+    /**
+     * Returns the value of the current start tag's attribute, formatted like AXMLPrinter does, or
+     * defaultValue if the tag has no such attribute. The namespace of attributes without one is "".
+     */
+    private static String getAttributeValue(
+            AXmlResourceParser parser, String namespace, String name, String defaultValue) {
+        for (int i = 0, size = parser.getAttributeCount(); i != size; ++i) {
+            if (name.equals(parser.getAttributeName(i))
+                    && namespace.equals(parser.getAttributeNamespace(i))) {
+                return AXMLPrinter.getAttributeValue(parser, i).replaceAll("\"", "");
+            }
+        }
+        return defaultValue;
+    }
 
-            booklist = root.getChildren("uses-permission");
-            for (Iterator iter = booklist.iterator(); iter.hasNext(); ) {
-                Element tempBook = (Element) iter.next();
-                info.permissions.add(tempBook.getAttributeValue("name", NS));
+    /**
+     * Fills in the DEX and resource table fields of the info from the headers of the APK's DEX
+     * files and resource table, without inflating these entries in full.
+     */
+    public static void updateHeaderInfo(String apkPath, ApkInfo info, boolean showException) {
+        try (RandomAccessFile f = new RandomAccessFile(apkPath, "r")) {
+            ApkHeaderSummary summary =
+                    ApkHeaderSummary.of(DataSources.asDataSource(f, 0, f.length()));
+            info.dexCount = summary.getDexFiles().size();
+            for (ApkHeaderSummary.Dex dex : summary.getDexFiles()) {
+                if (dex.getVersion().compareTo(info.dexVersion) > 0) {
+                    info.dexVersion = dex.getVersion();
+                }
+                info.dexMethodCount += dex.getMethodIdCount();
+                info.dexClassCount += dex.getClassDefCount();
+            }
+            ApkHeaderSummary.ResourceTable resourceTable = summary.getResourceTable();
+            if (resourceTable != null && resourceTable.getFirstPackage() != null) {
+                info.resourcePackageName = resourceTable.getFirstPackage().getName();
             }
         } catch (Exception e) {
             if (showException) {
                 e.printStackTrace();
             }
-        } finally {
-            if (null != stream) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns whether the manifest attribute value is a reference to an app resource, as output by
+     * AXMLPrinter, e.g. "@7F0B0001".
+     */
+    private static boolean isReference(String value) {
+        return value != null && value.matches("@[0-9A-F]{8}");
+    }
+
+    /**
+     * Replaces the label and icon references of the info with the default label and the path of
+     * the highest density bitmap icon, or of the adaptive icon if it has no bitmap. Only these
+     * resources are looked up in the resource table.
+     */
+    private static void resolveLabelAndIcon(String apkPath, ApkInfo info, boolean showException) {
+        try {
+            ResourceTable table = openResourceTable(apkPath);
+            if (table == null) {
+                return;
+            }
+            if (isReference(info.label)) {
+                String label = table.getString(
+                        (int) Long.parseLong(info.label.substring(1), 16), ResourceTable.Config.DEFAULT);
+                if (label != null) {
+                    info.label = label;
+                }
+            }
+            if (isReference(info.icon)) {
+                String icon = table.getString(
+                        (int) Long.parseLong(info.icon.substring(1), 16), ResourceTable.Config.DEFAULT);
+                if (icon != null) {
+                    info.icon = icon;
+                }
+            }
+        } catch (Exception e) {
+            if (showException) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Opens the resource table of the APK, or returns null if it has none. A stored (uncompressed)
+     * table is mapped into memory rather than read.
+     */
+    public static ResourceTable openResourceTable(String apkPath) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(apkPath, "r")) {
+            DataSource apk = DataSources.asDataSource(f, 0, f.length());
+            ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+            long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+            for (CentralDirectoryRecord cdRecord
+                    : V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections)) {
+                if (!cdRecord.getName().equals(RESOURCE_TABLE_ENTRY_NAME)) {
+                    continue;
+                }
+                ByteBuffer table;
+                if (cdRecord.getCompressionMethod() == ZipUtils.COMPRESSION_METHOD_STORED) {
+                    // The mapping stays valid once the file is closed
+                    table = f.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY,
+                            LocalFileRecord.getDataStartOffsetInArchive(apk, cdRecord, cdStartOffset),
+                            cdRecord.getUncompressedSize());
+                } else {
+                    table = ByteBuffer.wrap(
+                            LocalFileRecord.getUncompressedData(apk, cdRecord, cdStartOffset));
                 }
+                return ResourceTable.open(table);
             }
+            return null;
         }
     }
 }
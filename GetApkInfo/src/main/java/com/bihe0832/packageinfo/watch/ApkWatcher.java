@@ -0,0 +1,247 @@
+package com.bihe0832.packageinfo.watch;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.util.DataSources;
+import com.bihe0832.packageinfo.Main;
+
+/**
+ * Watches directories for APKs and inspects each new or changed APK once it has been completely
+ * written, appending the results to a log as one line of JSON per APK.
+ *
+ * <p>An APK is considered completely written once its size and modification time have not changed
+ * for {@link #STABLE_PERIOD_MS}. If it then does not end with a ZIP End of Central Directory
+ * record, which ZIP writers output last, it is truncated or corrupt and a failure is logged for it
+ * instead. The path, size and modification time of every inspected APK are recorded in the log,
+ * so that APKs inspected before a restart are not inspected again.
+ */
+public class ApkWatcher {
+
+    public static final String KEY_RESULT_PATH = "path";
+    public static final String KEY_RESULT_SIZE = "size";
+    public static final String KEY_RESULT_LAST_MODIFIED = "lastModified";
+
+    /** How long an APK's size and modification time must stay unchanged before it's inspected. */
+    private static final long STABLE_PERIOD_MS = 2000;
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final List<Path> mDirs;
+    private final File mLogFile;
+    private final WatchService mWatchService;
+    private final Map<WatchKey, Path> mWatchedDirs = new HashMap<WatchKey, Path>();
+
+    /** Inspected APKs: path -> size and modification time at the time of inspection. */
+    private final Map<Path, FileState> mInspected = new HashMap<Path, FileState>();
+
+    /** APKs which appeared or changed and are waiting for writes to them to settle. */
+    private final Map<Path, PendingFile> mPending = new HashMap<Path, PendingFile>();
+
+    public ApkWatcher(List<Path> dirs, File logFile) throws IOException {
+        if (dirs.isEmpty()) {
+            throw new IllegalArgumentException("No directories to watch");
+        }
+        mDirs = dirs;
+        mLogFile = logFile;
+        mWatchService = dirs.get(0).getFileSystem().newWatchService();
+    }
+
+    /**
+     * Watches the directories until the process is killed.
+     */
+    public void watch() throws IOException, InterruptedException {
+        loadInspectedFromLog();
+        for (Path dir : mDirs) {
+            mWatchedDirs.put(dir.register(mWatchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+        }
+        // APKs which landed while nobody was watching
+        for (Path dir : mDirs) {
+            scan(dir);
+        }
+        System.out.println("GetApkInfo watching " + mDirs + ", results in " + mLogFile);
+        try (Writer log = new OutputStreamWriter(
+                new FileOutputStream(mLogFile, true), StandardCharsets.UTF_8)) {
+            while (true) {
+                WatchKey key = mWatchService.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+                inspectSettledFiles(log);
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        Path dir = mWatchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were lost
+                scan(dir);
+                continue;
+            }
+            onFileChanged(dir.resolve((Path) event.context()));
+        }
+        if (!key.reset()) {
+            mWatchedDirs.remove(key);
+        }
+    }
+
+    private void scan(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{apk,APK}")) {
+            for (Path file : stream) {
+                onFileChanged(file);
+            }
+        }
+    }
+
+    private void onFileChanged(Path file) {
+        if (!file.getFileName().toString().toLowerCase().endsWith(".apk")) {
+            return;
+        }
+        FileState state = FileState.of(file);
+        if (state == null || state.equals(mInspected.get(file))) {
+            return;
+        }
+        mPending.put(file, new PendingFile(state, System.currentTimeMillis()));
+    }
+
+    private void inspectSettledFiles(Writer log) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Path, PendingFile>> it = mPending.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<Path, PendingFile> entry = it.next();
+            Path file = entry.getKey();
+            PendingFile pending = entry.getValue();
+            FileState state = FileState.of(file);
+            if (state == null) {
+                // Deleted or renamed before it settled
+                it.remove();
+                continue;
+            }
+            if (!state.equals(pending.state)) {
+                entry.setValue(new PendingFile(state, now));
+                continue;
+            }
+            if (now - pending.stableSince < STABLE_PERIOD_MS) {
+                continue;
+            }
+            it.remove();
+            // Settled but still not a complete ZIP: truncated or corrupt. Report it once; it's
+            // only looked at again once its size or modification time changes.
+            JSONObject result = isZipComplete(file)
+                    ? Main.inspect(file.toString())
+                    : Main.getFailedCheckResult(
+                            Main.RET_FILE_NOT_GOOD, file + " is not a complete zip file");
+            result.put(KEY_RESULT_PATH, file.toString());
+            result.put(KEY_RESULT_SIZE, state.size);
+            result.put(KEY_RESULT_LAST_MODIFIED, state.lastModified);
+            log.write(result.toString());
+            log.write('\n');
+            log.flush();
+            mInspected.put(file, state);
+        }
+    }
+
+    private static boolean isZipComplete(Path file) {
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "r")) {
+            return ApkUtils.findZipSections(DataSources.asDataSource(f)) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void loadInspectedFromLog() throws IOException {
+        if (!mLogFile.isFile()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mLogFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    JSONObject result = new JSONObject(line);
+                    mInspected.put(
+                            new File(result.getString(KEY_RESULT_PATH)).toPath(),
+                            new FileState(
+                                    result.getLong(KEY_RESULT_SIZE),
+                                    result.getLong(KEY_RESULT_LAST_MODIFIED)));
+                } catch (Exception e) {
+                    // Not a result line, e.g., truncated by a crash
+                }
+            }
+        }
+    }
+
+    private static class FileState {
+        final long size;
+        final long lastModified;
+
+        FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** Returns the current state of the file or {@code null} if it's not a regular file. */
+        static FileState of(Path file) {
+            try {
+                if (!Files.isRegularFile(file)) {
+                    return null;
+                }
+                return new FileState(
+                        Files.size(file), Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileState)) {
+                return false;
+            }
+            FileState other = (FileState) o;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size * 31 + lastModified);
+        }
+    }
+
+    private static class PendingFile {
+        final FileState state;
+        final long stableSince;
+
+        PendingFile(FileState state, long stableSince) {
+            this.state = state;
+            this.stableSince = stableSince;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.ApkVerifier.Issue;
+import com.android.apksig.ApkVerifier.IssueWithParams;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.util.InterruptibleFuture;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifier of the APKs in an APK set, such as a {@code .apks} archive of split APKs: a ZIP archive
+ * whose {@code .apk} entries are APKs.
+ *
+ * <p>APKs stored uncompressed in the archive, as is customary, are verified in place as slices of
+ * the archive, without being extracted. Compressed APKs are inflated into memory by the task which
+ * verifies them, so that only the APKs being verified are held in memory. APKs are verified in
+ * parallel. On top of each APK verifying, the APK set verifies only if all its APKs
+ * have the same signer certificates and signing certificate lineage, as required to install them
+ * together.
+ *
+ * <p>Use {@link Builder} to obtain instances of this verifier.
+ */
+public class ApkSetVerifier {
+
+    private static final String APK_ENTRY_NAME_SUFFIX = ".apk";
+
+    private final File mApkSetFile;
+    private final DataSource mApkSetDataSource;
+    private final Integer mMinSdkVersion;
+    private final int mMaxSdkVersion;
+    private final Executor mExecutor;
+
+    private ApkSetVerifier(
+            File apkSetFile,
+            DataSource apkSetDataSource,
+            Integer minSdkVersion,
+            int maxSdkVersion,
+            Executor executor) {
+        mApkSetFile = apkSetFile;
+        mApkSetDataSource = apkSetDataSource;
+        mMinSdkVersion = minSdkVersion;
+        mMaxSdkVersion = maxSdkVersion;
+        mExecutor = executor;
+    }
+
+    /**
+     * Verifies the APKs of the APK set and returns the result of verification. The APK set can be
+     * considered verified iff the result's {@link Result#isVerified()} returns {@code true}.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK set
+     * @throws ApkFormatException if the APK set or one of its APKs is malformed
+     * @throws NoSuchAlgorithmException if an APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws InterruptedIOException if the calling thread is interrupted while verifying
+     */
+    public Result verify() throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        Closeable in = null;
+        try {
+            DataSource apkSet;
+            if (mApkSetDataSource != null) {
+                apkSet = mApkSetDataSource;
+            } else {
+                RandomAccessFile f = new RandomAccessFile(mApkSetFile, "r");
+                in = f;
+                apkSet = DataSources.asDataSource(f, 0, f.length());
+            }
+            return verify(apkSet);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private Result verify(DataSource apkSet)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apkSet);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK set: not a ZIP archive", e);
+        }
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+        List<CentralDirectoryRecord> apks = getApks(apkSet, zipSections);
+        Result result = new Result();
+        if (apks.isEmpty()) {
+            result.addError(Issue.APK_SET_EMPTY);
+            return result;
+        }
+
+        ExecutorService ownExecutor = null;
+        Executor executor = mExecutor;
+        if (executor == null) {
+            ownExecutor =
+                    Executors.newFixedThreadPool(
+                            Math.min(apks.size(), Runtime.getRuntime().availableProcessors()));
+            executor = ownExecutor;
+        }
+        Map<String, Future<ApkVerifier.Result>> futures = new LinkedHashMap<>(apks.size());
+        try {
+            for (CentralDirectoryRecord apk : apks) {
+                futures.put(
+                        apk.getName(),
+                        InterruptibleFuture.callAsync(
+                                () -> verifyApk(apkSet, apk, cdStartOffset), executor));
+            }
+            for (Map.Entry<String, Future<ApkVerifier.Result>> future : futures.entrySet()) {
+                result.mApkResults.put(
+                        future.getKey(), getResult(future.getKey(), future.getValue()));
+            }
+        } finally {
+            // Stop verifying the remaining APKs if one of them failed
+            for (Future<ApkVerifier.Result> future : futures.values()) {
+                future.cancel(true);
+            }
+            if (ownExecutor != null) {
+                ownExecutor.shutdownNow();
+            }
+        }
+
+        checkSameSigners(result);
+        return result;
+    }
+
+    /**
+     * Returns the Central Directory records of the APKs of the APK set, in the order of the ZIP
+     * Central Directory.
+     */
+    private static List<CentralDirectoryRecord> getApks(
+            DataSource apkSet, ApkUtils.ZipSections zipSections)
+            throws IOException, ApkFormatException {
+        List<CentralDirectoryRecord> apks = new ArrayList<>();
+        for (CentralDirectoryRecord cdRecord
+                : V1SchemeVerifier.parseZipCentralDirectory(apkSet, zipSections)) {
+            if (cdRecord.getName().endsWith(APK_ENTRY_NAME_SUFFIX)) {
+                apks.add(cdRecord);
+            }
+        }
+        return apks;
+    }
+
+    /**
+     * Verifies the APK of the APK set entry. A compressed APK is inflated here rather than up
+     * front, so that it is only held in memory while being verified.
+     */
+    private ApkVerifier.Result verifyApk(
+            DataSource apkSet, CentralDirectoryRecord cdRecord, long cdStartOffset)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        DataSource apk;
+        try {
+            if (cdRecord.getCompressionMethod() == ZipUtils.COMPRESSION_METHOD_STORED) {
+                apk =
+                        apkSet.slice(
+                                LocalFileRecord.getDataStartOffsetInArchive(
+                                        apkSet, cdRecord, cdStartOffset),
+                                cdRecord.getUncompressedSize());
+            } else {
+                apk =
+                        DataSources.asDataSource(
+                                ByteBuffer.wrap(
+                                        LocalFileRecord.getUncompressedData(
+                                                apkSet, cdRecord, cdStartOffset)));
+            }
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK set entry: " + cdRecord.getName(), e);
+        }
+        ApkVerifier.Builder builder =
+                new ApkVerifier.Builder(apk).setMaxCheckedPlatformVersion(mMaxSdkVersion);
+        if (mMinSdkVersion != null) {
+            builder.setMinCheckedPlatformVersion(mMinSdkVersion);
+        }
+        return builder.build().verify();
+    }
+
+    private static ApkVerifier.Result getResult(
+            String entryName, Future<ApkVerifier.Result> future)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying " + entryName);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ApkFormatException) {
+                throw new ApkFormatException("Failed to verify " + entryName, cause);
+            } else if (cause instanceof IOException) {
+                throw new IOException("Failed to verify " + entryName, cause);
+            } else if (cause instanceof NoSuchAlgorithmException) {
+                throw new NoSuchAlgorithmException("Failed to verify " + entryName, cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Failed to verify " + entryName, cause);
+        }
+    }
+
+    /**
+     * Checks that all APKs have the signer certificates and lineage of the first APK.
+     */
+    private static void checkSameSigners(Result result) {
+        String firstApkName = null;
+        ApkVerifier.Result firstApkResult = null;
+        for (Map.Entry<String, ApkVerifier.Result> apk : result.mApkResults.entrySet()) {
+            if (firstApkResult == null) {
+                firstApkName = apk.getKey();
+                firstApkResult = apk.getValue();
+                continue;
+            }
+            ApkVerifier.Result apkResult = apk.getValue();
+            if (!new HashSet<>(apkResult.getSignerCertificates()).equals(
+                    new HashSet<>(firstApkResult.getSignerCertificates()))) {
+                result.addError(Issue.APK_SET_SIGNERS_MISMATCH, apk.getKey(), firstApkName);
+            } else if (!getCertificatesInLineage(apkResult).equals(
+                    getCertificatesInLineage(firstApkResult))) {
+                result.addError(Issue.APK_SET_LINEAGE_MISMATCH, apk.getKey(), firstApkName);
+            }
+        }
+    }
+
+    private static List<X509Certificate> getCertificatesInLineage(ApkVerifier.Result result) {
+        SigningCertificateLineage lineage = result.getSigningCertificateLineage();
+        return (lineage != null)
+                ? lineage.getCertificatesInLineage()
+                : Collections.<X509Certificate>emptyList();
+    }
+
+    /**
+     * Result of verifying an APK set.
+     */
+    public static class Result {
+        private final Map<String, ApkVerifier.Result> mApkResults = new LinkedHashMap<>();
+        private final List<IssueWithParams> mErrors = new ArrayList<>();
+
+        /**
+         * Returns {@code true} if all APKs of the APK set verified and have the same signers.
+         */
+        public boolean isVerified() {
+            if (!mErrors.isEmpty()) {
+                return false;
+            }
+            for (ApkVerifier.Result apkResult : mApkResults.values()) {
+                if (!apkResult.isVerified()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the results of verifying each APK of the APK set by entry name, in the order of
+         * the APK set's ZIP Central Directory.
+         */
+        public Map<String, ApkVerifier.Result> getApkResults() {
+            return Collections.unmodifiableMap(mApkResults);
+        }
+
+        /**
+         * Returns errors concerning the APK set as a whole. Errors of individual APKs are
+         * available from their results.
+         */
+        public List<IssueWithParams> getErrors() {
+            return Collections.unmodifiableList(mErrors);
+        }
+
+        private void addError(Issue msg, Object... parameters) {
+            mErrors.add(new IssueWithParams(msg, parameters));
+        }
+    }
+
+    /**
+     * Builder of {@link ApkSetVerifier} instances.
+     *
+     * <p>Like {@link ApkVerifier.Builder}, the resulting verifier by default checks whether each
+     * APK will verify on all platform versions it supports.
+     */
+    public static class Builder {
+        private final File mApkSetFile;
+        private final DataSource mApkSetDataSource;
+
+        private Integer mMinSdkVersion;
+        private int mMaxSdkVersion = Integer.MAX_VALUE;
+        private Executor mExecutor;
+
+        /**
+         * Constructs a new {@code Builder} for verifying the provided APK set file.
+         */
+        public Builder(File apkSet) {
+            if (apkSet == null) {
+                throw new NullPointerException("apkSet == null");
+            }
+            mApkSetFile = apkSet;
+            mApkSetDataSource = null;
+        }
+
+        /**
+         * Constructs a new {@code Builder} for verifying the provided APK set. The data source
+         * must support reads from multiple threads at once.
+         */
+        public Builder(DataSource apkSet) {
+            if (apkSet == null) {
+                throw new NullPointerException("apkSet == null");
+            }
+            mApkSetDataSource = apkSet;
+            mApkSetFile = null;
+        }
+
+        /**
+         * Sets the oldest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMinCheckedPlatformVersion(int)
+         */
+        public Builder setMinCheckedPlatformVersion(int minSdkVersion) {
+            mMinSdkVersion = minSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the newest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMaxCheckedPlatformVersion(int)
+         */
+        public Builder setMaxCheckedPlatformVersion(int maxSdkVersion) {
+            mMaxSdkVersion = maxSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the executor on which APKs are verified, one task per APK. By default, APKs are
+         * verified on a thread pool, with as many threads as processors, which is created and
+         * shut down by each {@link ApkSetVerifier#verify()}.
+         */
+        public Builder setExecutor(Executor executor) {
+            if (executor == null) {
+                throw new NullPointerException("executor == null");
+            }
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Returns an {@link ApkSetVerifier} initialized according to the configuration of this
+         * builder.
+         */
+        public ApkSetVerifier build() {
+            return new ApkSetVerifier(
+                    mApkSetFile, mApkSetDataSource, mMinSdkVersion, mMaxSdkVersion, mExecutor);
+        }
+    }
+}
@@ -23,9 +23,17 @@ import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.apk.SignerCertificateAllowlist;
+import com.android.apksig.internal.apk.VerificationDigestCache;
 import com.android.apksig.internal.apk.v2.V2SchemeVerifier;
 import com.android.apksig.internal.apk.v3.V3SchemeVerifier;
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.ApkOperationEvent;
+import com.android.apksig.internal.jfr.JfrEvents;
 import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.InterruptibleFuture;
+import com.android.apksig.internal.util.VerificationBudget;
+import com.android.apksig.internal.util.VerificationStatistics;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
@@ -36,17 +44,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * APK signature verifier which mimics the behavior of the Android platform.
@@ -78,16 +90,37 @@ public class ApkVerifier {
 
     private final Integer mMinSdkVersion;
     private final int mMaxSdkVersion;
+    private final boolean mStatisticsEnabled;
+    private final RunnablesExecutor mExecutor;
+    private final SignerCertificateAllowlist mSignerCertificateAllowlist;
+    private final int mMaxCentralDirectoryEntries;
+    private final long mMaxInflatedBytes;
+    private final int mMaxInflateRatio;
+    private final long mMaxVerificationTimeMillis;
 
     private ApkVerifier(
             File apkFile,
             DataSource apkDataSource,
             Integer minSdkVersion,
-            int maxSdkVersion) {
+            int maxSdkVersion,
+            boolean statisticsEnabled,
+            RunnablesExecutor executor,
+            SignerCertificateAllowlist signerCertificateAllowlist,
+            int maxCentralDirectoryEntries,
+            long maxInflatedBytes,
+            int maxInflateRatio,
+            long maxVerificationTimeMillis) {
         mApkFile = apkFile;
         mApkDataSource = apkDataSource;
         mMinSdkVersion = minSdkVersion;
         mMaxSdkVersion = maxSdkVersion;
+        mStatisticsEnabled = statisticsEnabled;
+        mExecutor = executor;
+        mSignerCertificateAllowlist = signerCertificateAllowlist;
+        mMaxCentralDirectoryEntries = maxCentralDirectoryEntries;
+        mMaxInflatedBytes = maxInflatedBytes;
+        mMaxInflateRatio = maxInflateRatio;
+        mMaxVerificationTimeMillis = maxVerificationTimeMillis;
     }
 
     /**
@@ -108,6 +141,8 @@ public class ApkVerifier {
      *         required cryptographic algorithm implementation is missing
      * @throws IllegalStateException if this verifier's configuration is missing required
      *         information.
+     * @throws java.io.InterruptedIOException if the calling thread is interrupted while verifying
+     *         the APK's signatures
      */
     public Result verify() throws IOException, ApkFormatException, NoSuchAlgorithmException,
             IllegalStateException {
@@ -123,7 +158,7 @@ public class ApkVerifier {
             } else {
                 throw new IllegalStateException("APK not provided");
             }
-            return verify(apk);
+            return verify(apk, mMinSdkVersion, mMaxSdkVersion, newVerificationBudget());
         } finally {
             if (in != null) {
                 in.close();
@@ -131,57 +166,217 @@ public class ApkVerifier {
         }
     }
 
+    /**
+     * Verifies the APK's signatures for each of the provided ranges of Android platform versions,
+     * as though {@link #verify()} was invoked once per range with the range set via
+     * {@link Builder#setMinCheckedPlatformVersion(int)} and
+     * {@link Builder#setMaxCheckedPlatformVersion(int)}. The range configured in the
+     * {@link Builder} is ignored.
+     *
+     * <p>The APK's contents and JAR entries are digested only once per digest algorithm, rather
+     * than once per range, so this costs about as much as a single verification. Likewise, the
+     * limit set via {@link Builder#setMaxVerificationTimeMillis(long)} applies to the verification
+     * of all ranges together.
+     *
+     * @return results of verification, one per range, in the order of {@code ranges}
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws IllegalStateException if this verifier's configuration is missing required
+     *         information.
+     * @throws java.io.InterruptedIOException if the calling thread is interrupted while verifying
+     *         the APK's signatures
+     */
+    public List<Result> verify(List<PlatformVersionRange> ranges)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException,
+            IllegalStateException {
+        Closeable in = null;
+        VerificationDigestCache previousDigestCache =
+                VerificationDigestCache.setCurrent(new VerificationDigestCache());
+        try {
+            DataSource apk;
+            if (mApkDataSource != null) {
+                apk = mApkDataSource;
+            } else if (mApkFile != null) {
+                RandomAccessFile f = new RandomAccessFile(mApkFile, "r");
+                in = f;
+                apk = DataSources.asDataSource(f, 0, f.length());
+            } else {
+                throw new IllegalStateException("APK not provided");
+            }
+            // The ranges share one time limit, as they are verified in a single call
+            VerificationBudget budget = newVerificationBudget();
+            List<Result> results = new ArrayList<>(ranges.size());
+            for (PlatformVersionRange range : ranges) {
+                results.add(
+                        verify(apk, range.getMin(), range.getMax(), budget.withSameDeadline()));
+            }
+            return results;
+        } finally {
+            VerificationDigestCache.setCurrent(previousDigestCache);
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Verifies the APK's signatures on the provided executor. The returned future is completed
+     * with the result of {@link #verify()} or, if {@code verify()} throws, completed exceptionally
+     * with the thrown exception.
+     *
+     * <p>Cancelling the returned future, or otherwise completing it before verification finishes
+     * (e.g., once a deadline expires), interrupts the thread performing verification. Verification
+     * then stops at the next content chunk or JAR entry and its outcome is discarded.
+     *
+     * @param executor executor on which to run verification
+     */
+    public CompletableFuture<Result> verifyAsync(Executor executor) {
+        return InterruptibleFuture.callAsync(this::verify, executor);
+    }
+
+    /**
+     * Verifies the APK's signatures and returns the result of verification, collecting
+     * {@link Result.Statistics statistics} about the verification if requested.
+     *
+     * @param apk APK file contents
+     * @param minSdkVersion lowest checked platform version or {@code null} to use the APK's
+     *        {@code minSdkVersion}
+     * @param maxSdkVersion highest checked platform version
+     * @param budget limits on the resources the verification may consume
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     */
+    private Result verify(
+            DataSource apk, Integer minSdkVersion, int maxSdkVersion, VerificationBudget budget)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        ApkOperationEvent event = (JfrEvents.isEnabled()) ? new ApkOperationEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        String apkPath = (mApkFile != null) ? mApkFile.getPath() : null;
+        String previousApkPath = ApkEventContext.enter(apkPath);
+        VerificationBudget previousBudget = VerificationBudget.setCurrent(budget);
+        Result result = null;
+        try {
+            try {
+                result = (mStatisticsEnabled)
+                        ? verifyWithStatistics(apk, minSdkVersion, maxSdkVersion)
+                        : verifySignatures(apk, minSdkVersion, maxSdkVersion);
+            } catch (VerificationBudget.ExceededException e) {
+                result = new Result();
+                result.addError(e.getIssue().getIssue(), e.getIssue().getParams());
+            }
+            return result;
+        } finally {
+            VerificationBudget.setCurrent(previousBudget);
+            ApkEventContext.restore(previousApkPath);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = ApkOperationEvent.OPERATION_VERIFY;
+                    event.apkPath = apkPath;
+                    event.apkSize = apk.size();
+                    if (result != null) {
+                        event.signatureSchemes =
+                                ApkOperationEvent.formatSignatureSchemes(
+                                        result.isVerifiedUsingV1Scheme(),
+                                        result.isVerifiedUsingV2Scheme(),
+                                        result.isVerifiedUsingV3Scheme());
+                        event.succeeded = result.isVerified();
+                    }
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private VerificationBudget newVerificationBudget() {
+        return new VerificationBudget(
+                mMaxCentralDirectoryEntries,
+                mMaxInflatedBytes,
+                mMaxInflateRatio,
+                mMaxVerificationTimeMillis);
+    }
+
+    private Result verifyWithStatistics(
+            DataSource apk, Integer minSdkVersion, int maxSdkVersion)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        VerificationStatistics statistics = new VerificationStatistics();
+        VerificationStatistics previousStatistics = VerificationStatistics.setCurrent(statistics);
+        long startNanos = System.nanoTime();
+        try {
+            Result result = verifySignatures(apk, minSdkVersion, maxSdkVersion);
+            result.mStatistics = new Result.Statistics(statistics, System.nanoTime() - startNanos);
+            return result;
+        } finally {
+            VerificationStatistics.setCurrent(previousStatistics);
+        }
+    }
+
     /**
      * Verifies the APK's signatures and returns the result of verification. The APK can be
      * considered verified iff the result's {@link Result#isVerified()} returns {@code true}.
      * The verification result also includes errors, warnings, and information about signers.
      *
      * @param apk APK file contents
+     * @param checkedMinSdkVersion lowest checked platform version or {@code null} to use the
+     *        APK's {@code minSdkVersion}
+     * @param maxSdkVersion highest checked platform version
      *
      * @throws IOException if an I/O error is encountered while reading the APK
      * @throws ApkFormatException if the APK is malformed
      * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
      *         required cryptographic algorithm implementation is missing
      */
-    private Result verify(DataSource apk)
+    private Result verifySignatures(
+            DataSource apk, Integer checkedMinSdkVersion, int maxSdkVersion)
             throws IOException, ApkFormatException, NoSuchAlgorithmException {
-        if (mMinSdkVersion != null) {
-            if (mMinSdkVersion < 0) {
+        if (checkedMinSdkVersion != null) {
+            if (checkedMinSdkVersion < 0) {
                 throw new IllegalArgumentException(
-                        "minSdkVersion must not be negative: " + mMinSdkVersion);
+                        "minSdkVersion must not be negative: " + checkedMinSdkVersion);
             }
-            if ((mMinSdkVersion != null) && (mMinSdkVersion > mMaxSdkVersion)) {
+            if ((checkedMinSdkVersion != null) && (checkedMinSdkVersion > maxSdkVersion)) {
                 throw new IllegalArgumentException(
-                        "minSdkVersion (" + mMinSdkVersion + ") > maxSdkVersion (" + mMaxSdkVersion
-                                + ")");
+                        "minSdkVersion (" + checkedMinSdkVersion + ") > maxSdkVersion ("
+                                + maxSdkVersion + ")");
             }
         }
-        int maxSdkVersion = mMaxSdkVersion;
 
+        long startNanos = VerificationStatistics.startPhase();
         ApkUtils.ZipSections zipSections;
         try {
             zipSections = ApkUtils.findZipSections(apk);
         } catch (ZipFormatException e) {
             throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
         }
+        VerificationStatistics.recordPhase(Phase.ZIP_SECTIONS, startNanos);
 
         ByteBuffer androidManifest = null;
 
         int minSdkVersion;
-        if (mMinSdkVersion != null) {
+        if (checkedMinSdkVersion != null) {
             // No need to obtain minSdkVersion from the APK's AndroidManifest.xml
-            minSdkVersion = mMinSdkVersion;
+            minSdkVersion = checkedMinSdkVersion;
         } else {
             // Need to obtain minSdkVersion from the APK's AndroidManifest.xml
+            startNanos = VerificationStatistics.startPhase();
             if (androidManifest == null) {
                 androidManifest = getAndroidManifestFromApk(apk, zipSections);
             }
             minSdkVersion =
                     ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(androidManifest.slice());
-            if (minSdkVersion > mMaxSdkVersion) {
+            VerificationStatistics.recordPhase(Phase.ANDROID_MANIFEST, startNanos);
+            if (minSdkVersion > maxSdkVersion) {
                 throw new IllegalArgumentException(
                         "minSdkVersion from APK (" + minSdkVersion + ") > maxSdkVersion ("
-                                + mMaxSdkVersion + ")");
+                                + maxSdkVersion + ")");
             }
         }
 
@@ -212,7 +407,7 @@ public class ApkVerifier {
         // verification. If the signature is found but does not verify, the APK is rejected.
         Set<Integer> foundApkSigSchemeIds = new HashSet<>(2);
         if (maxSdkVersion >= AndroidSdkVersion.N) {
-            RunnablesExecutor executor = RunnablesExecutor.SINGLE_THREADED;
+            RunnablesExecutor executor = mExecutor;
             // Android P and newer attempts to verify APKs using APK Signature Scheme v3
             if (maxSdkVersion >= AndroidSdkVersion.P) {
                 try {
@@ -222,7 +417,8 @@ public class ApkVerifier {
                                     apk,
                                     zipSections,
                                     Math.max(minSdkVersion, AndroidSdkVersion.P),
-                                    maxSdkVersion);
+                                    maxSdkVersion,
+                                    mSignerCertificateAllowlist);
                     foundApkSigSchemeIds.add(ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V3);
                     result.mergeFrom(v3Result);
                 } catch (ApkSigningBlockUtils.SignatureNotFoundException ignored) {
@@ -247,7 +443,8 @@ public class ApkVerifier {
                                     supportedSchemeNames,
                                     foundApkSigSchemeIds,
                                     Math.max(minSdkVersion, AndroidSdkVersion.N),
-                                    maxSdkVersion);
+                                    maxSdkVersion,
+                                    mSignerCertificateAllowlist);
                     foundApkSigSchemeIds.add(ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2);
                     result.mergeFrom(v2Result);
                 } catch (ApkSigningBlockUtils.SignatureNotFoundException ignored) {
@@ -262,11 +459,13 @@ public class ApkVerifier {
         // Android O and newer requires that APKs targeting security sandbox version 2 and higher
         // are signed using APK Signature Scheme v2 or newer.
         if (maxSdkVersion >= AndroidSdkVersion.O) {
+            startNanos = VerificationStatistics.startPhase();
             if (androidManifest == null) {
                 androidManifest = getAndroidManifestFromApk(apk, zipSections);
             }
             int targetSandboxVersion =
                     getTargetSandboxVersionFromBinaryAndroidManifest(androidManifest.slice());
+            VerificationStatistics.recordPhase(Phase.ANDROID_MANIFEST, startNanos);
             if (targetSandboxVersion > 1) {
                 if (foundApkSigSchemeIds.isEmpty()) {
                     result.addError(
@@ -288,7 +487,8 @@ public class ApkVerifier {
                             supportedSchemeNames,
                             foundApkSigSchemeIds,
                             minSdkVersion,
-                            maxSdkVersion);
+                            maxSdkVersion,
+                            mSignerCertificateAllowlist);
             result.mergeFrom(v1Result);
         }
         if (result.containsErrors()) {
@@ -430,13 +630,8 @@ public class ApkVerifier {
                     throws IOException, ApkFormatException {
         List<CentralDirectoryRecord> cdRecords =
                 V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
-        try {
-            return ApkSigner.getAndroidManifestFromApk(
-                    cdRecords,
-                    apk.slice(0, zipSections.getZipCentralDirectoryOffset()));
-        } catch (ZipFormatException e) {
-            throw new ApkFormatException("Failed to read AndroidManifest.xml", e);
-        }
+        return ApkUtils.getAndroidManifest(
+                cdRecords, apk.slice(0, zipSections.getZipCentralDirectoryOffset()));
     }
 
     /**
@@ -520,6 +715,7 @@ public class ApkVerifier {
         private boolean mVerifiedUsingV2Scheme;
         private boolean mVerifiedUsingV3Scheme;
         private SigningCertificateLineage mSigningCertificateLineage;
+        private Statistics mStatistics;
 
         /**
          * Returns {@code true} if the APK's signatures verified.
@@ -631,6 +827,14 @@ public class ApkVerifier {
             return mWarnings;
         }
 
+        /**
+         * Returns timings and byte counters of the verification or {@code null} if they were not
+         * requested via {@link Builder#setStatisticsEnabled(boolean)}.
+         */
+        public Statistics getStatistics() {
+            return mStatistics;
+        }
+
         private void mergeFrom(V1SchemeVerifier.Result source) {
             mVerifiedUsingV1Scheme = source.verified;
             mErrors.addAll(source.getErrors());
@@ -698,6 +902,83 @@ public class ApkVerifier {
             return false;
         }
 
+        /**
+         * Timings and byte counters of an APK verification.
+         *
+         * <p>Durations of a phase include the durations of phases performed as part of it. For
+         * example, {@link Phase#CERTIFICATES} overlaps with signing block phases and
+         * {@link Phase#CENTRAL_DIRECTORY} overlaps with {@link Phase#ANDROID_MANIFEST}.
+         */
+        public static class Statistics {
+            private final VerificationStatistics mStatistics;
+            private final long mTotalDurationNanos;
+
+            private Statistics(VerificationStatistics statistics, long totalDurationNanos) {
+                mStatistics = statistics;
+                mTotalDurationNanos = totalDurationNanos;
+            }
+
+            /**
+             * Returns the wall-clock duration (in nanoseconds) of the whole verification.
+             */
+            public long getTotalDurationNanos() {
+                return mTotalDurationNanos;
+            }
+
+            /**
+             * Returns the wall-clock duration (in nanoseconds) of the provided phase or {@code 0}
+             * if the phase was not performed.
+             */
+            public long getDurationNanos(Phase phase) {
+                return mStatistics.getPhaseDurationNanos(phase);
+            }
+
+            /**
+             * Returns the number of bytes of APK contents digested to verify APK Signing Block
+             * based signatures. Contents are digested once per verified signature scheme.
+             */
+            public long getContentBytesDigested() {
+                return mStatistics.getContentBytesDigested();
+            }
+
+            /**
+             * Returns the number of chunks in which APK contents were digested.
+             */
+            public int getContentChunksDigested() {
+                return mStatistics.getContentChunksDigested();
+            }
+
+            /**
+             * Returns the number of threads which digested APK contents.
+             */
+            public int getContentDigestThreads() {
+                return mStatistics.getContentDigestThreads();
+            }
+
+            /**
+             * Returns the number of JAR entries digested to verify JAR signatures.
+             */
+            public int getJarEntriesDigested() {
+                return mStatistics.getJarEntriesDigested();
+            }
+
+            /**
+             * Returns the uncompressed size (in bytes) of JAR entries digested to verify JAR
+             * signatures.
+             */
+            public long getJarEntryBytesInflated() {
+                return mStatistics.getJarEntryBytesInflated();
+            }
+
+            /**
+             * Returns the number of X.509 certificates parsed. Certificates already parsed by an
+             * earlier verification are not parsed again.
+             */
+            public int getCertificatesParsed() {
+                return mStatistics.getCertificatesParsed();
+            }
+        }
+
         /**
          * Information about a JAR signer associated with the APK's signature.
          */
@@ -1253,6 +1534,91 @@ public class ApkVerifier {
                 "Missing APK Signature Scheme v2 signature required for target sandbox version"
                         + " %1$d"),
 
+        /**
+         * APK is signed by a signer whose certificate is not among the allowed signer
+         * certificates, see {@link Builder#setAllowedSignerCertificateDigests(Collection)}.
+         *
+         * <ul>
+         * <li>Parameter 1: SHA-256 digest of the signer's certificate, hex-encoded
+         *     ({@code String})</li>
+         * </ul>
+         */
+        SIGNER_CERTIFICATE_NOT_ALLOWED("Signer certificate not allowed. SHA-256 digest: %1$s"),
+
+        /**
+         * APK set (e.g., {@code .apks} archive) contains no APKs.
+         */
+        APK_SET_EMPTY("No APKs in APK set"),
+
+        /**
+         * APKs of an APK set are signed by different signers, see {@link ApkSetVerifier}.
+         *
+         * <ul>
+         * <li>Parameter 1: name of the APK in the APK set ({@code String})</li>
+         * <li>Parameter 2: name of the APK whose signers it was compared to ({@code String})</li>
+         * </ul>
+         */
+        APK_SET_SIGNERS_MISMATCH("Signer certificates of %1$s differ from those of %2$s"),
+
+        /**
+         * APKs of an APK set have different signing certificate lineages, see
+         * {@link ApkSetVerifier}.
+         *
+         * <ul>
+         * <li>Parameter 1: name of the APK in the APK set ({@code String})</li>
+         * <li>Parameter 2: name of the APK whose lineage it was compared to ({@code String})</li>
+         * </ul>
+         */
+        APK_SET_LINEAGE_MISMATCH(
+                "Signing certificate lineage of %1$s differs from that of %2$s"),
+
+        /**
+         * ZIP Central Directory has more records than allowed, see
+         * {@link Builder#setMaxCentralDirectoryEntries(int)}.
+         *
+         * <ul>
+         * <li>Parameter 1: number of records ({@code Integer})</li>
+         * <li>Parameter 2: maximum number of records ({@code Integer})</li>
+         * </ul>
+         */
+        CENTRAL_DIRECTORY_ENTRY_LIMIT_EXCEEDED(
+                "ZIP Central Directory has %1$d records, more than the limit of %2$d"),
+
+        /**
+         * More data was inflated from ZIP entries than allowed, see
+         * {@link Builder#setMaxInflatedBytes(long)}. Verification was aborted.
+         *
+         * <ul>
+         * <li>Parameter 1: maximum number of inflated bytes ({@code Long})</li>
+         * <li>Parameter 2: name of the entry being inflated ({@code String})</li>
+         * </ul>
+         */
+        INFLATED_SIZE_LIMIT_EXCEEDED(
+                "Inflated ZIP entries exceed the limit of %1$d bytes while inflating %2$s"),
+
+        /**
+         * A ZIP entry inflates to more than allowed relative to its compressed size, see
+         * {@link Builder#setMaxInflateRatio(int)}. Verification was aborted.
+         *
+         * <ul>
+         * <li>Parameter 1: name of the entry ({@code String})</li>
+         * <li>Parameter 2: maximum ratio of inflated to compressed size ({@code Integer})</li>
+         * <li>Parameter 3: compressed size of the entry in bytes ({@code Long})</li>
+         * </ul>
+         */
+        INFLATE_RATIO_LIMIT_EXCEEDED(
+                "%1$s inflates by more than %2$d:1 from %3$d compressed bytes"),
+
+        /**
+         * Verification took longer than allowed, see
+         * {@link Builder#setMaxVerificationTimeMillis(long)}. Verification was aborted.
+         *
+         * <ul>
+         * <li>Parameter 1: maximum duration of verification in milliseconds ({@code Long})</li>
+         * </ul>
+         */
+        VERIFICATION_TIME_LIMIT_EXCEEDED("Verification exceeded the time limit of %1$d ms"),
+
         /**
          * APK which is both JAR-signed and signed using APK Signature Scheme v2 contains a JAR
          * signature from this signer, but does not contain an APK Signature Scheme v2 signature
@@ -1741,6 +2107,35 @@ public class ApkVerifier {
         }
     }
 
+    /**
+     * Phases of APK verification whose durations are reported by {@link Result.Statistics}.
+     */
+    public static enum Phase {
+        /** Locating the ZIP End of Central Directory and Central Directory. */
+        ZIP_SECTIONS,
+
+        /** Parsing the ZIP Central Directory. */
+        CENTRAL_DIRECTORY,
+
+        /** Reading and decoding the binary AndroidManifest.xml. */
+        ANDROID_MANIFEST,
+
+        /** Locating and parsing the APK Signature Scheme v3 block and verifying its signatures. */
+        V3_SIGNING_BLOCK,
+
+        /** Locating and parsing the APK Signature Scheme v2 block and verifying its signatures. */
+        V2_SIGNING_BLOCK,
+
+        /** Digesting APK contents protected by APK Signing Block based signatures. */
+        CONTENT_DIGEST,
+
+        /** Reading, inflating and digesting JAR entries protected by JAR signatures. */
+        V1_ENTRY_DIGESTS,
+
+        /** Parsing X.509 certificates. */
+        CERTIFICATES,
+    }
+
     /**
      * {@link Issue} with associated parameters. {@link #toString()} produces a readable formatted
      * form.
@@ -1821,6 +2216,53 @@ public class ApkVerifier {
         }
     }
 
+    /**
+     * Inclusive range of Android platform versions (API Levels) for which to check whether an APK
+     * verifies, see {@link ApkVerifier#verify(List)}.
+     */
+    public static class PlatformVersionRange {
+        private final int mMin;
+        private final int mMax;
+
+        private PlatformVersionRange(int min, int max) {
+            if (min < 0) {
+                throw new IllegalArgumentException("min must not be negative: " + min);
+            }
+            if (min > max) {
+                throw new IllegalArgumentException("min (" + min + ") > max (" + max + ")");
+            }
+            mMin = min;
+            mMax = max;
+        }
+
+        /**
+         * Returns the range of platform versions from {@code min} to {@code max}, inclusive.
+         */
+        public static PlatformVersionRange fromTo(int min, int max) {
+            return new PlatformVersionRange(min, max);
+        }
+
+        /**
+         * Returns the range of platform versions from {@code min} onwards.
+         */
+        public static PlatformVersionRange from(int min) {
+            return new PlatformVersionRange(min, Integer.MAX_VALUE);
+        }
+
+        public int getMin() {
+            return mMin;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return (mMax == Integer.MAX_VALUE) ? mMin + "+" : mMin + "-" + mMax;
+        }
+    }
+
     /**
      * Builder of {@link ApkVerifier} instances.
      *
@@ -1835,6 +2277,13 @@ public class ApkVerifier {
 
         private Integer mMinSdkVersion;
         private int mMaxSdkVersion = Integer.MAX_VALUE;
+        private boolean mStatisticsEnabled;
+        private RunnablesExecutor mExecutor = RunnablesExecutor.SINGLE_THREADED;
+        private Collection<byte[]> mAllowedSignerCertificateDigests;
+        private int mMaxCentralDirectoryEntries;
+        private long mMaxInflatedBytes;
+        private int mMaxInflateRatio;
+        private long mMaxVerificationTimeMillis;
 
         /**
          * Constructs a new {@code Builder} for verifying the provided APK file.
@@ -1894,6 +2343,131 @@ public class ApkVerifier {
             return this;
         }
 
+        /**
+         * Sets whether verification results should include per-phase timings and byte counters,
+         * available via {@link Result#getStatistics()}. By default, statistics are not collected.
+         */
+        public Builder setStatisticsEnabled(boolean enabled) {
+            mStatisticsEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the executor used to digest the contents of the APK when verifying APK Signing Block
+         * based signatures. Multi-threaded executors speed up verification of large APKs. By
+         * default, contents are digested on the thread invoking {@link ApkVerifier#verify()}.
+         */
+        public Builder setRunnablesExecutor(RunnablesExecutor executor) {
+            if (executor == null) {
+                throw new NullPointerException("executor == null");
+            }
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the SHA-256 digests of the encoded certificates which the APK's signers are allowed
+         * to have. The signers are checked as soon as their certificates are known, before the
+         * APK's contents or JAR entries are digested, so that APKs from other signers are rejected
+         * with {@link Issue#SIGNER_CERTIFICATE_NOT_ALLOWED} at a fraction of the cost of a full
+         * verification. By default, any signer is allowed.
+         *
+         * @param sha256Digests digests of the allowed certificates or {@code null} to allow any
+         *        signer
+         */
+        public Builder setAllowedSignerCertificateDigests(Collection<byte[]> sha256Digests) {
+            mAllowedSignerCertificateDigests =
+                    (sha256Digests != null) ? new ArrayList<>(sha256Digests) : null;
+            return this;
+        }
+
+        /**
+         * Allows the APK's signers to have any of the certificates in the provided lineage, in
+         * the same way as {@link #setAllowedSignerCertificateDigests(Collection)}. This replaces
+         * any previously allowed certificates.
+         */
+        public Builder setAllowedSigningCertificateLineage(SigningCertificateLineage lineage) {
+            if (lineage == null) {
+                throw new NullPointerException("lineage == null");
+            }
+            List<byte[]> sha256Digests = new ArrayList<>(lineage.size());
+            try {
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                for (X509Certificate cert : lineage.getCertificatesInLineage()) {
+                    sha256Digests.add(sha256.digest(cert.getEncoded()));
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 is not available", e);
+            } catch (CertificateEncodingException e) {
+                throw new IllegalArgumentException("Failed to encode lineage certificate", e);
+            }
+            return setAllowedSignerCertificateDigests(sha256Digests);
+        }
+
+        /**
+         * Sets the maximum number of records in the APK's ZIP Central Directory. APKs with more
+         * records fail verification with {@link Issue#CENTRAL_DIRECTORY_ENTRY_LIMIT_EXCEEDED}
+         * before the records are parsed. By default, the number of records is not limited.
+         *
+         * @param maxEntries maximum number of records or {@code 0} for no limit
+         */
+        public Builder setMaxCentralDirectoryEntries(int maxEntries) {
+            if (maxEntries < 0) {
+                throw new IllegalArgumentException("maxEntries: " + maxEntries);
+            }
+            mMaxCentralDirectoryEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total number of bytes which may be inflated from the APK's ZIP entries
+         * during a verification, including entries which several Central Directory records point
+         * to. Inflation is aborted as soon as the limit is exceeded and verification fails with
+         * {@link Issue#INFLATED_SIZE_LIMIT_EXCEEDED}. By default, inflation is not limited.
+         *
+         * @param maxBytes maximum number of inflated bytes or {@code 0} for no limit
+         */
+        public Builder setMaxInflatedBytes(long maxBytes) {
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("maxBytes: " + maxBytes);
+            }
+            mMaxInflatedBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum ratio of the inflated size of a ZIP entry to its compressed size.
+         * Inflation of an entry is aborted as soon as it exceeds the ratio and verification fails
+         * with {@link Issue#INFLATE_RATIO_LIMIT_EXCEEDED}. Deflate cannot exceed a ratio of about
+         * 1032:1, so only lower ratios have an effect. By default, the ratio is not limited.
+         *
+         * @param maxRatio maximum ratio or {@code 0} for no limit
+         */
+        public Builder setMaxInflateRatio(int maxRatio) {
+            if (maxRatio < 0) {
+                throw new IllegalArgumentException("maxRatio: " + maxRatio);
+            }
+            mMaxInflateRatio = maxRatio;
+            return this;
+        }
+
+        /**
+         * Sets the maximum duration of a verification. The duration is checked while the APK's
+         * contents are digested and its ZIP entries are inflated, and verification fails with
+         * {@link Issue#VERIFICATION_TIME_LIMIT_EXCEEDED} once it is exceeded. The duration of
+         * {@link ApkVerifier#verify(List)} is that of verifying all of the ranges. By default, the
+         * duration is not limited.
+         *
+         * @param maxTimeMillis maximum duration in milliseconds or {@code 0} for no limit
+         */
+        public Builder setMaxVerificationTimeMillis(long maxTimeMillis) {
+            if (maxTimeMillis < 0) {
+                throw new IllegalArgumentException("maxTimeMillis: " + maxTimeMillis);
+            }
+            mMaxVerificationTimeMillis = maxTimeMillis;
+            return this;
+        }
+
         /**
          * Returns an {@link ApkVerifier} initialized according to the configuration of this
          * builder.
@@ -1903,7 +2477,16 @@ public class ApkVerifier {
                     mApkFile,
                     mApkDataSource,
                     mMinSdkVersion,
-                    mMaxSdkVersion);
+                    mMaxSdkVersion,
+                    mStatisticsEnabled,
+                    mExecutor,
+                    (mAllowedSignerCertificateDigests != null)
+                            ? new SignerCertificateAllowlist(mAllowedSignerCertificateDigests)
+                            : null,
+                    mMaxCentralDirectoryEntries,
+                    mMaxInflatedBytes,
+                    mMaxInflateRatio,
+                    mMaxVerificationTimeMillis);
         }
     }
 }
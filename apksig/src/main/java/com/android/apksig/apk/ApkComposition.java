@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.apk;
+
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Breakdown of the contents of an APK by kind of entry: DEX files, native libraries per ABI,
+ * assets, resources and everything else.
+ *
+ * <p>The breakdown is built from the APK's ZIP Central Directory alone, plus the fixed-size part
+ * of the Local File Header of each uncompressed native library to find where its data starts. No
+ * entry is read or decompressed, so the cost does not depend on the size of the APK's entries.
+ */
+public class ApkComposition {
+
+    /** Root-level DEX files: {@code classes.dex}, {@code classes2.dex}, etc. */
+    private static final Pattern DEX_ENTRY_NAME = Pattern.compile("classes[0-9]*\\.dex");
+
+    private static final String NATIVE_LIBRARY_ENTRY_NAME_PREFIX = "lib/";
+    private static final String NATIVE_LIBRARY_ENTRY_NAME_SUFFIX = ".so";
+    private static final String ASSET_ENTRY_NAME_PREFIX = "assets/";
+    private static final String RESOURCE_ENTRY_NAME_PREFIX = "res/";
+    private static final String RESOURCE_TABLE_ENTRY_NAME = "resources.arsc";
+
+    private final Section mTotal = new Section();
+    private final Section mDex = new Section();
+    private final Map<String, Section> mNativeLibraries = new TreeMap<>();
+    private final Section mAssets = new Section();
+    private final Section mResources = new Section();
+    private final Section mOther = new Section();
+    private final List<String> mNativeLibrariesRequiringExtraction = new ArrayList<>();
+
+    private ApkComposition() {}
+
+    /**
+     * Returns the composition of the provided APK.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     */
+    public static ApkComposition of(DataSource apk) throws IOException, ApkFormatException {
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        List<CentralDirectoryRecord> cdRecords =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+
+        ApkComposition composition = new ApkComposition();
+        for (CentralDirectoryRecord cdRecord : cdRecords) {
+            String entryName = cdRecord.getName();
+            boolean compressed =
+                    cdRecord.getCompressionMethod() != ZipUtils.COMPRESSION_METHOD_STORED;
+            Section section;
+            String abi = getNativeLibraryAbi(entryName);
+            if (abi != null) {
+                section = composition.mNativeLibraries.get(abi);
+                if (section == null) {
+                    section = new Section();
+                    composition.mNativeLibraries.put(abi, section);
+                }
+                // extractNativeLibs="false" requires native libraries to be stored uncompressed
+                // and page-aligned, so that they can be mapped directly from the APK.
+                boolean loadableFromApk = false;
+                if (!compressed) {
+                    long dataStartOffset;
+                    try {
+                        dataStartOffset =
+                                LocalFileRecord.getDataStartOffsetInArchive(
+                                        apk, cdRecord, cdStartOffset);
+                    } catch (ZipFormatException e) {
+                        throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
+                    }
+                    loadableFromApk =
+                            (dataStartOffset
+                                    % ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES)
+                                    == 0;
+                }
+                if (!loadableFromApk) {
+                    composition.mNativeLibrariesRequiringExtraction.add(entryName);
+                }
+            } else if (DEX_ENTRY_NAME.matcher(entryName).matches()) {
+                section = composition.mDex;
+            } else if (entryName.startsWith(ASSET_ENTRY_NAME_PREFIX)) {
+                section = composition.mAssets;
+            } else if ((entryName.startsWith(RESOURCE_ENTRY_NAME_PREFIX))
+                    || (entryName.equals(RESOURCE_TABLE_ENTRY_NAME))) {
+                section = composition.mResources;
+            } else {
+                section = composition.mOther;
+            }
+            section.add(cdRecord, compressed);
+            composition.mTotal.add(cdRecord, compressed);
+        }
+        return composition;
+    }
+
+    /**
+     * Returns the ABI of the native library stored under the provided entry name, e.g.,
+     * {@code arm64-v8a} for {@code lib/arm64-v8a/libfoo.so}, or {@code null} if the entry is not
+     * a native library.
+     */
+    private static String getNativeLibraryAbi(String entryName) {
+        if ((!entryName.startsWith(NATIVE_LIBRARY_ENTRY_NAME_PREFIX))
+                || (!entryName.endsWith(NATIVE_LIBRARY_ENTRY_NAME_SUFFIX))) {
+            return null;
+        }
+        int abiEnd = entryName.indexOf('/', NATIVE_LIBRARY_ENTRY_NAME_PREFIX.length());
+        if (abiEnd <= NATIVE_LIBRARY_ENTRY_NAME_PREFIX.length()) {
+            return null;
+        }
+        return entryName.substring(NATIVE_LIBRARY_ENTRY_NAME_PREFIX.length(), abiEnd);
+    }
+
+    /**
+     * Returns all entries of the APK, excluding directory entries.
+     */
+    public Section getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the root-level DEX files of the APK.
+     */
+    public Section getDex() {
+        return mDex;
+    }
+
+    /**
+     * Returns the native libraries ({@code lib/<abi>/*.so}) of the APK by ABI, sorted by ABI.
+     */
+    public Map<String, Section> getNativeLibraries() {
+        return Collections.unmodifiableMap(mNativeLibraries);
+    }
+
+    /**
+     * Returns the entries under {@code assets/}.
+     */
+    public Section getAssets() {
+        return mAssets;
+    }
+
+    /**
+     * Returns the entries under {@code res/} and the resource table.
+     */
+    public Section getResources() {
+        return mResources;
+    }
+
+    /**
+     * Returns the entries which are neither DEX files, native libraries, assets nor resources,
+     * e.g., the manifest and the JAR signature files.
+     */
+    public Section getOther() {
+        return mOther;
+    }
+
+    /**
+     * Returns the names of native libraries which are compressed or whose data is not aligned on
+     * a 4 KB page boundary. These must be extracted at install time and prevent the APK from
+     * being installed with {@code android:extractNativeLibs="false"}.
+     */
+    public List<String> getNativeLibrariesRequiringExtraction() {
+        return Collections.unmodifiableList(mNativeLibrariesRequiringExtraction);
+    }
+
+    /**
+     * Entry count and sizes of a group of entries of an APK.
+     */
+    public static class Section {
+        private int mEntryCount;
+        private int mStoredEntryCount;
+        private long mCompressedSizeBytes;
+        private long mUncompressedSizeBytes;
+
+        private void add(CentralDirectoryRecord cdRecord, boolean compressed) {
+            mEntryCount++;
+            if (!compressed) {
+                mStoredEntryCount++;
+            }
+            mCompressedSizeBytes += cdRecord.getCompressedSize();
+            mUncompressedSizeBytes += cdRecord.getUncompressedSize();
+        }
+
+        public int getEntryCount() {
+            return mEntryCount;
+        }
+
+        /**
+         * Returns the number of entries stored uncompressed.
+         */
+        public int getStoredEntryCount() {
+            return mStoredEntryCount;
+        }
+
+        /**
+         * Returns the size of the entries' data in the APK. Stored entries count with their
+         * uncompressed size.
+         */
+        public long getCompressedSizeBytes() {
+            return mCompressedSizeBytes;
+        }
+
+        public long getUncompressedSizeBytes() {
+            return mUncompressedSizeBytes;
+        }
+
+        /**
+         * Returns the compressed size of the entries divided by their uncompressed size, or
+         * {@code 1} if the entries are empty.
+         */
+        public double getCompressionRatio() {
+            return (mUncompressedSizeBytes == 0)
+                    ? 1 : ((double) mCompressedSizeBytes) / mUncompressedSizeBytes;
+        }
+    }
+}
@@ -25,9 +25,15 @@ import com.android.apksig.internal.asn1.Asn1BerParser;
 import com.android.apksig.internal.asn1.Asn1DecodingException;
 import com.android.apksig.internal.asn1.Asn1DerEncoder;
 import com.android.apksig.internal.asn1.Asn1EncodingException;
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.ChunkDigestEvent;
+import com.android.apksig.internal.jfr.JfrEvents;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.ChainedDataSource;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.SignerCryptoCache;
+import com.android.apksig.internal.util.VerificationBudget;
+import com.android.apksig.internal.util.VerificationStatistics;
 import com.android.apksig.internal.util.VerityTreeBuilder;
 import com.android.apksig.internal.x509.RSAPublicKey;
 import com.android.apksig.internal.x509.SubjectPublicKeyInfo;
@@ -39,6 +45,7 @@ import com.android.apksig.util.DataSources;
 
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -60,6 +67,7 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -72,7 +80,7 @@ import java.util.stream.Collectors;
 public class ApkSigningBlockUtils {
 
     private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
-    private static final long CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
+    static final long CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
     public static final int ANDROID_COMMON_PAGE_ALIGNMENT_BYTES = 4096;
     public static final byte[] APK_SIGNING_BLOCK_MAGIC =
           new byte[] {
@@ -142,6 +150,30 @@ public class ApkSigningBlockUtils {
 
 
 
+    /**
+     * Adds an error to the {@code result} if a signer's certificate is not in the provided
+     * allowlist. Does nothing if the allowlist is {@code null}.
+     */
+    public static void checkSignersAllowed(
+            SignerCertificateAllowlist signerCertificateAllowlist, Result result) {
+        if (signerCertificateAllowlist == null) {
+            return;
+        }
+        for (Result.SignerInfo signer : result.signers) {
+            if (signer.certs.isEmpty()) {
+                continue;
+            }
+            String disallowedCertDigest =
+                    signerCertificateAllowlist.findDisallowedCertificate(
+                            Collections.singletonList(signer.certs.get(0)));
+            if (disallowedCertDigest != null) {
+                result.addError(
+                        ApkVerifier.Issue.SIGNER_CERTIFICATE_NOT_ALLOWED, disallowedCertDigest);
+                return;
+            }
+        }
+    }
+
     /**
      * Verifies integrity of the APK outside of the APK Signing Block by computing digests of the
      * APK and comparing them against the digests listed in APK Signing Block. The expected digests
@@ -182,14 +214,23 @@ public class ApkSigningBlockUtils {
         eocd.position(eocdSavedPos);
         ZipUtils.setZipEocdCentralDirectoryOffset(modifiedEocd, beforeApkSigningBlock.size());
         Map<ContentDigestAlgorithm, byte[]> actualContentDigests;
+        long startNanos = VerificationStatistics.startPhase();
         try {
-            actualContentDigests =
-                    computeContentDigests(
-                            executor,
-                            contentDigestAlgorithms,
-                            beforeApkSigningBlock,
-                            centralDir,
-                            new ByteBufferDataSource(modifiedEocd));
+            actualContentDigests = new HashMap<>();
+            Set<ContentDigestAlgorithm> digestAlgorithmsToCompute =
+                    VerificationDigestCache.getContentDigests(
+                            contentDigestAlgorithms, actualContentDigests);
+            if (!digestAlgorithmsToCompute.isEmpty()) {
+                Map<ContentDigestAlgorithm, byte[]> computedContentDigests =
+                        computeContentDigests(
+                                executor,
+                                digestAlgorithmsToCompute,
+                                beforeApkSigningBlock,
+                                centralDir,
+                                new ByteBufferDataSource(modifiedEocd));
+                VerificationDigestCache.putContentDigests(computedContentDigests);
+                actualContentDigests.putAll(computedContentDigests);
+            }
             // Special checks for the verity algorithm requirements.
             if (actualContentDigests.containsKey(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
                 if ((beforeApkSigningBlock.size() % ANDROID_COMMON_PAGE_ALIGNMENT_BYTES != 0)) {
@@ -209,6 +250,7 @@ public class ApkSigningBlockUtils {
         } catch (DigestException e) {
             throw new RuntimeException("Failed to compute content digests", e);
         }
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.CONTENT_DIGEST, startNanos);
         if (!contentDigestAlgorithms.equals(actualContentDigests.keySet())) {
             throw new RuntimeException(
                     "Mismatch between sets of requested and computed content digests"
@@ -422,11 +464,13 @@ public class ApkSigningBlockUtils {
                 .filter(a -> a == ContentDigestAlgorithm.CHUNKED_SHA256 ||
                              a == ContentDigestAlgorithm.CHUNKED_SHA512)
                 .collect(Collectors.toSet());
-        computeOneMbChunkContentDigests(
-                executor,
-                oneMbChunkBasedAlgorithm,
-                new DataSource[] { beforeCentralDir, centralDir, eocd },
-                contentDigests);
+        if (!oneMbChunkBasedAlgorithm.isEmpty()) {
+            computeOneMbChunkContentDigests(
+                    executor,
+                    oneMbChunkBasedAlgorithm,
+                    new DataSource[] { beforeCentralDir, centralDir, eocd },
+                    contentDigests);
+        }
 
         if (digestAlgorithms.contains(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
             computeApkVerityDigest(beforeCentralDir, centralDir, eocd, contentDigests);
@@ -496,6 +540,7 @@ public class ApkSigningBlockUtils {
             long inputOffset = 0;
             long inputRemaining = input.size();
             while (inputRemaining > 0) {
+                VerificationBudget.checkTime();
                 int chunkSize =
                         (int) Math.min(inputRemaining, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
                 setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
@@ -542,7 +587,7 @@ public class ApkSigningBlockUtils {
             Set<ContentDigestAlgorithm> digestAlgorithms,
             DataSource[] contents,
             Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
-            throws NoSuchAlgorithmException, DigestException {
+            throws IOException, NoSuchAlgorithmException, DigestException {
         long chunkCountLong = 0;
         for (DataSource input : contents) {
             chunkCountLong +=
@@ -559,7 +604,22 @@ public class ApkSigningBlockUtils {
         }
 
         ChunkSupplier chunkSupplier = new ChunkSupplier(contents);
-        executor.execute(() -> new ChunkDigester(chunkSupplier, chunkDigestsList));
+        AtomicInteger digesterCount = new AtomicInteger();
+        String apkPath = ApkEventContext.getApkPath();
+        long deadlineNanos = VerificationBudget.getDeadlineNanos();
+        executor.execute(() -> {
+            digesterCount.incrementAndGet();
+            return new ChunkDigester(chunkSupplier, chunkDigestsList, apkPath, deadlineNanos);
+        });
+        if (chunkSupplier.isCancelled()) {
+            VerificationBudget.checkTime();
+            throw new InterruptedIOException("Interrupted while computing content digests");
+        }
+        long contentSize = 0;
+        for (DataSource input : contents) {
+            contentSize += input.size();
+        }
+        VerificationStatistics.recordContentDigest(contentSize, chunkCount, digesterCount.get());
 
         // Compute and write out final digest for each algorithm.
         for (ChunkDigests chunkDigests : chunkDigestsList) {
@@ -570,12 +630,12 @@ public class ApkSigningBlockUtils {
         }
     }
 
-    private static class ChunkDigests {
-        private final ContentDigestAlgorithm algorithm;
-        private final int digestOutputSize;
-        private final byte[] concatOfDigestsOfChunks;
+    static class ChunkDigests {
+        final ContentDigestAlgorithm algorithm;
+        final int digestOutputSize;
+        final byte[] concatOfDigestsOfChunks;
 
-        private ChunkDigests(ContentDigestAlgorithm algorithm, int chunkCount) {
+        ChunkDigests(ContentDigestAlgorithm algorithm, int chunkCount) {
             this.algorithm = algorithm;
             digestOutputSize = this.algorithm.getChunkDigestOutputSizeBytes();
             concatOfDigestsOfChunks = new byte[1 + 4 + chunkCount * digestOutputSize];
@@ -586,11 +646,11 @@ public class ApkSigningBlockUtils {
             setUnsignedInt32LittleEndian(chunkCount, concatOfDigestsOfChunks, 1);
         }
 
-        private MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
+        MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
             return MessageDigest.getInstance(algorithm.getJcaMessageDigestAlgorithm());
         }
 
-        private int getOffset(int chunkIndex) {
+        int getOffset(int chunkIndex) {
             return 1 + 4 + chunkIndex * digestOutputSize;
         }
     }
@@ -603,10 +663,18 @@ public class ApkSigningBlockUtils {
         private final List<ChunkDigests> chunkDigests;
         private final List<MessageDigest> messageDigests;
         private final DataSink mdSink;
-
-        private ChunkDigester(ChunkSupplier dataSupplier, List<ChunkDigests> chunkDigests) {
+        private final String apkPath;
+        private final long deadlineNanos;
+
+        private ChunkDigester(
+                ChunkSupplier dataSupplier,
+                List<ChunkDigests> chunkDigests,
+                String apkPath,
+                long deadlineNanos) {
             this.dataSupplier = dataSupplier;
             this.chunkDigests = chunkDigests;
+            this.apkPath = apkPath;
+            this.deadlineNanos = deadlineNanos;
             messageDigests = new ArrayList<>(chunkDigests.size());
             for (ChunkDigests chunkDigest : chunkDigests) {
                 try {
@@ -623,10 +691,23 @@ public class ApkSigningBlockUtils {
             byte[] chunkContentPrefix = new byte[5];
             chunkContentPrefix[0] = (byte) 0xa5;
 
+            ChunkDigestEvent event = (JfrEvents.isEnabled()) ? new ChunkDigestEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            int chunkCount = 0;
+            long byteCount = 0;
+            boolean completed = false;
             try {
                 for (ChunkSupplier.Chunk chunk = dataSupplier.get();
                      chunk != null;
                      chunk = dataSupplier.get()) {
+                    if ((Thread.currentThread().isInterrupted())
+                            || (VerificationBudget.isPastDeadline(deadlineNanos))) {
+                        // Leave the remaining chunks undigested. The thread which submitted the
+                        // work reports the interruption or timeout once all workers have stopped.
+                        return;
+                    }
                     long size = chunk.dataSource.size();
                     if (size > CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES) {
                         throw new RuntimeException("Chunk size greater than expected: " + size);
@@ -638,6 +719,8 @@ public class ApkSigningBlockUtils {
 
                     // Then update with the chunk data.
                     chunk.dataSource.feed(0, size, mdSink);
+                    chunkCount++;
+                    byteCount += size;
 
                     // Now finalize chunk for all algorithms.
                     for (int i = 0; i < chunkDigests.size(); i++) {
@@ -653,9 +736,36 @@ public class ApkSigningBlockUtils {
                         }
                     }
                 }
+                completed = true;
             } catch (IOException | DigestException e) {
                 throw new RuntimeException(e);
+            } finally {
+                if (!completed) {
+                    // Stop the other workers: the digests cannot be completed anyway
+                    dataSupplier.cancel();
+                }
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.apkPath = apkPath;
+                        event.algorithms = getAlgorithmNames();
+                        event.chunks = chunkCount;
+                        event.bytes = byteCount;
+                        event.commit();
+                    }
+                }
+            }
+        }
+
+        private String getAlgorithmNames() {
+            StringBuilder result = new StringBuilder();
+            for (ChunkDigests chunkDigest : chunkDigests) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                result.append(chunkDigest.algorithm);
             }
+            return result.toString();
         }
     }
 
@@ -670,6 +780,7 @@ public class ApkSigningBlockUtils {
         private final int[] chunkCounts;
         private final int totalChunkCount;
         private final AtomicInteger nextIndex;
+        private volatile boolean cancelled;
 
         private ChunkSupplier(DataSource[] dataSources) {
             this.dataSources = dataSources;
@@ -699,6 +810,9 @@ public class ApkSigningBlockUtils {
          */
         @Override
         public ChunkSupplier.Chunk get() {
+            if (cancelled) {
+                return null;
+            }
             int index = nextIndex.getAndIncrement();
             if (index < 0 || index >= totalChunkCount) {
                 return null;
@@ -728,6 +842,20 @@ public class ApkSigningBlockUtils {
                     index);
         }
 
+        /**
+         * Stops supplying chunks. Subsequent calls to {@link #get()} return {@code null}.
+         */
+        private void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns {@code true} if not all chunks were supplied because of {@link #cancel()}.
+         */
+        private boolean isCancelled() {
+            return cancelled;
+        }
+
         static class Chunk {
             private final int chunkIndex;
             private final DataSource dataSource;
@@ -742,6 +870,29 @@ public class ApkSigningBlockUtils {
     private static void computeApkVerityDigest(DataSource beforeCentralDir, DataSource centralDir,
             DataSource eocd, Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
             throws IOException, NoSuchAlgorithmException {
+        VerityTreeBuilder builder = newApkVerityTreeBuilder();
+        byte[] rootHash = builder.generateVerityTreeRootHash(beforeCentralDir, centralDir, eocd);
+        outputContentDigests.put(
+                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256,
+                encodeApkVerityDigest(
+                        rootHash, beforeCentralDir.size() + centralDir.size() + eocd.size()));
+    }
+
+    /**
+     * Returns a new {@link VerityTreeBuilder} for computing the
+     * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256} content digest.
+     */
+    static VerityTreeBuilder newApkVerityTreeBuilder() throws NoSuchAlgorithmException {
+        // Use 0s as salt for now.  This also needs to be consistent in the fsverify header for
+        // kernel to use.
+        return new VerityTreeBuilder(new byte[8]);
+    }
+
+    /**
+     * Returns the {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256} content digest of the
+     * provided APK verity tree root hash and length of digested data.
+     */
+    static byte[] encodeApkVerityDigest(byte[] rootHash, long size) {
         // FORMAT:
         // OFFSET       DATA TYPE  DESCRIPTION
         // * @+0  bytes uint8[32]  Merkle tree root hash of SHA-256
@@ -751,22 +902,16 @@ public class ApkSigningBlockUtils {
                 Long.SIZE / Byte.SIZE;
         ByteBuffer encoded = ByteBuffer.allocate(backBufferSize);
         encoded.order(ByteOrder.LITTLE_ENDIAN);
-
-        // Use 0s as salt for now.  This also needs to be consistent in the fsverify header for
-        // kernel to use.
-        VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8]);
-        byte[] rootHash = builder.generateVerityTreeRootHash(beforeCentralDir, centralDir, eocd);
         encoded.put(rootHash);
-        encoded.putLong(beforeCentralDir.size() + centralDir.size() + eocd.size());
-
-        outputContentDigests.put(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256, encoded.array());
+        encoded.putLong(size);
+        return encoded.array();
     }
 
-    private static long getChunkCount(long inputSize, long chunkSize) {
+    static long getChunkCount(long inputSize, long chunkSize) {
         return (inputSize + chunkSize - 1) / chunkSize;
     }
 
-    private static void setUnsignedInt32LittleEndian(int value, byte[] result, int offset) {
+    static void setUnsignedInt32LittleEndian(int value, byte[] result, int offset) {
         result[offset] = (byte) (value & 0xff);
         result[offset + 1] = (byte) ((value >> 8) & 0xff);
         result[offset + 2] = (byte) ((value >> 16) & 0xff);
@@ -780,6 +925,14 @@ public class ApkSigningBlockUtils {
             encodedPublicKey = publicKey.getEncoded();
             // if the key is an RSA key check for a negative modulus
             if ("RSA".equals(publicKey.getAlgorithm())) {
+                // The same signer keys are re-encoded over and over again when verifying batches
+                // of APKs, so the outcome of the checks below is cached.
+                SignerCryptoCache cryptoCache = SignerCryptoCache.getDefault();
+                byte[] cachedEncodedPublicKey = cryptoCache.getEncodedPublicKey(encodedPublicKey);
+                if (cachedEncodedPublicKey != null) {
+                    return cachedEncodedPublicKey;
+                }
+                byte[] originalEncodedPublicKey = encodedPublicKey;
                 try {
                     // Parse the encoded public key into the separate elements of the
                     // SubjectPublicKeyInfo to obtain the SubjectPublicKey.
@@ -819,6 +972,7 @@ public class ApkSigningBlockUtils {
                                 reencodedSubjectPublicKey);
                         encodedPublicKey = Asn1DerEncoder.encode(subjectPublicKeyInfo);
                     }
+                    cryptoCache.putEncodedPublicKey(originalEncodedPublicKey, encodedPublicKey);
                 } catch (Asn1DecodingException | Asn1EncodingException e) {
                     System.out.println("Caught a exception encoding the public key: " + e);
                     e.printStackTrace();
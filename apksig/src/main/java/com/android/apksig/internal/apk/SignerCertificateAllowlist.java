@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Set of signer certificates, identified by the SHA-256 digests of their encoded form, which an
+ * APK must be signed with.
+ *
+ * <p>Scheme verifiers check signers against the allowlist as soon as their certificates have been
+ * parsed, before the APK's contents or JAR entries are digested, so that APKs from other signers
+ * are rejected at a fraction of the cost of a full verification.
+ */
+public class SignerCertificateAllowlist {
+    private final Set<String> mSha256Digests;
+
+    /**
+     * Constructs an allowlist of the certificates with the provided SHA-256 digests of their
+     * encoded form.
+     */
+    public SignerCertificateAllowlist(Collection<byte[]> sha256Digests) {
+        mSha256Digests = new HashSet<>(sha256Digests.size());
+        for (byte[] sha256Digest : sha256Digests) {
+            mSha256Digests.add(ApkSigningBlockUtils.toHex(sha256Digest));
+        }
+    }
+
+    /**
+     * Returns the hex-encoded SHA-256 digest of the first of the provided signer certificates
+     * which is not in this allowlist, or {@code null} if all of them are.
+     */
+    public String findDisallowedCertificate(Collection<X509Certificate> signerCerts) {
+        for (X509Certificate signerCert : signerCerts) {
+            String sha256Digest = getSha256Digest(signerCert);
+            if (!mSha256Digests.contains(sha256Digest)) {
+                return sha256Digest;
+            }
+        }
+        return null;
+    }
+
+    private static String getSha256Digest(X509Certificate cert) {
+        try {
+            return ApkSigningBlockUtils.toHex(
+                    MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        } catch (CertificateEncodingException e) {
+            throw new RuntimeException("Failed to encode signer certificate", e);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import static com.android.apksig.internal.apk.ApkSigningBlockUtils.getChunkCount;
+import static com.android.apksig.internal.apk.ApkSigningBlockUtils.setUnsignedInt32LittleEndian;
+
+import com.android.apksig.internal.util.ByteBufferDataSource;
+import com.android.apksig.internal.util.MessageDigestSink;
+import com.android.apksig.internal.util.VerityTreeBuilder;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link DataSink} which computes the digests of 1 MB chunks of an APK, and of the 4 KB chunks
+ * which make up the bottom level of its APK verity tree, while the APK streams through it,
+ * starting with the first byte of the APK.
+ *
+ * <p>Where the APK Signing Block starts, and thus where the last chunk of the ZIP entries ends, is
+ * only known once the end of the APK has arrived. Chunks are thus digested as though they were 1
+ * MB long. {@link #getContentDigests(DataSource, DataSource, ByteBuffer)} reuses the digests of
+ * the chunks which lie in full before the APK Signing Block and only digests the rest of the
+ * APK, which is at most 1 MB plus the ZIP Central Directory and End of Central Directory. APK
+ * verity requires the APK Signing Block to start at a 4 KB boundary, so all of the APK verity
+ * tree's chunks before it are reused. Their digests take up 32 bytes per 4 KB of the APK.
+ */
+public class StreamingContentDigester implements DataSink {
+    private static final int CHUNK_SIZE_BYTES =
+            (int) ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+    private static final int VERITY_DIGEST_OUTPUT_SIZE_BYTES =
+            ContentDigestAlgorithm.VERITY_CHUNKED_SHA256.getChunkDigestOutputSizeBytes();
+
+    private final ContentDigestAlgorithm[] mAlgorithms;
+    private final MessageDigest[] mMessageDigests;
+    private final byte[] mChunkContentPrefix = new byte[5];
+
+    /** Concatenated digests of full chunks digested so far, one array per algorithm. */
+    private final byte[][] mDigestsOfChunks;
+    private int mChunkCount;
+    private int mChunkBytesConsumed;
+
+    /** Builder of the APK verity tree or {@code null} if its digest is not computed. */
+    private final VerityTreeBuilder mVerityTreeBuilder;
+    /** 4 KB chunk of the APK verity tree being filled, if the input doesn't hold it in full. */
+    private final ByteBuffer mVerityChunk;
+    /** Concatenated digests of APK verity tree chunks digested so far. */
+    private byte[] mVerityDigestsOfChunks;
+    private int mVerityChunkCount;
+
+    /**
+     * Constructs a new digester for the provided algorithms, which must be 1 MB chunk based
+     * (i.e., {@link ContentDigestAlgorithm#CHUNKED_SHA256} or
+     * {@link ContentDigestAlgorithm#CHUNKED_SHA512}) or
+     * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256}.
+     */
+    public StreamingContentDigester(ContentDigestAlgorithm... algorithms)
+            throws NoSuchAlgorithmException {
+        List<ContentDigestAlgorithm> oneMbChunkBasedAlgorithms = new ArrayList<>();
+        VerityTreeBuilder verityTreeBuilder = null;
+        for (ContentDigestAlgorithm algorithm : algorithms) {
+            if ((algorithm == ContentDigestAlgorithm.CHUNKED_SHA256)
+                    || (algorithm == ContentDigestAlgorithm.CHUNKED_SHA512)) {
+                oneMbChunkBasedAlgorithms.add(algorithm);
+            } else if (algorithm == ContentDigestAlgorithm.VERITY_CHUNKED_SHA256) {
+                verityTreeBuilder = ApkSigningBlockUtils.newApkVerityTreeBuilder();
+            } else {
+                throw new IllegalArgumentException("Unsupported content digest: " + algorithm);
+            }
+        }
+        mAlgorithms =
+                oneMbChunkBasedAlgorithms.toArray(
+                        new ContentDigestAlgorithm[oneMbChunkBasedAlgorithms.size()]);
+        mMessageDigests = new MessageDigest[mAlgorithms.length];
+        mDigestsOfChunks = new byte[mAlgorithms.length][];
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            ContentDigestAlgorithm algorithm = mAlgorithms[i];
+            mMessageDigests[i] =
+                    MessageDigest.getInstance(algorithm.getJcaMessageDigestAlgorithm());
+            mDigestsOfChunks[i] = new byte[16 * algorithm.getChunkDigestOutputSizeBytes()];
+        }
+        mChunkContentPrefix[0] = (byte) 0xa5;
+        setUnsignedInt32LittleEndian(CHUNK_SIZE_BYTES, mChunkContentPrefix, 1);
+
+        mVerityTreeBuilder = verityTreeBuilder;
+        if (verityTreeBuilder != null) {
+            mVerityChunk = ByteBuffer.allocate(VerityTreeBuilder.CHUNK_SIZE);
+            mVerityDigestsOfChunks = new byte[256 * VERITY_DIGEST_OUTPUT_SIZE_BYTES];
+        } else {
+            mVerityChunk = null;
+        }
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset + length > buf.length)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", length: " + length + ", buf.length: " + buf.length);
+        }
+        if (mVerityTreeBuilder != null) {
+            consumeVerityChunks(ByteBuffer.wrap(buf, offset, length));
+        }
+        while (length > 0) {
+            if (mChunkBytesConsumed == 0) {
+                for (MessageDigest md : mMessageDigests) {
+                    md.update(mChunkContentPrefix);
+                }
+            }
+            int chunkSize = Math.min(length, CHUNK_SIZE_BYTES - mChunkBytesConsumed);
+            for (MessageDigest md : mMessageDigests) {
+                md.update(buf, offset, chunkSize);
+            }
+            offset += chunkSize;
+            length -= chunkSize;
+            mChunkBytesConsumed += chunkSize;
+            if (mChunkBytesConsumed == CHUNK_SIZE_BYTES) {
+                onChunk();
+            }
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) {
+        if (mVerityTreeBuilder != null) {
+            consumeVerityChunks(buf.duplicate());
+        }
+        while (buf.hasRemaining()) {
+            if (mChunkBytesConsumed == 0) {
+                for (MessageDigest md : mMessageDigests) {
+                    md.update(mChunkContentPrefix);
+                }
+            }
+            int chunkSize = Math.min(buf.remaining(), CHUNK_SIZE_BYTES - mChunkBytesConsumed);
+            int limit = buf.limit();
+            buf.limit(buf.position() + chunkSize);
+            for (MessageDigest md : mMessageDigests) {
+                buf.mark();
+                md.update(buf);
+                buf.reset();
+            }
+            buf.position(buf.limit());
+            buf.limit(limit);
+            mChunkBytesConsumed += chunkSize;
+            if (mChunkBytesConsumed == CHUNK_SIZE_BYTES) {
+                onChunk();
+            }
+        }
+    }
+
+    private void onChunk() {
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            int digestOutputSize = mAlgorithms[i].getChunkDigestOutputSizeBytes();
+            int digestOffset = mChunkCount * digestOutputSize;
+            if (digestOffset + digestOutputSize > mDigestsOfChunks[i].length) {
+                mDigestsOfChunks[i] =
+                        Arrays.copyOf(mDigestsOfChunks[i], mDigestsOfChunks[i].length * 2);
+            }
+            try {
+                mMessageDigests[i].digest(mDigestsOfChunks[i], digestOffset, digestOutputSize);
+            } catch (DigestException e) {
+                throw new RuntimeException("Failed to digest chunk #" + mChunkCount, e);
+            }
+        }
+        mChunkCount++;
+        mChunkBytesConsumed = 0;
+    }
+
+    /**
+     * Digests the APK verity tree chunks completed by the provided input. Chunks which the input
+     * holds in full are digested in place, the rest are collected in {@link #mVerityChunk}.
+     */
+    private void consumeVerityChunks(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            int limit = buf.limit();
+            if ((mVerityChunk.position() == 0)
+                    && (buf.remaining() >= VerityTreeBuilder.CHUNK_SIZE)) {
+                buf.limit(buf.position() + VerityTreeBuilder.CHUNK_SIZE);
+                onVerityChunk(buf);
+            } else {
+                buf.limit(buf.position() + Math.min(buf.remaining(), mVerityChunk.remaining()));
+                mVerityChunk.put(buf);
+                if (!mVerityChunk.hasRemaining()) {
+                    mVerityChunk.flip();
+                    onVerityChunk(mVerityChunk);
+                    mVerityChunk.clear();
+                }
+            }
+            buf.limit(limit);
+        }
+    }
+
+    private void onVerityChunk(ByteBuffer chunk) {
+        int digestOffset = mVerityChunkCount * VERITY_DIGEST_OUTPUT_SIZE_BYTES;
+        if (digestOffset + VERITY_DIGEST_OUTPUT_SIZE_BYTES > mVerityDigestsOfChunks.length) {
+            mVerityDigestsOfChunks =
+                    Arrays.copyOf(mVerityDigestsOfChunks, mVerityDigestsOfChunks.length * 2);
+        }
+        mVerityTreeBuilder.digestChunk(chunk, mVerityDigestsOfChunks, digestOffset);
+        mVerityChunkCount++;
+    }
+
+    /**
+     * Returns the content digests of the APK whose sections are provided, as computed by
+     * {@link ApkSigningBlockUtils#computeContentDigests}. Chunks which have not streamed through
+     * this digester are read from the provided sections.
+     *
+     * @param beforeApkSigningBlock APK contents before the APK Signing Block
+     * @param centralDir ZIP Central Directory
+     * @param eocd ZIP End of Central Directory, whose Central Directory offset will be treated as
+     *        pointing to the start of the APK Signing Block
+     */
+    public Map<ContentDigestAlgorithm, byte[]> getContentDigests(
+            DataSource beforeApkSigningBlock, DataSource centralDir, ByteBuffer eocd)
+            throws IOException {
+        long streamedChunkCount =
+                Math.min(mChunkCount, beforeApkSigningBlock.size() / CHUNK_SIZE_BYTES);
+        long streamedSize = streamedChunkCount * CHUNK_SIZE_BYTES;
+
+        ByteBuffer modifiedEocd = ByteBuffer.allocate(eocd.remaining());
+        modifiedEocd.order(ByteOrder.LITTLE_ENDIAN);
+        modifiedEocd.put(eocd.slice());
+        modifiedEocd.flip();
+        ZipUtils.setZipEocdCentralDirectoryOffset(modifiedEocd, beforeApkSigningBlock.size());
+        DataSource[] remainingContents =
+                new DataSource[] {
+                    beforeApkSigningBlock.slice(
+                            streamedSize, beforeApkSigningBlock.size() - streamedSize),
+                    centralDir,
+                    new ByteBufferDataSource(modifiedEocd)
+                };
+        long chunkCount = streamedChunkCount;
+        for (DataSource input : remainingContents) {
+            chunkCount += getChunkCount(input.size(), CHUNK_SIZE_BYTES);
+        }
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Input too long: " + chunkCount + " chunks");
+        }
+
+        Map<ContentDigestAlgorithm, byte[]> contentDigests = new HashMap<>();
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            ApkSigningBlockUtils.ChunkDigests chunkDigests =
+                    new ApkSigningBlockUtils.ChunkDigests(mAlgorithms[i], (int) chunkCount);
+            System.arraycopy(
+                    mDigestsOfChunks[i],
+                    0,
+                    chunkDigests.concatOfDigestsOfChunks,
+                    chunkDigests.getOffset(0),
+                    (int) streamedChunkCount * chunkDigests.digestOutputSize);
+            MessageDigest md;
+            try {
+                md = chunkDigests.createMessageDigest();
+            } catch (NoSuchAlgorithmException e) {
+                // Already instantiated by the constructor
+                throw new RuntimeException(e);
+            }
+            digestChunks(remainingContents, (int) streamedChunkCount, md, chunkDigests);
+            contentDigests.put(
+                    mAlgorithms[i], md.digest(chunkDigests.concatOfDigestsOfChunks));
+        }
+
+        // APK verity requires the APK Signing Block to be page aligned. If it is not, the digest
+        // is left for ApkSigningBlockUtils to compute and report.
+        if ((mVerityTreeBuilder != null)
+                && (beforeApkSigningBlock.size() % VerityTreeBuilder.CHUNK_SIZE == 0)) {
+            int streamedVerityChunkCount =
+                    (int) Math.min(
+                            mVerityChunkCount,
+                            beforeApkSigningBlock.size() / VerityTreeBuilder.CHUNK_SIZE);
+            byte[] rootHash =
+                    mVerityTreeBuilder.generateVerityTreeRootHash(
+                            mVerityDigestsOfChunks,
+                            streamedVerityChunkCount,
+                            beforeApkSigningBlock,
+                            centralDir,
+                            new ByteBufferDataSource(eocd.slice()));
+            contentDigests.put(
+                    ContentDigestAlgorithm.VERITY_CHUNKED_SHA256,
+                    ApkSigningBlockUtils.encodeApkVerityDigest(
+                            rootHash,
+                            beforeApkSigningBlock.size() + centralDir.size() + eocd.remaining()));
+        }
+        return contentDigests;
+    }
+
+    private static void digestChunks(
+            DataSource[] contents,
+            int firstChunkIndex,
+            MessageDigest md,
+            ApkSigningBlockUtils.ChunkDigests chunkDigests) throws IOException {
+        MessageDigestSink mdSink = new MessageDigestSink(new MessageDigest[] {md});
+        byte[] chunkContentPrefix = new byte[5];
+        chunkContentPrefix[0] = (byte) 0xa5;
+        int chunkIndex = firstChunkIndex;
+        for (DataSource input : contents) {
+            long inputOffset = 0;
+            long inputRemaining = input.size();
+            while (inputRemaining > 0) {
+                int chunkSize = (int) Math.min(inputRemaining, CHUNK_SIZE_BYTES);
+                setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
+                md.update(chunkContentPrefix);
+                try {
+                    input.feed(inputOffset, chunkSize, mdSink);
+                } catch (IOException e) {
+                    throw new IOException("Failed to read chunk #" + chunkIndex, e);
+                }
+                try {
+                    md.digest(
+                            chunkDigests.concatOfDigestsOfChunks,
+                            chunkDigests.getOffset(chunkIndex),
+                            chunkDigests.digestOutputSize);
+                } catch (DigestException e) {
+                    throw new RuntimeException("Failed to digest chunk #" + chunkIndex, e);
+                }
+                inputOffset += chunkSize;
+                inputRemaining -= chunkSize;
+                chunkIndex++;
+            }
+        }
+    }
+}
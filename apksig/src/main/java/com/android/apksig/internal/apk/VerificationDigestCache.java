@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Digests computed while verifying one APK, reused when the same APK is verified again for another
+ * range of Android platform versions.
+ *
+ * <p>Digests are cached in the instance installed for the current thread using
+ * {@link #setCurrent(VerificationDigestCache)}, which must only be installed while the same APK is
+ * being verified. The static methods do nothing when no instance is installed, so that call sites
+ * do not need to check whether digests are being cached.
+ *
+ * <p>The APK contents digested for APK Signature Scheme v2 and v3 are the same, so their content
+ * digests are shared. JAR entry digests are keyed by entry name and JCA digest algorithm.
+ */
+public class VerificationDigestCache {
+    private static final ThreadLocal<VerificationDigestCache> sCurrent = new ThreadLocal<>();
+
+    private final Map<ContentDigestAlgorithm, byte[]> mContentDigests = new HashMap<>();
+    private final Map<String, Map<String, byte[]>> mJarEntryDigests = new HashMap<>();
+
+    /**
+     * Installs the provided cache as the one used by verification performed on the current thread
+     * and returns the previously installed cache.
+     *
+     * @param cache cache or {@code null} to stop caching
+     */
+    public static VerificationDigestCache setCurrent(VerificationDigestCache cache) {
+        VerificationDigestCache previous = sCurrent.get();
+        if (cache != null) {
+            sCurrent.set(cache);
+        } else {
+            sCurrent.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Puts the cached content digests of the provided algorithms into {@code outputDigests} and
+     * returns the algorithms whose digests still need to be computed.
+     */
+    public static Set<ContentDigestAlgorithm> getContentDigests(
+            Set<ContentDigestAlgorithm> algorithms,
+            Map<ContentDigestAlgorithm, byte[]> outputDigests) {
+        VerificationDigestCache cache = sCurrent.get();
+        if (cache == null) {
+            return algorithms;
+        }
+        Set<ContentDigestAlgorithm> missing = new HashSet<>(algorithms.size());
+        for (ContentDigestAlgorithm algorithm : algorithms) {
+            byte[] digest = cache.mContentDigests.get(algorithm);
+            if (digest != null) {
+                outputDigests.put(algorithm, digest);
+            } else {
+                missing.add(algorithm);
+            }
+        }
+        return missing;
+    }
+
+    public static void putContentDigests(Map<ContentDigestAlgorithm, byte[]> digests) {
+        VerificationDigestCache cache = sCurrent.get();
+        if (cache != null) {
+            cache.mContentDigests.putAll(digests);
+        }
+    }
+
+    /**
+     * Puts the cached digests of the JAR entry into {@code outputDigests}, keyed by JCA digest
+     * algorithm, and returns the JCA digest algorithms whose digests still need to be computed.
+     */
+    public static Set<String> getJarEntryDigests(
+            String entryName,
+            Collection<String> jcaDigestAlgorithms,
+            Map<String, byte[]> outputDigests) {
+        VerificationDigestCache cache = sCurrent.get();
+        Map<String, byte[]> entryDigests = (cache != null)
+                ? cache.mJarEntryDigests.get(entryName) : null;
+        Set<String> missing = new HashSet<>(jcaDigestAlgorithms.size());
+        for (String jcaDigestAlgorithm : jcaDigestAlgorithms) {
+            byte[] digest = (entryDigests != null) ? entryDigests.get(jcaDigestAlgorithm) : null;
+            if (digest != null) {
+                outputDigests.put(jcaDigestAlgorithm, digest);
+            } else {
+                missing.add(jcaDigestAlgorithm);
+            }
+        }
+        return missing;
+    }
+
+    public static void putJarEntryDigest(
+            String entryName, String jcaDigestAlgorithm, byte[] digest) {
+        VerificationDigestCache cache = sCurrent.get();
+        if (cache != null) {
+            cache.mJarEntryDigests
+                    .computeIfAbsent(entryName, k -> new HashMap<>())
+                    .put(jcaDigestAlgorithm, digest);
+        }
+    }
+}
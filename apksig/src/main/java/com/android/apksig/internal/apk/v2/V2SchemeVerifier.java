@@ -16,6 +16,7 @@
 
 package com.android.apksig.internal.apk.v2;
 
+import com.android.apksig.ApkVerifier;
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
@@ -23,9 +24,10 @@ import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.SignatureInfo;
+import com.android.apksig.internal.apk.SignerCertificateAllowlist;
 import com.android.apksig.internal.util.ByteBufferUtils;
-import com.android.apksig.internal.util.X509CertificateUtils;
-import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
+import com.android.apksig.internal.util.SignerCryptoCache;
+import com.android.apksig.internal.util.VerificationStatistics;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
@@ -34,7 +36,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -43,7 +44,6 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.AlgorithmParameterSpec;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -94,15 +94,19 @@ public abstract class V2SchemeVerifier {
             Map<Integer, String> supportedApkSigSchemeNames,
             Set<Integer> foundSigSchemeIds,
             int minSdkVersion,
-            int maxSdkVersion)
+            int maxSdkVersion,
+            SignerCertificateAllowlist signerCertificateAllowlist)
             throws IOException, ApkFormatException, NoSuchAlgorithmException,
             ApkSigningBlockUtils.SignatureNotFoundException {
         ApkSigningBlockUtils.Result result = new ApkSigningBlockUtils.Result(
                 ApkSigningBlockUtils.VERSION_APK_SIGNATURE_SCHEME_V2);
+        long startNanos = VerificationStatistics.startPhase();
         SignatureInfo signatureInfo =
                 ApkSigningBlockUtils.findSignature(apk, zipSections,
                         APK_SIGNATURE_SCHEME_V2_BLOCK_ID , result);
 
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.V2_SIGNING_BLOCK, startNanos);
+
         DataSource beforeApkSigningBlock = apk.slice(0, signatureInfo.apkSigningBlockOffset);
         DataSource centralDir =
                 apk.slice(
@@ -119,6 +123,7 @@ public abstract class V2SchemeVerifier {
                 foundSigSchemeIds,
                 minSdkVersion,
                 maxSdkVersion,
+                signerCertificateAllowlist,
                 result);
         return result;
     }
@@ -127,7 +132,8 @@ public abstract class V2SchemeVerifier {
      * Verifies the provided APK's v2 signatures and outputs the results into the provided
      * {@code result}. APK is considered verified only if there are no errors reported in the
      * {@code result}. See {@link #verify(RunnablesExecutor, DataSource, ApkUtils.ZipSections, Map,
-     * Set, int, int)} for more information about the contract of this method.
+     * Set, int, int, SignerCertificateAllowlist)} for more information about the contract of this
+     * method.
      *
      * @param result result populated by this method with interesting information about the APK,
      *        such as information about signers, and verification errors and warnings.
@@ -142,9 +148,11 @@ public abstract class V2SchemeVerifier {
             Set<Integer> foundSigSchemeIds,
             int minSdkVersion,
             int maxSdkVersion,
+            SignerCertificateAllowlist signerCertificateAllowlist,
             ApkSigningBlockUtils.Result result)
             throws IOException, NoSuchAlgorithmException {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
+        long startNanos = VerificationStatistics.startPhase();
         parseSigners(
                 apkSignatureSchemeV2Block,
                 contentDigestsToVerify,
@@ -153,6 +161,11 @@ public abstract class V2SchemeVerifier {
                 minSdkVersion,
                 maxSdkVersion,
                 result);
+        VerificationStatistics.recordPhase(ApkVerifier.Phase.V2_SIGNING_BLOCK, startNanos);
+        if (result.containsErrors()) {
+            return;
+        }
+        ApkSigningBlockUtils.checkSignersAllowed(signerCertificateAllowlist, result);
         if (result.containsErrors()) {
             return;
         }
@@ -249,6 +262,7 @@ public abstract class V2SchemeVerifier {
             int minSdkVersion,
             int maxSdkVersion)
                     throws ApkFormatException, NoSuchAlgorithmException {
+        SignerCryptoCache cryptoCache = SignerCryptoCache.getDefault();
         ByteBuffer signedData = ApkSigningBlockUtils.getLengthPrefixedSlice(signerBlock);
         byte[] signedDataBytes = new byte[signedData.remaining()];
         signedData.get(signedDataBytes);
@@ -306,23 +320,21 @@ public abstract class V2SchemeVerifier {
             String keyAlgorithm = signatureAlgorithm.getJcaKeyAlgorithm();
             PublicKey publicKey;
             try {
-                publicKey =
-                        KeyFactory.getInstance(keyAlgorithm).generatePublic(
-                                new X509EncodedKeySpec(publicKeyBytes));
+                publicKey = cryptoCache.getPublicKey(keyAlgorithm, publicKeyBytes);
             } catch (Exception e) {
                 result.addError(Issue.V2_SIG_MALFORMED_PUBLIC_KEY, e);
                 return;
             }
             try {
-                Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                sig.initVerify(publicKey);
-                if (jcaSignatureAlgorithmParams != null) {
-                    sig.setParameter(jcaSignatureAlgorithmParams);
-                }
+                Signature sig = cryptoCache.acquireVerifier(
+                        jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
                 signedData.position(0);
                 sig.update(signedData);
                 byte[] sigBytes = signature.signature;
-                if (!sig.verify(sigBytes)) {
+                boolean verified = sig.verify(sigBytes);
+                cryptoCache.releaseVerifier(
+                        sig, jcaSignatureAlgorithm, jcaSignatureAlgorithmParams, publicKey);
+                if (!verified) {
                     result.addError(Issue.V2_SIG_DID_NOT_VERIFY, signatureAlgorithm);
                     return;
                 }
@@ -348,7 +360,9 @@ public abstract class V2SchemeVerifier {
             byte[] encodedCert = ApkSigningBlockUtils.readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
-                certificate = X509CertificateUtils.generateCertificate(encodedCert, certFactory);
+                // The cache wraps the cert so that the result's getEncoded returns exactly the
+                // original encoded form.
+                certificate = cryptoCache.getCertificate(encodedCert, certFactory);
             } catch (CertificateException e) {
                 result.addError(
                         Issue.V2_SIG_MALFORMED_CERTIFICATE,
@@ -357,11 +371,6 @@ public abstract class V2SchemeVerifier {
                         e);
                 return;
             }
-            // Wrap the cert so that the result's getEncoded returns exactly the original encoded
-            // form. Without this, getEncoded may return a different form from what was stored in
-            // the signature. This is because some X509Certificate(Factory) implementations
-            // re-encode certificates.
-            certificate = new GuaranteedEncodedFormX509Certificate(certificate, encodedCert);
             result.certs.add(certificate);
         }
 
@@ -21,6 +21,9 @@ import com.android.apksig.internal.asn1.ber.BerDataValueFormatException;
 import com.android.apksig.internal.asn1.ber.BerDataValueReader;
 import com.android.apksig.internal.asn1.ber.BerEncoding;
 import com.android.apksig.internal.asn1.ber.ByteBufferBerDataValueReader;
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.Asn1ParseEvent;
+import com.android.apksig.internal.jfr.JfrEvents;
 import com.android.apksig.internal.util.ByteBufferUtils;
 
 import java.lang.reflect.Field;
@@ -59,16 +62,37 @@ public final class Asn1BerParser {
      */
     public static <T> T parse(ByteBuffer encoded, Class<T> containerClass)
             throws Asn1DecodingException {
-        BerDataValue containerDataValue;
-        try {
-            containerDataValue = new ByteBufferBerDataValueReader(encoded).readDataValue();
-        } catch (BerDataValueFormatException e) {
-            throw new Asn1DecodingException("Failed to decode top-level data value", e);
+        Asn1ParseEvent event = (JfrEvents.isEnabled()) ? new Asn1ParseEvent() : null;
+        if (event != null) {
+            event.begin();
         }
-        if (containerDataValue == null) {
-            throw new Asn1DecodingException("Empty input");
+        int startPosition = encoded.position();
+        boolean succeeded = false;
+        try {
+            BerDataValue containerDataValue;
+            try {
+                containerDataValue = new ByteBufferBerDataValueReader(encoded).readDataValue();
+            } catch (BerDataValueFormatException e) {
+                throw new Asn1DecodingException("Failed to decode top-level data value", e);
+            }
+            if (containerDataValue == null) {
+                throw new Asn1DecodingException("Empty input");
+            }
+            T result = parse(containerDataValue, containerClass);
+            succeeded = true;
+            return result;
+        } finally {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.apkPath = ApkEventContext.getApkPath();
+                    event.structure = containerClass.getName();
+                    event.encodedSize = encoded.position() - startPosition;
+                    event.succeeded = succeeded;
+                    event.commit();
+                }
+            }
         }
-        return parse(containerDataValue, containerClass);
     }
 
     /**
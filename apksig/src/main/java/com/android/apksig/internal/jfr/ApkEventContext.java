@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+/**
+ * Path of the APK being processed by the current thread, for attributing JFR events emitted deep
+ * inside verification and signing to the APK.
+ */
+public abstract class ApkEventContext {
+    private static final ThreadLocal<String> sApkPath = new ThreadLocal<>();
+
+    private ApkEventContext() {}
+
+    /**
+     * Sets the path of the APK processed by the current thread and returns the previously set
+     * path, to be restored using {@link #restore(String)} once the APK has been processed.
+     *
+     * @param apkPath path of the APK or {@code null} if the APK is not backed by a file
+     */
+    public static String enter(String apkPath) {
+        String previous = sApkPath.get();
+        sApkPath.set(apkPath);
+        return previous;
+    }
+
+    /**
+     * Restores the path returned by {@link #enter(String)}.
+     */
+    public static void restore(String previousApkPath) {
+        if (previousApkPath != null) {
+            sApkPath.set(previousApkPath);
+        } else {
+            sApkPath.remove();
+        }
+    }
+
+    /**
+     * Returns the path of the APK processed by the current thread or {@code null} if unknown.
+     */
+    public static String getApkPath() {
+        return sApkPath.get();
+    }
+}
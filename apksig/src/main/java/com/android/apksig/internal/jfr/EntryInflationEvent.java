@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event spanning the output of the uncompressed data of a ZIP entry.
+ */
+@Name("com.android.apksig.EntryInflation")
+@Label("APK Entry Inflation")
+@Description("Reading and, if compressed, inflating the data of an APK entry")
+@Category({"Android", "apksig"})
+public class EntryInflationEvent extends Event {
+    @Label("APK Path")
+    public String apkPath;
+
+    @Label("Entry Name")
+    public String entryName;
+
+    @Label("Compression Method")
+    public String compressionMethod;
+
+    @Label("Compressed Size")
+    @DataAmount
+    public long compressedSize;
+
+    @Label("Uncompressed Size")
+    @DataAmount
+    public long uncompressedSize;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event spanning the computation of one level of an APK verity tree. All levels of a tree are
+ * computed in the same pass over the APK, so the events of a tree span the same period.
+ */
+@Name("com.android.apksig.VerityTreeLevel")
+@Label("APK Verity Tree Level")
+@Description("Digesting of one level of an APK verity tree")
+@Category({"Android", "apksig"})
+public class VerityTreeLevelEvent extends Event {
+    @Label("APK Path")
+    public String apkPath;
+
+    @Label("Algorithm")
+    public String algorithm;
+
+    @Label("Level")
+    @Description("Level of the tree, 0 being the level digesting the APK itself")
+    public int level;
+
+    @Label("Input Size")
+    @DataAmount
+    public long inputSize;
+
+    @Label("Output Size")
+    @DataAmount
+    public long outputSize;
+}
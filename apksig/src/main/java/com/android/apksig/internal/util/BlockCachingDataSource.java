@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link DataSource} which serves small reads from an LRU cache of aligned blocks of the delegate
+ * data source, so that the many small reads of parsing an APK's structure (End of Central
+ * Directory search, Central Directory, Local File Headers, APK Signing Block) cost a few block
+ * reads from slow or remote storage rather than one read each.
+ *
+ * <p>Missing blocks spanned by a read are read from the delegate in one read. When a cache miss
+ * immediately follows a miss of the preceding block, the following blocks are read ahead in the
+ * same delegate read. Reads larger than a block, such as the streaming
+ * {@link #feed(long, long, DataSink) feeds} of content digesting, bypass the cache so that they
+ * neither evict cached blocks nor are slowed down by copying.
+ *
+ * <p>The delegate's contents and size must not change while this data source is in use. Slices
+ * share the cache of the data source they were obtained from. This data source is safe for use by
+ * multiple threads if the delegate is.
+ */
+public class BlockCachingDataSource implements DataSource {
+
+    /** Default size (in bytes) of cached blocks. */
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    /** Default maximum number of cached blocks. */
+    public static final int DEFAULT_MAX_CACHED_BLOCKS = 64;
+
+    /** Default number of blocks read ahead on a sequential cache miss. */
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    private final BlockCache mCache;
+    private final long mOffset;
+    private final long mSize;
+
+    public BlockCachingDataSource(DataSource delegate) {
+        this(delegate, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_CACHED_BLOCKS, DEFAULT_READ_AHEAD_BLOCKS);
+    }
+
+    /**
+     * Constructs a new {@code BlockCachingDataSource}.
+     *
+     * @param delegate data source whose blocks are cached
+     * @param blockSize size (in bytes) of each block. Blocks start at multiples of the block size
+     *        in {@code delegate}.
+     * @param maxCachedBlocks maximum number of blocks cached at once
+     * @param readAheadBlocks number of blocks read ahead on a sequential cache miss, or {@code 0}
+     *        to only read the missed block
+     */
+    public BlockCachingDataSource(
+            DataSource delegate, int blockSize, int maxCachedBlocks, int readAheadBlocks) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size: " + blockSize);
+        }
+        if (maxCachedBlocks <= 0) {
+            throw new IllegalArgumentException("max cached blocks: " + maxCachedBlocks);
+        }
+        if (readAheadBlocks < 0) {
+            throw new IllegalArgumentException("read-ahead blocks: " + readAheadBlocks);
+        }
+        mCache = new BlockCache(delegate, blockSize, maxCachedBlocks, readAheadBlocks);
+        mOffset = 0;
+        mSize = delegate.size();
+    }
+
+    private BlockCachingDataSource(BlockCache cache, long offset, long size) {
+        mCache = cache;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        if ((offset == 0) && (size == mSize)) {
+            return this;
+        }
+        return new BlockCachingDataSource(mCache, mOffset + offset, size);
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return;
+        }
+        if (size > mCache.mBlockSize) {
+            mCache.mDelegate.feed(mOffset + offset, size, sink);
+            return;
+        }
+        sink.consume(getByteBuffer(offset, (int) size));
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return;
+        }
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (size > mCache.mBlockSize) {
+            mCache.mDelegate.copyTo(mOffset + offset, size, dest);
+            return;
+        }
+        long position = mOffset + offset;
+        long endPosition = position + size;
+        long lastBlockIndex = (endPosition - 1) / mCache.mBlockSize;
+        while (position < endPosition) {
+            long blockIndex = position / mCache.mBlockSize;
+            byte[] block = mCache.getBlock(blockIndex, lastBlockIndex);
+            int offsetInBlock = (int) (position - blockIndex * mCache.mBlockSize);
+            int chunkSize = (int) Math.min(endPosition - position, block.length - offsetInBlock);
+            dest.put(block, offsetInBlock, chunkSize);
+            position += chunkSize;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+
+    /**
+     * LRU cache of the blocks of a data source, shared by a {@link BlockCachingDataSource} and its
+     * slices.
+     */
+    private static class BlockCache {
+        private final DataSource mDelegate;
+        private final long mDelegateSize;
+        private final int mBlockSize;
+        private final int mMaxCachedBlocks;
+        private final int mReadAheadBlocks;
+        private final Map<Long, byte[]> mBlocks;
+        private long mLastMissedBlockIndex = -2;
+
+        private BlockCache(
+                DataSource delegate, int blockSize, int maxCachedBlocks, int readAheadBlocks) {
+            mDelegate = delegate;
+            mDelegateSize = delegate.size();
+            mBlockSize = blockSize;
+            mMaxCachedBlocks = maxCachedBlocks;
+            // Blocks read ahead must not evict each other
+            mReadAheadBlocks = Math.min(readAheadBlocks, maxCachedBlocks - 1);
+            mBlocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > maxCachedBlocks;
+                }
+            };
+        }
+
+        /**
+         * Returns the contents of the block with the provided index, which is shorter than the
+         * block size only if it is the last block. On a cache miss, the missing blocks up to
+         * {@code lastNeededBlockIndex} are read in the same delegate read.
+         */
+        private synchronized byte[] getBlock(long blockIndex, long lastNeededBlockIndex)
+                throws IOException {
+            byte[] block = mBlocks.get(blockIndex);
+            if (block != null) {
+                return block;
+            }
+
+            long blockCount = (mDelegateSize + mBlockSize - 1) / mBlockSize;
+            int readAheadBlocks =
+                    (blockIndex == mLastMissedBlockIndex + 1) ? mReadAheadBlocks : 0;
+            mLastMissedBlockIndex = blockIndex;
+            long endBlockIndex =
+                    Math.min(
+                            Math.max(blockIndex + 1 + readAheadBlocks, lastNeededBlockIndex + 1),
+                            Math.min(blockIndex + mMaxCachedBlocks, blockCount));
+            // Don't read ahead into blocks which are cached already
+            for (long i = blockIndex + 1; i < endBlockIndex; i++) {
+                if (mBlocks.containsKey(i)) {
+                    endBlockIndex = i;
+                    break;
+                }
+            }
+            long readOffset = blockIndex * mBlockSize;
+            long readEndOffset = Math.min(endBlockIndex * mBlockSize, mDelegateSize);
+            ByteBuffer read =
+                    mDelegate.getByteBuffer(readOffset, (int) (readEndOffset - readOffset));
+
+            for (long i = blockIndex; i < endBlockIndex; i++) {
+                byte[] readBlock =
+                        new byte[(int) Math.min(mBlockSize, readEndOffset - i * mBlockSize)];
+                read.get(readBlock);
+                mBlocks.put(i, readBlock);
+                if (i == blockIndex) {
+                    block = readBlock;
+                }
+            }
+            if (endBlockIndex > blockIndex + 1) {
+                mLastMissedBlockIndex = endBlockIndex - 1;
+            }
+            return block;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DataSource} which reads the contents of an HTTP resource, such as an APK in an artifact
+ * store, using HTTP Range requests. Only the requested ranges are transferred, so checks which
+ * read just the ZIP End of Central Directory, Central Directory and APK Signing Block of an APK do
+ * not download the rest of it.
+ *
+ * <p>Every {@code copyTo} and {@code getByteBuffer} invocation issues one request. Large
+ * {@link #feed(long, long, DataSink) feeds} are split into segments which are requested in
+ * parallel, ahead of the segment being output. Small reads should be served through a
+ * {@link BlockCachingDataSource}, which coalesces them into fewer, larger requests.
+ *
+ * <p>The resource's contents and size must not change while this data source is in use. The server
+ * must support range requests. This data source is safe for use by multiple threads.
+ */
+public class HttpRangeDataSource implements DataSource {
+
+    /** Default size (in bytes) of the segments into which large feeds are split. */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+    /** Default maximum number of segments requested in parallel. */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int MAX_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final URL mUrl;
+    private final int mSegmentSize;
+    private final int mParallelism;
+    private final ThreadPoolExecutor mExecutor;
+    private final long mOffset;
+    private final long mSize;
+
+    public HttpRangeDataSource(URL url) throws IOException {
+        this(url, DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Constructs a new {@code HttpRangeDataSource}, requesting the size of the resource from the
+     * server.
+     *
+     * @param url HTTP or HTTPS URL of the resource
+     * @param segmentSize size (in bytes) of the segments into which large feeds are split
+     * @param parallelism maximum number of segments requested in parallel by a feed
+     *
+     * @throws IOException if the size of the resource could not be obtained
+     */
+    public HttpRangeDataSource(URL url, int segmentSize, int parallelism) throws IOException {
+        if (url == null) {
+            throw new NullPointerException("url == null");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size: " + segmentSize);
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism: " + parallelism);
+        }
+        mUrl = url;
+        mSegmentSize = segmentSize;
+        mParallelism = parallelism;
+        // Idle threads exit, so that instances need not be closed
+        mExecutor =
+                new ThreadPoolExecutor(
+                        parallelism,
+                        parallelism,
+                        5,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        r -> {
+                            Thread thread = new Thread(r, "apksig-http-range");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mOffset = 0;
+        mSize = requestSize();
+    }
+
+    private HttpRangeDataSource(HttpRangeDataSource source, long offset, long size) {
+        mUrl = source.mUrl;
+        mSegmentSize = source.mSegmentSize;
+        mParallelism = source.mParallelism;
+        mExecutor = source.mExecutor;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        if ((offset == 0) && (size == mSize)) {
+            return this;
+        }
+        return new HttpRangeDataSource(this, mOffset + offset, size);
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return;
+        }
+        long position = mOffset + offset;
+        long segmentCount = (size + mSegmentSize - 1) / mSegmentSize;
+        if (segmentCount == 1) {
+            sink.consume(requestRange(position, (int) size));
+            return;
+        }
+
+        // Keep up to mParallelism segment requests in flight, outputting segments in order
+        long endPosition = position + size;
+        long nextRequestPosition = position;
+        Deque<Future<ByteBuffer>> requests = new ArrayDeque<>(mParallelism);
+        try {
+            while ((nextRequestPosition < endPosition) || (!requests.isEmpty())) {
+                while ((nextRequestPosition < endPosition) && (requests.size() < mParallelism)) {
+                    long segmentPosition = nextRequestPosition;
+                    int segmentSize =
+                            (int) Math.min(mSegmentSize, endPosition - segmentPosition);
+                    requests.add(
+                            mExecutor.submit(() -> requestRange(segmentPosition, segmentSize)));
+                    nextRequestPosition += segmentSize;
+                }
+                sink.consume(getSegment(requests.remove()));
+            }
+        } finally {
+            for (Future<ByteBuffer> request : requests) {
+                request.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return;
+        }
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        dest.put(requestRange(mOffset + offset, size));
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        return requestRange(mOffset + offset, size);
+    }
+
+    private static ByteBuffer getSegment(Future<ByteBuffer> request) throws IOException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for range request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Range request failed", cause);
+        }
+    }
+
+    /**
+     * Returns the size of the resource as reported by the server in response to a {@code HEAD}
+     * request.
+     */
+    private long requestSize() throws IOException {
+        HttpURLConnection connection = openConnection();
+        boolean succeeded = false;
+        try {
+            connection.setRequestMethod("HEAD");
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException(
+                        "Failed to obtain size of " + mUrl + ": HTTP " + responseCode);
+            }
+            long size = connection.getContentLengthLong();
+            if (size < 0) {
+                throw new IOException("Failed to obtain size of " + mUrl + ": no Content-Length");
+            }
+            succeeded = true;
+            return size;
+        } finally {
+            // The response to a HEAD request has no body, so the connection can be kept alive
+            if (!succeeded) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code size} bytes of the resource starting at {@code position}, obtained
+     * through a range request. The returned buffer's position is {@code 0} and its limit is
+     * {@code size}.
+     */
+    private ByteBuffer requestRange(long position, int size) throws IOException {
+        long lastPosition = position + size - 1;
+        HttpURLConnection connection = openConnection();
+        boolean succeeded = false;
+        try {
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + lastPosition);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException(
+                        "Range request for bytes " + position + "-" + lastPosition + " of " + mUrl
+                                + " failed: HTTP " + responseCode);
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            if ((contentRange == null)
+                    || (!contentRange.startsWith(
+                            "bytes " + position + "-" + lastPosition + "/"))) {
+                throw new IOException(
+                        "Unexpected Content-Range for bytes " + position + "-" + lastPosition
+                                + " of " + mUrl + ": " + contentRange);
+            }
+
+            byte[] result = new byte[size];
+            try (InputStream in = connection.getInputStream()) {
+                int resultOffset = 0;
+                while (resultOffset < size) {
+                    int chunkSize =
+                            in.read(
+                                    result,
+                                    resultOffset,
+                                    Math.min(size - resultOffset, MAX_READ_BUFFER_SIZE));
+                    if (chunkSize == -1) {
+                        throw new EOFException(
+                                "Premature end of range " + position + "-" + lastPosition + " of "
+                                        + mUrl + " after " + resultOffset + " bytes");
+                    }
+                    resultOffset += chunkSize;
+                }
+            }
+            succeeded = true;
+            return ByteBuffer.wrap(result);
+        } finally {
+            // Once the whole response body has been read, closing its stream returns the
+            // connection to the keep-alive cache for use by subsequent requests. Connections
+            // in any other state cannot be reused and are closed.
+            if (!succeeded) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Range responses must not be transparently decompressed
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+}
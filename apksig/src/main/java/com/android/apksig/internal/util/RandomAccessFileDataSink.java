@@ -101,4 +101,32 @@ public class RandomAccessFileDataSink implements DataSink {
             mPosition += length;
         }
     }
+
+    /**
+     * Outputs {@code size} bytes of the provided file channel starting at {@code offset} in that
+     * channel. The data is transferred directly between the two files, without being copied into
+     * user space where the platform supports it.
+     *
+     * @throws IOException if the source channel ends before {@code size} bytes were transferred
+     */
+    void consume(FileChannel src, long offset, long size) throws IOException {
+        if (size == 0) {
+            return;
+        }
+
+        synchronized (mFile) {
+            // FileChannel.transferTo writes starting at the target channel's current position
+            mFileChannel.position(mPosition);
+            long remaining = size;
+            while (remaining > 0) {
+                long transferred = src.transferTo(offset, remaining, mFileChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected EOF encountered");
+                }
+                offset += transferred;
+                remaining -= transferred;
+                mPosition += transferred;
+            }
+        }
+    }
 }
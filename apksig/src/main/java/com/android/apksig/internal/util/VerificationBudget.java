@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.ApkVerifier;
+
+/**
+ * Limits on the resources which an APK verification may consume, so that adversarial APKs (e.g.,
+ * ZIP bombs) are rejected early instead of occupying a verification worker for a long time.
+ *
+ * <p>The budget installed for the current thread using {@link #setCurrent(VerificationBudget)} is
+ * checked cooperatively by the loops which parse the ZIP Central Directory, inflate ZIP entries
+ * and digest APK contents. When a limit is exceeded, they throw {@link ExceededException}, which
+ * {@link ApkVerifier} reports as an error of the verification result. The static {@code check}
+ * methods are no-ops when no budget is installed.
+ */
+public class VerificationBudget {
+    private static final ThreadLocal<VerificationBudget> sCurrent = new ThreadLocal<>();
+
+    private final int mMaxCentralDirectoryEntries;
+    private final long mMaxInflatedBytes;
+    private final int mMaxInflateRatio;
+    private final long mMaxTimeMillis;
+    private final long mDeadlineNanos;
+    private long mInflatedBytes;
+
+    /**
+     * Constructs a new budget, whose time limit starts now. Limits which are {@code 0} are not
+     * enforced.
+     *
+     * @param maxCentralDirectoryEntries maximum number of ZIP Central Directory records
+     * @param maxInflatedBytes maximum total number of bytes inflated from ZIP entries
+     * @param maxInflateRatio maximum ratio of the inflated to the compressed size of a ZIP entry
+     * @param maxTimeMillis maximum duration (in milliseconds) of the verification
+     */
+    public VerificationBudget(
+            int maxCentralDirectoryEntries,
+            long maxInflatedBytes,
+            int maxInflateRatio,
+            long maxTimeMillis) {
+        this(
+                maxCentralDirectoryEntries,
+                maxInflatedBytes,
+                maxInflateRatio,
+                maxTimeMillis,
+                (maxTimeMillis > 0) ? System.nanoTime() + maxTimeMillis * 1000000 : 0);
+    }
+
+    private VerificationBudget(
+            int maxCentralDirectoryEntries,
+            long maxInflatedBytes,
+            int maxInflateRatio,
+            long maxTimeMillis,
+            long deadlineNanos) {
+        mMaxCentralDirectoryEntries = maxCentralDirectoryEntries;
+        mMaxInflatedBytes = maxInflatedBytes;
+        mMaxInflateRatio = maxInflateRatio;
+        mMaxTimeMillis = maxTimeMillis;
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Returns a budget with the same limits and deadline as this one, from which nothing has been
+     * inflated yet. Verifications which use budgets obtained this way share one time limit.
+     */
+    public VerificationBudget withSameDeadline() {
+        return new VerificationBudget(
+                mMaxCentralDirectoryEntries,
+                mMaxInflatedBytes,
+                mMaxInflateRatio,
+                mMaxTimeMillis,
+                mDeadlineNanos);
+    }
+
+    /**
+     * Installs the provided budget as the one which limits work performed on the current thread
+     * and returns the previously installed budget.
+     *
+     * @param budget budget or {@code null} to stop limiting
+     */
+    public static VerificationBudget setCurrent(VerificationBudget budget) {
+        VerificationBudget previous = sCurrent.get();
+        if (budget != null) {
+            sCurrent.set(budget);
+        } else {
+            sCurrent.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the deadline ({@link System#nanoTime()} based) of the budget installed for the
+     * current thread, or {@code 0} if there is none. This lets work handed off to other threads
+     * observe the deadline via {@link #isPastDeadline(long)}.
+     */
+    public static long getDeadlineNanos() {
+        VerificationBudget budget = sCurrent.get();
+        return (budget != null) ? budget.mDeadlineNanos : 0;
+    }
+
+    /**
+     * Returns {@code true} if the provided deadline, as returned by {@link #getDeadlineNanos()},
+     * has passed.
+     */
+    public static boolean isPastDeadline(long deadlineNanos) {
+        return (deadlineNanos != 0) && (System.nanoTime() - deadlineNanos > 0);
+    }
+
+    /**
+     * Checks that the time limit of the budget installed for the current thread has not been
+     * exceeded.
+     *
+     * @throws ExceededException if the time limit has been exceeded
+     */
+    public static void checkTime() {
+        VerificationBudget budget = sCurrent.get();
+        if (budget != null) {
+            budget.checkDeadline();
+        }
+    }
+
+    /**
+     * Checks that the ZIP Central Directory with the provided number of records is within the
+     * budget installed for the current thread.
+     *
+     * @throws ExceededException if the ZIP Central Directory has too many records
+     */
+    public static void checkCentralDirectoryEntries(int count) {
+        VerificationBudget budget = sCurrent.get();
+        if ((budget != null)
+                && (budget.mMaxCentralDirectoryEntries > 0)
+                && (count > budget.mMaxCentralDirectoryEntries)) {
+            throw new ExceededException(
+                    ApkVerifier.Issue.CENTRAL_DIRECTORY_ENTRY_LIMIT_EXCEEDED,
+                    count,
+                    budget.mMaxCentralDirectoryEntries);
+        }
+    }
+
+    /**
+     * Records that {@code byteCount} more bytes have been inflated from the provided ZIP entry,
+     * bringing the total inflated from the entry to {@code entryInflatedBytes}, and checks that
+     * the budget installed for the current thread has not been exceeded.
+     *
+     * @param entryName name of the ZIP entry
+     * @param compressedSize size (in bytes) of the entry's compressed data
+     *
+     * @throws ExceededException if too many bytes have been inflated overall or from the entry,
+     *         or if the time limit has been exceeded
+     */
+    public static void checkInflated(
+            String entryName, long compressedSize, long entryInflatedBytes, int byteCount) {
+        VerificationBudget budget = sCurrent.get();
+        if (budget == null) {
+            return;
+        }
+        budget.mInflatedBytes += byteCount;
+        if ((budget.mMaxInflatedBytes > 0) && (budget.mInflatedBytes > budget.mMaxInflatedBytes)) {
+            throw new ExceededException(
+                    ApkVerifier.Issue.INFLATED_SIZE_LIMIT_EXCEEDED,
+                    budget.mMaxInflatedBytes,
+                    entryName);
+        }
+        if ((budget.mMaxInflateRatio > 0)
+                && (entryInflatedBytes > budget.mMaxInflateRatio * Math.max(compressedSize, 1))) {
+            throw new ExceededException(
+                    ApkVerifier.Issue.INFLATE_RATIO_LIMIT_EXCEEDED,
+                    entryName,
+                    budget.mMaxInflateRatio,
+                    compressedSize);
+        }
+        budget.checkDeadline();
+    }
+
+    private void checkDeadline() {
+        if (isPastDeadline(mDeadlineNanos)) {
+            throw new ExceededException(
+                    ApkVerifier.Issue.VERIFICATION_TIME_LIMIT_EXCEEDED, mMaxTimeMillis);
+        }
+    }
+
+    /**
+     * Indicates that a limit of a {@link VerificationBudget} has been exceeded, carrying the issue
+     * to report.
+     */
+    public static class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final ApkVerifier.IssueWithParams mIssue;
+
+        private ExceededException(ApkVerifier.Issue issue, Object... params) {
+            this(new ApkVerifier.IssueWithParams(issue, params));
+        }
+
+        private ExceededException(ApkVerifier.IssueWithParams issue) {
+            super(issue.toString());
+            mIssue = issue;
+        }
+
+        public ApkVerifier.IssueWithParams getIssue() {
+            return mIssue;
+        }
+    }
+}
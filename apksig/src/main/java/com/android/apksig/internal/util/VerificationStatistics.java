@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.ApkVerifier;
+
+/**
+ * Per-phase timings and byte counters of an APK verification.
+ *
+ * <p>Statistics are collected into the instance installed for the current thread using
+ * {@link #setCurrent(VerificationStatistics)}. The static {@code record} methods are no-ops when
+ * no instance is installed, which is the case unless statistics were requested, so that call sites
+ * do not need to check whether statistics are being collected. Phases are expected to be coarse
+ * (not per chunk or per entry) to keep the cost of the thread-local lookups negligible.
+ */
+public class VerificationStatistics {
+    private static final ThreadLocal<VerificationStatistics> sCurrent = new ThreadLocal<>();
+
+    private final long[] mPhaseDurationsNanos = new long[ApkVerifier.Phase.values().length];
+    private long mContentBytesDigested;
+    private int mContentChunksDigested;
+    private int mContentDigestThreads;
+    private int mJarEntriesDigested;
+    private long mJarEntryBytesInflated;
+    private int mCertificatesParsed;
+
+    /**
+     * Installs the provided statistics as the ones into which work performed on the current
+     * thread is recorded and returns the previously installed statistics.
+     *
+     * @param statistics statistics or {@code null} to stop recording
+     */
+    public static VerificationStatistics setCurrent(VerificationStatistics statistics) {
+        VerificationStatistics previous = sCurrent.get();
+        if (statistics != null) {
+            sCurrent.set(statistics);
+        } else {
+            sCurrent.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the start time of a phase to be passed into {@link #recordPhase(ApkVerifier.Phase,
+     * long)}, or {@code 0} if statistics are not being collected on the current thread.
+     */
+    public static long startPhase() {
+        return (sCurrent.get() != null) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records that the provided phase, started at {@code startNanos} as returned by
+     * {@link #startPhase()}, has just ended. Phases may be recorded multiple times, in which case
+     * their durations add up.
+     */
+    public static void recordPhase(ApkVerifier.Phase phase, long startNanos) {
+        VerificationStatistics statistics = sCurrent.get();
+        if (statistics != null) {
+            statistics.mPhaseDurationsNanos[phase.ordinal()] += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Records that APK contents of the provided size have been digested in the provided number of
+     * chunks by the provided number of worker threads.
+     */
+    public static void recordContentDigest(long bytes, int chunks, int threads) {
+        VerificationStatistics statistics = sCurrent.get();
+        if (statistics != null) {
+            statistics.mContentBytesDigested += bytes;
+            statistics.mContentChunksDigested += chunks;
+            statistics.mContentDigestThreads = Math.max(statistics.mContentDigestThreads, threads);
+        }
+    }
+
+    /**
+     * Records that the provided number of JAR entries have been digested and that their
+     * uncompressed size is {@code bytesInflated}.
+     */
+    public static void recordJarEntryDigests(int entries, long bytesInflated) {
+        VerificationStatistics statistics = sCurrent.get();
+        if (statistics != null) {
+            statistics.mJarEntriesDigested += entries;
+            statistics.mJarEntryBytesInflated += bytesInflated;
+        }
+    }
+
+    /**
+     * Records that a certificate has been parsed, starting at {@code startNanos} as returned by
+     * {@link #startPhase()}.
+     */
+    public static void recordCertificateParsed(long startNanos) {
+        VerificationStatistics statistics = sCurrent.get();
+        if (statistics != null) {
+            statistics.mPhaseDurationsNanos[ApkVerifier.Phase.CERTIFICATES.ordinal()] +=
+                    System.nanoTime() - startNanos;
+            statistics.mCertificatesParsed++;
+        }
+    }
+
+    public long getPhaseDurationNanos(ApkVerifier.Phase phase) {
+        return mPhaseDurationsNanos[phase.ordinal()];
+    }
+
+    public long getContentBytesDigested() {
+        return mContentBytesDigested;
+    }
+
+    public int getContentChunksDigested() {
+        return mContentChunksDigested;
+    }
+
+    public int getContentDigestThreads() {
+        return mContentDigestThreads;
+    }
+
+    public int getJarEntriesDigested() {
+        return mJarEntriesDigested;
+    }
+
+    public long getJarEntryBytesInflated() {
+        return mJarEntryBytesInflated;
+    }
+
+    public int getCertificatesParsed() {
+        return mCertificatesParsed;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.FlushableDataSink;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link DataSink} which copies received data into a bounded pool of buffers and outputs the
+ * buffers into the delegate sink on a separate writer thread. This lets the producer carry on
+ * while the delegate is blocked on slow storage.
+ *
+ * <p>Data is guaranteed to have reached the delegate only after {@link #flush()} returns. Errors
+ * encountered by the writer thread are rethrown from the next {@code consume}, {@link #flush()} or
+ * {@link #close()} invocation. Once an error has been encountered, all further data is discarded.
+ *
+ * <p>Instances must be {@link #close() closed} to stop the writer thread. This sink is not safe
+ * for use by multiple producer threads.
+ */
+public class WriteBehindDataSink implements FlushableDataSink {
+
+    /** Default number of buffers in the pool. */
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /** Default size (in bytes) of each buffer in the pool. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** Buffer signaling the writer thread to exit. */
+    private static final ByteBuffer END_OF_DATA = ByteBuffer.allocate(0);
+
+    private final DataSink mDelegate;
+    private final int mBufferCount;
+    private final BlockingQueue<ByteBuffer> mFreeBuffers;
+    private final BlockingQueue<ByteBuffer> mFilledBuffers;
+    private final Thread mWriterThread;
+
+    private ByteBuffer mCurrentBuffer;
+    private volatile IOException mWriteError;
+    private boolean mClosed;
+
+    public WriteBehindDataSink(DataSink delegate) {
+        this(delegate, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a new {@code WriteBehindDataSink} and starts its writer thread.
+     *
+     * @param delegate sink into which the writer thread outputs the data
+     * @param bufferCount maximum number of buffers of not yet output data
+     * @param bufferSize size (in bytes) of each buffer
+     */
+    public WriteBehindDataSink(DataSink delegate, int bufferCount, int bufferSize) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        if (bufferCount <= 0) {
+            throw new IllegalArgumentException("buffer count: " + bufferCount);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size: " + bufferSize);
+        }
+        mDelegate = delegate;
+        mBufferCount = bufferCount;
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        // One extra slot for END_OF_DATA
+        mFilledBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(ByteBuffer.allocate(bufferSize));
+        }
+        mWriterThread = new Thread(this::drainFilledBuffers, "apksig-write-behind");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (offset > buf.length) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", buf.length: " + buf.length);
+        }
+        consume(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        checkNotClosed();
+        checkNoWriteError();
+        while (buf.hasRemaining()) {
+            if (mCurrentBuffer == null) {
+                mCurrentBuffer = takeFreeBuffer();
+            }
+            int chunkSize = Math.min(buf.remaining(), mCurrentBuffer.remaining());
+            int originalLimit = buf.limit();
+            buf.limit(buf.position() + chunkSize);
+            mCurrentBuffer.put(buf);
+            buf.limit(originalLimit);
+            if (!mCurrentBuffer.hasRemaining()) {
+                submitCurrentBuffer();
+            }
+        }
+    }
+
+    /**
+     * Waits until all data consumed so far has been output into the delegate sink.
+     *
+     * @throws IOException if the writer thread failed to output data into the delegate sink
+     */
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        submitCurrentBuffer();
+        // All data has been output once every buffer is back in the pool. Borrow them all to wait
+        // for that, then return them.
+        ByteBuffer[] buffers = new ByteBuffer[mBufferCount];
+        int borrowedCount = 0;
+        try {
+            while (borrowedCount < buffers.length) {
+                buffers[borrowedCount] = takeFreeBuffer();
+                borrowedCount++;
+            }
+        } finally {
+            for (int i = 0; i < borrowedCount; i++) {
+                mFreeBuffers.add(buffers[i]);
+            }
+        }
+        checkNoWriteError();
+    }
+
+    /**
+     * Flushes all consumed data into the delegate sink and stops the writer thread. The delegate
+     * sink is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            mClosed = true;
+            mFilledBuffers.add(END_OF_DATA);
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void submitCurrentBuffer() {
+        if (mCurrentBuffer == null) {
+            return;
+        }
+        mCurrentBuffer.flip();
+        // Cannot block: there are never more filled buffers than there are buffers in the pool
+        mFilledBuffers.add(mCurrentBuffer);
+        mCurrentBuffer = null;
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        try {
+            return mFreeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data to be output");
+        }
+    }
+
+    private void drainFilledBuffers() {
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = mFilledBuffers.take();
+            } catch (InterruptedException e) {
+                // Only close() stops this thread
+                continue;
+            }
+            if (buffer == END_OF_DATA) {
+                return;
+            }
+            if (mWriteError == null) {
+                try {
+                    mDelegate.consume(buffer);
+                } catch (IOException e) {
+                    mWriteError = e;
+                } catch (RuntimeException | Error e) {
+                    // Must not let this thread die: the producer would wait for buffers forever
+                    mWriteError = new IOException("Failed to output data", e);
+                }
+            }
+            buffer.clear();
+            mFreeBuffers.add(buffer);
+        }
+    }
+
+    private void checkNoWriteError() throws IOException {
+        IOException writeError = mWriteError;
+        if (writeError != null) {
+            throw new IOException("Failed to output data", writeError);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("Closed");
+        }
+    }
+}
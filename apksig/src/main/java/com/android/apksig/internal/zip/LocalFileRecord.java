@@ -16,7 +16,11 @@
 
 package com.android.apksig.internal.zip;
 
+import com.android.apksig.internal.jfr.ApkEventContext;
+import com.android.apksig.internal.jfr.EntryInflationEvent;
+import com.android.apksig.internal.jfr.JfrEvents;
 import com.android.apksig.internal.util.ByteBufferSink;
+import com.android.apksig.internal.util.VerificationBudget;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.zip.ZipFormatException;
@@ -115,6 +119,41 @@ public class LocalFileRecord {
         return mDataCompressed;
     }
 
+    /**
+     * Returns the offset in the archive at which the data of the provided entry starts. Only the
+     * fixed-size part of the entry's Local File Header is read: its name and extra field are
+     * skipped without being read.
+     */
+    public static long getDataStartOffsetInArchive(
+            DataSource apk,
+            CentralDirectoryRecord cdRecord,
+            long cdStartOffset) throws ZipFormatException, IOException {
+        String entryName = cdRecord.getName();
+        long headerStartOffset = cdRecord.getLocalFileHeaderOffset();
+        if (headerStartOffset + HEADER_SIZE_BYTES > cdStartOffset) {
+            throw new ZipFormatException(
+                    "Local File Header of " + entryName + " extends beyond start of Central"
+                            + " Directory. LFH start: " + headerStartOffset
+                            + ", CD start: " + cdStartOffset);
+        }
+        ByteBuffer header;
+        try {
+            header = apk.getByteBuffer(headerStartOffset, HEADER_SIZE_BYTES);
+        } catch (IOException e) {
+            throw new IOException("Failed to read Local File Header of " + entryName, e);
+        }
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        int recordSignature = header.getInt(0);
+        if (recordSignature != RECORD_SIGNATURE) {
+            throw new ZipFormatException(
+                    "Not a Local File Header record for entry " + entryName + ". Signature: 0x"
+                            + Long.toHexString(recordSignature & 0xffffffffL));
+        }
+        int nameLength = ZipUtils.getUnsignedInt16(header, NAME_LENGTH_OFFSET);
+        int extraLength = ZipUtils.getUnsignedInt16(header, EXTRA_LENGTH_OFFSET);
+        return headerStartOffset + HEADER_SIZE_BYTES + nameLength + extraLength;
+    }
+
     /**
      * Returns the Local File record starting at the current position of the provided buffer
      * and advances the buffer's position immediately past the end of the record. The record
@@ -377,10 +416,15 @@ public class LocalFileRecord {
     public void outputUncompressedData(
             DataSource lfhSection,
             DataSink sink) throws IOException, ZipFormatException {
+        EntryInflationEvent event = (JfrEvents.isEnabled()) ? new EntryInflationEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
         long dataStartOffsetInArchive = mStartOffsetInArchive + mDataStartOffset;
         try {
             if (mDataCompressed) {
-                try (InflateSinkAdapter inflateAdapter = new InflateSinkAdapter(sink)) {
+                try (InflateSinkAdapter inflateAdapter =
+                        new InflateSinkAdapter(sink, mName, mDataSize)) {
                     lfhSection.feed(dataStartOffsetInArchive, mDataSize, inflateAdapter);
                     long actualUncompressedSize = inflateAdapter.getOutputByteCount();
                     if (actualUncompressedSize != mUncompressedDataSize) {
@@ -408,6 +452,17 @@ public class LocalFileRecord {
         }
         // Interestingly, Android doesn't check that uncompressed data's CRC-32 is as expected. We
         // thus don't check either.
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.apkPath = ApkEventContext.getApkPath();
+                event.entryName = mName;
+                event.compressionMethod = (mDataCompressed) ? "deflate" : "stored";
+                event.compressedSize = mDataSize;
+                event.uncompressedSize = mUncompressedDataSize;
+                event.commit();
+            }
+        }
     }
 
     /**
@@ -456,12 +511,94 @@ public class LocalFileRecord {
         return result;
     }
 
+    /**
+     * Returns at most the first {@code maxSizeBytes} bytes of the uncompressed data pointed to by
+     * the provided ZIP Central Directory (CD) record. Compressed data is only read and inflated
+     * up to that point, so the cost of this method does not depend on the size of the entry.
+     */
+    public static byte[] getUncompressedDataPrefix(
+            DataSource source,
+            CentralDirectoryRecord cdRecord,
+            long cdStartOffsetInArchive,
+            int maxSizeBytes) throws ZipFormatException, IOException {
+        LocalFileRecord lfhRecord =
+                getRecord(
+                        source,
+                        cdRecord,
+                        cdStartOffsetInArchive,
+                        false, // don't care about the extra field
+                        false // don't read the Data Descriptor
+                        );
+        return lfhRecord.getUncompressedDataPrefix(source, maxSizeBytes);
+    }
+
+    /**
+     * Returns at most the first {@code maxSizeBytes} bytes of the uncompressed data of this record.
+     * Inflated data is counted against the current {@link VerificationBudget}.
+     */
+    public byte[] getUncompressedDataPrefix(DataSource lfhSection, int maxSizeBytes)
+            throws IOException, ZipFormatException {
+        if (maxSizeBytes < 0) {
+            throw new IllegalArgumentException("maxSizeBytes: " + maxSizeBytes);
+        }
+        int resultSize = (int) Math.min(maxSizeBytes, mUncompressedDataSize);
+        byte[] result = new byte[resultSize];
+        long dataStartOffsetInArchive = mStartOffsetInArchive + mDataStartOffset;
+        if (!mDataCompressed) {
+            lfhSection.copyTo(dataStartOffsetInArchive, resultSize, ByteBuffer.wrap(result));
+            return result;
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            // Deflate rarely achieves better than 10:1 on DEX or resources, so a small input
+            // chunk is normally enough to fill the prefix in one go
+            byte[] input = new byte[(int) Math.min(mDataSize, Math.max(4096, resultSize / 2))];
+            long inputOffset = 0;
+            int outputSize = 0;
+            while ((outputSize < resultSize) && (!inflater.finished())) {
+                if (inflater.needsInput()) {
+                    if (inputOffset >= mDataSize) {
+                        break;
+                    }
+                    int chunkSize = (int) Math.min(input.length, mDataSize - inputOffset);
+                    lfhSection.copyTo(
+                            dataStartOffsetInArchive + inputOffset,
+                            chunkSize,
+                            ByteBuffer.wrap(input, 0, chunkSize));
+                    inputOffset += chunkSize;
+                    inflater.setInput(input, 0, chunkSize);
+                }
+                int outputChunkSize;
+                try {
+                    outputChunkSize =
+                            inflater.inflate(result, outputSize, resultSize - outputSize);
+                } catch (DataFormatException e) {
+                    throw new ZipFormatException("Data of entry " + mName + " malformed", e);
+                }
+                outputSize += outputChunkSize;
+                VerificationBudget.checkInflated(mName, mDataSize, outputSize, outputChunkSize);
+            }
+            if (outputSize < resultSize) {
+                throw new ZipFormatException(
+                        "Unexpected size of uncompressed data of " + mName
+                                + ". Expected: " + mUncompressedDataSize + " bytes"
+                                + ", actual: " + outputSize + " bytes");
+            }
+            return result;
+        } finally {
+            inflater.end();
+        }
+    }
+
     /**
      * {@link DataSink} which inflates received data and outputs the deflated data into the provided
-     * delegate sink.
+     * delegate sink. Inflated data is counted against the current {@link VerificationBudget}.
      */
     private static class InflateSinkAdapter implements DataSink, Closeable {
         private final DataSink mDelegate;
+        private final String mEntryName;
+        private final long mCompressedSize;
 
         private Inflater mInflater = new Inflater(true);
         private byte[] mOutputBuffer;
@@ -469,8 +606,10 @@ public class LocalFileRecord {
         private long mOutputByteCount;
         private boolean mClosed;
 
-        private InflateSinkAdapter(DataSink delegate) {
+        private InflateSinkAdapter(DataSink delegate, String entryName, long compressedSize) {
             mDelegate = delegate;
+            mEntryName = entryName;
+            mCompressedSize = compressedSize;
         }
 
         @Override
@@ -490,8 +629,10 @@ public class LocalFileRecord {
                 if (outputChunkSize == 0) {
                     return;
                 }
-                mDelegate.consume(mOutputBuffer, 0, outputChunkSize);
                 mOutputByteCount += outputChunkSize;
+                VerificationBudget.checkInflated(
+                        mEntryName, mCompressedSize, mOutputByteCount, outputChunkSize);
+                mDelegate.consume(mOutputBuffer, 0, outputChunkSize);
             }
         }
 
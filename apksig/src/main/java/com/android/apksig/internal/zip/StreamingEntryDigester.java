@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import com.android.apksig.util.DataSink;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link DataSink} which speculatively digests the uncompressed data of ZIP entries while the ZIP
+ * archive streams through it, starting with the first byte of the archive.
+ *
+ * <p>Local file records are parsed in order as they arrive. Parsing stops at the first record
+ * which is not a local file record (e.g., APK Signing Block or ZIP Central Directory). It also
+ * stops at the first record whose end cannot be determined while streaming: an uncompressed or
+ * malformed record which uses a Data Descriptor. Compressed records which use a Data Descriptor
+ * end where their deflate stream ends.
+ *
+ * <p>Digests are speculative because the Central Directory, which is authoritative, arrives last.
+ * {@link #getDigests(CentralDirectoryRecord, long)} thus only returns the digests of an entry
+ * whose Local File Header and uncompressed data agree with its Central Directory record.
+ */
+public class StreamingEntryDigester implements DataSink {
+    private static final int RECORD_SIGNATURE = 0x04034b50;
+    private static final int HEADER_SIZE_BYTES = 30;
+
+    private static final int GP_FLAGS_OFFSET = 6;
+    private static final int COMPRESSION_METHOD_OFFSET = 8;
+    private static final int CRC32_OFFSET = 14;
+    private static final int COMPRESSED_SIZE_OFFSET = 18;
+    private static final int UNCOMPRESSED_SIZE_OFFSET = 22;
+    private static final int NAME_LENGTH_OFFSET = 26;
+    private static final int EXTRA_LENGTH_OFFSET = 28;
+
+    private static final int GP_FLAG_ENCRYPTED = 0x01;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DATA_DESCRIPTOR_MAX_SIZE_BYTES = 16;
+
+    private static final int INFLATE_BUFFER_SIZE_BYTES = 64 * 1024;
+
+    private enum State {
+        HEADER,
+        NAME_AND_EXTRA,
+        DATA,
+        DATA_DESCRIPTOR,
+        DONE,
+    }
+
+    private final String[] mJcaDigestAlgorithms;
+    private final Map<Long, Entry> mEntries = new HashMap<>();
+    private final ByteBuffer mHeader =
+            ByteBuffer.allocate(HEADER_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mDataDescriptor =
+            ByteBuffer.allocate(DATA_DESCRIPTOR_MAX_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] mInflateBuffer = new byte[INFLATE_BUFFER_SIZE_BYTES];
+
+    private State mState = State.HEADER;
+    private long mOffset;
+    private ByteBuffer mNameAndExtra;
+    private Entry mEntry;
+
+    /**
+     * Constructs a new digester which computes the digests of entries using the provided JCA
+     * digest algorithms (e.g., {@code SHA-256}).
+     */
+    public StreamingEntryDigester(String... jcaDigestAlgorithms) {
+        mJcaDigestAlgorithms = jcaDigestAlgorithms.clone();
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset + length > buf.length)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", length: " + length + ", buf.length: " + buf.length);
+        }
+        while ((length > 0) && (mState != State.DONE)) {
+            int consumed;
+            switch (mState) {
+                case HEADER:
+                    consumed = Math.min(length, mHeader.remaining());
+                    mHeader.put(buf, offset, consumed);
+                    break;
+                case NAME_AND_EXTRA:
+                    consumed = Math.min(length, mNameAndExtra.remaining());
+                    mNameAndExtra.put(buf, offset, consumed);
+                    break;
+                case DATA:
+                    consumed = mEntry.consume(
+                            buf, offset, (int) Math.min(length, mEntry.mRemainingCompressedSize));
+                    break;
+                case DATA_DESCRIPTOR:
+                    consumed = Math.min(length, mDataDescriptor.remaining());
+                    mDataDescriptor.put(buf, offset, consumed);
+                    break;
+                default:
+                    throw new IllegalStateException(String.valueOf(mState));
+            }
+            offset += consumed;
+            length -= consumed;
+            mOffset += consumed;
+            advanceState();
+        }
+        mOffset += length;
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            consume(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(buf.remaining(), INFLATE_BUFFER_SIZE_BYTES)];
+        while (buf.hasRemaining()) {
+            int chunkSize = Math.min(buf.remaining(), chunk.length);
+            buf.get(chunk, 0, chunkSize);
+            consume(chunk, 0, chunkSize);
+        }
+    }
+
+    /**
+     * Returns the digests of the uncompressed data of the entry described by the provided Central
+     * Directory record, keyed by JCA digest algorithm, or {@code null} if the entry was not
+     * digested while streaming or if what was streamed does not match the record.
+     *
+     * @param cdStartOffset offset of the Central Directory in the archive
+     */
+    public Map<String, byte[]> getDigests(CentralDirectoryRecord cdRecord, long cdStartOffset) {
+        Entry entry = mEntries.get(cdRecord.getLocalFileHeaderOffset());
+        if ((entry == null)
+                || (entry.mDigests == null)
+                || (entry.mDataEndOffset > cdStartOffset)
+                || (!entry.mName.equals(cdRecord.getName()))
+                || (entry.mCompressionMethod != cdRecord.getCompressionMethod())
+                || (entry.mDataDescriptorUsed
+                        != ((cdRecord.getGpFlags() & ZipUtils.GP_FLAG_DATA_DESCRIPTOR_USED) != 0))
+                || (entry.mCompressedSize != cdRecord.getCompressedSize())
+                || (entry.mUncompressedSize != cdRecord.getUncompressedSize())
+                || (entry.mCrc32 != cdRecord.getCrc32())) {
+            return null;
+        }
+        Map<String, byte[]> digests = new HashMap<>(mJcaDigestAlgorithms.length);
+        for (int i = 0; i < mJcaDigestAlgorithms.length; i++) {
+            digests.put(mJcaDigestAlgorithms[i], entry.mDigests[i]);
+        }
+        return digests;
+    }
+
+    /**
+     * Moves on to the next part of the current local file record, or to the next record, for as
+     * long as the current part has been consumed in full.
+     */
+    private void advanceState() {
+        while (true) {
+            switch (mState) {
+                case HEADER:
+                    if (mHeader.hasRemaining()) {
+                        return;
+                    }
+                    onHeader();
+                    break;
+                case NAME_AND_EXTRA:
+                    if (mNameAndExtra.hasRemaining()) {
+                        return;
+                    }
+                    onNameAndExtra();
+                    break;
+                case DATA:
+                    if ((mEntry.mDataDescriptorUsed) && (mEntry.mFailed)) {
+                        // End of malformed deflate stream, and thus of the record, is unknown
+                        mState = State.DONE;
+                        return;
+                    }
+                    if (mEntry.mRemainingCompressedSize > 0) {
+                        return;
+                    }
+                    onData();
+                    break;
+                case DATA_DESCRIPTOR:
+                    if (mDataDescriptor.hasRemaining()) {
+                        return;
+                    }
+                    onDataDescriptor();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void onHeader() {
+        if (mHeader.getInt(0) != RECORD_SIGNATURE) {
+            // APK Signing Block or Central Directory, or not a ZIP archive at all
+            mState = State.DONE;
+            return;
+        }
+        int gpFlags = ZipUtils.getUnsignedInt16(mHeader, GP_FLAGS_OFFSET);
+        boolean encrypted = (gpFlags & GP_FLAG_ENCRYPTED) != 0;
+        boolean dataDescriptorUsed = (gpFlags & ZipUtils.GP_FLAG_DATA_DESCRIPTOR_USED) != 0;
+        short compressionMethod = mHeader.getShort(COMPRESSION_METHOD_OFFSET);
+        if ((dataDescriptorUsed)
+                && ((encrypted) || (compressionMethod != ZipUtils.COMPRESSION_METHOD_DEFLATED))) {
+            // Size of data is only known from the Data Descriptor, which follows the data
+            mState = State.DONE;
+            return;
+        }
+        mEntry = new Entry(mOffset - HEADER_SIZE_BYTES);
+        mEntry.mEncrypted = encrypted;
+        mEntry.mDataDescriptorUsed = dataDescriptorUsed;
+        mEntry.mCompressionMethod = compressionMethod;
+        mEntry.mCrc32 = ZipUtils.getUnsignedInt32(mHeader, CRC32_OFFSET);
+        mEntry.mCompressedSize = ZipUtils.getUnsignedInt32(mHeader, COMPRESSED_SIZE_OFFSET);
+        mEntry.mUncompressedSize = ZipUtils.getUnsignedInt32(mHeader, UNCOMPRESSED_SIZE_OFFSET);
+        mEntry.mNameLength = ZipUtils.getUnsignedInt16(mHeader, NAME_LENGTH_OFFSET);
+        int extraLength = ZipUtils.getUnsignedInt16(mHeader, EXTRA_LENGTH_OFFSET);
+        mNameAndExtra = ByteBuffer.allocate(mEntry.mNameLength + extraLength);
+        mState = State.NAME_AND_EXTRA;
+    }
+
+    private void onNameAndExtra() {
+        mEntry.mName = CentralDirectoryRecord.getName(mNameAndExtra, 0, mEntry.mNameLength);
+        mNameAndExtra = null;
+        mEntry.mDataStartOffset = mOffset;
+        mEntry.mRemainingCompressedSize =
+                (mEntry.mDataDescriptorUsed) ? Long.MAX_VALUE : mEntry.mCompressedSize;
+        mEntry.start(mJcaDigestAlgorithms);
+        mState = State.DATA;
+    }
+
+    private void onData() {
+        mEntry.mDataEndOffset = mOffset;
+        if (mEntry.mDataDescriptorUsed) {
+            mDataDescriptor.clear();
+            mState = State.DATA_DESCRIPTOR;
+            return;
+        }
+        onRecord();
+    }
+
+    private void onDataDescriptor() {
+        // As on Android, the Data Descriptor is assumed to start with the optional signature iff
+        // its first four bytes match the signature
+        int fieldsOffset = (mDataDescriptor.getInt(0) == DATA_DESCRIPTOR_SIGNATURE) ? 4 : 0;
+        mEntry.mCrc32 = ZipUtils.getUnsignedInt32(mDataDescriptor, fieldsOffset);
+        mEntry.mCompressedSize = ZipUtils.getUnsignedInt32(mDataDescriptor, fieldsOffset + 4);
+        mEntry.mUncompressedSize = ZipUtils.getUnsignedInt32(mDataDescriptor, fieldsOffset + 8);
+        if (mEntry.mCompressedSize != mEntry.mDataEndOffset - mEntry.mDataStartOffset) {
+            mEntry.mFailed = true;
+        }
+        onRecord();
+
+        // Bytes past the end of the Data Descriptor belong to the next record
+        mDataDescriptor.position(fieldsOffset + 12);
+        mHeader.put(mDataDescriptor);
+    }
+
+    private void onRecord() {
+        mEntry.finish();
+        mEntries.put(mEntry.mHeaderOffset, mEntry);
+        mEntry = null;
+        mHeader.clear();
+        mState = State.HEADER;
+    }
+
+    /**
+     * Local file record being, or having been, streamed through the digester.
+     */
+    private class Entry {
+        private final long mHeaderOffset;
+        private String mName;
+        private int mNameLength;
+        private boolean mEncrypted;
+        private boolean mDataDescriptorUsed;
+        private short mCompressionMethod;
+        private long mCrc32;
+        private long mCompressedSize;
+        private long mUncompressedSize;
+        private long mRemainingCompressedSize;
+        private long mDataStartOffset;
+        private long mDataEndOffset;
+
+        private MessageDigest[] mMessageDigests;
+        private CRC32 mActualCrc32;
+        private Inflater mInflater;
+        private long mActualUncompressedSize;
+        private boolean mFailed;
+
+        /** Digests of uncompressed data or {@code null} if the data could not be digested. */
+        private byte[][] mDigests;
+
+        private Entry(long headerOffset) {
+            mHeaderOffset = headerOffset;
+        }
+
+        private void start(String[] jcaDigestAlgorithms) {
+            if ((mEncrypted)
+                    || ((mCompressionMethod != ZipUtils.COMPRESSION_METHOD_STORED)
+                            && (mCompressionMethod != ZipUtils.COMPRESSION_METHOD_DEFLATED))) {
+                mFailed = true;
+                return;
+            }
+            mMessageDigests = new MessageDigest[jcaDigestAlgorithms.length];
+            try {
+                for (int i = 0; i < jcaDigestAlgorithms.length; i++) {
+                    mMessageDigests[i] = MessageDigest.getInstance(jcaDigestAlgorithms[i]);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                // The verifier reports the missing algorithm when it digests the entry itself
+                mFailed = true;
+                return;
+            }
+            mActualCrc32 = new CRC32();
+            if (mCompressionMethod == ZipUtils.COMPRESSION_METHOD_DEFLATED) {
+                mInflater = new Inflater(true);
+            }
+        }
+
+        /**
+         * Consumes up to {@code length} bytes of compressed data and returns the number of bytes
+         * consumed, which is less than {@code length} only if the data ends at the end of a
+         * deflate stream whose size was not known in advance.
+         */
+        private int consume(byte[] buf, int offset, int length) {
+            if (mFailed) {
+                mRemainingCompressedSize -= length;
+                return length;
+            }
+            if (mInflater == null) {
+                mRemainingCompressedSize -= length;
+                onUncompressedData(buf, offset, length);
+                return length;
+            }
+            mInflater.setInput(buf, offset, length);
+            try {
+                while (!mFailed) {
+                    int inflated = mInflater.inflate(mInflateBuffer);
+                    if (inflated > 0) {
+                        onUncompressedData(mInflateBuffer, 0, inflated);
+                    } else if (mInflater.finished()) {
+                        if (mDataDescriptorUsed) {
+                            // End of data is the end of the deflate stream
+                            int consumed = length - mInflater.getRemaining();
+                            mRemainingCompressedSize = 0;
+                            return consumed;
+                        }
+                        // Compressed data must end where the deflate stream ends
+                        mFailed = mInflater.getRemaining() > 0;
+                        break;
+                    } else {
+                        mFailed = !mInflater.needsInput();
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                mFailed = true;
+            }
+            mRemainingCompressedSize -= length;
+            return length;
+        }
+
+        private void onUncompressedData(byte[] buf, int offset, int length) {
+            mActualUncompressedSize += length;
+            if ((!mDataDescriptorUsed) && (mActualUncompressedSize > mUncompressedSize)) {
+                // More data than the Local File Header declares. Don't inflate any further.
+                mFailed = true;
+                return;
+            }
+            mActualCrc32.update(buf, offset, length);
+            for (MessageDigest md : mMessageDigests) {
+                md.update(buf, offset, length);
+            }
+        }
+
+        private void finish() {
+            if (mInflater != null) {
+                if (!mInflater.finished()) {
+                    mFailed = true;
+                }
+                mInflater.end();
+                mInflater = null;
+            }
+            if ((mFailed)
+                    || (mActualUncompressedSize != mUncompressedSize)
+                    || (mActualCrc32.getValue() != mCrc32)) {
+                return;
+            }
+            mDigests = new byte[mMessageDigests.length][];
+            for (int i = 0; i < mMessageDigests.length; i++) {
+                mDigests[i] = mMessageDigests[i].digest();
+            }
+            mMessageDigests = null;
+        }
+    }
+}
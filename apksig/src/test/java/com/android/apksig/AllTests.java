@@ -22,6 +22,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     ApkSignerTest.class,
+    ApkFingerprintTest.class,
+    ApkSetVerifierTest.class,
+    StreamingApkVerifierTest.class,
     ApkVerifierTest.class,
     SigningCertificateLineageTest.class,
     com.android.apksig.apk.AllTests.class,
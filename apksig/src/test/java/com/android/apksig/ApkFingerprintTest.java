@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkFingerprintTest {
+
+    /** ID of an APK Signing Block entry which ApkFingerprint does not know. */
+    private static final int UNKNOWN_BLOCK_ID = 0x12345678;
+
+    @Test
+    public void testFingerprintFromV2SigningBlock() throws Exception {
+        ApkFingerprint fingerprint = fingerprint("original.apk");
+        assertEquals(ApkFingerprint.Source.V2_SIGNING_BLOCK, fingerprint.getSource());
+        assertEquals("CHUNKED_SHA256", fingerprint.getContentDigestAlgorithm());
+    }
+
+    @Test
+    public void testFingerprintFromV3SigningBlock() throws Exception {
+        ApkFingerprint fingerprint = fingerprint("golden-aligned-v1v2v3-out.apk");
+        assertEquals(ApkFingerprint.Source.V3_SIGNING_BLOCK, fingerprint.getSource());
+    }
+
+    @Test
+    public void testComputedFingerprintMatchesSigningBlock() throws Exception {
+        // Removing the APK Signing Block leaves a JAR-signed APK with the same contents, whose
+        // fingerprint has to be computed
+        byte[] apk = Resources.toByteArray(getClass(), "original.apk");
+        ApkFingerprint signed = ApkFingerprint.of(DataSources.asDataSource(ByteBuffer.wrap(apk)));
+        ApkFingerprint stripped =
+                ApkFingerprint.of(DataSources.asDataSource(ByteBuffer.wrap(
+                        stripApkSigningBlock(apk))));
+        assertEquals(ApkFingerprint.Source.COMPUTED, stripped.getSource());
+        assertEquals(signed, stripped);
+        assertEquals(signed.hashCode(), stripped.hashCode());
+        assertEquals(signed.toString(), stripped.toString());
+    }
+
+    @Test
+    public void testComputedFingerprintExcludesSigningBlockWithoutV2OrV3Block() throws Exception {
+        // APK Signing Blocks with neither a v2 nor a v3 block, e.g. with only a source stamp,
+        // leave the fingerprint to be computed, which must not depend on the block
+        byte[] apk = Resources.toByteArray(getClass(), "original.apk");
+        ApkFingerprint signed = ApkFingerprint.of(DataSources.asDataSource(ByteBuffer.wrap(apk)));
+        ApkFingerprint first =
+                ApkFingerprint.of(DataSources.asDataSource(ByteBuffer.wrap(
+                        replaceApkSigningBlock(apk, new byte[] {1, 2, 3}))));
+        ApkFingerprint second =
+                ApkFingerprint.of(DataSources.asDataSource(ByteBuffer.wrap(
+                        replaceApkSigningBlock(apk, new byte[1000]))));
+        assertEquals(ApkFingerprint.Source.COMPUTED, first.getSource());
+        assertEquals(ApkFingerprint.Source.COMPUTED, second.getSource());
+        assertEquals(signed, first);
+        assertEquals(signed, second);
+    }
+
+    @Test
+    public void testDifferentContentsHaveDifferentFingerprints() throws Exception {
+        assertNotEquals(
+                fingerprint("golden-aligned-v2-out.apk"),
+                fingerprint("golden-aligned-v1v2-out.apk"));
+        assertNotEquals(
+                fingerprint("golden-aligned-v2-out.apk"),
+                fingerprint("golden-unaligned-v2-out.apk"));
+    }
+
+    private ApkFingerprint fingerprint(String apkFilenameInResources) throws Exception {
+        return ApkFingerprint.of(Resources.toDataSource(getClass(), apkFilenameInResources));
+    }
+
+    /**
+     * Returns the APK with its APK Signing Block replaced by one which only holds the provided
+     * value under an ID which is neither that of v2 nor of v3.
+     */
+    private static byte[] replaceApkSigningBlock(byte[] apk, byte[] value) throws Exception {
+        byte[] stripped = stripApkSigningBlock(apk);
+        DataSource in = DataSources.asDataSource(ByteBuffer.wrap(stripped));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(in);
+        int centralDirOffset = (int) zipSections.getZipCentralDirectoryOffset();
+        byte[] signingBlock =
+                ApkSigningBlockUtils.generateApkSigningBlock(
+                        Collections.singletonList(Pair.of(value, UNKNOWN_BLOCK_ID)));
+        ByteBuffer eocd = copyOf(zipSections.getZipEndOfCentralDirectory());
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset + signingBlock.length);
+
+        ByteBuffer out = ByteBuffer.allocate(stripped.length + signingBlock.length);
+        out.put(stripped, 0, centralDirOffset);
+        out.put(signingBlock);
+        out.put(stripped, centralDirOffset,
+                (int) zipSections.getZipCentralDirectorySizeBytes());
+        out.put(eocd);
+        return out.array();
+    }
+
+    private static byte[] stripApkSigningBlock(byte[] apk) throws Exception {
+        DataSource in = DataSources.asDataSource(ByteBuffer.wrap(apk));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(in);
+        long signingBlockOffset = ApkUtils.findApkSigningBlock(in, zipSections).getStartOffset();
+        int centralDirOffset = (int) zipSections.getZipCentralDirectoryOffset();
+        // Copied, as the EOCD may share the array of the input
+        ByteBuffer eocd = copyOf(zipSections.getZipEndOfCentralDirectory());
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocd, signingBlockOffset);
+
+        ByteBuffer out = ByteBuffer.allocate(
+                (int) (signingBlockOffset + (apk.length - centralDirOffset)));
+        out.put(apk, 0, (int) signingBlockOffset);
+        out.put(apk, centralDirOffset,
+                (int) zipSections.getZipCentralDirectorySizeBytes());
+        out.put(eocd);
+        return out.array();
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(buffer.slice());
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.ApkVerifier.Issue;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.ReadableDataSink;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSetVerifierTest {
+
+    @Test
+    public void testSameSigners() throws Exception {
+        ApkSetVerifier.Result result =
+                verify(
+                        stored("golden-aligned-v1v2v3-out.apk"),
+                        stored("golden-unaligned-v1v2v3-out.apk"),
+                        compressed("golden-aligned-v2-out.apk"));
+        assertTrue(result.getErrors().toString(), result.isVerified());
+        assertEquals(
+                Arrays.asList(
+                        "splits/golden-aligned-v1v2v3-out.apk",
+                        "splits/golden-unaligned-v1v2v3-out.apk",
+                        "splits/golden-aligned-v2-out.apk"),
+                new ArrayList<>(result.getApkResults().keySet()));
+        for (ApkVerifier.Result apkResult : result.getApkResults().values()) {
+            assertTrue(apkResult.isVerified());
+        }
+    }
+
+    @Test
+    public void testSameSignersAndLineage() throws Exception {
+        ApkSetVerifier.Result result =
+                verify(
+                        stored("golden-aligned-v3-lineage-out.apk"),
+                        stored("golden-unaligned-v2v3-lineage-out.apk"));
+        assertTrue(result.getErrors().toString(), result.isVerified());
+    }
+
+    @Test
+    public void testDifferentSigners() throws Exception {
+        ApkSetVerifier.Result result =
+                verify(
+                        stored("golden-aligned-v2v3-out.apk"),
+                        stored("golden-aligned-v2v3-lineage-out.apk"));
+        assertFalse(result.isVerified());
+        assertEquals(1, result.getErrors().size());
+        assertEquals(Issue.APK_SET_SIGNERS_MISMATCH, result.getErrors().get(0).getIssue());
+        for (ApkVerifier.Result apkResult : result.getApkResults().values()) {
+            assertTrue(apkResult.isVerified());
+        }
+    }
+
+    @Test
+    public void testDifferentLineage() throws Exception {
+        // Signed by the second signer of the lineage of the other APK, without the lineage
+        ApkSigner.SignerConfig signer =
+                new ApkSigner.SignerConfig.Builder(
+                                "rsa-2048_2",
+                                Resources.toPrivateKey(getClass(), "rsa-2048_2.pk8"),
+                                Resources.toCertificateChain(getClass(), "rsa-2048_2.x509.pem"))
+                        .build();
+        ReadableDataSink unrotated = DataSinks.newInMemoryDataSink();
+        new ApkSigner.Builder(Collections.singletonList(signer))
+                .setInputApk(
+                        DataSources.asDataSource(
+                                ByteBuffer.wrap(
+                                        Resources.toByteArray(getClass(), "original.apk"))))
+                .setOutputApk(unrotated)
+                .setV1SigningEnabled(false)
+                .setV3SigningEnabled(false)
+                .build()
+                .sign();
+
+        ApkSetVerifier.Result result =
+                verify(
+                        stored("golden-aligned-v3-lineage-out.apk"),
+                        new Split(
+                                "unrotated.apk",
+                                unrotated.getByteBuffer(0, (int) unrotated.size()),
+                                false));
+        assertFalse(result.isVerified());
+        assertEquals(1, result.getErrors().size());
+        assertEquals(Issue.APK_SET_LINEAGE_MISMATCH, result.getErrors().get(0).getIssue());
+        for (ApkVerifier.Result apkResult : result.getApkResults().values()) {
+            assertTrue(apkResult.isVerified());
+        }
+    }
+
+    @Test
+    public void testEmptyApkSet() throws Exception {
+        ApkSetVerifier.Result result = verify();
+        assertFalse(result.isVerified());
+        assertEquals(Issue.APK_SET_EMPTY, result.getErrors().get(0).getIssue());
+    }
+
+    /** Returns the APK from resources, to be stored uncompressed in the APK set. */
+    private Split stored(String resourceName) throws Exception {
+        return fromResources(resourceName, true);
+    }
+
+    /** Returns the APK from resources, to be compressed in the APK set. */
+    private Split compressed(String resourceName) throws Exception {
+        return fromResources(resourceName, false);
+    }
+
+    private Split fromResources(String resourceName, boolean stored) throws Exception {
+        byte[] apk = Resources.toByteArray(getClass(), resourceName);
+        return new Split(resourceName, ByteBuffer.wrap(apk), stored);
+    }
+
+    /**
+     * Verifies an APK set of the provided APKs. APKs are verified for API Level 24 and above, so
+     * that APKs without a JAR signature verify.
+     */
+    private static ApkSetVerifier.Result verify(Split... splits) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            zip.putNextEntry(new ZipEntry("toc.pb"));
+            zip.write(new byte[16]);
+            zip.closeEntry();
+            for (Split split : splits) {
+                byte[] apk = new byte[split.mApk.remaining()];
+                split.mApk.duplicate().get(apk);
+                ZipEntry entry = new ZipEntry("splits/" + split.mName);
+                if (split.mStored) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(apk.length);
+                    CRC32 crc = new CRC32();
+                    crc.update(apk);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(apk);
+                zip.closeEntry();
+            }
+        }
+        return new ApkSetVerifier.Builder(
+                        DataSources.asDataSource(ByteBuffer.wrap(buf.toByteArray())))
+                .setMinCheckedPlatformVersion(24)
+                .build()
+                .verify();
+    }
+
+    /**
+     * APK of an APK set and whether it is stored uncompressed in the APK set.
+     */
+    private static class Split {
+        private final String mName;
+        private final ByteBuffer mApk;
+        private final boolean mStored;
+
+        private Split(String name, ByteBuffer apk, boolean stored) {
+            mName = name;
+            mApk = apk;
+            mStored = stored;
+        }
+    }
+}
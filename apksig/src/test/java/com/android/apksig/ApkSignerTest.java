@@ -16,6 +16,8 @@
 
 package com.android.apksig;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -27,6 +29,7 @@ import com.android.apksig.internal.apk.SignatureInfo;
 import com.android.apksig.internal.apk.v2.V2SchemeSigner;
 import com.android.apksig.internal.apk.v3.V3SchemeSigner;
 import com.android.apksig.internal.asn1.Asn1BerParser;
+import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.Resources;
 import com.android.apksig.internal.x509.RSAPublicKey;
@@ -34,9 +37,13 @@ import com.android.apksig.internal.x509.SubjectPublicKeyInfo;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.FlushableDataSink;
 import com.android.apksig.util.ReadableDataSink;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
@@ -846,6 +853,158 @@ public class ApkSignerTest {
                 v3PublicKey.modulus.compareTo(BigInteger.ZERO) > 0);
     }
 
+    @Test
+    public void testWriteBehindOutputMatchesDirectOutput() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "golden-aligned-in.apk";
+        byte[] expected = toByteArray(sign(in, new ApkSigner.Builder(signers)));
+
+        ReadableDataSink out = DataSinks.newInMemoryDataSink();
+        try (FlushableDataSink outWriteBehind = DataSinks.asWriteBehindDataSink(out)) {
+            new ApkSigner.Builder(signers)
+                    .setInputApk(Resources.toDataSource(getClass(), in))
+                    .setOutputApk(outWriteBehind, out)
+                    .build()
+                    .sign();
+        }
+        assertArrayEquals(expected, toByteArray(out));
+    }
+
+    @Test
+    public void testInPlaceSigningMatchesRegularSigning() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "golden-aligned-v2-out.apk";
+        byte[] expected = toByteArray(sign(in, new ApkSigner.Builder(signers)
+                .setV1SigningEnabled(false)));
+
+        File apk = copyResourceToTempFile(in);
+        try {
+            new ApkSigner.Builder(signers)
+                    .setV1SigningEnabled(false)
+                    .setInPlaceSigningEnabled(true)
+                    .setInputApk(apk)
+                    .build()
+                    .sign();
+            assertArrayEquals(expected, Files.readAllBytes(apk.toPath()));
+        } finally {
+            apk.delete();
+        }
+    }
+
+    @Test
+    public void testInPlaceResigningPreservesEntries() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(SECOND_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "golden-aligned-v2v3-out.apk";
+        DataSource inApk = Resources.toDataSource(getClass(), in);
+        ApkUtils.ZipSections inZipSections = ApkUtils.findZipSections(inApk);
+        long entriesSize =
+                ApkUtils.findApkSigningBlock(inApk, inZipSections).getStartOffset();
+
+        File apk = copyResourceToTempFile(in);
+        try {
+            new ApkSigner.Builder(signers)
+                    .setV1SigningEnabled(false)
+                    .setInPlaceSigningEnabled(true)
+                    .setInputApk(apk)
+                    .build()
+                    .sign();
+            DataSource outApk = DataSources.asDataSource(ByteBuffer.wrap(
+                    Files.readAllBytes(apk.toPath())));
+            ApkVerifier.Result result = verifyForMinSdkVersion(outApk, AndroidSdkVersion.N);
+            assertVerified(result);
+            assertTrue(result.getSignerCertificates().get(0).equals(
+                    signers.get(0).getCertificates().get(0)));
+            assertArrayEquals(
+                    toByteArray(inApk.slice(0, entriesSize)),
+                    toByteArray(outApk.slice(0, entriesSize)));
+        } finally {
+            apk.delete();
+        }
+    }
+
+    @Test
+    public void testInPlaceSigningRestoresInterruptedSigning() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "golden-aligned-v2-out.apk";
+        byte[] original = Resources.toByteArray(getClass(), in);
+        long tailOffset =
+                ApkUtils.findZipSections(DataSources.asDataSource(ByteBuffer.wrap(original)))
+                        .getZipCentralDirectoryOffset();
+
+        // Simulate signing which was interrupted after the journal was written and while the end
+        // of the file was being overwritten.
+        File apk = copyResourceToTempFile(in);
+        File journal = new File(apk.getPath() + ".signing-journal");
+        try {
+            try (RandomAccessFile f = new RandomAccessFile(apk, "rw")) {
+                f.seek(tailOffset);
+                f.write(new byte[10]);
+                f.setLength(tailOffset + 10);
+            }
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal))) {
+                out.writeLong(tailOffset);
+                out.writeInt(original.length - (int) tailOffset);
+                out.write(original, (int) tailOffset, original.length - (int) tailOffset);
+            }
+
+            new ApkSigner.Builder(signers)
+                    .setV1SigningEnabled(false)
+                    .setInPlaceSigningEnabled(true)
+                    .setInputApk(apk)
+                    .build()
+                    .sign();
+            assertFalse(journal.exists());
+            assertVerified(verify(DataSources.asDataSource(ByteBuffer.wrap(
+                    Files.readAllBytes(apk.toPath()))), AndroidSdkVersion.N));
+        } finally {
+            apk.delete();
+            journal.delete();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInPlaceSigningRejectsV1Signing() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        File apk = copyResourceToTempFile("golden-aligned-in.apk");
+        try {
+            new ApkSigner.Builder(signers)
+                    .setInPlaceSigningEnabled(true)
+                    .setInputApk(apk)
+                    .build()
+                    .sign();
+        } finally {
+            apk.delete();
+        }
+    }
+
+    @Test
+    public void testInPlaceSigningRejectsDroppedJarSignature() throws Exception {
+        List<ApkSigner.SignerConfig> signers = Collections.singletonList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        String in = "golden-aligned-v1-out.apk";
+        File apk = copyResourceToTempFile(in);
+        try {
+            new ApkSigner.Builder(signers)
+                    .setV1SigningEnabled(false)
+                    .setInPlaceSigningEnabled(true)
+                    .setInputApk(apk)
+                    .build()
+                    .sign();
+            fail("In-place signing must not drop JAR signature entries");
+        } catch (IllegalStateException expected) {
+            // The APK must be left as is
+            assertArrayEquals(
+                    Resources.toByteArray(getClass(), in), Files.readAllBytes(apk.toPath()));
+        } finally {
+            apk.delete();
+        }
+    }
+
     private RSAPublicKey getRSAPublicKeyFromSigningBlock(DataSource apk, int signatureVersionId)
             throws Exception {
         int signatureVersionBlockId;
@@ -950,6 +1109,19 @@ public class ApkSignerTest {
         }
     }
 
+    private File copyResourceToTempFile(String resourceName) throws IOException {
+        File file = File.createTempFile(getClass().getSimpleName(), ".apk");
+        Files.write(file.toPath(), Resources.toByteArray(getClass(), resourceName));
+        return file;
+    }
+
+    private static byte[] toByteArray(DataSource dataSource) throws IOException {
+        ByteBuffer buf = dataSource.getByteBuffer(0, (int) dataSource.size());
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
     private DataSource sign(
             String inResourceName, ApkSigner.Builder apkSignerBuilder) throws Exception {
         DataSource in =
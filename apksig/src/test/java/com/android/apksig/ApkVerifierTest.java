@@ -16,18 +16,29 @@
 
 package com.android.apksig;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeNoException;
 
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.ApkVerifier.IssueWithParams;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.HexEncoding;
 import com.android.apksig.internal.util.Resources;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -37,8 +48,25 @@ import java.security.Security;
 import java.security.Signature;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -1020,6 +1048,432 @@ public class ApkVerifierTest {
         assertVerified(verifyForMinSdkVersion(apk, AndroidSdkVersion.N));
     }
 
+    @Test
+    public void testVerifyWithRunnablesExecutor() throws Exception {
+        ApkVerifier.Result expected =
+                new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"))
+                        .setStatisticsEnabled(true)
+                        .build()
+                        .verify();
+        AtomicInteger executeCount = new AtomicInteger();
+        AtomicInteger digesterRunCount = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            ApkVerifier.Result actual =
+                    new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"))
+                            .setStatisticsEnabled(true)
+                            .setRunnablesExecutor(
+                                    newCountingExecutor(
+                                            threads, 4, executeCount, digesterRunCount))
+                            .build()
+                            .verify();
+            assertVerified(actual);
+            assertEquals(expected.isVerifiedUsingV1Scheme(), actual.isVerifiedUsingV1Scheme());
+            assertEquals(expected.isVerifiedUsingV2Scheme(), actual.isVerifiedUsingV2Scheme());
+            assertEquals(expected.isVerifiedUsingV3Scheme(), actual.isVerifiedUsingV3Scheme());
+            assertEquals(expected.getSignerCertificates(), actual.getSignerCertificates());
+            assertEquals(
+                    expected.getStatistics().getContentBytesDigested(),
+                    actual.getStatistics().getContentBytesDigested());
+            assertEquals(
+                    expected.getStatistics().getContentChunksDigested(),
+                    actual.getStatistics().getContentChunksDigested());
+            assertEquals(1, expected.getStatistics().getContentDigestThreads());
+            assertEquals(4, actual.getStatistics().getContentDigestThreads());
+        } finally {
+            threads.shutdownNow();
+        }
+        assertTrue(executeCount.get() > 0);
+        assertEquals(4 * executeCount.get(), digesterRunCount.get());
+    }
+
+    @Test
+    public void testContentDigestsWithRunnablesExecutorMatchSingleThreaded() throws Exception {
+        // Several 1 MB chunks, so that the digesters share the work
+        byte[] beforeCentralDir = new byte[5 * 1024 * 1024 + 123];
+        new Random(1).nextBytes(beforeCentralDir);
+        byte[] centralDir = new byte[456];
+        new Random(2).nextBytes(centralDir);
+        byte[] eocd = new byte[22];
+        Set<ContentDigestAlgorithm> algorithms =
+                EnumSet.of(ContentDigestAlgorithm.CHUNKED_SHA256,
+                        ContentDigestAlgorithm.CHUNKED_SHA512);
+
+        Map<ContentDigestAlgorithm, byte[]> expected =
+                ApkSigningBlockUtils.computeContentDigests(
+                        RunnablesExecutor.SINGLE_THREADED,
+                        algorithms,
+                        DataSources.asDataSource(ByteBuffer.wrap(beforeCentralDir)),
+                        DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                        DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+        AtomicInteger executeCount = new AtomicInteger();
+        AtomicInteger digesterRunCount = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        Map<ContentDigestAlgorithm, byte[]> actual;
+        try {
+            actual = ApkSigningBlockUtils.computeContentDigests(
+                    newCountingExecutor(threads, 4, executeCount, digesterRunCount),
+                    algorithms,
+                    DataSources.asDataSource(ByteBuffer.wrap(beforeCentralDir)),
+                    DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                    DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, executeCount.get());
+        assertEquals(4, digesterRunCount.get());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (ContentDigestAlgorithm algorithm : algorithms) {
+            assertArrayEquals(algorithm.name(), expected.get(algorithm), actual.get(algorithm));
+        }
+    }
+
+    /**
+     * Returns a {@link RunnablesExecutor} which runs {@code parallelism} digesters concurrently on
+     * {@code threads} and counts its invocations and the digesters which ran to completion.
+     */
+    private static RunnablesExecutor newCountingExecutor(
+            ExecutorService threads,
+            int parallelism,
+            AtomicInteger executeCount,
+            AtomicInteger digesterRunCount) {
+        return provider -> {
+            executeCount.incrementAndGet();
+            List<Future<?>> digesters = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                Runnable digester = provider.createRunnable();
+                digesters.add(threads.submit(() -> {
+                    digester.run();
+                    digesterRunCount.incrementAndGet();
+                }));
+            }
+            try {
+                for (Future<?> digester : digesters) {
+                    digester.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    @Test
+    public void testVerifyAsync() throws Exception {
+        ApkVerifier verifier =
+                new ApkVerifier.Builder(
+                        Resources.toDataSource(getClass(), "original.apk")).build();
+        assertVerified(verifier.verifyAsync(Runnable::run).get());
+    }
+
+    @Test
+    public void testVerifyAsyncNotStartedOnceCancelled() throws Exception {
+        ApkVerifier verifier =
+                new ApkVerifier.Builder(
+                        Resources.toDataSource(getClass(), "original.apk")).build();
+        List<Runnable> tasks = new ArrayList<>();
+        CompletableFuture<ApkVerifier.Result> future = verifier.verifyAsync(tasks::add);
+        assertTrue(future.cancel(true));
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testVerifyAsyncCancellationInterruptsVerification() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        // Blocks the first read until the verifying thread is interrupted
+        DataSource apk =
+                new InterruptAwaitingDataSource(
+                        Resources.toDataSource(getClass(), "original.apk"), reading);
+        AtomicBoolean interruptedAfterTask = new AtomicBoolean(true);
+        CountDownLatch taskDone = new CountDownLatch(1);
+        CompletableFuture<ApkVerifier.Result> future =
+                new ApkVerifier.Builder(apk).build().verifyAsync(
+                        task -> new Thread(() -> {
+                            task.run();
+                            interruptedAfterTask.set(Thread.currentThread().isInterrupted());
+                            taskDone.countDown();
+                        }).start());
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertTrue(taskDone.await(10, TimeUnit.SECONDS));
+        // The interrupt must not leak into whatever the executor's thread runs next
+        assertFalse(interruptedAfterTask.get());
+    }
+
+    @Test
+    public void testInterruptedVerificationFails() throws Exception {
+        // Both APK Signature Scheme v2 and JAR signature verification must give up
+        for (int maxSdkVersion : new int[] {AndroidSdkVersion.N - 1, Integer.MAX_VALUE}) {
+            Thread.currentThread().interrupt();
+            try {
+                verifyForMaxSdkVersion("original.apk", maxSdkVersion);
+                fail("InterruptedIOException expected for maxSdkVersion " + maxSdkVersion);
+            } catch (InterruptedIOException expected) {
+            } finally {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    @Test
+    public void testStatisticsNotCollectedByDefault() throws Exception {
+        assertNull(verify("original.apk").getStatistics());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        // APK signed with v1 and v2 schemes and supporting platforms older than N, so both
+        // signatures are verified.
+        ApkVerifier.Result result =
+                new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"))
+                        .setStatisticsEnabled(true)
+                        .build()
+                        .verify();
+        assertVerified(result);
+        ApkVerifier.Result.Statistics statistics = result.getStatistics();
+        assertNotNull(statistics);
+        assertTrue(statistics.getDurationNanos(ApkVerifier.Phase.ZIP_SECTIONS) > 0);
+        assertTrue(statistics.getDurationNanos(ApkVerifier.Phase.ANDROID_MANIFEST) > 0);
+        assertTrue(statistics.getDurationNanos(ApkVerifier.Phase.V2_SIGNING_BLOCK) > 0);
+        assertTrue(statistics.getDurationNanos(ApkVerifier.Phase.CONTENT_DIGEST) > 0);
+        assertTrue(statistics.getDurationNanos(ApkVerifier.Phase.V1_ENTRY_DIGESTS) > 0);
+        assertEquals(0, statistics.getDurationNanos(ApkVerifier.Phase.V3_SIGNING_BLOCK));
+        assertTrue(
+                statistics.getTotalDurationNanos()
+                        >= statistics.getDurationNanos(ApkVerifier.Phase.CONTENT_DIGEST));
+        assertTrue(statistics.getContentBytesDigested() > 0);
+        assertTrue(statistics.getContentChunksDigested() > 0);
+        assertEquals(1, statistics.getContentDigestThreads());
+        assertTrue(statistics.getJarEntriesDigested() > 0);
+        assertTrue(statistics.getJarEntryBytesInflated() > 0);
+    }
+
+    @Test
+    public void testVerifyPlatformVersionRanges() throws Exception {
+        List<ApkVerifier.PlatformVersionRange> ranges = Arrays.asList(
+                ApkVerifier.PlatformVersionRange.fromTo(AndroidSdkVersion.KITKAT, 23),
+                ApkVerifier.PlatformVersionRange.fromTo(AndroidSdkVersion.N, 27),
+                ApkVerifier.PlatformVersionRange.from(AndroidSdkVersion.P));
+        for (String apk : Arrays.asList(
+                "v1v2v3-with-rsa-2048-lineage-3-signers.apk",
+                "golden-aligned-v1v2v3-out.apk",
+                "v1-sha1-sha256-manifest-and-sf-with-sha1-wrong-in-manifest.apk",
+                "v1-sha1-sha256-manifest-and-sf-with-sha256-wrong-in-manifest.apk")) {
+            List<ApkVerifier.Result> results =
+                    new ApkVerifier.Builder(Resources.toDataSource(getClass(), apk))
+                            .build()
+                            .verify(ranges);
+            assertEquals(ranges.size(), results.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                ApkVerifier.PlatformVersionRange range = ranges.get(i);
+                ApkVerifier.Result expected = verify(apk, range.getMin(), range.getMax());
+                ApkVerifier.Result actual = results.get(i);
+                String context = apk + " " + range;
+                assertEquals(context, expected.isVerified(), actual.isVerified());
+                assertEquals(
+                        context,
+                        expected.isVerifiedUsingV1Scheme(),
+                        actual.isVerifiedUsingV1Scheme());
+                assertEquals(
+                        context,
+                        expected.isVerifiedUsingV2Scheme(),
+                        actual.isVerifiedUsingV2Scheme());
+                assertEquals(
+                        context,
+                        expected.isVerifiedUsingV3Scheme(),
+                        actual.isVerifiedUsingV3Scheme());
+                assertEquals(context, getErrors(expected), getErrors(actual));
+            }
+        }
+    }
+
+    @Test
+    public void testVerifyPlatformVersionRangesDigestsContentsOnce() throws Exception {
+        // v2 signature is verified for N-O and v3 signature for P+, both over the same contents
+        List<ApkVerifier.Result> results =
+                new ApkVerifier.Builder(
+                        Resources.toDataSource(getClass(), "golden-aligned-v1v2v3-out.apk"))
+                        .setStatisticsEnabled(true)
+                        .build()
+                        .verify(Arrays.asList(
+                                ApkVerifier.PlatformVersionRange.fromTo(
+                                        AndroidSdkVersion.N, AndroidSdkVersion.O),
+                                ApkVerifier.PlatformVersionRange.from(AndroidSdkVersion.P)));
+        assertVerified(results.get(0));
+        assertTrue(results.get(0).isVerifiedUsingV2Scheme());
+        assertTrue(results.get(0).getStatistics().getContentBytesDigested() > 0);
+        assertVerified(results.get(1));
+        assertTrue(results.get(1).isVerifiedUsingV3Scheme());
+        assertEquals(0, results.get(1).getStatistics().getContentBytesDigested());
+    }
+
+    @Test
+    public void testAllowedSignerCertificate() throws Exception {
+        X509Certificate signerCert = verify("original.apk").getSignerCertificates().get(0);
+        byte[] signerCertDigest = MessageDigest.getInstance("SHA-256").digest(
+                signerCert.getEncoded());
+        ApkVerifier.Result result =
+                new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"))
+                        .setAllowedSignerCertificateDigests(
+                                Arrays.asList(new byte[32], signerCertDigest))
+                        .build()
+                        .verify();
+        assertVerified(result);
+    }
+
+    @Test
+    public void testDisallowedSignerCertificateRejectedBeforeDigesting() throws Exception {
+        // APK signed with v1 and v2 schemes and supporting platforms older than N, so both
+        // signatures are checked against the allowlist.
+        for (int maxSdkVersion : new int[] {AndroidSdkVersion.M, Integer.MAX_VALUE}) {
+            ApkVerifier.Result result =
+                    new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"))
+                            .setMaxCheckedPlatformVersion(maxSdkVersion)
+                            .setAllowedSignerCertificateDigests(
+                                    Collections.singletonList(new byte[32]))
+                            .setStatisticsEnabled(true)
+                            .build()
+                            .verify();
+            assertVerificationFailure(result, Issue.SIGNER_CERTIFICATE_NOT_ALLOWED);
+            assertEquals(0, result.getStatistics().getContentBytesDigested());
+            assertEquals(0, result.getStatistics().getJarEntriesDigested());
+        }
+    }
+
+    @Test
+    public void testAllowedSigningCertificateLineage() throws Exception {
+        // The v1 and v2 signer is the oldest certificate in the lineage, the v3 signer the newest
+        SigningCertificateLineage lineage =
+                verify("v1v2v3-with-rsa-2048-lineage-3-signers.apk")
+                        .getSigningCertificateLineage();
+        ApkVerifier.Result result =
+                new ApkVerifier.Builder(
+                        Resources.toDataSource(
+                                getClass(), "v1v2v3-with-rsa-2048-lineage-3-signers.apk"))
+                        .setAllowedSigningCertificateLineage(lineage)
+                        .build()
+                        .verify();
+        assertVerified(result);
+    }
+
+    @Test
+    public void testCentralDirectoryEntryLimit() throws Exception {
+        // original.apk has 6 entries
+        assertVerified(verifyWithBudget(builder -> builder.setMaxCentralDirectoryEntries(6)));
+        assertVerificationFailure(
+                verifyWithBudget(builder -> builder.setMaxCentralDirectoryEntries(5)),
+                Issue.CENTRAL_DIRECTORY_ENTRY_LIMIT_EXCEEDED);
+    }
+
+    @Test
+    public void testInflatedSizeLimit() throws Exception {
+        assertVerified(verifyWithBudget(builder -> builder.setMaxInflatedBytes(1024 * 1024)));
+        assertVerificationFailure(
+                verifyWithBudget(builder -> builder.setMaxInflatedBytes(1024)),
+                Issue.INFLATED_SIZE_LIMIT_EXCEEDED);
+    }
+
+    @Test
+    public void testInflateRatioLimit() throws Exception {
+        // AndroidManifest.xml of original.apk is deflated at a ratio of about 2.7
+        assertVerified(verifyWithBudget(builder -> builder.setMaxInflateRatio(3)));
+        assertVerificationFailure(
+                verifyWithBudget(builder -> builder.setMaxInflateRatio(2)),
+                Issue.INFLATE_RATIO_LIMIT_EXCEEDED);
+    }
+
+    @Test
+    public void testVerificationTimeLimit() throws Exception {
+        assertVerified(verifyWithBudget(builder -> builder.setMaxVerificationTimeMillis(60000)));
+        // Content digesting starts after the time limit has passed
+        assertVerificationFailure(
+                verifyWithBudget(
+                        builder -> builder
+                                .setMaxVerificationTimeMillis(1)
+                                .setRunnablesExecutor(provider -> {
+                                    try {
+                                        Thread.sleep(50);
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                    provider.createRunnable().run();
+                                })),
+                Issue.VERIFICATION_TIME_LIMIT_EXCEEDED);
+    }
+
+    @Test
+    public void testVerificationTimeLimitSharedByPlatformVersionRanges() throws Exception {
+        // Only the first content digesting, for the first range, is delayed past the time limit
+        AtomicBoolean delayed = new AtomicBoolean();
+        List<ApkVerifier.Result> results =
+                new ApkVerifier.Builder(
+                        Resources.toDataSource(getClass(), "golden-aligned-v1v2v3-out.apk"))
+                        .setMaxVerificationTimeMillis(50)
+                        .setRunnablesExecutor(provider -> {
+                            if (delayed.compareAndSet(false, true)) {
+                                try {
+                                    Thread.sleep(100);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                            provider.createRunnable().run();
+                        })
+                        .build()
+                        .verify(Arrays.asList(
+                                ApkVerifier.PlatformVersionRange.fromTo(
+                                        AndroidSdkVersion.N, AndroidSdkVersion.O),
+                                ApkVerifier.PlatformVersionRange.from(AndroidSdkVersion.P)));
+        assertVerificationFailure(results.get(0), Issue.VERIFICATION_TIME_LIMIT_EXCEEDED);
+        assertVerificationFailure(results.get(1), Issue.VERIFICATION_TIME_LIMIT_EXCEEDED);
+    }
+
+    @Test
+    public void testNegativeLimitRejected() throws Exception {
+        ApkVerifier.Builder builder =
+                new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"));
+        try {
+            builder.setMaxInflatedBytes(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    /**
+     * Verifies original.apk, which is signed with v1 and v2 schemes and supports platforms older
+     * than N, so both signatures are verified, subject to the limits set by {@code budget}.
+     */
+    private ApkVerifier.Result verifyWithBudget(
+            Consumer<ApkVerifier.Builder> budget) throws Exception {
+        ApkVerifier.Builder builder =
+                new ApkVerifier.Builder(Resources.toDataSource(getClass(), "original.apk"));
+        budget.accept(builder);
+        return builder.build().verify();
+    }
+
+    private static List<String> getErrors(ApkVerifier.Result result) {
+        List<String> errors = new ArrayList<>();
+        for (IssueWithParams issue : result.getErrors()) {
+            errors.add(issue.toString());
+        }
+        for (ApkVerifier.Result.V1SchemeSignerInfo signer : result.getV1SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                errors.add("JAR signer " + signer.getName() + ": " + issue);
+            }
+        }
+        for (ApkVerifier.Result.V2SchemeSignerInfo signer : result.getV2SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                errors.add("v2 signer #" + (signer.getIndex() + 1) + ": " + issue);
+            }
+        }
+        for (ApkVerifier.Result.V3SchemeSignerInfo signer : result.getV3SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                errors.add("v3 signer #" + (signer.getIndex() + 1) + ": " + issue);
+            }
+        }
+        return errors;
+    }
+
     private ApkVerifier.Result verify(String apkFilenameInResources)
             throws IOException, ApkFormatException, NoSuchAlgorithmException {
         return verify(apkFilenameInResources, null, null);
@@ -1205,4 +1659,56 @@ public class ApkVerifierTest {
     private static void assumeThatRsaPssAvailable() throws Exception {
         Assume.assumeTrue(Security.getProviders("Signature.SHA256withRSA/PSS") != null);
     }
+
+    /**
+     * {@link DataSource} which, on first access, signals the provided latch and then does not
+     * return until the calling thread is interrupted.
+     */
+    private static class InterruptAwaitingDataSource implements DataSource {
+        private final DataSource mDelegate;
+        private final CountDownLatch mReading;
+
+        private InterruptAwaitingDataSource(DataSource delegate, CountDownLatch reading) {
+            mDelegate = delegate;
+            mReading = reading;
+        }
+
+        private void awaitInterruptOnFirstAccess() {
+            if (mReading.getCount() == 0) {
+                return;
+            }
+            mReading.countDown();
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            awaitInterruptOnFirstAccess();
+            mDelegate.feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            awaitInterruptOnFirstAccess();
+            return mDelegate.getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            awaitInterruptOnFirstAccess();
+            mDelegate.copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return mDelegate.slice(offset, size);
+        }
+    }
 }
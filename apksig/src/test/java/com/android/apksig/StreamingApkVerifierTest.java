@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.StreamingEntryDigester;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.ReadableDataSink;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StreamingApkVerifierTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMatchesApkVerifier() throws Exception {
+        String[] apks = {
+            "golden-aligned-v1-out.apk",
+            "golden-aligned-v2-out.apk",
+            "golden-aligned-v1v2v3-out.apk",
+            "golden-unaligned-v1v2v3-out.apk",
+            "golden-legacy-aligned-v1v2-out.apk",
+            "golden-aligned-v1v2v3-lineage-out.apk",
+            "v1-only-max-sized-eocd-comment.apk",
+        };
+        for (String apk : apks) {
+            byte[] apkBytes = Resources.toByteArray(getClass(), apk);
+            ApkVerifier.Result expected =
+                    new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                            .build()
+                            .verify();
+            ReadRecordingDataSink storage = new ReadRecordingDataSink();
+            ApkVerifier.Result actual = verifyStreamed(apkBytes, storage);
+            assertResultsEqual(apk, expected, actual);
+            assertOnlyUnstreamedContentsReadBack(apk, apkBytes, storage);
+        }
+    }
+
+    @Test
+    public void testTamperedEntryDoesNotVerify() throws Exception {
+        byte[] apkBytes = Resources.toByteArray(getClass(), "golden-aligned-v1-out.apk");
+        DataSource apk = DataSources.asDataSource(ByteBuffer.wrap(apkBytes));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+        CentralDirectoryRecord cdRecord =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections).get(1);
+        assertEquals("classes.dex", cdRecord.getName());
+        long dataStartOffset =
+                LocalFileRecord.getDataStartOffsetInArchive(
+                        apk, cdRecord, zipSections.getZipCentralDirectoryOffset());
+        apkBytes[(int) (dataStartOffset + cdRecord.getUncompressedSize() / 2)] ^= 0x01;
+
+        ApkVerifier.Result expected =
+                new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                        .build()
+                        .verify();
+        ApkVerifier.Result actual = verifyStreamed(apkBytes);
+        assertFalse(actual.isVerified());
+        assertResultsEqual(cdRecord.getName(), expected, actual);
+    }
+
+    @Test
+    public void testOutputFile() throws Exception {
+        byte[] apkBytes = Resources.toByteArray(getClass(), "golden-aligned-v1v2v3-out.apk");
+        File outputFile = temporaryFolder.newFile("uploaded.apk");
+        Files.write(outputFile.toPath(), new byte[] {1, 2, 3});
+        try (StreamingApkVerifier verifier =
+                new StreamingApkVerifier.Builder(outputFile).build()) {
+            feed(verifier, apkBytes, new Random(1));
+            assertTrue(verifier.verify().isVerified());
+        }
+        assertArrayEquals(apkBytes, Files.readAllBytes(outputFile.toPath()));
+    }
+
+    @Test
+    public void testEntriesDigestedWhileStreaming() throws Exception {
+        byte[] apkBytes = Resources.toByteArray(getClass(), "golden-unaligned-v1v2v3-out.apk");
+        StreamingEntryDigester digester = new StreamingEntryDigester("SHA-256");
+        feed(digester, apkBytes, new Random(2));
+
+        DataSource apk = DataSources.asDataSource(ByteBuffer.wrap(apkBytes));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+        List<CentralDirectoryRecord> cdRecords =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        for (CentralDirectoryRecord cdRecord : cdRecords) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            LocalFileRecord.outputUncompressedData(
+                    apk, cdRecord, cdStartOffset, DataSinks.asDataSink(md));
+            Map<String, byte[]> digests = digester.getDigests(cdRecord, cdStartOffset);
+            assertNotNull(cdRecord.getName(), digests);
+            assertArrayEquals(cdRecord.getName(), md.digest(), digests.get("SHA-256"));
+        }
+
+        // Digests of entries which would extend into the Central Directory are not trusted
+        CentralDirectoryRecord firstCdRecord = cdRecords.get(0);
+        assertNull(
+                digester.getDigests(firstCdRecord, firstCdRecord.getLocalFileHeaderOffset()));
+    }
+
+    private static ApkVerifier.Result verifyStreamed(byte[] apkBytes) throws Exception {
+        return verifyStreamed(apkBytes, DataSinks.newInMemoryDataSink());
+    }
+
+    private static ApkVerifier.Result verifyStreamed(byte[] apkBytes, ReadableDataSink storage)
+            throws Exception {
+        StreamingApkVerifier verifier = new StreamingApkVerifier.Builder(storage).build();
+        feed(verifier, apkBytes, new Random(apkBytes.length));
+        assertEquals(apkBytes.length, verifier.getConsumedSize());
+        return verifier.verify();
+    }
+
+    /**
+     * Asserts that, of the APK's contents before the APK Signing Block, only the last partial 1 MB
+     * chunk is read back from storage once it has streamed through the verifier, along with the
+     * local file records of the entries which verification parses: the JAR signature files and
+     * {@code AndroidManifest.xml}.
+     */
+    private static void assertOnlyUnstreamedContentsReadBack(
+            String message, byte[] apkBytes, ReadRecordingDataSink storage) throws Exception {
+        DataSource apk = DataSources.asDataSource(ByteBuffer.wrap(apkBytes));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+        long cdStartOffset = zipSections.getZipCentralDirectoryOffset();
+        long contentsEndOffset;
+        long tailSize;
+        try {
+            contentsEndOffset =
+                    ApkUtils.findApkSigningBlock(apk, zipSections).getStartOffset();
+            tailSize = contentsEndOffset % (1024 * 1024);
+        } catch (ApkSigningBlockNotFoundException e) {
+            contentsEndOffset = cdStartOffset;
+            tailSize = 0;
+        }
+        // Without an APK Signing Block, looking for one reads the 24 bytes of its footer
+        long checkedEndOffset = (tailSize == 0) ? contentsEndOffset - 24 : contentsEndOffset;
+
+        List<CentralDirectoryRecord> cdRecords =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections);
+        cdRecords.sort(CentralDirectoryRecord.BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR);
+        long parsedRecordsSize = 0;
+        for (int i = 0; i < cdRecords.size(); i++) {
+            String name = cdRecords.get(i).getName();
+            if (name.startsWith("META-INF/") || name.equals("AndroidManifest.xml")) {
+                long recordEndOffset =
+                        (i + 1 < cdRecords.size())
+                                ? cdRecords.get(i + 1).getLocalFileHeaderOffset()
+                                : contentsEndOffset;
+                parsedRecordsSize +=
+                        recordEndOffset - cdRecords.get(i).getLocalFileHeaderOffset();
+            }
+        }
+
+        long contentsReadSize = 0;
+        for (long[] read : storage.mReads) {
+            contentsReadSize += Math.max(0, Math.min(read[1], checkedEndOffset) - read[0]);
+        }
+        assertTrue(
+                message + ": read back " + contentsReadSize + " bytes of contents",
+                contentsReadSize <= tailSize + parsedRecordsSize);
+    }
+
+    /**
+     * Feeds the provided bytes to the sink in chunks of random size, alternating between
+     * {@code byte[]} and {@link ByteBuffer} chunks.
+     */
+    private static void feed(DataSink sink, byte[] bytes, Random random) throws Exception {
+        int offset = 0;
+        boolean byteBuffer = false;
+        while (offset < bytes.length) {
+            int size = Math.min(1 + random.nextInt(8192), bytes.length - offset);
+            if (byteBuffer) {
+                sink.consume(ByteBuffer.wrap(bytes, offset, size));
+            } else {
+                sink.consume(bytes, offset, size);
+            }
+            offset += size;
+            byteBuffer = !byteBuffer;
+        }
+    }
+
+    private static void assertResultsEqual(
+            String message, ApkVerifier.Result expected, ApkVerifier.Result actual) {
+        assertEquals(message, expected.isVerified(), actual.isVerified());
+        assertEquals(message, expected.isVerifiedUsingV1Scheme(), actual.isVerifiedUsingV1Scheme());
+        assertEquals(message, expected.isVerifiedUsingV2Scheme(), actual.isVerifiedUsingV2Scheme());
+        assertEquals(message, expected.isVerifiedUsingV3Scheme(), actual.isVerifiedUsingV3Scheme());
+        assertEquals(message, expected.getSignerCertificates(), actual.getSignerCertificates());
+        assertEquals(message, getAllErrors(expected), getAllErrors(actual));
+    }
+
+    /**
+     * {@link ReadableDataSink} which stores the APK in memory and records the ranges of it which
+     * are read back, including through slices.
+     */
+    private static class ReadRecordingDataSink implements ReadableDataSink {
+        private final ReadableDataSink mDelegate = DataSinks.newInMemoryDataSink();
+        private final List<long[]> mReads = new ArrayList<>();
+
+        @Override
+        public void consume(byte[] buf, int offset, int length) throws IOException {
+            mDelegate.consume(buf, offset, length);
+        }
+
+        @Override
+        public void consume(ByteBuffer buf) throws IOException {
+            mDelegate.consume(buf);
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            slice(0, size()).feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            return slice(0, size()).getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            slice(0, size()).copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return new Slice(offset, size);
+        }
+
+        private void recordRead(long offset, long size) {
+            if (size > 0) {
+                mReads.add(new long[] {offset, offset + size});
+            }
+        }
+
+        private class Slice implements DataSource {
+            private final long mOffset;
+            private final long mSize;
+
+            private Slice(long offset, long size) {
+                mOffset = offset;
+                mSize = size;
+            }
+
+            @Override
+            public long size() {
+                return mSize;
+            }
+
+            @Override
+            public void feed(long offset, long size, DataSink sink) throws IOException {
+                recordRead(mOffset + offset, size);
+                mDelegate.feed(mOffset + offset, size, sink);
+            }
+
+            @Override
+            public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+                recordRead(mOffset + offset, size);
+                return mDelegate.getByteBuffer(mOffset + offset, size);
+            }
+
+            @Override
+            public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+                recordRead(mOffset + offset, size);
+                mDelegate.copyTo(mOffset + offset, size, dest);
+            }
+
+            @Override
+            public DataSource slice(long offset, long size) {
+                return new Slice(mOffset + offset, size);
+            }
+        }
+    }
+
+    private static String getAllErrors(ApkVerifier.Result result) {
+        StringBuilder errors = new StringBuilder(String.valueOf(result.getErrors()));
+        for (ApkVerifier.Result.V1SchemeSignerInfo signer : result.getV1SchemeSigners()) {
+            errors.append(signer.getErrors());
+        }
+        for (ApkVerifier.Result.V2SchemeSignerInfo signer : result.getV2SchemeSigners()) {
+            errors.append(signer.getErrors());
+        }
+        for (ApkVerifier.Result.V3SchemeSignerInfo signer : result.getV3SchemeSigners()) {
+            errors.append(signer.getErrors());
+        }
+        return errors.toString();
+    }
+}
@@ -21,6 +21,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    ApkCompositionTest.class,
+    ApkHeaderSummaryTest.class,
     ApkUtilsTest.class,
 })
 public class AllTests {}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.apk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.util.DataSources;
+
+@RunWith(JUnit4.class)
+public class ApkCompositionTest {
+
+    @Test
+    public void testCompositionOfResourceApk() throws Exception {
+        ApkComposition composition =
+                ApkComposition.of(Resources.toDataSource(getClass(), "original.apk"));
+        ApkComposition.Section total = composition.getTotal();
+        assertEquals(
+                total.getEntryCount(),
+                composition.getDex().getEntryCount()
+                        + composition.getAssets().getEntryCount()
+                        + composition.getResources().getEntryCount()
+                        + composition.getOther().getEntryCount());
+        assertEquals(1, composition.getDex().getEntryCount());
+        assertTrue(composition.getResources().getEntryCount() > 0);
+        assertTrue(composition.getNativeLibraries().isEmpty());
+        assertTrue(composition.getNativeLibrariesRequiringExtraction().isEmpty());
+        assertTrue(total.getCompressionRatio() < 1);
+    }
+
+    @Test
+    public void testNativeLibraries() throws Exception {
+        byte[] lib = new byte[10000];
+        Arrays.fill(lib, (byte) 'x');
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            putDeflated(zip, "AndroidManifest.xml", new byte[100]);
+            putDeflated(zip, "classes.dex", new byte[1000]);
+            putDeflated(zip, "classes2.dex", new byte[1000]);
+            putDeflated(zip, "lib/armeabi-v7a/libcompressed.so", lib);
+            putStored(zip, buf, "lib/arm64-v8a/libaligned.so", lib, true);
+            putStored(zip, buf, "lib/arm64-v8a/libmisaligned.so", lib, false);
+            putDeflated(zip, "assets/data.bin", lib);
+        }
+        ApkComposition composition =
+                ApkComposition.of(DataSources.asDataSource(ByteBuffer.wrap(buf.toByteArray())));
+
+        assertEquals(2, composition.getDex().getEntryCount());
+        assertEquals(2000, composition.getDex().getUncompressedSizeBytes());
+        assertEquals(
+                Arrays.asList("arm64-v8a", "armeabi-v7a"),
+                Arrays.asList(composition.getNativeLibraries().keySet().toArray()));
+        ApkComposition.Section arm64 = composition.getNativeLibraries().get("arm64-v8a");
+        assertEquals(2, arm64.getEntryCount());
+        assertEquals(2, arm64.getStoredEntryCount());
+        assertEquals(20000, arm64.getCompressedSizeBytes());
+        assertEquals(1, arm64.getCompressionRatio(), 0);
+        ApkComposition.Section arm = composition.getNativeLibraries().get("armeabi-v7a");
+        assertEquals(0, arm.getStoredEntryCount());
+        assertTrue(arm.getCompressionRatio() < 1);
+        assertEquals(1, composition.getAssets().getEntryCount());
+        assertEquals(1, composition.getOther().getEntryCount());
+        assertEquals(7, composition.getTotal().getEntryCount());
+        assertEquals(
+                Arrays.asList(
+                        "lib/armeabi-v7a/libcompressed.so", "lib/arm64-v8a/libmisaligned.so"),
+                composition.getNativeLibrariesRequiringExtraction());
+    }
+
+    private static void putDeflated(ZipOutputStream zip, String name, byte[] data)
+            throws Exception {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * Stores the entry uncompressed, padding its extra field so that its data starts on a 4 KB
+     * page boundary, or one byte past it.
+     */
+    private static void putStored(
+            ZipOutputStream zip,
+            ByteArrayOutputStream buf,
+            String name,
+            byte[] data,
+            boolean pageAligned) throws Exception {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        // Local File Header is 30 bytes + name, followed by the alignment extra field: 2-byte ID,
+        // 2-byte size, 2-byte alignment multiple and padding
+        long unpaddedDataOffset = buf.size() + 30 + name.length() + 6;
+        int padding = (int) ((4096 - (unpaddedDataOffset % 4096)) % 4096) + (pageAligned ? 0 : 1);
+        ByteBuffer extra = ByteBuffer.allocate(6 + padding).order(ByteOrder.LITTLE_ENDIAN);
+        extra.putShort((short) 0xd935);
+        extra.putShort((short) (2 + padding));
+        extra.putShort((short) 4096);
+        entry.setExtra(extra.array());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.apk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+
+@RunWith(JUnit4.class)
+public class ApkHeaderSummaryTest {
+
+    @Test
+    public void testSummaryOfResourceApk() throws Exception {
+        ApkHeaderSummary summary =
+                ApkHeaderSummary.of(Resources.toDataSource(getClass(), "original.apk"));
+        List<ApkHeaderSummary.Dex> dexFiles = summary.getDexFiles();
+        assertEquals(1, dexFiles.size());
+        ApkHeaderSummary.Dex dex = dexFiles.get(0);
+        assertEquals("classes.dex", dex.getEntryName());
+        assertEquals("035", dex.getVersion());
+        assertEquals(1536, dex.getFileSizeBytes());
+        assertTrue(dex.getMethodIdCount() > 0);
+        assertTrue(dex.getClassDefCount() > 0);
+
+        ApkHeaderSummary.ResourceTable resourceTable = summary.getResourceTable();
+        assertNotNull(resourceTable);
+        assertEquals(1, resourceTable.getPackageCount());
+        ApkHeaderSummary.ResourcePackage resourcePackage = resourceTable.getFirstPackage();
+        assertNotNull(resourcePackage);
+        assertEquals(0x7f, resourcePackage.getId());
+        assertEquals("android.appsecurity.cts.tinyapp", resourcePackage.getName());
+    }
+
+    @Test
+    public void testUncompressedDataPrefixOnlyReadsPrefix() throws Exception {
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        // Make the data compressible, but not trivially so
+        for (int i = 0; i < data.length; i++) {
+            data[i] &= 0x0f;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(data);
+            zip.closeEntry();
+        }
+        CountingDataSource apk =
+                new CountingDataSource(
+                        DataSources.asDataSource(ByteBuffer.wrap(buf.toByteArray())));
+        ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+        CentralDirectoryRecord cdRecord =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, zipSections).get(0);
+        apk.mReadByteCount = 0;
+
+        byte[] prefix =
+                LocalFileRecord.getUncompressedDataPrefix(
+                        apk, cdRecord, zipSections.getZipCentralDirectoryOffset(), 112);
+        assertArrayEquals(Arrays.copyOf(data, 112), prefix);
+        assertTrue("read " + apk.mReadByteCount + " bytes", apk.mReadByteCount < 64 * 1024);
+
+        // The prefix of an entry shorter than the requested size is the whole entry
+        prefix =
+                LocalFileRecord.getUncompressedDataPrefix(
+                        apk,
+                        cdRecord,
+                        zipSections.getZipCentralDirectoryOffset(),
+                        data.length + 1);
+        assertArrayEquals(data, prefix);
+    }
+
+    @Test
+    public void testOversizedCentralDirectoryNotRead() throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(new byte[200]);
+            zip.closeEntry();
+        }
+        byte[] zipBytes = buf.toByteArray();
+        int eocdOffset =
+                (int) ApkUtils.findZipSections(DataSources.asDataSource(ByteBuffer.wrap(zipBytes)))
+                        .getZipEndOfCentralDirectoryOffset();
+        // Pad the Central Directory of the single record with 16 MB of data which follows it
+        int paddingSize = 16 * 1024 * 1024;
+        ByteBuffer padded =
+                ByteBuffer.allocate(zipBytes.length + paddingSize).order(ByteOrder.LITTLE_ENDIAN);
+        padded.put(zipBytes, 0, eocdOffset);
+        padded.position(eocdOffset + paddingSize);
+        padded.put(zipBytes, eocdOffset, zipBytes.length - eocdOffset);
+        int cdSizeOffset = eocdOffset + paddingSize + 12;
+        padded.putInt(cdSizeOffset, padded.getInt(cdSizeOffset) + paddingSize);
+        padded.clear();
+        CountingDataSource apk = new CountingDataSource(DataSources.asDataSource(padded));
+
+        List<CentralDirectoryRecord> cdRecords =
+                V1SchemeVerifier.parseZipCentralDirectory(apk, ApkUtils.findZipSections(apk));
+        assertEquals(1, cdRecords.size());
+        assertEquals("classes.dex", cdRecords.get(0).getName());
+        assertTrue("read " + apk.mReadByteCount + " bytes", apk.mReadByteCount < paddingSize);
+    }
+
+    @Test(expected = ApkFormatException.class)
+    public void testMalformedDex() throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(new byte[200]);
+            zip.closeEntry();
+        }
+        ApkHeaderSummary.of(DataSources.asDataSource(ByteBuffer.wrap(buf.toByteArray())));
+    }
+
+    @Test
+    public void testHugeResourceStringPoolNotRead() throws Exception {
+        // Resource table whose global string pool claims to span 16 MB, followed by enough zeros
+        // for the claimed pool and first package to fit into the 32 MB table
+        ByteBuffer header = ByteBuffer.allocate(12 + 28).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort((short) 0x0002).putShort((short) 12).putInt(32 * 1024 * 1024).putInt(1);
+        header.putShort((short) 0x0001).putShort((short) 28).putInt(16 * 1024 * 1024).putInt(3);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(buf)) {
+            zip.putNextEntry(new ZipEntry("resources.arsc"));
+            zip.write(header.array());
+            zip.write(new byte[32 * 1024 * 1024 - header.capacity()]);
+            zip.closeEntry();
+        }
+        CountingDataSource apk =
+                new CountingDataSource(
+                        DataSources.asDataSource(ByteBuffer.wrap(buf.toByteArray())));
+
+        ApkHeaderSummary.ResourceTable resourceTable =
+                ApkHeaderSummary.of(apk).getResourceTable();
+
+        assertNotNull(resourceTable);
+        assertEquals(1, resourceTable.getPackageCount());
+        assertEquals(3, resourceTable.getGlobalStringCount());
+        assertNull(resourceTable.getFirstPackage());
+        assertTrue(apk.mReadByteCount < apk.size());
+    }
+
+    /**
+     * {@link DataSource} which counts the bytes read from it.
+     */
+    private static class CountingDataSource implements DataSource {
+        private final DataSource mDelegate;
+        private long mReadByteCount;
+
+        private CountingDataSource(DataSource delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            mReadByteCount += size;
+            mDelegate.feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            mReadByteCount += size;
+            return mDelegate.getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            mReadByteCount += size;
+            mDelegate.copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return mDelegate.slice(offset, size);
+        }
+    }
+}
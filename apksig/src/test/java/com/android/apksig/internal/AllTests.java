@@ -22,6 +22,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     com.android.apksig.internal.asn1.AllTests.class,
+    com.android.apksig.internal.jfr.AllTests.class,
     com.android.apksig.internal.util.AllTests.class,
 })
 public class AllTests {}
@@ -2,6 +2,8 @@ package com.android.apksig.internal.apk;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
@@ -9,8 +11,10 @@ import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksig.util.RunnablesProvider;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.EnumSet;
@@ -120,6 +124,127 @@ public class ApkSigningBlockUtilsTest {
         assertEqualDigests(outputContentDigestsMultithreaded, outputContentDigests);
     }
 
+    @Test
+    public void testInterruptStopsDigesting() throws Exception {
+        Map<ContentDigestAlgorithm, byte[]> outputContentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        Thread.currentThread().interrupt();
+        try {
+            ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                    RunnablesExecutor.SINGLE_THREADED,
+                    algos, dataSource, outputContentDigests);
+            fail("InterruptedIOException expected");
+        } catch (InterruptedIOException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(outputContentDigests.isEmpty());
+    }
+
+    @Test
+    public void testStreamingContentDigesterMatchesComputed() throws Exception {
+        // Stream a pretend APK whose APK Signing Block does not start at a chunk boundary
+        byte[] beforeApkSigningBlock = new byte[1_500_000];
+        for (int i = 0; i < beforeApkSigningBlock.length; ++i) {
+            beforeApkSigningBlock[i] = (byte)(i % BASE);
+        }
+        byte[] apkSigningBlock = new byte[4096];
+        byte[] centralDir = new byte[30_000];
+        for (int i = 0; i < centralDir.length; ++i) {
+            centralDir[i] = (byte)(i % BASE);
+        }
+        byte[] eocd = new byte[22];
+        ByteBuffer.wrap(eocd).order(ByteOrder.LITTLE_ENDIAN).putInt(16, 1_504_096);
+        StreamingContentDigester digester =
+                new StreamingContentDigester(
+                        ContentDigestAlgorithm.CHUNKED_SHA256,
+                        ContentDigestAlgorithm.CHUNKED_SHA512);
+        for (byte[] section
+                : new byte[][] {beforeApkSigningBlock, apkSigningBlock, centralDir, eocd}) {
+            for (int offset = 0; offset < section.length; offset += 100_000) {
+                int size = Math.min(100_000, section.length - offset);
+                if ((offset / 100_000) % 2 == 0) {
+                    digester.consume(section, offset, size);
+                } else {
+                    digester.consume(ByteBuffer.wrap(section, offset, size));
+                }
+            }
+        }
+        Map<ContentDigestAlgorithm, byte[]> streamedContentDigests =
+                digester.getContentDigests(
+                        DataSources.asDataSource(ByteBuffer.wrap(beforeApkSigningBlock)),
+                        DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                        ByteBuffer.wrap(eocd));
+
+        ByteBuffer modifiedEocd = ByteBuffer.wrap(eocd.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        modifiedEocd.putInt(16, beforeApkSigningBlock.length);
+        Map<ContentDigestAlgorithm, byte[]> outputContentDigests =
+                new EnumMap<>(ContentDigestAlgorithm.class);
+        ApkSigningBlockUtils.computeOneMbChunkContentDigests(
+                EnumSet.of(
+                        ContentDigestAlgorithm.CHUNKED_SHA256,
+                        ContentDigestAlgorithm.CHUNKED_SHA512),
+                new DataSource[] {
+                        DataSources.asDataSource(ByteBuffer.wrap(beforeApkSigningBlock)),
+                        DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                        DataSources.asDataSource(modifiedEocd),
+                },
+                outputContentDigests);
+
+        assertEqualDigests(outputContentDigests, streamedContentDigests);
+    }
+
+    @Test
+    public void testStreamingContentDigesterMatchesComputedVerity() throws Exception {
+        // Stream a pretend APK whose APK Signing Block is aligned to 4 KB as APK Verity requires
+        byte[] beforeApkSigningBlock = new byte[367 * 4096];
+        for (int i = 0; i < beforeApkSigningBlock.length; ++i) {
+            beforeApkSigningBlock[i] = (byte)(i % BASE);
+        }
+        byte[] apkSigningBlock = new byte[4096];
+        byte[] centralDir = new byte[30_000];
+        for (int i = 0; i < centralDir.length; ++i) {
+            centralDir[i] = (byte)(i % BASE);
+        }
+        byte[] eocd = new byte[22];
+        ByteBuffer.wrap(eocd).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(16, beforeApkSigningBlock.length + apkSigningBlock.length);
+        StreamingContentDigester digester =
+                new StreamingContentDigester(
+                        ContentDigestAlgorithm.CHUNKED_SHA256,
+                        ContentDigestAlgorithm.VERITY_CHUNKED_SHA256);
+        for (byte[] section
+                : new byte[][] {beforeApkSigningBlock, apkSigningBlock, centralDir, eocd}) {
+            for (int offset = 0; offset < section.length; offset += 100_000) {
+                int size = Math.min(100_000, section.length - offset);
+                if ((offset / 100_000) % 2 == 0) {
+                    digester.consume(section, offset, size);
+                } else {
+                    digester.consume(ByteBuffer.wrap(section, offset, size));
+                }
+            }
+        }
+        Map<ContentDigestAlgorithm, byte[]> streamedContentDigests =
+                digester.getContentDigests(
+                        DataSources.asDataSource(ByteBuffer.wrap(beforeApkSigningBlock)),
+                        DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                        ByteBuffer.wrap(eocd));
+
+        ByteBuffer modifiedEocd = ByteBuffer.wrap(eocd.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        modifiedEocd.putInt(16, beforeApkSigningBlock.length);
+        Map<ContentDigestAlgorithm, byte[]> outputContentDigests =
+                ApkSigningBlockUtils.computeContentDigests(
+                        RunnablesExecutor.SINGLE_THREADED,
+                        EnumSet.of(
+                                ContentDigestAlgorithm.CHUNKED_SHA256,
+                                ContentDigestAlgorithm.VERITY_CHUNKED_SHA256),
+                        DataSources.asDataSource(ByteBuffer.wrap(beforeApkSigningBlock)),
+                        DataSources.asDataSource(ByteBuffer.wrap(centralDir)),
+                        DataSources.asDataSource(modifiedEocd));
+
+        assertEqualDigests(outputContentDigests, streamedContentDigests);
+    }
+
     private void assertEqualDigests(
             Map<ContentDigestAlgorithm, byte[]> d1, Map<ContentDigestAlgorithm, byte[]> d2) {
         assertEquals(d1.keySet(), d2.keySet());
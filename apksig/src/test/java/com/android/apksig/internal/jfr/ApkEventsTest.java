@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.internal.asn1.Asn1BerParser;
+import com.android.apksig.internal.asn1.Asn1DecodingException;
+import com.android.apksig.internal.pkcs7.ContentInfo;
+import com.android.apksig.internal.util.Resources;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkEventsTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testVerificationEmitsEvents() throws Exception {
+        // APK signed with v1 and v2 schemes, so that both JAR entries and chunks get digested
+        File apk = temporaryFolder.newFile("original.apk");
+        Files.write(apk.toPath(), Resources.toByteArray(ApkVerifier.class, "original.apk"));
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(ApkOperationEvent.class);
+            recording.enable(ChunkDigestEvent.class);
+            recording.enable(EntryInflationEvent.class);
+            recording.enable(Asn1ParseEvent.class);
+            recording.start();
+            new ApkVerifier.Builder(apk).build().verify();
+            recording.stop();
+            File dump = temporaryFolder.newFile("recording.jfr");
+            recording.dump(dump.toPath());
+            events = RecordingFile.readAllEvents(dump.toPath());
+        }
+
+        RecordedEvent operation = getOnlyEvent(events, "com.android.apksig.ApkOperation");
+        assertEquals(ApkOperationEvent.OPERATION_VERIFY, operation.getString("operation"));
+        assertEquals(apk.getPath(), operation.getString("apkPath"));
+        assertEquals(apk.length(), operation.getLong("apkSize"));
+        assertEquals("v1 v2", operation.getString("signatureSchemes"));
+        assertTrue(operation.getBoolean("succeeded"));
+
+        RecordedEvent chunkDigest = getOnlyEvent(events, "com.android.apksig.ChunkDigest");
+        assertEquals(apk.getPath(), chunkDigest.getString("apkPath"));
+        assertTrue(chunkDigest.getLong("bytes") > 0);
+        assertTrue(chunkDigest.getInt("chunks") > 0);
+        assertFalse(chunkDigest.getString("algorithms").isEmpty());
+
+        List<RecordedEvent> inflations = getEvents(events, "com.android.apksig.EntryInflation");
+        assertFalse(inflations.isEmpty());
+        for (RecordedEvent inflation : inflations) {
+            assertEquals(apk.getPath(), inflation.getString("apkPath"));
+        }
+
+        List<RecordedEvent> asn1Parses = getEvents(events, "com.android.apksig.Asn1Parse");
+        assertFalse(asn1Parses.isEmpty());
+        for (RecordedEvent asn1Parse : asn1Parses) {
+            assertTrue(asn1Parse.getBoolean("succeeded"));
+        }
+    }
+
+    @Test
+    public void testVerityVerificationEmitsVerityTreeEvents() throws Exception {
+        // APK whose v2 and v3 signatures include APK verity digests
+        File apk = temporaryFolder.newFile("golden-aligned-v1v2v3-out.apk");
+        Files.write(
+                apk.toPath(),
+                Resources.toByteArray(ApkVerifier.class, "golden-aligned-v1v2v3-out.apk"));
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(VerityTreeLevelEvent.class);
+            recording.start();
+            assertTrue(new ApkVerifier.Builder(apk).build().verify().isVerified());
+            recording.stop();
+            File dump = temporaryFolder.newFile("recording.jfr");
+            recording.dump(dump.toPath());
+            events = RecordingFile.readAllEvents(dump.toPath());
+        }
+
+        List<RecordedEvent> levels = getEvents(events, "com.android.apksig.VerityTreeLevel");
+        assertFalse(levels.isEmpty());
+        boolean bottomLevelFound = false;
+        for (RecordedEvent level : levels) {
+            assertEquals(apk.getPath(), level.getString("apkPath"));
+            assertEquals("SHA-256", level.getString("algorithm"));
+            assertTrue(level.getLong("outputSize") > 0);
+            if (level.getInt("level") == 0) {
+                // The APK Signing Block is not digested
+                assertTrue(level.getLong("inputSize") > 0);
+                assertTrue(level.getLong("inputSize") < apk.length());
+                bottomLevelFound = true;
+            }
+        }
+        assertTrue(bottomLevelFound);
+    }
+
+    @Test
+    public void testSigningEmitsEvents() throws Exception {
+        File inputApk = temporaryFolder.newFile("original.apk");
+        Files.write(inputApk.toPath(), Resources.toByteArray(ApkVerifier.class, "original.apk"));
+        File outputApk = temporaryFolder.newFile("signed.apk");
+        ApkSigner.SignerConfig signer =
+                new ApkSigner.SignerConfig.Builder(
+                                "rsa-2048",
+                                Resources.toPrivateKey(ApkSigner.class, "rsa-2048.pk8"),
+                                Resources.toCertificateChain(
+                                        ApkSigner.class, "rsa-2048.x509.pem"))
+                        .build();
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(ApkOperationEvent.class);
+            recording.enable(VerityTreeLevelEvent.class);
+            recording.start();
+            new ApkSigner.Builder(Collections.singletonList(signer))
+                    .setInputApk(inputApk)
+                    .setOutputApk(outputApk)
+                    .build()
+                    .sign();
+            recording.stop();
+            File dump = temporaryFolder.newFile("recording.jfr");
+            recording.dump(dump.toPath());
+            events = RecordingFile.readAllEvents(dump.toPath());
+        }
+
+        RecordedEvent operation = getOnlyEvent(events, "com.android.apksig.ApkOperation");
+        assertEquals(ApkOperationEvent.OPERATION_SIGN, operation.getString("operation"));
+        assertEquals(inputApk.getPath(), operation.getString("apkPath"));
+        assertEquals(inputApk.length(), operation.getLong("apkSize"));
+        assertEquals("v1 v2 v3", operation.getString("signatureSchemes"));
+        assertTrue(operation.getBoolean("succeeded"));
+
+        // v2 and v3 signatures of an RSA 2048 signer include APK verity digests
+        List<RecordedEvent> levels = getEvents(events, "com.android.apksig.VerityTreeLevel");
+        assertFalse(levels.isEmpty());
+        for (RecordedEvent level : levels) {
+            assertEquals(inputApk.getPath(), level.getString("apkPath"));
+        }
+    }
+
+    @Test
+    public void testFailedAsn1ParseEmitsEvent() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(Asn1ParseEvent.class);
+            recording.start();
+            try {
+                // SEQUENCE claiming 5 bytes of contents, with none present
+                Asn1BerParser.parse(ByteBuffer.wrap(new byte[] {0x30, 0x05}), ContentInfo.class);
+                fail();
+            } catch (Asn1DecodingException expected) {}
+            recording.stop();
+            File dump = temporaryFolder.newFile("recording.jfr");
+            recording.dump(dump.toPath());
+            events = RecordingFile.readAllEvents(dump.toPath());
+        }
+
+        RecordedEvent asn1Parse = getOnlyEvent(events, "com.android.apksig.Asn1Parse");
+        assertEquals(ContentInfo.class.getName(), asn1Parse.getString("structure"));
+        assertFalse(asn1Parse.getBoolean("succeeded"));
+    }
+
+    private static List<RecordedEvent> getEvents(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> result = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    private static RecordedEvent getOnlyEvent(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> result = getEvents(events, name);
+        assertEquals(name, 1, result.size());
+        return result.get(0);
+    }
+}
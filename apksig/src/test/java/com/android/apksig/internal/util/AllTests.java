@@ -24,6 +24,7 @@ import org.junit.runners.Suite;
     ArrayBackedByteBufferSinkTest.class,
     ChainedDataSourceTest.class,
     DirectByteBufferSinkTest.class,
+    SignerCryptoCacheTest.class,
     VerityTreeBuilderTest.class,
     X509CertificateUtilsTest.class,
 })
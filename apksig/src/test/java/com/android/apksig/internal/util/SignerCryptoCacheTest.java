@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+
+@RunWith(JUnit4.class)
+public class SignerCryptoCacheTest {
+    private static final String RSA_2048_DER = "rsa-2048.x509.der";
+    private static final String RSA_2048_REDUNDANT_LEN_DER = "rsa-2048-redun-len.x509.der";
+
+    @Test
+    public void testCertificateIsParsedOnce() throws Exception {
+        SignerCryptoCache cache = new SignerCryptoCache(SignerCryptoCache.DEFAULT_MAX_ENTRIES);
+        byte[] encoded = Resources.toByteArray(getClass(), RSA_2048_DER);
+        X509Certificate first = cache.getCertificate(encoded);
+        X509Certificate second = cache.getCertificate(encoded.clone());
+        assertSame(first, second);
+        assertArrayEquals(encoded, first.getEncoded());
+    }
+
+    @Test
+    public void testCertificatePreservesOriginalEncoding() throws Exception {
+        // The cached certificate must still report the (non-DER) encoding it was parsed from,
+        // since that encoding is what the signatures over the certificate were computed against.
+        SignerCryptoCache cache = new SignerCryptoCache(SignerCryptoCache.DEFAULT_MAX_ENTRIES);
+        byte[] encoded = Resources.toByteArray(getClass(), RSA_2048_REDUNDANT_LEN_DER);
+        assertArrayEquals(encoded, cache.getCertificate(encoded).getEncoded());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        SignerCryptoCache cache = new SignerCryptoCache(1);
+        byte[] encoded1 = Resources.toByteArray(getClass(), RSA_2048_DER);
+        byte[] encoded2 = Resources.toByteArray(getClass(), RSA_2048_REDUNDANT_LEN_DER);
+        X509Certificate first = cache.getCertificate(encoded1);
+        cache.getCertificate(encoded2);
+        assertNotSame(first, cache.getCertificate(encoded1));
+    }
+
+    @Test
+    public void testPublicKeyIsParsedOnce() throws Exception {
+        SignerCryptoCache cache = new SignerCryptoCache(SignerCryptoCache.DEFAULT_MAX_ENTRIES);
+        byte[] encodedKey = cache.getCertificate(Resources.toByteArray(getClass(), RSA_2048_DER))
+                .getPublicKey().getEncoded();
+        PublicKey publicKey = cache.getPublicKey("RSA", encodedKey);
+        assertSame(publicKey, cache.getPublicKey("RSA", encodedKey.clone()));
+        assertArrayEquals(encodedKey, publicKey.getEncoded());
+    }
+
+    @Test
+    public void testEncodedPublicKeyIsCopied() throws Exception {
+        SignerCryptoCache cache = new SignerCryptoCache(SignerCryptoCache.DEFAULT_MAX_ENTRIES);
+        byte[] encodedKey = new byte[] {1, 2, 3};
+        byte[] reencodedKey = new byte[] {4, 5, 6};
+        assertNull(cache.getEncodedPublicKey(encodedKey));
+        cache.putEncodedPublicKey(encodedKey, reencodedKey);
+        reencodedKey[0] = 0;
+        byte[] cached = cache.getEncodedPublicKey(encodedKey);
+        assertArrayEquals(new byte[] {4, 5, 6}, cached);
+        cached[0] = 0;
+        assertEquals(4, cache.getEncodedPublicKey(encodedKey)[0]);
+    }
+
+    @Test
+    public void testReleasedVerifierIsReused() throws Exception {
+        SignerCryptoCache cache = new SignerCryptoCache(SignerCryptoCache.DEFAULT_MAX_ENTRIES);
+        PublicKey publicKey = cache.getCertificate(Resources.toByteArray(getClass(), RSA_2048_DER))
+                .getPublicKey();
+        Signature first = cache.acquireVerifier("SHA256withRSA", publicKey);
+        Signature second = cache.acquireVerifier("SHA256withRSA", publicKey);
+        assertNotSame(first, second);
+        cache.releaseVerifier(first, "SHA256withRSA", null, publicKey);
+        assertSame(first, cache.acquireVerifier("SHA256withRSA", publicKey));
+    }
+}
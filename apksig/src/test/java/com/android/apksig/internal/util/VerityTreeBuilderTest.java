@@ -30,7 +30,10 @@ import org.junit.runners.JUnit4;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
 
 
 /** Unit tests for {@link VerityTreeBuilder}. */
@@ -114,4 +117,39 @@ public final class VerityTreeBuilderTest {
             assertEquals(expectedRootHash, HexEncoding.encode(rootHash));
         }
     }
+
+    @Test public void rootHashOfThreeLevelTreeMatchesInMemoryTree() throws Exception {
+        // More than 128 * 128 chunks of input, so that the tree has three levels.
+        byte[] input = new byte[128 * 128 * 4096 + 12345];
+        new Random(1).nextBytes(input);
+        byte[] salt = new byte[8];
+
+        VerityTreeBuilder builder = new VerityTreeBuilder(salt);
+        byte[] rootHash = builder.generateVerityTreeRootHash(
+                DataSources.asDataSource(ByteBuffer.wrap(input)));
+        assertEquals(HexEncoding.encode(computeRootHashInMemory(input, salt)),
+                HexEncoding.encode(rootHash));
+    }
+
+    /**
+     * Returns the root hash of the verity tree of the input, materializing each level of the tree.
+     */
+    private static byte[] computeRootHashInMemory(byte[] input, byte[] salt) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] level = input;
+        while (true) {
+            int chunkCount = (level.length + 4095) / 4096;
+            byte[] digests = new byte[(chunkCount * 32 + 4095) / 4096 * 4096];
+            for (int i = 0; i < chunkCount; i++) {
+                md.update(salt);
+                md.update(Arrays.copyOfRange(level, i * 4096, (i + 1) * 4096));
+                md.digest(digests, i * 32, 32);
+            }
+            if (chunkCount * 32 <= 4096) {
+                md.update(salt);
+                return md.digest(digests);
+            }
+            level = digests;
+        }
+    }
 }
@@ -23,10 +23,15 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     DataSinkFromOutputStreamTest.class,
     DataSinkFromRAFTest.class,
+    DataSinkWriteBehindTest.class,
+    DataSourceBlockCachingTest.class,
     DataSourceFromByteBufferTest.class,
+    DataSourceFromHttpTest.class,
     DataSourceFromRAFChunkTest.class,
     DataSourceFromRAFTest.class,
     InMemoryDataSinkDataSourceTest.class,
     InMemoryDataSinkTest.class,
+    SegmentedInMemoryDataSinkDataSourceTest.class,
+    SegmentedInMemoryDataSinkTest.class,
 })
 public class AllTests {}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.internal.util.WriteBehindDataSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the {@link DataSink} returned by {@link DataSinks#asWriteBehindDataSink(DataSink)}.
+ */
+@RunWith(JUnit4.class)
+public class DataSinkWriteBehindTest extends DataSinkTestBase<WriteBehindDataSink> {
+
+    private final Map<WriteBehindDataSink, ReadableDataSink> mDelegates =
+            new IdentityHashMap<>();
+
+    @Override
+    protected CloseableWithDataSink<WriteBehindDataSink> createDataSink() {
+        ReadableDataSink delegate = DataSinks.newInMemoryDataSink();
+        // Tiny buffers so that tests exercise data spanning several buffers
+        WriteBehindDataSink sink = new WriteBehindDataSink(delegate, 2, 3);
+        mDelegates.put(sink, delegate);
+        return CloseableWithDataSink.of(sink, sink);
+    }
+
+    @Override
+    protected ByteBuffer getContents(WriteBehindDataSink dataSink) throws IOException {
+        dataSink.flush();
+        ReadableDataSink delegate = mDelegates.get(dataSink);
+        return delegate.getByteBuffer(0, (int) delegate.size());
+    }
+
+    @Test
+    public void testWriteErrorPropagated() throws Exception {
+        IOException writeError = new IOException("disk full");
+        DataSink failingSink = new DataSink() {
+            @Override
+            public void consume(byte[] buf, int offset, int length) throws IOException {
+                throw writeError;
+            }
+
+            @Override
+            public void consume(ByteBuffer buf) throws IOException {
+                throw writeError;
+            }
+        };
+        try (WriteBehindDataSink sink = new WriteBehindDataSink(failingSink, 2, 3)) {
+            sink.consume(new byte[10], 0, 10);
+            try {
+                sink.flush();
+                fail();
+            } catch (IOException expected) {
+                assertSame(writeError, expected.getCause());
+            }
+            try {
+                sink.consume(new byte[1], 0, 1);
+                fail();
+            } catch (IOException expected) {
+                assertSame(writeError, expected.getCause());
+            }
+        } catch (IOException expected) {
+            // close() rethrows the error as well
+            assertSame(writeError, expected.getCause());
+        }
+    }
+}
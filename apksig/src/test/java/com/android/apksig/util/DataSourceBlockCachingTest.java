@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests for the {@link DataSource} returned by
+ * {@link DataSources#asBlockCachingDataSource(DataSource, int, int, int)}.
+ */
+@RunWith(Parameterized.class)
+public class DataSourceBlockCachingTest extends DataSourceTestBase {
+
+    @Parameterized.Parameters(name = "blockSize={0}")
+    public static Integer[] data() {
+        return new Integer[] {1, 3, 4, 65536};
+    }
+
+    @Parameterized.Parameter
+    public int blockSize;
+
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        return CloseableWithDataSource.of(
+                DataSources.asBlockCachingDataSource(
+                        DataSources.asDataSource(ByteBuffer.wrap(contents)), blockSize, 2, 1));
+    }
+
+    @Test
+    public void testSmallReadsServedFromCache() throws Exception {
+        byte[] contents = createContents(16 * blockSize + 5);
+        RecordingDataSource delegate = new RecordingDataSource(contents);
+        DataSource ds = DataSources.asBlockCachingDataSource(delegate, blockSize, 4, 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, blockSize, 2 * blockSize),
+                    toArray(ds.getByteBuffer(blockSize, blockSize)));
+        }
+        assertEquals(Arrays.asList("copyTo " + blockSize + " " + blockSize), delegate.mReads);
+
+        // The last block is shorter than the block size
+        long lastBlockOffset = (contents.length - 1) / blockSize * blockSize;
+        assertArrayEquals(
+                Arrays.copyOfRange(contents, contents.length - 1, contents.length),
+                toArray(ds.slice(contents.length - 1, 1).getByteBuffer(0, 1)));
+        assertEquals(
+                "copyTo " + lastBlockOffset + " " + (contents.length - lastBlockOffset),
+                delegate.mReads.get(1));
+    }
+
+    @Test
+    public void testSequentialMissesReadAhead() throws Exception {
+        byte[] contents = createContents(16 * blockSize);
+        RecordingDataSource delegate = new RecordingDataSource(contents);
+        DataSource ds = DataSources.asBlockCachingDataSource(delegate, blockSize, 8, 3);
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        for (int offset = 0; offset < 8 * blockSize; offset += blockSize) {
+            read.write(toArray(ds.getByteBuffer(offset, blockSize)));
+        }
+        assertArrayEquals(Arrays.copyOf(contents, 8 * blockSize), read.toByteArray());
+        assertEquals(
+                Arrays.asList(
+                        "copyTo 0 " + blockSize,
+                        "copyTo " + blockSize + " " + (4 * blockSize),
+                        "copyTo " + (5 * blockSize) + " " + (4 * blockSize)),
+                delegate.mReads);
+    }
+
+    @Test
+    public void testLargeReadsBypassCache() throws Exception {
+        byte[] contents = createContents(16 * blockSize);
+        RecordingDataSource delegate = new RecordingDataSource(contents);
+        DataSource ds = DataSources.asBlockCachingDataSource(delegate, blockSize, 4, 1);
+
+        ByteArrayOutputStream fed = new ByteArrayOutputStream();
+        ds.feed(0, contents.length, DataSinks.asDataSink(fed));
+        assertArrayEquals(contents, fed.toByteArray());
+        assertArrayEquals(
+                Arrays.copyOf(contents, 2 * blockSize),
+                toArray(ds.getByteBuffer(0, 2 * blockSize)));
+        assertEquals(
+                Arrays.asList(
+                        "feed 0 " + contents.length,
+                        "copyTo 0 " + (2 * blockSize)),
+                delegate.mReads);
+    }
+
+    private static byte[] createContents(int size) {
+        byte[] contents = new byte[size];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+        return contents;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    /**
+     * {@link DataSource} which records the reads from it.
+     */
+    private static class RecordingDataSource implements DataSource {
+        private final DataSource mDelegate;
+        private final List<String> mReads = new ArrayList<>();
+
+        private RecordingDataSource(byte[] contents) {
+            mDelegate = DataSources.asDataSource(ByteBuffer.wrap(contents));
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            mReads.add("feed " + offset + " " + size);
+            mDelegate.feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            mReads.add("copyTo " + offset + " " + size);
+            return mDelegate.getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            mReads.add("copyTo " + offset + " " + size);
+            mDelegate.copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.ApkVerifier;
+import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.HttpRangeDataSource;
+import com.android.apksig.internal.util.Resources;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests for {@link HttpRangeDataSource} and the {@link DataSource} returned by
+ * {@link DataSources#asDataSource(URL)}, served by a local HTTP server.
+ */
+@RunWith(Parameterized.class)
+public class DataSourceFromHttpTest extends DataSourceTestBase {
+
+    @Parameterized.Parameters(name = "segmentSize={0}")
+    public static Integer[] data() {
+        return new Integer[] {1, 3, HttpRangeDataSource.DEFAULT_SEGMENT_SIZE};
+    }
+
+    @Parameterized.Parameter
+    public int segmentSize;
+
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        RangeServer server = new RangeServer(contents, true);
+        try {
+            return CloseableWithDataSource.of(
+                    new HttpRangeDataSource(server.getUrl(), segmentSize, 3), server);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    @Test
+    public void testApkVerifiesOverHttp() throws Exception {
+        byte[] apkBytes =
+                Resources.toByteArray(ApkVerifier.class, "golden-aligned-v1v2v3-out.apk");
+        ApkVerifier.Result expected =
+                new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                        .build()
+                        .verify();
+        try (RangeServer server = new RangeServer(apkBytes, true)) {
+            ApkVerifier.Result actual =
+                    new ApkVerifier.Builder(DataSources.asDataSource(server.getUrl()))
+                            .build()
+                            .verify();
+            assertTrue(actual.isVerified());
+            assertEquals(expected.isVerifiedUsingV3Scheme(), actual.isVerifiedUsingV3Scheme());
+            assertEquals(expected.getSignerCertificates(), actual.getSignerCertificates());
+        }
+    }
+
+    @Test
+    public void testDisallowedSignerRejectedWithoutReadingContents() throws Exception {
+        // 8 MB APK signed with the v2 scheme only, for platforms which do not check v1 signatures
+        byte[] contents = new byte[8 * 1024 * 1024];
+        new Random(4).nextBytes(contents);
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry("assets/contents.bin"));
+            out.write(contents);
+            out.closeEntry();
+        }
+        ApkSigner.SignerConfig signer =
+                new ApkSigner.SignerConfig.Builder(
+                                "rsa-2048",
+                                Resources.toPrivateKey(ApkSigner.class, "rsa-2048.pk8"),
+                                Resources.toCertificateChain(
+                                        ApkSigner.class, "rsa-2048.x509.pem"))
+                        .build();
+        ReadableDataSink apk = DataSinks.newInMemoryDataSink();
+        new ApkSigner.Builder(Collections.singletonList(signer))
+                .setInputApk(DataSources.asDataSource(ByteBuffer.wrap(zip.toByteArray())))
+                .setOutputApk(apk)
+                .setMinSdkVersion(AndroidSdkVersion.N)
+                .setV1SigningEnabled(false)
+                .setV3SigningEnabled(false)
+                .build()
+                .sign();
+        byte[] apkBytes = new byte[(int) apk.size()];
+        apk.copyTo(0, apkBytes.length, ByteBuffer.wrap(apkBytes));
+
+        try (RangeServer server = new RangeServer(apkBytes, true)) {
+            ApkVerifier.Result result =
+                    new ApkVerifier.Builder(DataSources.asDataSource(server.getUrl()))
+                            .setMinCheckedPlatformVersion(AndroidSdkVersion.N)
+                            .setAllowedSignerCertificateDigests(
+                                    Collections.singletonList(new byte[32]))
+                            .build()
+                            .verify();
+            assertFalse(result.isVerified());
+            assertEquals(
+                    ApkVerifier.Issue.SIGNER_CERTIFICATE_NOT_ALLOWED,
+                    result.getErrors().get(0).getIssue());
+            // Only the last 64 KB block, which holds the APK Signing Block, Central Directory and
+            // EOCD, is read
+            assertTrue(
+                    "served " + server.getServedByteCount() + " bytes",
+                    server.getServedByteCount() <= 65536);
+        }
+    }
+
+    @Test
+    public void testSmallReadsCoalesced() throws Exception {
+        byte[] contents = new byte[1024 * 1024 + 123];
+        new Random(1).nextBytes(contents);
+        try (RangeServer server = new RangeServer(contents, true)) {
+            DataSource ds = DataSources.asDataSource(server.getUrl());
+            // Reads near the end, as done when looking for the ZIP End of Central Directory
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, contents.length - 22, contents.length),
+                    toArray(ds.getByteBuffer(contents.length - 22, 22)));
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, contents.length - 100, contents.length - 50),
+                    toArray(ds.getByteBuffer(contents.length - 100, 50)));
+            // A read spanning two blocks
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, 65000, 66000),
+                    toArray(ds.getByteBuffer(65000, 1000)));
+
+            assertEquals(
+                    Arrays.asList(
+                            "HEAD",
+                            "bytes=" + (1024 * 1024) + "-" + (contents.length - 1),
+                            "bytes=0-" + (2 * 65536 - 1)),
+                    server.getRequests());
+        }
+    }
+
+    @Test
+    public void testFeedRequestsSegments() throws Exception {
+        byte[] contents = new byte[10 * 1000 + 7];
+        new Random(2).nextBytes(contents);
+        try (RangeServer server = new RangeServer(contents, true)) {
+            DataSource ds = new HttpRangeDataSource(server.getUrl(), 1000, 4);
+            ByteArrayOutputStream fed = new ByteArrayOutputStream();
+            ds.slice(5, contents.length - 5)
+                    .feed(0, contents.length - 5, DataSinks.asDataSink(fed));
+            assertArrayEquals(Arrays.copyOfRange(contents, 5, contents.length), fed.toByteArray());
+
+            Set<String> expectedRanges = new HashSet<>();
+            for (int offset = 5; offset < contents.length; offset += 1000) {
+                expectedRanges.add(
+                        "bytes=" + offset + "-" + (Math.min(offset + 1000, contents.length) - 1));
+            }
+            List<String> requests = server.getRequests();
+            assertEquals("HEAD", requests.get(0));
+            assertEquals(expectedRanges, new HashSet<>(requests.subList(1, requests.size())));
+            assertEquals(expectedRanges.size(), requests.size() - 1);
+        }
+    }
+
+    @Test
+    public void testSequentialRequestsReuseConnection() throws Exception {
+        byte[] contents = new byte[1000];
+        new Random(3).nextBytes(contents);
+        try (RangeServer server = new RangeServer(contents, true)) {
+            DataSource ds = new HttpRangeDataSource(server.getUrl(), segmentSize, 3);
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, 0, 10), toArray(ds.getByteBuffer(0, 10)));
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, 500, 600), toArray(ds.getByteBuffer(500, 100)));
+            ByteBuffer dest = ByteBuffer.allocate(20);
+            ds.copyTo(980, 20, dest);
+            assertArrayEquals(Arrays.copyOfRange(contents, 980, 1000), dest.array());
+
+            // The connection of each fully read response is reused by the next request
+            assertEquals(4, server.getRequests().size());
+            assertEquals(1, server.getGetConnectionCount());
+        }
+    }
+
+    @Test
+    public void testServerWithoutRangeSupport() throws Exception {
+        try (RangeServer server = new RangeServer(new byte[100], false)) {
+            DataSource ds = new HttpRangeDataSource(server.getUrl(), segmentSize, 3);
+            assertEquals(100, ds.size());
+            try {
+                ds.getByteBuffer(10, 20);
+                fail();
+            } catch (IOException expected) {}
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    /**
+     * Loopback HTTP server which serves the provided contents, optionally supporting single range
+     * requests, and records the requests it receives.
+     */
+    private static class RangeServer implements Closeable {
+        private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+        private final byte[] mContents;
+        private final boolean mSupportRanges;
+        private final HttpServer mServer;
+        private final List<String> mRequests = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong mServedByteCount = new AtomicLong();
+        private final Set<InetSocketAddress> mGetClientAddresses =
+                Collections.synchronizedSet(new HashSet<>());
+
+        private RangeServer(byte[] contents, boolean supportRanges) throws IOException {
+            mContents = contents;
+            mSupportRanges = supportRanges;
+            mServer =
+                    HttpServer.create(
+                            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            mServer.createContext("/app.apk", this::handle);
+            mServer.start();
+        }
+
+        private URL getUrl() throws IOException {
+            return new URL("http", "127.0.0.1", mServer.getAddress().getPort(), "/app.apk");
+        }
+
+        private List<String> getRequests() {
+            synchronized (mRequests) {
+                return new ArrayList<>(mRequests);
+            }
+        }
+
+        /** Returns the number of response body bytes served. */
+        private long getServedByteCount() {
+            return mServedByteCount.get();
+        }
+
+        /** Returns the number of connections over which GET requests have been received. */
+        private int getGetConnectionCount() {
+            return mGetClientAddresses.size();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    mRequests.add("HEAD");
+                    exchange.getResponseHeaders().set(
+                            "Content-Length", Integer.toString(mContents.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                mRequests.add(String.valueOf(range));
+                mGetClientAddresses.add(exchange.getRemoteAddress());
+                Matcher matcher = (range != null) ? RANGE_PATTERN.matcher(range) : null;
+                if ((!mSupportRanges) || (matcher == null) || (!matcher.matches())) {
+                    exchange.sendResponseHeaders(200, mContents.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(mContents);
+                    }
+                    mServedByteCount.addAndGet(mContents.length);
+                    return;
+                }
+                int start = Integer.parseInt(matcher.group(1));
+                int end = Math.min(Integer.parseInt(matcher.group(2)), mContents.length - 1);
+                exchange.getResponseHeaders().set(
+                        "Content-Range",
+                        "bytes " + start + "-" + end + "/" + mContents.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(mContents, start, end - start + 1);
+                }
+                mServedByteCount.addAndGet(end - start + 1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            mServer.stop(0);
+        }
+    }
+}
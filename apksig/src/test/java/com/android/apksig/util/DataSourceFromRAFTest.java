@@ -72,6 +72,26 @@ public class DataSourceFromRAFTest extends DataSourceTestBase {
         }
     }
 
+    @Test
+    public void testFeedIntoRandomAccessFileDataSink() throws Exception {
+        // Feeding into a file-backed sink takes the channel-to-channel transfer path.
+        File out = File.createTempFile(DataSourceFromRAFTest.class.getSimpleName(), ".bin");
+        try (CloseableWithDataSource c = createDataSource("abcdefg");
+                RandomAccessFile outFile = new RandomAccessFile(out, "rw")) {
+            DataSource ds = c.getDataSource();
+            DataSink sink = DataSinks.asDataSink(outFile);
+            sink.consume("01".getBytes(StandardCharsets.UTF_8), 0, 2);
+            ds.feed(2, 3, sink);
+            ds.slice(1, 5).feed(4, 1, sink);
+            ds.feed(0, 0, sink);
+            sink.consume("9".getBytes(StandardCharsets.UTF_8), 0, 1);
+            assertEquals("01cdef9", new String(Files.readAllBytes(out.toPath()),
+                    StandardCharsets.UTF_8));
+        } finally {
+            out.delete();
+        }
+    }
+
     @Override
     protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
         File tmp = File.createTempFile(DataSourceFromRAFTest.class.getSimpleName(), ".bin");
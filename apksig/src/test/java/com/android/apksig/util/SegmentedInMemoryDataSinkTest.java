@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests for the {@link DataSink} returned by
+ * {@link DataSinks#newSegmentedInMemoryDataSink(int, boolean)}.
+ */
+@RunWith(Parameterized.class)
+public class SegmentedInMemoryDataSinkTest extends DataSinkTestBase<ReadableDataSink> {
+
+    @Parameterized.Parameters(name = "direct={0}")
+    public static Boolean[] data() {
+        return new Boolean[] {false, true};
+    }
+
+    @Parameterized.Parameter
+    public boolean direct;
+
+    @Override
+    protected CloseableWithDataSink<ReadableDataSink> createDataSink() {
+        // Tiny segments so that tests exercise data spanning several segments.
+        return CloseableWithDataSink.of(DataSinks.newSegmentedInMemoryDataSink(3, direct));
+    }
+
+    @Override
+    protected ByteBuffer getContents(ReadableDataSink dataSink) throws IOException {
+        if (dataSink.size() > Integer.MAX_VALUE) {
+            throw new IOException("Too much data: " + dataSink.size());
+        }
+        return dataSink.getByteBuffer(0, (int) dataSink.size());
+    }
+}